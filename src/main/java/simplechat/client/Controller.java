@@ -7,6 +7,7 @@ import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.input.KeyCode;
 import javafx.scene.text.Text;
+import simplechat.communication.jfr.UiUpdateEvent;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -45,7 +46,13 @@ public class Controller {
     }
 
     public void updateTextAreaWithText(String text) {
-        Platform.runLater(() -> this.textArea.setText(this.textArea.getText() + "\n" + text));
+        Platform.runLater(UiUpdateEvent.timed("Text", text.length(),
+                () -> this.textArea.setText(this.textArea.getText() + "\n" + text)));
+    }
+
+    public void updateUsers(String[] users) {
+        String online = "Online: " + String.join(", ", users);
+        Platform.runLater(UiUpdateEvent.timed("Users", online.length(), () -> this.actionTarget.setText(online)));
     }
 
     public void sendMessage() {
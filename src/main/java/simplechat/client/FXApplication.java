@@ -7,6 +7,7 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.stage.Stage;
+import simplechat.communication.Startup;
 
 import static javafx.scene.control.Alert.AlertType.*;
 
@@ -37,6 +38,7 @@ public class FXApplication extends Application {
 
         stage.setScene(scene);
         stage.show();
+        Startup.mark(Startup.Milestone.UI);
 
         if(!simpleChat.isConnected()) {
             Alert alert = new Alert(ERROR);
@@ -1,8 +1,16 @@
 package simplechat.client;
 
 import org.apache.commons.cli.*;
+import simplechat.communication.Startup;
+import simplechat.communication.socket.TlsContext;
 import simplechat.communication.socket.client.SimpleChatClient;
+import simplechat.communication.transport.Transports;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Logger;
 
@@ -18,7 +26,12 @@ import static java.util.logging.Level.*;
 public class SimpleChat {
 
     SimpleChatClient client;
-    private Controller controller;
+    private volatile Controller controller;
+    // messages which arrived before the window was shown, at most EARLY_LIMIT
+    private static final int EARLY_LIMIT = 1000;
+    private final List<String> early = new ArrayList<>();
+    // "/file path" in the text field sends a file
+    private static final String FILE_COMMAND = "/file ";
 
     public static Logger clientLogger = Logger.getLogger("client");
 
@@ -32,10 +45,21 @@ public class SimpleChat {
      * @param args <br>
      *             Server hostname to be connected to, e.g. --host 10.0.15.3 or -h 10.0.15.3 <br>
      *             TCP port to connecting to, e.g. --port 1234 or -p 1234 <br>
+     *             transport to connect with (socket, nio, virtual, memory, websocket), e.g. --transport nio <br>
      *             ChatName for Client identification, e.g. --name Franz or -n Franz <br>
+     *             ask the server for a deflated connection, e.g. --compress or -z <br>
+     *             minimum line length in bytes for compression, e.g. --compress-threshold 64 <br>
+     *             connect with TLS, e.g. --tls <br>
+     *             truststore for TLS, e.g. --truststore server.p12 --truststore-password secret <br>
+     *             do not subscribe to the user list, e.g. --no-presence <br>
+     *             at-least-once delivery with reconnects, e.g. --reliable <br>
+     *             do not ask the server to keep the chatName over lost connections, e.g. --no-claim <br>
+     *             send every line with an id, so the server drops it if it arrives twice, e.g. --message-ids <br>
+     *             directory for received files, e.g. --downloads /home/franz/Downloads <br>
      *             explaining what is being done, e.g. --verbose or -v <br>
      */
     public static void main(String[] args) {
+        Startup.begin(clientLogger);
         clientLogger.setLevel(FINE);
         clientLogger.setUseParentHandlers(false);
         ConsoleHandler ch = new ConsoleHandler();
@@ -47,6 +71,17 @@ public class SimpleChat {
         options.addOption("n", "name", true, "User name.");
         options.addOption("h", "host", true, "Server hostname.");
         options.addOption("p", "port", true, "TCP port.");
+        options.addOption(null, "transport", true, "Transport: socket (default), nio, virtual, memory or websocket.");
+        options.addOption("z", "compress", false, "Ask the server for a deflated connection.");
+        options.addOption(null, "compress-threshold", true, "Lines with less bytes are not compressed.");
+        options.addOption(null, "tls", false, "Connect with TLS.");
+        options.addOption(null, "truststore", true, "Keystore with trusted certificates, enables TLS.");
+        options.addOption(null, "truststore-password", true, "Password of the truststore.");
+        options.addOption(null, "no-presence", false, "Do not subscribe to the user list of the server.");
+        options.addOption(null, "reliable", false, "Ask the server for at-least-once delivery.");
+        options.addOption(null, "no-claim", false, "Do not ask the server to keep the chatName after a lost connection.");
+        options.addOption(null, "message-ids", false, "Send every line with an id, the server drops duplicates.");
+        options.addOption(null, "downloads", true, "Directory for received files.");
         options.addOption("v", "verbose", false, "explain what is being done");
 
         CommandLine line = null;
@@ -71,6 +106,34 @@ public class SimpleChat {
         }
 
         SimpleChat simpleChat = new SimpleChat(chatName, host, port);
+        if (line.hasOption("transport")) {
+            try {
+                simpleChat.client.setTransport(Transports.get(line.getOptionValue("transport")));
+            } catch (IllegalArgumentException e) {
+                clientLogger.log(SEVERE, e.getMessage());
+                System.exit(1);
+            }
+        }
+        simpleChat.client.setCompression(line.hasOption("z"));
+        simpleChat.client.setPresence(!line.hasOption("no-presence"));
+        simpleChat.client.setReliable(line.hasOption("reliable"));
+        simpleChat.client.setClaim(!line.hasOption("no-claim"));
+        simpleChat.client.setMessageIds(line.hasOption("message-ids"));
+        if (line.hasOption("downloads"))
+            simpleChat.client.setDownloadDirectory(Paths.get(line.getOptionValue("downloads")));
+        if (line.getOptionValue("compress-threshold") != null)
+            simpleChat.client.setCompressionThreshold(Integer.parseInt(line.getOptionValue("compress-threshold")));
+        if (line.hasOption("tls") || line.hasOption("truststore")) {
+            try {
+                simpleChat.client.setTlsContext(TlsContext.load(null, null,
+                        line.getOptionValue("truststore"), line.getOptionValue("truststore-password")));
+            } catch (Exception e) {
+                clientLogger.log(SEVERE, "Could not load truststore: " + e);
+                System.exit(1);
+            }
+        }
+        Startup.mark(Startup.Milestone.CONFIGURED);
+        // the client connects while the JavaFX toolkit and the FXML are still loading
         simpleChat.listen();
 
         FXApplication fxApplication = new FXApplication();
@@ -93,7 +156,13 @@ public class SimpleChat {
      * @param controller UI Controller for message and configuration interaction
      */
     public void setController(Controller controller) {
-        this.controller = controller;
+        synchronized (this.early) {
+            this.controller = controller;
+            for (String message : this.early) {
+                controller.updateTextAreaWithText(message);
+            }
+            this.early.clear();
+        }
     }
 
     /**
@@ -125,7 +194,17 @@ public class SimpleChat {
      */
     public void sendMessage(String message) {
         clientLogger.log(INFO, "UI gave me this message: " + message);
-        if(this.isConnected()) {
+        int space = message.indexOf(' ');
+        if (message.startsWith("@") && space > 1 && message.startsWith(FILE_COMMAND, space + 1)) {
+            // "@Franz,Sepp /file notes.txt" sends a file to them only
+            this.sendFile(Paths.get(message.substring(space + 1 + FILE_COMMAND.length()).trim()),
+                    message.substring(1, space).split(","));
+        } else if (message.startsWith("@") && space > 1) {
+            // "@Franz,Sepp hallo" is a direct message
+            this.sendMessage(message.substring(space + 1), message.substring(1, space));
+        } else if (message.startsWith(FILE_COMMAND)) {
+            this.sendFile(Paths.get(message.substring(FILE_COMMAND.length()).trim()));
+        } else if(this.isConnected()) {
             this.client.send(message);
         }
     }
@@ -143,6 +222,26 @@ public class SimpleChat {
         }
     }
 
+    /**
+     * Sends a file in its own Thread, the UI does not wait for the upload
+     *
+     * @param file      file to send
+     * @param chatNames receivers, none for everybody
+     */
+    public void sendFile(Path file, String... chatNames) {
+        if (!this.isConnected())
+            return;
+        Thread upload = new Thread(() -> {
+            try {
+                this.client.sendFile(file, chatNames);
+            } catch (IOException e) {
+                this.incomingMessage("File not sent: " + e.getMessage());
+            }
+        }, "SimpleChat-file");
+        upload.setDaemon(true);
+        upload.start();
+    }
+
     /**
      * Got a new message from communication framework.
      * Updates GUI with new message, only if the controller is set.
@@ -150,8 +249,28 @@ public class SimpleChat {
      * @param message Message sent by Server
      */
     public void incomingMessage(String message) {
+        if(this.controller == null) {
+            synchronized (this.early) {
+                if (this.controller == null) {
+                    // the window is not there yet, the messages are shown when it is
+                    if (this.early.size() < EARLY_LIMIT)
+                        this.early.add(message);
+                    return;
+                }
+            }
+        }
+        this.controller.updateTextAreaWithText(message);
+    }
+
+    /**
+     * The user list of the server changed, only if the client subscribed to it.
+     *
+     * @param users chatNames which are online
+     */
+    public void presenceChanged(String[] users) {
+        clientLogger.log(FINE, "Online: " + String.join(", ", users));
         if(this.controller != null) {
-            this.controller.updateTextAreaWithText(message);
+            this.controller.updateUsers(users);
         }
     }
 
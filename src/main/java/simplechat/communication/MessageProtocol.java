@@ -20,11 +20,137 @@ public class MessageProtocol implements Serializable {
         CHATNAME,
         /**
          * Signals server to send a message only to the listed users,
-         * the command will be defined as "!PRIVATE {chatName, chatName#1} text"
+         * the command will be defined as "!PRIVATE {chatName,chatName#1} text".
+         * The users and the sender get "[sender] {chatName,chatName#1} text",
+         * unknown users are reported to the sender with "!PRIVATE ERROR chatName,chatName".
          */
-        PRIVATE
+        PRIVATE,
+        /**
+         * Negotiates compression after "!CHATNAME". The client asks with "!COMPRESS DEFLATE",
+         * the server answers with "!COMPRESS DEFLATE" or "!COMPRESS NONE".
+         * After an accepted answer every following line in both directions is deflated.
+         */
+        COMPRESS,
+        /**
+         * Signals client that the server goes down and it should connect again after the given milliseconds,
+         * optionally to another server, the command will be defined as "!RECONNECT 5000 host:port"
+         */
+        RECONNECT,
+        /**
+         * Searches the chat history of the server, the command will be defined as
+         * "!SEARCH from:Franz since:7d \"some phrase\" term".
+         * The server answers with one "!SEARCH 2018-10-11T08:15:30Z [Franz] text" line per hit, newest first,
+         * followed by "!SEARCH END count" or "!SEARCH ERROR reason".
+         */
+        SEARCH,
+        /**
+         * Subscribes to the user list with "!PRESENCE", "!PRESENCE OFF" ends the subscription.
+         * The server answers with "!PRESENCE SNAPSHOT name\tname..." and later sends coalesced changes as
+         * "!PRESENCE DELTA -leftName\t~oldName\tnewName\t+joinedName", to be applied in this order.
+         */
+        PRESENCE,
+        /**
+         * Switches the connection to at-least-once delivery with "!RELIABLE", a reconnecting client resumes
+         * with "!RELIABLE token lastSequence". The server answers with "!RELIABLE token", a different token than
+         * the one sent means the old messages are lost and the sequence starts again.
+         */
+        RELIABLE,
+        /**
+         * Text message of a reliable connection, the command will be defined as "!SEQ 42 [Franz] hallo".
+         * The numbers are ascending, a number which was already received is a retransmission.
+         */
+        SEQ,
+        /**
+         * Cumulative acknowledgement of the client for all messages up to the sequence number,
+         * the command will be defined as "!ACK 42"
+         */
+        ACK,
+        /**
+         * File transfer. The client announces an upload with "!FILE SEND id size {chatName,chatName} name",
+         * without the target list the file goes to everybody, and sends the content as {@link #CHUNK}s.
+         * The server answers "!FILE DONE id receivers" or "!FILE ERROR id reason". The receivers get
+         * "!FILE OFFER id size [sender] name", the chunks and "!FILE END id".
+         */
+        FILE,
+        /**
+         * Part of a file, "!CHUNK id length" followed by exactly length raw bytes without line terminator.
+         * A chunk is at most {@link #MAX_CHUNK} bytes, chat lines can be sent between two chunks.
+         */
+        CHUNK,
+        /**
+         * Keeps the chatName over lost connections and server restarts. "!CLAIM" asks for a token for the current
+         * name, "!CLAIM token" takes the name of the token back. The server answers with "!CLAIM token chatName",
+         * a different token than the one sent means the name was given up and the client keeps its current one.
+         */
+        CLAIM,
+        /**
+         * Sent by the server to a client which reads too slowly, "!LAG count": count older messages were skipped,
+         * only the latest ones follow
+         */
+        LAG,
+        /**
+         * Chat line with a message id of the client, "!ID id line" where line is a text message or a
+         * {@link #PRIVATE} one. The server drops a line whose id the same client sent lately, so a client may send
+         * a line again if it is not sure it arrived. Ids are at most 64 bytes without spaces.
+         */
+        ID
     }
 
+    /**
+     * Largest number of bytes in one {@link Commands#CHUNK}
+     */
+    public static final int MAX_CHUNK = 64 * 1024;
+
+    /**
+     * Parameter of {@link Commands#FILE} announcing an upload
+     */
+    public static final String SEND = "SEND";
+
+    /**
+     * Parameter of {@link Commands#FILE} announcing a file to its receivers
+     */
+    public static final String OFFER = "OFFER";
+
+    /**
+     * Parameter of {@link Commands#FILE} confirming an upload to its sender
+     */
+    public static final String DONE = "DONE";
+
+    /**
+     * Parameter of {@link Commands#COMPRESS} for a deflated connection
+     */
+    public static final String DEFLATE = "DEFLATE";
+
+    /**
+     * Parameter of {@link Commands#COMPRESS} if compression was declined
+     */
+    public static final String NONE = "NONE";
+
+    /**
+     * Parameter of the last {@link Commands#SEARCH} answer line and of {@link Commands#FILE} after the last chunk
+     */
+    public static final String END = "END";
+
+    /**
+     * Parameter of a {@link Commands#SEARCH} answer for an invalid query and of a refused {@link Commands#FILE}
+     */
+    public static final String ERROR = "ERROR";
+
+    /**
+     * Parameter of the first {@link Commands#PRESENCE} answer with the whole user list
+     */
+    public static final String SNAPSHOT = "SNAPSHOT";
+
+    /**
+     * Parameter of a {@link Commands#PRESENCE} line with changes of the user list
+     */
+    public static final String DELTA = "DELTA";
+
+    /**
+     * Parameter of {@link Commands#PRESENCE} which ends the subscription
+     */
+    public static final String OFF = "OFF";
+
     /**
      * Using a easy to recognize encoding for string commands
      *
@@ -48,6 +174,17 @@ public class MessageProtocol implements Serializable {
         return c;
     }
 
+    /**
+     * Direct message for the listed users, e.g. "!PRIVATE {Franz,Sepp} hallo!"
+     *
+     * @param plainMessage Plain Messagetext
+     * @param chatNames    Receivers of the message
+     * @return {@link Commands#PRIVATE} command for the server
+     */
+    public static String privateMessage(String plainMessage, String... chatNames) {
+        return getMessage(Commands.PRIVATE) + " {" + String.join(",", chatNames) + "} " + plainMessage;
+    }
+
     /**
      * Encapsulates plain message with ChatName, e.g. "[Franz] hallo!"
      *
@@ -0,0 +1,83 @@
+package simplechat.communication;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Milestones of the startup of a server or client process, logged once with the time since main was entered.
+ * <br>
+ * Marking an already reached milestone is a single volatile read, so it can be called on the message path.
+ */
+public final class Startup {
+
+    /**
+     * Points in time between entering main and serving the first message
+     */
+    public enum Milestone {
+        /**
+         * main was entered, the time everything else is measured from
+         */
+        MAIN,
+        /**
+         * command line parsed and logger configured
+         */
+        CONFIGURED,
+        /**
+         * server socket bound or client connected
+         */
+        NETWORK,
+        /**
+         * first client accepted by the server
+         */
+        FIRST_ACCEPT,
+        /**
+         * first text message received
+         */
+        FIRST_MESSAGE,
+        /**
+         * window of the UI shown
+         */
+        UI
+    }
+
+    private static final AtomicLongArray reached = new AtomicLongArray(Milestone.values().length);
+    private static volatile long start = System.nanoTime();
+    private static volatile Logger logger = null;
+
+    private Startup() {
+    }
+
+    /**
+     * Starts measuring, called first thing in main
+     *
+     * @param log logger the milestones are written to
+     */
+    public static void begin(Logger log) {
+        logger = log;
+        start = System.nanoTime();
+        reached.set(Milestone.MAIN.ordinal(), start);
+    }
+
+    /**
+     * Logs the milestone if it is reached the first time
+     *
+     * @param milestone milestone which was just reached
+     */
+    public static void mark(Milestone milestone) {
+        if (reached.get(milestone.ordinal()) != 0)
+            return;
+        long now = System.nanoTime();
+        if (reached.compareAndSet(milestone.ordinal(), 0, now) && logger != null)
+            logger.log(Level.INFO, "Startup: " + milestone + " after " + (now - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * @param milestone milestone to look up
+     * @return milliseconds from {@link Milestone#MAIN} to the milestone, -1 if it was not reached yet
+     */
+    public static long millis(Milestone milestone) {
+        long time = reached.get(milestone.ordinal());
+        return time == 0 ? -1 : (time - start) / 1_000_000;
+    }
+}
@@ -0,0 +1,33 @@
+package simplechat.communication.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A ClientWorker handled one line of its client: a message with its fan-out, a direct message or a command.
+ * The time waiting for the line is not included.
+ */
+@Name("simplechat.Dispatch")
+@Label("Line Dispatch")
+@Category({"SimpleChat", "Server"})
+@Description("A ClientWorker handled one line of its client")
+@Enabled(false)
+@StackTrace(false)
+public class DispatchEvent extends Event {
+
+    /**
+     * Message, Private or Command
+     */
+    @Label("Kind")
+    public String kind;
+
+    @Label("Line Size")
+    @DataAmount
+    public int size;
+}
@@ -0,0 +1,29 @@
+package simplechat.communication.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One frame was queued for the clients of the server
+ */
+@Name("simplechat.FanOut")
+@Label("Fan-out")
+@Category({"SimpleChat", "Server"})
+@Description("One frame was queued for the clients of the server")
+@Enabled(false)
+@StackTrace(false)
+public class FanOutEvent extends Event {
+
+    @Label("Frame Size")
+    @DataAmount
+    public int size;
+
+    @Label("Recipients")
+    public int recipients;
+}
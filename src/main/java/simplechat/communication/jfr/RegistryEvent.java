@@ -0,0 +1,36 @@
+package simplechat.communication.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A client got or changed its chatName, including the notification of the UI and the presence subscribers
+ */
+@Name("simplechat.Registry")
+@Label("Name Registry")
+@Category({"SimpleChat", "Server"})
+@Description("A client got or changed its chatName")
+@Enabled(false)
+@StackTrace(false)
+public class RegistryEvent extends Event {
+
+    /**
+     * Add or Rename
+     */
+    @Label("Operation")
+    public String operation;
+
+    @Label("Chat Name")
+    public String chatName;
+
+    /**
+     * Names in the registry afterwards, the size of the array copied by the change
+     */
+    @Label("Clients")
+    public int clients;
+}
@@ -0,0 +1,79 @@
+package simplechat.communication.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The FX Thread ran one update of a window. The duration is the time on the FX Thread,
+ * {@link #queued} the time the update waited for it.
+ */
+@Name("simplechat.UiUpdate")
+@Label("UI Update")
+@Category({"SimpleChat", "UI"})
+@Description("The FX Thread ran one update of a window")
+@Enabled(false)
+@StackTrace(false)
+public class UiUpdateEvent extends Event {
+
+    // whether a running recording wants the event, checked again whenever a recording starts or stops
+    private static volatile boolean enabled = false;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                enabled = new UiUpdateEvent().isEnabled();
+            }
+        });
+    }
+
+    /**
+     * Text, AddUser, RemoveUser or Users
+     */
+    @Label("Kind")
+    public String kind;
+
+    @Label("Text Size")
+    @DataAmount
+    public int size;
+
+    @Label("Queued")
+    @Timespan
+    public long queued;
+
+    /**
+     * Wraps an update before it is handed to Platform.runLater. Without a recording of the event
+     * the update is passed through as it is.
+     *
+     * @param kind   what is updated
+     * @param size   characters of the new text
+     * @param update the update itself
+     * @return update which commits an event if a recording wants it
+     */
+    public static Runnable timed(String kind, int size, Runnable update) {
+        if (!enabled)
+            return update;
+        long created = System.nanoTime();
+        return () -> {
+            UiUpdateEvent event = new UiUpdateEvent();
+            event.begin();
+            update.run();
+            if (event.shouldCommit()) {
+                event.kind = kind;
+                event.size = size;
+                event.queued = System.nanoTime() - created;
+                event.commit();
+            }
+        };
+    }
+}
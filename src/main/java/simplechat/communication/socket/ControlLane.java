@@ -0,0 +1,101 @@
+package simplechat.communication.socket;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * High priority lane of a connection for commands like !EXIT or !ACK.
+ * <br>
+ * The writer of the connection calls {@link #writeTo(LineWriter)} before every chat line or file chunk,
+ * so a command waits for at most the frame which is written at that moment, not for the whole backlog of the
+ * normal lane. Lines of this lane are flushed at once.
+ */
+public class ControlLane {
+
+    private final Queue<byte[]> frames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger unsent = new AtomicInteger();
+
+    /**
+     * Queues a command, the caller has to make sure a writer calls {@link #writeTo(LineWriter)} afterwards
+     *
+     * @param line command without line terminator
+     */
+    public void add(String line) {
+        this.frames.add(LineWriter.encode(line));
+        this.unsent.incrementAndGet();
+    }
+
+    /**
+     * @return true if a command is queued or being written
+     */
+    public boolean hasPending() {
+        return this.unsent.get() > 0;
+    }
+
+    /**
+     * Writes and flushes all queued commands, cheap if the lane is empty
+     *
+     * @param out writer of the connection
+     * @return number of commands written
+     * @throws IOException if writing fails, the commands taken so far are lost then
+     */
+    public int writeTo(LineWriter out) throws IOException {
+        if (this.unsent.get() == 0)
+            return 0;
+        int count = 0;
+        try {
+            synchronized (out) {
+                byte[] frame;
+                while ((frame = this.frames.poll()) != null) {
+                    count++;
+                    out.write(frame);
+                }
+                if (count > 0)
+                    out.flush();
+            }
+        } finally {
+            if (count > 0) {
+                this.unsent.addAndGet(-count);
+                synchronized (this) {
+                    this.notifyAll();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param deadline System.currentTimeMillis() until which we wait
+     * @return true if all commands queued so far were written
+     */
+    public boolean awaitSent(long deadline) {
+        synchronized (this) {
+            long remaining;
+            while (this.hasPending() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return !this.hasPending();
+        }
+    }
+
+    /**
+     * Drops all queued commands, e.g. when the connection is closed, and wakes up waiting Threads
+     */
+    public void clear() {
+        int count = 0;
+        while (this.frames.poll() != null) {
+            count++;
+        }
+        this.unsent.addAndGet(-count);
+        synchronized (this) {
+            this.notifyAll();
+        }
+    }
+}
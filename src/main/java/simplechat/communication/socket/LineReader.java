@@ -0,0 +1,164 @@
+package simplechat.communication.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads UTF-8 encoded lines from an InputStream.
+ * <br>
+ * Unlike a BufferedReader the read ahead bytes are kept as bytes, so the stream can be switched to
+ * a decompressing stream in the middle of a conversation without losing anything that was already buffered.
+ * <br>
+ * {@link #readLineBuffer()} does not allocate anything per line, it returns a view on the internal buffers.
+ * <br>
+ * Raw bytes behind a line, e.g. a chunk of a file, are read with {@link #readBytes(WritableByteChannel, int)}
+ * through the same read buffer, so a large chunk never has to be in memory at once.
+ */
+public class LineReader {
+
+    private InputStream in;
+    private byte[] buffer = new byte[8192];
+    private int position = 0;
+    private int limit = 0;
+    private byte[] line = new byte[128];
+    private int lineLength = 0;
+
+    /**
+     * @param in InputStream of the connection
+     */
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line without the line terminator
+     *
+     * @return next line or null if the stream has ended
+     * @throws IOException if reading from the stream fails
+     */
+    public String readLine() throws IOException {
+        byte[] frame = this.readFrame();
+        return frame == null ? null : new String(frame, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the next line as bytes without the line terminator
+     *
+     * @return next line or null if the stream has ended
+     * @throws IOException if reading from the stream fails
+     */
+    public byte[] readFrame() throws IOException {
+        ByteBuffer view = this.readLineBuffer();
+        if (view == null)
+            return null;
+        byte[] frame = new byte[view.remaining()];
+        view.get(frame);
+        return frame;
+    }
+
+    /**
+     * Reads the next line without the line terminator and without copying it.
+     * The returned buffer is only valid until the next call.
+     *
+     * @return read-only view on the next line or null if the stream has ended
+     * @throws IOException if reading from the stream fails
+     */
+    public ByteBuffer readLineBuffer() throws IOException {
+        this.lineLength = 0;
+        while (true) {
+            if (this.position == this.limit && !this.fill()) {
+                return this.lineLength > 0 ? this.lineView(this.line, 0, this.lineLength) : null;
+            }
+            for (int i = this.position; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    int start = this.position;
+                    this.position = i + 1;
+                    if (this.lineLength == 0) {
+                        // the whole line is in the read buffer, no copy needed
+                        return this.lineView(this.buffer, start, i - start);
+                    }
+                    this.append(start, i);
+                    return this.lineView(this.line, 0, this.lineLength);
+                }
+            }
+            this.append(this.position, this.limit);
+            this.position = this.limit;
+        }
+    }
+
+    /**
+     * Reads exactly length raw bytes behind the current line and writes them to the target
+     *
+     * @param target channel receiving the bytes, null to skip them
+     * @param length number of bytes
+     * @throws IOException if the stream ends before or writing to the target fails
+     */
+    public void readBytes(WritableByteChannel target, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            if (this.position == this.limit && !this.fill())
+                throw new EOFException("Stream ended " + remaining + " bytes before the end of the chunk");
+            int n = Math.min(remaining, this.limit - this.position);
+            if (target != null) {
+                ByteBuffer bytes = ByteBuffer.wrap(this.buffer, this.position, n);
+                while (bytes.hasRemaining()) {
+                    target.write(bytes);
+                }
+            }
+            this.position += n;
+            remaining -= n;
+        }
+    }
+
+    private void append(int from, int to) {
+        int length = to - from;
+        if (this.lineLength + length > this.line.length)
+            this.line = Arrays.copyOf(this.line, Math.max(this.line.length * 2, this.lineLength + length));
+        System.arraycopy(this.buffer, from, this.line, this.lineLength, length);
+        this.lineLength += length;
+    }
+
+    private ByteBuffer lineView(byte[] array, int offset, int length) {
+        if (length > 0 && array[offset + length - 1] == '\r')
+            length--;
+        return ByteBuffer.wrap(array, offset, length).asReadOnlyBuffer();
+    }
+
+    private boolean fill() throws IOException {
+        int read = this.in.read(this.buffer, 0, this.buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        this.position = 0;
+        this.limit = read;
+        return true;
+    }
+
+    /**
+     * Everything after the current line will be read through an Inflater with one persistent context.
+     * Bytes which were already read ahead are handed to the Inflater first.
+     */
+    public void inflate() {
+        byte[] rest = Arrays.copyOfRange(this.buffer, this.position, this.limit);
+        this.position = 0;
+        this.limit = 0;
+        this.in = new InflaterInputStream(new SequenceInputStream(new ByteArrayInputStream(rest), this.in));
+    }
+
+    /**
+     * Closes the underlying stream
+     *
+     * @throws IOException if closing fails
+     */
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
@@ -0,0 +1,197 @@
+package simplechat.communication.socket;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes UTF-8 encoded lines to an OutputStream and flushes after every line.
+ * <br>
+ * A line can be encoded once with {@link #encode(String)} and then be written to many LineWriters.
+ * After {@link #deflate(int)} every line goes through one Deflater which keeps its context for
+ * the whole connection and every flush ends with a sync flush. Lines shorter than the threshold are written as stored blocks,
+ * so they are not compressed but still end up in the context of the following lines.
+ */
+public class LineWriter {
+
+    /**
+     * Lines shorter than this number of bytes are not compressed if nothing else is configured
+     */
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    private OutputStream out;
+    private FrameDeflaterOutputStream deflater = null;
+    private int threshold = DEFAULT_THRESHOLD;
+    private byte[] scratch = null;
+
+    /**
+     * @param out OutputStream of the connection
+     */
+    public LineWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out);
+    }
+
+    /**
+     * @param line text without line terminator
+     * @return UTF-8 bytes of the line including the line terminator
+     */
+    public static byte[] encode(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param line text without line terminator
+     * @throws IOException if writing to the stream fails
+     */
+    public synchronized void writeLine(String line) throws IOException {
+        this.writeFrame(encode(line));
+    }
+
+    /**
+     * @param frame line encoded by {@link #encode(String)}
+     * @throws IOException if writing to the stream fails
+     */
+    public synchronized void writeFrame(byte[] frame) throws IOException {
+        this.write(frame);
+        this.flush();
+    }
+
+    /**
+     * Writes a frame without flushing, so several frames can be sent with one {@link #flush()}
+     *
+     * @param frame line encoded by {@link #encode(String)}
+     * @throws IOException if writing to the stream fails
+     */
+    public synchronized void write(byte[] frame) throws IOException {
+        this.write(frame, 0, frame.length);
+    }
+
+    /**
+     * Writes a frame without flushing and without changing the position of the buffer.
+     * Frames in direct buffers are copied through one reused array, so nothing is allocated per frame.
+     *
+     * @param frame encoded line including the line terminator
+     * @throws IOException if writing to the stream fails
+     */
+    public synchronized void write(ByteBuffer frame) throws IOException {
+        if (frame.hasArray()) {
+            this.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            return;
+        }
+        ByteBuffer view = frame.duplicate();
+        if (this.scratch == null)
+            this.scratch = new byte[8192];
+        if (this.deflater != null && view.remaining() > this.scratch.length)
+            this.scratch = new byte[view.remaining()]; // the threshold is decided per frame, so a frame is deflated at once
+        while (view.hasRemaining()) {
+            int length = Math.min(view.remaining(), this.scratch.length);
+            view.get(this.scratch, 0, length);
+            this.write(this.scratch, 0, length);
+        }
+    }
+
+    /**
+     * Writes a frame behind a short header without flushing, e.g. a sequence number in front of a shared frame.
+     * A deflated connection compresses both together, so the header does not end up in a block of its own.
+     *
+     * @param head  bytes in front of the frame
+     * @param frame encoded line including the line terminator
+     * @throws IOException if writing to the stream fails
+     */
+    public synchronized void write(byte[] head, ByteBuffer frame) throws IOException {
+        if (this.deflater == null) {
+            this.out.write(head);
+            this.write(frame);
+            return;
+        }
+        int length = head.length + frame.remaining();
+        if (this.scratch == null || this.scratch.length < length)
+            this.scratch = new byte[Math.max(8192, length)];
+        System.arraycopy(head, 0, this.scratch, 0, head.length);
+        frame.duplicate().get(this.scratch, head.length, frame.remaining());
+        this.write(this.scratch, 0, length);
+    }
+
+    private void write(byte[] frame, int offset, int length) throws IOException {
+        if (this.deflater != null) {
+            this.deflater.writeFrame(frame, offset, length, length >= this.threshold);
+        } else {
+            this.out.write(frame, offset, length);
+        }
+    }
+
+    /**
+     * Sends everything written so far, a deflated connection ends the current block with a sync flush
+     *
+     * @throws IOException if writing to the stream fails
+     */
+    public synchronized void flush() throws IOException {
+        if (this.deflater != null) {
+            this.deflater.flush();
+        } else {
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Every following line will be compressed.
+     *
+     * @param threshold lines with less bytes are not compressed
+     */
+    public synchronized void deflate(int threshold) {
+        this.threshold = threshold;
+        this.deflater = new FrameDeflaterOutputStream(this.out);
+    }
+
+    /**
+     * @return true if the lines are compressed
+     */
+    public synchronized boolean isDeflating() {
+        return this.deflater != null;
+    }
+
+    /**
+     * Closes the underlying stream
+     *
+     * @throws IOException if closing fails
+     */
+    public void close() throws IOException {
+        // not synchronized, so a close is not blocked by a writer which is stuck in a full socket
+        if (this.deflater != null) {
+            this.deflater.end();
+        }
+        this.out.close();
+    }
+
+    /**
+     * DeflaterOutputStream which switches between stored and compressed blocks per frame.
+     */
+    private static class FrameDeflaterOutputStream extends DeflaterOutputStream {
+        private boolean compressing = true;
+
+        FrameDeflaterOutputStream(OutputStream out) {
+            super(out, new Deflater(), 8192, true);
+        }
+
+        void writeFrame(byte[] frame, int offset, int length, boolean compress) throws IOException {
+            if (compress != this.compressing) {
+                this.def.setLevel(compress ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+                // a deflate call without new input applies the level before the frame is added
+                int len;
+                while ((len = this.def.deflate(this.buf, 0, this.buf.length, Deflater.NO_FLUSH)) > 0) {
+                    this.out.write(this.buf, 0, len);
+                }
+                this.compressing = compress;
+            }
+            this.write(frame, offset, length);
+        }
+
+        void end() {
+            this.def.end();
+        }
+    }
+}
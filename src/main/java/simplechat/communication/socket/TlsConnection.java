@@ -0,0 +1,290 @@
+package simplechat.communication.socket;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.*;
+
+/**
+ * TLS connection driven by an {@link SSLEngine}.
+ * <br>
+ * The engine only works on ByteBuffers, this class moves the records between the engine and the streams of a
+ * blocking socket and offers the decrypted data as streams again. A non-blocking transport can drive the same
+ * engine from its selector loop instead.
+ * <br>
+ * Reading and writing can happen concurrently from different Threads, the engine allows wrap and unwrap
+ * in parallel. Handshake messages needed while reading (e.g. a TLS 1.3 key update) are written under the write lock.
+ */
+public class TlsConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final InputStream rawIn;
+    private final OutputStream rawOut;
+
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private boolean inboundClosed = false;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return TlsConnection.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return TlsConnection.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsConnection.this.close();
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            TlsConnection.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            TlsConnection.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (writeLock) {
+                rawOut.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsConnection.this.close();
+        }
+    };
+
+    /**
+     * @param engine configured SSLEngine in client or server mode
+     * @param rawIn  InputStream of the socket carrying the TLS records
+     * @param rawOut OutputStream of the socket carrying the TLS records
+     */
+    public TlsConnection(SSLEngine engine, InputStream rawIn, OutputStream rawOut) {
+        this.engine = engine;
+        this.rawIn = rawIn;
+        this.rawOut = rawOut;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    /**
+     * Runs the handshake until the engine is ready for application data.
+     * Application data received during the handshake is kept for the next read.
+     *
+     * @throws IOException if the handshake fails or the connection is closed
+     */
+    public void handshake() throws IOException {
+        this.engine.beginHandshake();
+        HandshakeStatus status = this.engine.getHandshakeStatus();
+        while (status != NOT_HANDSHAKING && status != FINISHED) {
+            switch (status) {
+                case NEED_TASK:
+                    this.runTasks();
+                    status = this.engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    status = this.wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                    synchronized (this.readLock) {
+                        status = this.unwrap();
+                    }
+                    if (this.inboundClosed)
+                        throw new SSLException("Connection closed during handshake");
+                    break;
+                default:
+                    throw new SSLException("Unexpected handshake status " + status);
+            }
+        }
+    }
+
+    /**
+     * @return decrypted InputStream
+     */
+    public InputStream getInputStream() {
+        return this.in;
+    }
+
+    /**
+     * @return OutputStream which encrypts everything written to it
+     */
+    public OutputStream getOutputStream() {
+        return this.out;
+    }
+
+    /**
+     * @return the current session, e.g. for the negotiated protocol and cipher suite
+     */
+    public SSLSession getSession() {
+        return this.engine.getSession();
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        synchronized (this.readLock) {
+            while (this.appIn.position() == 0) {
+                if (this.inboundClosed)
+                    return -1;
+                HandshakeStatus status = this.unwrap();
+                if (status == NEED_TASK)
+                    this.runTasks();
+                while (this.engine.getHandshakeStatus() == NEED_WRAP)
+                    this.wrap(EMPTY);
+            }
+            this.appIn.flip();
+            int n = Math.min(len, this.appIn.remaining());
+            this.appIn.get(b, off, n);
+            this.appIn.compact();
+            return n;
+        }
+    }
+
+    /**
+     * One unwrap step, reading from the network if the engine needs more data.
+     * Has to be called while holding the read lock.
+     *
+     * @return handshake status after the step
+     * @throws IOException if reading fails
+     */
+    private HandshakeStatus unwrap() throws IOException {
+        this.netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = this.engine.unwrap(this.netIn, this.appIn);
+        } finally {
+            this.netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case OK:
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                    this.readNetwork();
+                break;
+            case BUFFER_UNDERFLOW:
+                if (this.netIn.remaining() == 0)
+                    this.netIn = grow(this.netIn, this.engine.getSession().getPacketBufferSize());
+                this.readNetwork();
+                break;
+            case BUFFER_OVERFLOW:
+                this.appIn = grow(this.appIn, this.engine.getSession().getApplicationBufferSize());
+                break;
+            case CLOSED:
+                this.inboundClosed = true;
+                break;
+        }
+        return result.getHandshakeStatus();
+    }
+
+    private void readNetwork() throws IOException {
+        int n = this.rawIn.read(this.netIn.array(), this.netIn.arrayOffset() + this.netIn.position(),
+                this.netIn.remaining());
+        if (n < 0) {
+            this.inboundClosed = true;
+            try {
+                this.engine.closeInbound();
+            } catch (SSLException e) {
+                // peer did not send close_notify, the connection is gone anyway
+            }
+            return;
+        }
+        this.netIn.position(this.netIn.position() + n);
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(b, off, len);
+        while (src.hasRemaining()) {
+            if (this.wrap(src) == NEED_TASK)
+                this.runTasks();
+        }
+    }
+
+    /**
+     * Encrypts the source into one record and writes it to the network.
+     *
+     * @param src application data, or {@link #EMPTY} for handshake messages
+     * @return handshake status after the step
+     * @throws IOException if writing fails or the engine is closed
+     */
+    private HandshakeStatus wrap(ByteBuffer src) throws IOException {
+        synchronized (this.writeLock) {
+            while (true) {
+                this.netOut.clear();
+                SSLEngineResult result = this.engine.wrap(src, this.netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    this.netOut = grow(this.netOut, this.engine.getSession().getPacketBufferSize());
+                    continue;
+                }
+                // when closed, a close_notify still has to be sent, but no application data
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED && src != EMPTY)
+                    throw new SSLException("Connection is closed");
+                this.rawOut.write(this.netOut.array(), 0, this.netOut.position());
+                if (result.getHandshakeStatus() != NOT_HANDSHAKING)
+                    this.rawOut.flush();
+                return result.getHandshakeStatus();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Sends close_notify if possible and closes the socket streams.
+     *
+     * @throws IOException if closing the streams fails
+     */
+    public void close() throws IOException {
+        try {
+            this.engine.closeOutbound();
+            if (!this.engine.isOutboundDone())
+                this.wrap(EMPTY);
+            synchronized (this.writeLock) {
+                this.rawOut.flush();
+            }
+        } catch (IOException e) {
+            // the peer may already be gone, closing the streams is what matters
+        } finally {
+            this.rawOut.close();
+            this.rawIn.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package simplechat.communication.socket;
+
+import simplechat.communication.transport.Connection;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Holds the SSLContext for TLS connections of client or server.
+ * <br>
+ * One TlsContext should live as long as the process, because the session caches live in the SSLContext.
+ * Reconnecting clients can then resume their session and skip the expensive part of the handshake.
+ * Clients create their engines with host and port, which is the key of the client session cache.
+ */
+public class TlsContext {
+
+    /**
+     * Number of sessions the server keeps for resumption if nothing else is configured
+     */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 10000;
+
+    /**
+     * Seconds a session can be resumed if nothing else is configured
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT = 3600;
+
+    private final SSLContext context;
+
+    /**
+     * @param context initialized SSLContext
+     */
+    public TlsContext(SSLContext context) {
+        this.context = context;
+        this.setSessionCache(DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+    }
+
+    /**
+     * Loads key and trust material from keystore files. The type of the files is detected automatically.
+     *
+     * @param keyStore           keystore with the private key, null for a client without certificate
+     * @param keyStorePassword   password of the keystore and the key
+     * @param trustStore         keystore with trusted certificates, null for the default of the JRE
+     * @param trustStorePassword password of the truststore
+     * @return TlsContext for client and server connections
+     * @throws GeneralSecurityException if the key material can not be used
+     * @throws IOException              if a file can not be read
+     */
+    public static TlsContext load(String keyStore, String keyStorePassword, String trustStore,
+                                  String trustStorePassword) throws GeneralSecurityException, IOException {
+        KeyManagerFactory kmf = null;
+        if (keyStore != null) {
+            char[] password = keyStorePassword != null ? keyStorePassword.toCharArray() : new char[0];
+            kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(KeyStore.getInstance(new File(keyStore), password), password);
+        }
+        TrustManagerFactory tmf = null;
+        if (trustStore != null) {
+            char[] password = trustStorePassword != null ? trustStorePassword.toCharArray() : null;
+            tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(KeyStore.getInstance(new File(trustStore), password));
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf != null ? kmf.getKeyManagers() : null, tmf != null ? tmf.getTrustManagers() : null, null);
+        return new TlsContext(context);
+    }
+
+    /**
+     * @param size           number of sessions the server keeps for resumption
+     * @param timeoutSeconds seconds until a session can not be resumed any more
+     */
+    public void setSessionCache(int size, int timeoutSeconds) {
+        this.context.getServerSessionContext().setSessionCacheSize(size);
+        this.context.getServerSessionContext().setSessionTimeout(timeoutSeconds);
+        this.context.getClientSessionContext().setSessionCacheSize(size);
+        this.context.getClientSessionContext().setSessionTimeout(timeoutSeconds);
+    }
+
+    /**
+     * @param socket accepted socket
+     * @return TLS connection in server mode, the handshake is not started yet
+     * @throws IOException if the socket streams are not available
+     */
+    public TlsConnection server(Socket socket) throws IOException {
+        return this.server(socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * @param connection accepted connection of any transport
+     * @return TLS connection in server mode, the handshake is not started yet
+     * @throws IOException if the connection streams are not available
+     */
+    public TlsConnection server(Connection connection) throws IOException {
+        return this.server(connection.getInputStream(), connection.getOutputStream());
+    }
+
+    private TlsConnection server(InputStream in, OutputStream out) {
+        SSLEngine engine = this.context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsConnection(engine, in, out);
+    }
+
+    /**
+     * @param socket connected socket
+     * @param host   hostname of the server, checked against the certificate and used for session resumption
+     * @param port   port of the server, used for session resumption
+     * @return TLS connection in client mode, the handshake is not started yet
+     * @throws IOException if the socket streams are not available
+     */
+    public TlsConnection client(Socket socket, String host, int port) throws IOException {
+        return this.client(socket.getInputStream(), socket.getOutputStream(), host, port);
+    }
+
+    /**
+     * @param connection connected connection of any transport
+     * @param host       hostname of the server, checked against the certificate and used for session resumption
+     * @param port       port of the server, used for session resumption
+     * @return TLS connection in client mode, the handshake is not started yet
+     * @throws IOException if the connection streams are not available
+     */
+    public TlsConnection client(Connection connection, String host, int port) throws IOException {
+        return this.client(connection.getInputStream(), connection.getOutputStream(), host, port);
+    }
+
+    private TlsConnection client(InputStream in, OutputStream out, String host, int port) {
+        SSLEngine engine = this.context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new TlsConnection(engine, in, out);
+    }
+}
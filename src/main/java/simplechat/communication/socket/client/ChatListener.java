@@ -0,0 +1,36 @@
+package simplechat.communication.socket.client;
+
+import java.io.IOException;
+
+/**
+ * Receives the lines of one {@link ChatSession} of a {@link ChatMux}.
+ * <br>
+ * All methods are called by the Thread of the mux, which serves every session. They must not block,
+ * slow work has to be handed to another Thread.
+ */
+public interface ChatListener {
+
+    /**
+     * @param session session which received the message
+     * @param message chat line, e.g. "[Franz] hallo"
+     */
+    void message(ChatSession session, String message);
+
+    /**
+     * Commands of the server, e.g. presence or search answers. File chunks are skipped by the mux.
+     *
+     * @param session session which received the command
+     * @param command whole line starting with "!"
+     */
+    default void command(ChatSession session, String command) {
+    }
+
+    /**
+     * The session is closed, it is not opened again
+     *
+     * @param session session which was closed
+     * @param cause   null if it was closed by {@link ChatSession#close()} or by the server with !EXIT
+     */
+    default void closed(ChatSession session, IOException cause) {
+    }
+}
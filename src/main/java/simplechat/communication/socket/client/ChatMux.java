@@ -0,0 +1,221 @@
+package simplechat.communication.socket.client;
+
+import simplechat.client.SimpleChat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Headless client for bots and bridges: many chat sessions on one selector Thread, without JavaFX and
+ * without a Thread per connection like {@link SimpleChatClient}.
+ * <br>
+ * Every session gets its lines through a {@link ChatListener}, called by the Thread of the mux. All sessions
+ * read into one shared buffer, so an idle session costs its socket and a few objects. Plain TCP only, the
+ * server has to use the socket or nio transport without TLS; compression, reliable mode and reconnects are
+ * left to {@link SimpleChatClient}. File chunks are skipped.
+ */
+public class ChatMux implements Closeable {
+
+    /**
+     * Longest line a session accepts, a longer one closes the session
+     */
+    static final int MAX_LINE = 1024 * 1024;
+
+    private static final int BATCH = 64;
+
+    private final Selector selector;
+    private final Thread loop;
+    private final Set<ChatSession> sessions = ConcurrentHashMap.newKeySet();
+    private final Queue<ChatSession> opened = new ConcurrentLinkedQueue<>();
+    private final Queue<ChatSession> dirty = new ConcurrentLinkedQueue<>();
+    // only used by the mux Thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer[] batch = new ByteBuffer[BATCH];
+    private volatile boolean running = true;
+
+    /**
+     * Opens the selector and starts its Thread
+     *
+     * @throws IOException if the selector could not be opened
+     */
+    public ChatMux() throws IOException {
+        this.selector = Selector.open();
+        this.loop = new Thread(this::run, "ChatMux");
+        this.loop.setDaemon(true);
+        this.loop.start();
+    }
+
+    /**
+     * Starts a session, the connect and the chatName are done by the Thread of the mux.
+     * If the server is not reachable {@link ChatListener#closed} is called with the cause.
+     *
+     * @param host     host of the server
+     * @param port     port of the server
+     * @param name     chatName
+     * @param listener receiver of the lines of this session
+     * @return new session, messages can be queued at once
+     * @throws IOException if the channel could not be created
+     */
+    public ChatSession open(String host, int port, String name, ChatListener listener) throws IOException {
+        if (!this.running)
+            throw new IOException("ChatMux is closed");
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        ChatSession session = new ChatSession(this, channel, name, listener);
+        this.sessions.add(session);
+        this.opened.add(session);
+        this.selector.wakeup();
+        return session;
+    }
+
+    /**
+     * @return number of open sessions
+     */
+    public int getSessionCount() {
+        return this.sessions.size();
+    }
+
+    /**
+     * Called by a session with new lines to write
+     */
+    void schedule(ChatSession session) {
+        this.dirty.add(session);
+        this.selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (this.running) {
+                this.selector.select();
+                ChatSession session;
+                while ((session = this.opened.poll()) != null) {
+                    this.register(session);
+                }
+                while ((session = this.dirty.poll()) != null) {
+                    session.unschedule();
+                    if (session.isOpen())
+                        this.write(session);
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    this.handle(key);
+                }
+            }
+        } catch (IOException e) {
+            SimpleChat.clientLogger.log(SEVERE, "ChatMux failed: " + e.getMessage());
+        } finally {
+            for (ChatSession session : this.sessions) {
+                this.close(session, null);
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                SimpleChat.clientLogger.log(FINE, "Selector already closed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void register(ChatSession session) {
+        SocketChannel channel = session.getChannel();
+        try {
+            boolean pending = channel.isConnectionPending();
+            session.setKey(channel.register(this.selector, pending ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, session));
+            if (!pending)
+                this.write(session);
+        } catch (IOException e) {
+            this.close(session, e);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        ChatSession session = (ChatSession) key.attachment();
+        try {
+            if (!key.isValid())
+                return;
+            if (key.isConnectable()) {
+                session.getChannel().finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                SimpleChat.clientLogger.log(INFO, "Session " + session + " connected");
+                this.write(session);
+                return;
+            }
+            if (key.isWritable())
+                this.write(session);
+            if (key.isValid() && key.isReadable())
+                this.read(session);
+        } catch (IOException e) {
+            this.close(session, e);
+        }
+    }
+
+    private void write(ChatSession session) {
+        try {
+            if (session.write(this.batch))
+                this.close(session, null);
+        } catch (IOException e) {
+            this.close(session, e);
+        }
+    }
+
+    private void read(ChatSession session) throws IOException {
+        this.readBuffer.clear();
+        int n = session.getChannel().read(this.readBuffer);
+        if (n < 0) {
+            this.close(session, null);
+            return;
+        }
+        this.readBuffer.flip();
+        if (session.received(this.readBuffer))
+            this.close(session, null);
+    }
+
+    private void close(ChatSession session, IOException cause) {
+        this.sessions.remove(session);
+        try {
+            session.getChannel().close();
+        } catch (IOException e) {
+            SimpleChat.clientLogger.log(FINE, "Channel already closed: " + e.getMessage());
+        }
+        session.closed(cause);
+    }
+
+    /**
+     * Closes all sessions without !EXIT and stops the Thread of the mux
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+        if (Thread.currentThread() != this.loop) {
+            try {
+                this.loop.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
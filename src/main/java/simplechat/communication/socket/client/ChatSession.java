@@ -0,0 +1,288 @@
+package simplechat.communication.socket.client;
+
+import simplechat.client.SimpleChat;
+import simplechat.communication.MessageProtocol;
+import simplechat.communication.socket.LineWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.logging.Level.WARNING;
+import static simplechat.communication.MessageProtocol.Commands.CHATNAME;
+import static simplechat.communication.MessageProtocol.Commands.CHUNK;
+import static simplechat.communication.MessageProtocol.Commands.EXIT;
+
+/**
+ * One chat connection of a {@link ChatMux}.
+ * <br>
+ * {@link #send(String)} may be called by any Thread, it only queues the line, the Thread of the mux writes it.
+ * Commands go through their own queue, which is written before the chat lines, like the control lane of
+ * {@link SimpleChatClient}. An idle session keeps no buffer, received lines are parsed in the shared read
+ * buffer of the mux, only an incomplete line is copied.
+ */
+public class ChatSession {
+    private static final String CHUNK_COMMAND = MessageProtocol.getMessage(CHUNK) + " ";
+    private static final String EXIT_COMMAND = MessageProtocol.getMessage(EXIT);
+
+    private final ChatMux mux;
+    private final SocketChannel channel;
+    private final String name;
+    private final ChatListener listener;
+    private SelectionKey key;
+
+    private final Queue<ByteBuffer> control = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> data = new ConcurrentLinkedQueue<>();
+    // taken from the queues, but not completely written, only used by the mux Thread
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean closing = false;
+    private volatile boolean open = true;
+
+    // incomplete line and bytes of a file chunk to skip, only used by the mux Thread
+    private byte[] partial = null;
+    private int partialLength = 0;
+    private int skip = 0;
+
+    /**
+     * @param mux      mux which serves the session
+     * @param channel  non-blocking channel, connected or connecting
+     * @param name     chatName, sent first
+     * @param listener receiver of the lines
+     */
+    ChatSession(ChatMux mux, SocketChannel channel, String name, ChatListener listener) {
+        this.mux = mux;
+        this.channel = channel;
+        this.name = name;
+        this.listener = listener;
+        this.control.add(ByteBuffer.wrap(LineWriter.encode(MessageProtocol.getMessage(CHATNAME) + " " + name)));
+    }
+
+    /**
+     * @return chatName this session asked for, the server may have changed it, e.g. to "Franz#1"
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return false after the session was closed
+     */
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    /**
+     * Queues a message or a command, returns at once
+     *
+     * @param message text or command line without line terminator
+     */
+    public void send(String message) {
+        if (this.closing || !this.open)
+            return;
+        ByteBuffer frame = ByteBuffer.wrap(LineWriter.encode(message));
+        if (message.startsWith("!"))
+            this.control.add(frame);
+        else
+            this.data.add(frame);
+        this.schedule();
+    }
+
+    /**
+     * Queues a private message
+     *
+     * @param message   text
+     * @param chatNames receivers
+     */
+    public void send(String message, String... chatNames) {
+        this.send(MessageProtocol.privateMessage(message, chatNames));
+    }
+
+    /**
+     * Sends {@link MessageProtocol.Commands#EXIT} ahead of all queued messages, which are dropped, and closes
+     * the session afterwards. {@link ChatListener#closed} is called with null.
+     */
+    public void close() {
+        if (this.closing || !this.open)
+            return;
+        this.data.clear();
+        this.control.add(ByteBuffer.wrap(LineWriter.encode(EXIT_COMMAND)));
+        this.closing = true;
+        this.schedule();
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true))
+            this.mux.schedule(this);
+    }
+
+    SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Called by the mux Thread before it writes, a send afterwards schedules the session again
+     */
+    void unschedule() {
+        this.scheduled.set(false);
+    }
+
+    /**
+     * Writes as much as the socket takes, commands first. If the socket is full the mux waits for OP_WRITE.
+     *
+     * @param batch array of the mux Thread for gathering writes
+     * @return true if the session is done and can be closed
+     * @throws IOException if writing fails
+     */
+    boolean write(ByteBuffer[] batch) throws IOException {
+        // not registered or connected yet, the mux writes after the connect
+        if (this.key == null || this.channel.isConnectionPending())
+            return false;
+        while (true) {
+            int n = 0;
+            ByteBuffer frame;
+            while (n < batch.length && (frame = this.writing.poll()) != null)
+                batch[n++] = frame;
+            while (n < batch.length && (frame = this.control.poll()) != null)
+                batch[n++] = frame;
+            while (n < batch.length && !this.closing && (frame = this.data.poll()) != null)
+                batch[n++] = frame;
+            if (n == 0) {
+                this.key.interestOps(SelectionKey.OP_READ);
+                return this.closing;
+            }
+            this.channel.write(batch, 0, n);
+            for (int i = 0; i < n; i++) {
+                if (batch[i].hasRemaining())
+                    this.writing.add(batch[i]);
+                batch[i] = null;
+            }
+            if (!this.writing.isEmpty()) {
+                this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parses the bytes the mux read for this session and calls the listener for every complete line
+     *
+     * @param buffer shared read buffer with an array, flipped
+     * @return true if the server ended the session with !EXIT
+     * @throws IOException if a line is longer than the mux allows
+     */
+    boolean received(ByteBuffer buffer) throws IOException {
+        byte[] array = buffer.array();
+        while (buffer.hasRemaining()) {
+            if (this.skip > 0) {
+                int n = Math.min(this.skip, buffer.remaining());
+                buffer.position(buffer.position() + n);
+                this.skip -= n;
+                continue;
+            }
+            int start = buffer.position();
+            int end = start;
+            while (end < buffer.limit() && array[end] != '\n') {
+                end++;
+            }
+            if (end == buffer.limit()) {
+                this.keep(array, start, end - start);
+                buffer.position(end);
+                break;
+            }
+            buffer.position(end + 1);
+            String line;
+            if (this.partialLength > 0) {
+                this.keep(array, start, end - start);
+                line = decode(this.partial, this.partialLength);
+                this.partial = null;
+                this.partialLength = 0;
+            } else {
+                line = decode(array, start, end - start);
+            }
+            if (this.dispatch(line))
+                return true;
+        }
+        return false;
+    }
+
+    private void keep(byte[] array, int offset, int length) throws IOException {
+        if (this.partialLength + length > ChatMux.MAX_LINE)
+            throw new IOException("Line longer than " + ChatMux.MAX_LINE + " bytes");
+        if (this.partial == null || this.partial.length < this.partialLength + length) {
+            byte[] grown = new byte[Math.max(256, Math.max(this.partialLength + length, this.partialLength * 2))];
+            if (this.partial != null)
+                System.arraycopy(this.partial, 0, grown, 0, this.partialLength);
+            this.partial = grown;
+        }
+        System.arraycopy(array, offset, this.partial, this.partialLength, length);
+        this.partialLength += length;
+    }
+
+    private static String decode(byte[] array, int length) {
+        return decode(array, 0, length);
+    }
+
+    private static String decode(byte[] array, int offset, int length) {
+        if (length > 0 && array[offset + length - 1] == '\r')
+            length--;
+        return new String(array, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true if the server ended the session
+     */
+    private boolean dispatch(String line) {
+        try {
+            if (!line.startsWith("!")) {
+                this.listener.message(this, line);
+            } else if (line.startsWith(CHUNK_COMMAND)) {
+                // files are not stored by the mux, only announced through command()
+                this.skip = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+            } else if (line.equals(EXIT_COMMAND)) {
+                return true;
+            } else {
+                this.listener.command(this, line);
+            }
+        } catch (RuntimeException e) {
+            SimpleChat.clientLogger.log(WARNING, "Listener of " + this.name + " failed: " + e);
+        }
+        return false;
+    }
+
+    /**
+     * Marks the session as closed and tells the listener, only the first call counts
+     *
+     * @param cause null for a regular close
+     */
+    void closed(IOException cause) {
+        if (!this.open)
+            return;
+        this.open = false;
+        this.closing = true;
+        this.control.clear();
+        this.data.clear();
+        this.writing.clear();
+        this.partial = null;
+        try {
+            this.listener.closed(this, cause);
+        } catch (RuntimeException e) {
+            SimpleChat.clientLogger.log(WARNING, "Listener of " + this.name + " failed: " + e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -3,22 +3,62 @@ package simplechat.communication.socket.client;
 import javafx.application.Platform;
 import simplechat.client.SimpleChat;
 import simplechat.communication.MessageProtocol;
+import simplechat.communication.Startup;
+import simplechat.communication.socket.ControlLane;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.communication.socket.TlsConnection;
+import simplechat.communication.socket.TlsContext;
+import simplechat.communication.transport.Connection;
+import simplechat.communication.transport.SocketTransport;
+import simplechat.communication.transport.Transport;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.logging.Level.*;
+import static simplechat.communication.MessageProtocol.Commands.CHUNK;
+import static simplechat.communication.MessageProtocol.Commands.COMPRESS;
 import static simplechat.communication.MessageProtocol.Commands.EXIT;
+import static simplechat.communication.MessageProtocol.Commands.FILE;
+import static simplechat.communication.MessageProtocol.Commands.ID;
 import static simplechat.communication.MessageProtocol.Commands.PRIVATE;
+import static simplechat.communication.MessageProtocol.Commands.ACK;
+import static simplechat.communication.MessageProtocol.Commands.RECONNECT;
+import static simplechat.communication.MessageProtocol.Commands.CLAIM;
+import static simplechat.communication.MessageProtocol.Commands.RELIABLE;
+import static simplechat.communication.MessageProtocol.Commands.PRESENCE;
+import static simplechat.communication.MessageProtocol.Commands.SEARCH;
 
 /**
  * SimpleChatClient connects to SimpleChatServer with the choosen communication protocol and initiates a UI.
  * <br>
  * Default settings for the main attributes will be: name="Client" host="localhost" and port=5050
+ * <br>
+ * In reliable mode every text message is numbered by the server. The client acknowledges them in batches,
+ * resumes after a lost connection with the last number it got and drops messages it already has.
+ * <br>
+ * Files are sent in chunks, chat messages of other Threads go between them. Received files are written
+ * chunk by chunk into the download directory.
+ * <br>
+ * !EXIT and !ACK go through a {@link ControlLane}, so they do not wait behind a file which is being sent.
  */
 public class SimpleChatClient extends Thread {
 
@@ -26,14 +66,50 @@ public class SimpleChatClient extends Thread {
     private String host = "localhost";
     private Integer port = 5050;
 
-    private InetSocketAddress socketAddress;
-    private Socket socket = null;
-    private PrintWriter out;
-    private BufferedReader in;
+    private Transport transport = new SocketTransport();
+    private Connection connection = null;
+    private LineWriter out;
+    private LineReader in;
+    // !EXIT and !ACK, written before the next chat line or file chunk
+    private final ControlLane control = new ControlLane();
+    private boolean compression = false;
+    private int compressionThreshold = LineWriter.DEFAULT_THRESHOLD;
+    private TlsContext tlsContext = null;
+    private boolean presence = true;
+    private boolean claim = true;
+    private String claimToken = null;
+    private static final String PRIVATE_COMMAND = MessageProtocol.getMessage(PRIVATE) + " ";
+    private boolean messageIds = false;
+    // unique per client instance, the counter makes it unique per message
+    private final String messageIdPrefix = Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, 36) + "-";
+    private final AtomicLong messageIdCounter = new AtomicLong();
+    private final Set<String> onlineUsers = new TreeSet<>();
+
+    private static final int ACK_BATCH = 32;
+    private static final long ACK_DELAY = 100;
+    private boolean reliable = false;
+    private String reliableToken = null;
+    private long lastSequence = 0;
+    private long ackedSequence = 0;
+    private long duplicates = 0;
+    private boolean ackScheduled = false;
+    private ScheduledExecutorService ackTimer = null;
+
+    private static final String CHUNK_COMMAND = MessageProtocol.getMessage(CHUNK) + " ";
+    private Path downloadDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+    private final AtomicLong fileIds = new AtomicLong();
+    // only used by the reading Thread
+    private final Map<String, Download> downloads = new HashMap<>();
 
     private boolean listening = false;
+    private volatile boolean stopped = false;
     private String currentMessage;
 
+    private static final int MAX_RECONNECT_ATTEMPTS = 5;
+    private long reconnectDelay = -1;
+    private long lastDelay = 0;
+    private int reconnectAttempt = 0;
+
     private SimpleChat client;
 
     /**
@@ -51,42 +127,520 @@ public class SimpleChatClient extends Thread {
             this.host = host;
         if (port != null)
             this.port = port;
-        this.socketAddress = new InetSocketAddress(this.host, this.port);
         this.client = client;
         SimpleChat.clientLogger.log(INFO, "Init: host=" + this.host + " port="
                 + this.port + " chatName=" + this.name);
     }
 
     /**
-     * Initiating the Socket with already defined Parameters (host, port). Also a timeout of 2000 ms is set at connect.
-     * The {@link java.net.Socket#setKeepAlive(boolean)} is set to true.
+     * @param compression true asks the server for a deflated connection after sending the chatName
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @param presence true subscribes to the user list of the server after connecting
+     */
+    public void setPresence(boolean presence) {
+        this.presence = presence;
+    }
+
+    /**
+     * @param claim true asks the server for a token which gets us our chatName back after a lost connection
+     */
+    public void setClaim(boolean claim) {
+        this.claim = claim;
+    }
+
+    /**
+     * @param messageIds true sends every chat line with an id, so the server drops it if it arrives twice,
+     *                   see {@link MessageProtocol.Commands#ID}
+     */
+    public void setMessageIds(boolean messageIds) {
+        this.messageIds = messageIds;
+    }
+
+    /**
+     * @return new message id, unique for this client
+     */
+    public String nextMessageId() {
+        return this.messageIdPrefix + Long.toString(this.messageIdCounter.incrementAndGet(), 36);
+    }
+
+    /**
+     * @return token of our chatName, null before the server sent one
+     */
+    public synchronized String getClaimToken() {
+        return this.claimToken;
+    }
+
+    /**
+     * @param reliable true asks the server for at-least-once delivery and reconnects after a lost connection
+     */
+    public void setReliable(boolean reliable) {
+        this.reliable = reliable;
+    }
+
+    /**
+     * @return token of our reliable window on the server, null before the server sent one
+     */
+    public synchronized String getReliableToken() {
+        return this.reliableToken;
+    }
+
+    /**
+     * @return highest sequence number received in reliable mode
+     */
+    public synchronized long getLastSequence() {
+        return this.lastSequence;
+    }
+
+    /**
+     * @return number of retransmitted messages which were dropped because they had been received before
+     */
+    public synchronized long getDuplicates() {
+        return this.duplicates;
+    }
+
+    /**
+     * @return chatNames online as the server reported them last
+     */
+    public synchronized String[] getOnlineUsers() {
+        return this.onlineUsers.toArray(new String[0]);
+    }
+
+    /**
+     * @param compressionThreshold lines with less bytes are not compressed
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @param tlsContext context for a TLS connection, null for a plain socket
+     */
+    public void setTlsContext(TlsContext tlsContext) {
+        this.tlsContext = tlsContext;
+    }
+
+    /**
+     * @param downloadDirectory directory received files are written to, null keeps the temp directory
+     */
+    public void setDownloadDirectory(Path downloadDirectory) {
+        if (downloadDirectory != null)
+            this.downloadDirectory = downloadDirectory;
+    }
+
+    /**
+     * @param transport transport to connect with, null keeps blocking sockets
+     */
+    public void setTransport(Transport transport) {
+        if (transport != null)
+            this.transport = transport;
+    }
+
+    /**
+     * Initiating the Connection of the transport with already defined Parameters (host, port).
+     * Also a timeout of 2000 ms is set at connect.
      * <br>
      * After activating {@link #listening}, the Chatname will be sent to the Server and the reading loop is started,
-     * checking for the {@link BufferedReader#readLine()} and the {@link #listening} flag.
+     * checking for the {@link LineReader#readLine()} and the {@link #listening} flag.
      * <br>
      * In case of an Exception the Thread will be interrupted and if the socket was connected and bound,
      * the {@link #shutdown()} method will be called.
+     * <br>
+     * After a {@link MessageProtocol.Commands#RECONNECT} the connection is closed and opened again after the
+     * delay the server sent. If the server is not back yet, it is tried again with doubled delays.
+     * A reliable client also resumes a connection which was lost or closed by the server without
+     * {@link MessageProtocol.Commands#EXIT}, only an EXIT or {@link #shutdown()} ends it.
      */
     public void run() {
+        boolean connecting = true;
+        while (connecting) {
+            try {
+                this.connect();
+                while (this.listening && (this.currentMessage = this.in.readLine()) != null) {
+                    this.dispatch();
+                }
+                if (this.listening && this.reliable && this.reconnectDelay < 0 && !this.stopped) {
+                    // closed without EXIT, resumed like a lost connection
+                    this.reconnectDelay = 1000;
+                }
+            } catch (IOException e) {
+                if (this.reconnectAttempt > 0 && this.reconnectAttempt < MAX_RECONNECT_ATTEMPTS && !this.stopped) {
+                    // server is not back yet, wait twice as long as last time
+                    this.reconnectDelay = Math.max(this.lastDelay * 2, 1000);
+                } else if (this.reliable && this.reconnectDelay < 0 && !this.stopped) {
+                    // the server keeps our unacknowledged messages, so a lost connection is resumed
+                    this.reconnectDelay = 1000;
+                } else if (this.reconnectDelay < 0) {
+                    SimpleChat.clientLogger.log(SEVERE, "Exception in socket thread: " + e.getMessage());
+                    this.shutdown();
+                }
+            }
+            connecting = this.reconnectDelay >= 0 && this.awaitReconnect();
+        }
+        Platform.exit();
+    }
+
+    /**
+     * Connects with the transport, does the TLS handshake if configured and sends the chatName
+     *
+     * @throws IOException if the server is not reachable
+     */
+    private void connect() throws IOException {
+        // Connect to server with timeout
+        this.connection = this.transport.connect(this.host, this.port, 2000, null);
+        // Setup input and output
+        if (this.tlsContext != null) {
+            TlsConnection tls = this.tlsContext.client(this.connection, this.host, this.port);
+            tls.handshake();
+            this.in = new LineReader(tls.getInputStream());
+            this.out = new LineWriter(tls.getOutputStream());
+        } else {
+            this.in = new LineReader(this.connection.getInputStream());
+            this.out = new LineWriter(this.connection.getOutputStream());
+        }
+        Startup.mark(Startup.Milestone.NETWORK);
+        // Set listening to true
+        this.listening = true;
+        this.reconnectAttempt = 0;
+        // Send server the chatname
+        this.send("!CHATNAME " + this.name);
+        if (this.claim)
+            this.send(MessageProtocol.getMessage(CLAIM) + (this.getClaimToken() != null ? " " + this.getClaimToken() : ""));
+        if (this.compression)
+            this.negotiateCompression();
+        if (this.presence)
+            this.send(MessageProtocol.getMessage(PRESENCE));
+        if (this.reliable)
+            this.requestReliable();
+    }
+
+    /**
+     * Asks for reliable mode, with the token of the last connection the server sends what we missed
+     */
+    private void requestReliable() {
+        if (this.ackTimer == null) {
+            this.ackTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "SimpleChatClient-ack");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        String command = MessageProtocol.getMessage(RELIABLE);
+        synchronized (this) {
+            if (this.reliableToken != null)
+                command += " " + this.reliableToken + " " + this.lastSequence;
+        }
+        this.send(command);
+    }
+
+    /**
+     * Handles the {@link MessageProtocol.Commands#RELIABLE} answer. A new token means the server does not
+     * have our old messages any more, its numbers start again.
+     *
+     * @param token token of the window on the server
+     */
+    private synchronized void reliable(String token) {
+        if (!token.equals(this.reliableToken)) {
+            if (this.reliableToken != null)
+                SimpleChat.clientLogger.log(WARNING, "Server lost the reliable window, messages may be missing");
+            this.reliableToken = token;
+            this.lastSequence = 0;
+        }
+        this.ackedSequence = this.lastSequence;
+    }
+
+    /**
+     * Handles the {@link MessageProtocol.Commands#CLAIM} answer, the name is sent again after a reconnect
+     *
+     * @param token    token of our chatName
+     * @param chatName name the server gave us
+     */
+    private synchronized void claimed(String token, String chatName) {
+        if (this.claimToken != null && !token.equals(this.claimToken))
+            SimpleChat.clientLogger.log(WARNING, "Server did not keep our name, we are " + chatName + " now");
+        this.claimToken = token;
+        this.name = chatName;
+    }
+
+    /**
+     * Handles a {@link MessageProtocol.Commands#SEQ} message: duplicates are dropped, an acknowledgement
+     * is sent after a batch of messages or shortly after the first unacknowledged one.
+     *
+     * @param message whole line "!SEQ number text"
+     */
+    private void sequenced(String message) {
+        String[] split = message.split(" ", 3);
+        long sequence;
+        try {
+            sequence = Long.parseLong(split[1]);
+        } catch (RuntimeException e) {
+            SimpleChat.clientLogger.log(WARNING, "Malformed sequenced message: " + message);
+            return;
+        }
+        boolean duplicate;
+        boolean ackNow = false;
+        boolean schedule = false;
+        synchronized (this) {
+            duplicate = sequence <= this.lastSequence;
+            if (duplicate) {
+                this.duplicates++;
+            } else {
+                if (sequence > this.lastSequence + 1)
+                    SimpleChat.clientLogger.log(WARNING, "Messages " + (this.lastSequence + 1) + " to "
+                            + (sequence - 1) + " were given up by the server");
+                this.lastSequence = sequence;
+            }
+            if (this.lastSequence - this.ackedSequence >= ACK_BATCH) {
+                ackNow = true;
+            } else if (!this.ackScheduled) {
+                this.ackScheduled = true;
+                schedule = true;
+            }
+        }
+        if (!duplicate)
+            this.client.incomingMessage(split.length > 2 ? split[2] : "");
+        if (ackNow) {
+            this.acknowledge();
+        } else if (schedule) {
+            try {
+                this.ackTimer.schedule(this::acknowledge, ACK_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                SimpleChat.clientLogger.log(FINE, "Client is shutting down, no acknowledgement sent");
+            }
+        }
+    }
+
+    /**
+     * Sends one cumulative {@link MessageProtocol.Commands#ACK} for everything received so far
+     */
+    private void acknowledge() {
+        long sequence;
+        synchronized (this) {
+            this.ackScheduled = false;
+            if (this.lastSequence <= this.ackedSequence)
+                return;
+            sequence = this.ackedSequence = this.lastSequence;
+        }
+        this.sendControl(MessageProtocol.getMessage(ACK) + " " + sequence);
+    }
+
+    /**
+     * Closes the old connection and waits the delay the server asked for.
+     *
+     * @return false if the client was shut down while waiting
+     */
+    private boolean awaitReconnect() {
+        this.lastDelay = this.reconnectDelay;
+        this.reconnectDelay = -1;
+        this.reconnectAttempt++;
+        this.close();
+        this.client.incomingMessage("Server not available, reconnecting in " + (this.lastDelay / 1000) + " s ...");
         try {
-            this.socket = new Socket();
-            // Connect to server with timeout
-            this.socket.connect(this.socketAddress, 2000);
-            // Setup input and output
-            this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-            this.out = new PrintWriter(this.socket.getOutputStream(), true);
-            // Set listening to true
-            this.listening = true;
-            // Send server the chatname
-            this.send("!CHATNAME " + this.name);
+            Thread.sleep(this.lastDelay);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return !this.stopped;
+    }
+
+    /**
+     * Handles {@link MessageProtocol.Commands#RECONNECT}: stops reading and sets the delay
+     * and the new server address if one was sent.
+     *
+     * @param split command and its parameters
+     */
+    private void reconnect(String[] split) {
+        try {
+            this.reconnectDelay = split.length > 1 ? Long.parseLong(split[1]) : 0;
+        } catch (NumberFormatException e) {
+            this.reconnectDelay = 0;
+        }
+        if (split.length > 2 && split[2].contains(":")) {
+            try {
+                int port = Integer.parseInt(split[2].substring(split[2].lastIndexOf(':') + 1));
+                this.host = split[2].substring(0, split[2].lastIndexOf(':'));
+                this.port = port;
+            } catch (NumberFormatException e) {
+                SimpleChat.clientLogger.log(WARNING, "Malformed reconnect address " + split[2] + ", staying with "
+                        + this.host + ":" + this.port);
+            }
+        }
+        this.listening = false;
+        SimpleChat.clientLogger.log(INFO, "Reconnecting to " + this.host + ":" + this.port + " in " + this.reconnectDelay + " ms");
+    }
+
+    /**
+     * Applies a snapshot or a delta of the user list, see {@link MessageProtocol.Commands#PRESENCE}
+     *
+     * @param param parameters of the command
+     */
+    private void presence(String param) {
+        String[] split = param.split(" ", 2);
+        String[] fields = split.length > 1 ? split[1].split("\t") : new String[0];
+        String[] users;
+        synchronized (this) {
+            if (MessageProtocol.SNAPSHOT.equals(split[0])) {
+                this.onlineUsers.clear();
+                this.onlineUsers.addAll(Arrays.asList(fields));
+            } else if (MessageProtocol.DELTA.equals(split[0])) {
+                for (int i = 0; i < fields.length; i++) {
+                    String name = fields[i].substring(1);
+                    switch (fields[i].charAt(0)) {
+                        case '-':
+                            this.onlineUsers.remove(name);
+                            break;
+                        case '~':
+                            // a rename takes two fields, the old and the new name
+                            this.onlineUsers.remove(name);
+                            if (i + 1 < fields.length)
+                                this.onlineUsers.add(fields[++i]);
+                            break;
+                        case '+':
+                            this.onlineUsers.add(name);
+                            break;
+                        default:
+                            SimpleChat.clientLogger.log(WARNING, "Unknown presence change: " + fields[i]);
+                    }
+                }
+            }
+            users = this.onlineUsers.toArray(new String[0]);
+        }
+        this.client.presenceChanged(users);
+    }
+
+    /**
+     * Asks the server for a deflated connection and waits for the answer.
+     * While waiting the monitor of {@link #out} is held, so no other line can be sent between
+     * request and answer. Messages arriving in the meantime are handled as usual.
+     *
+     * @throws IOException if the connection fails
+     */
+    private void negotiateCompression() throws IOException {
+        String command = MessageProtocol.getMessage(COMPRESS);
+        synchronized (this.out) {
+            this.out.writeLine(command + " " + MessageProtocol.DEFLATE);
             while (this.listening && (this.currentMessage = this.in.readLine()) != null) {
-                this.received();
+                if (this.currentMessage.startsWith(command)) {
+                    if (this.currentMessage.endsWith(" " + MessageProtocol.DEFLATE)) {
+                        this.in.inflate();
+                        this.out.deflate(this.compressionThreshold);
+                        SimpleChat.clientLogger.log(INFO, "Compression enabled");
+                    }
+                    return;
+                }
+                this.dispatch();
             }
-        } catch (IOException e) {
-            SimpleChat.clientLogger.log(SEVERE, "Exception in socket thread: " + e.getMessage());
-            this.shutdown();
         }
-        Platform.exit();
+    }
+
+    /**
+     * Chunks carry raw bytes behind their line, they are read here, everything else goes to {@link #received()}
+     *
+     * @throws IOException if a chunk could not be read
+     */
+    private void dispatch() throws IOException {
+        if (this.currentMessage.startsWith(CHUNK_COMMAND)) {
+            this.chunk(this.currentMessage.substring(CHUNK_COMMAND.length()).split(" "));
+        } else {
+            this.received();
+        }
+    }
+
+    /**
+     * Writes a chunk into its download, chunks of unknown files are skipped
+     *
+     * @param split id and length
+     * @throws IOException if the connection fails or the chunk header is malformed
+     */
+    private void chunk(String[] split) throws IOException {
+        int length;
+        try {
+            length = Integer.parseInt(split[1]);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed chunk: " + this.currentMessage);
+        }
+        Download download = this.downloads.get(split[0]);
+        this.in.readBytes(download != null ? download.channel : null, length);
+    }
+
+    /**
+     * Handles the {@link MessageProtocol.Commands#FILE} lines of the server
+     *
+     * @param param parameters of the command
+     */
+    private void file(String param) {
+        String[] split = param.split(" ", 4);
+        if (split.length < 2)
+            return;
+        Download download;
+        switch (split[0]) {
+            case MessageProtocol.OFFER:
+                try {
+                    download = new Download(split[3], Long.parseLong(split[2]), this.downloadDirectory);
+                    this.downloads.put(split[1], download);
+                } catch (IOException | RuntimeException e) {
+                    SimpleChat.clientLogger.log(WARNING, "File is not received: " + e.getMessage());
+                }
+                break;
+            case MessageProtocol.END:
+                download = this.downloads.remove(split[1]);
+                if (download != null && download.close())
+                    this.client.incomingMessage(download.sender + " sent " + download.path);
+                break;
+            case MessageProtocol.DONE:
+                this.client.incomingMessage("File sent to " + (split.length > 2 ? split[2] : "0") + " receivers");
+                break;
+            case MessageProtocol.ERROR:
+                String[] reason = param.split(" ", 3);
+                this.client.incomingMessage("File " + split[1] + " not sent: " + (reason.length > 2 ? reason[2] : ""));
+                break;
+            default:
+                SimpleChat.clientLogger.log(WARNING, "Unknown file command: " + param);
+        }
+    }
+
+    /**
+     * Sends a file in chunks of {@link MessageProtocol#MAX_CHUNK} bytes, only one chunk is in memory.
+     * Every chunk is written and flushed on its own, so messages sent by other Threads meanwhile are not
+     * stuck behind the file. Blocks until the file is sent, the server confirms it with "!FILE DONE".
+     *
+     * @param file      file to send
+     * @param chatNames receivers, none for everybody
+     * @return id of the transfer
+     * @throws IOException if the file cannot be read or the connection fails
+     */
+    public String sendFile(Path file, String... chatNames) throws IOException {
+        String id = Long.toString(this.fileIds.incrementAndGet());
+        LineWriter out = this.out;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String targets = chatNames.length > 0 ? "{" + String.join(",", chatNames) + "} " : "";
+            SimpleChat.clientLogger.log(INFO, "Send file " + file + " (" + size + " bytes)");
+            out.writeLine(MessageProtocol.getMessage(FILE) + " " + MessageProtocol.SEND + " " + id + " " + size
+                    + " " + targets + file.getFileName());
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(MessageProtocol.MAX_CHUNK, Math.max(size, 1)));
+            long position = 0;
+            while (position < size) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), size - position));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, position + chunk.position()) < 0)
+                        throw new EOFException(file + " became shorter while it was sent");
+                }
+                chunk.flip();
+                synchronized (out) {
+                    this.control.writeTo(out);
+                    out.write(LineWriter.encode(CHUNK_COMMAND + id + " " + chunk.remaining()), chunk);
+                    out.flush();
+                }
+                position += chunk.remaining();
+            }
+        }
+        return id;
     }
 
     /**
@@ -117,10 +671,43 @@ public class SimpleChatClient extends Thread {
                     this.listening = false;
                     this.shutdown();
                     break;
+                case RECONNECT:
+                    this.reconnect(split);
+                    break;
+                case PRESENCE:
+                    this.presence(this.currentMessage.substring(MessageProtocol.getMessage(PRESENCE).length()).trim());
+                    break;
+                case PRIVATE:
+                    if (split.length > 2 && MessageProtocol.ERROR.equals(split[1]))
+                        client.incomingMessage("Unknown user, message not delivered: " + split[2]);
+                    break;
+                case RELIABLE:
+                    if (split.length > 1)
+                        this.reliable(split[1]);
+                    break;
+                case CLAIM:
+                    if (split.length > 2)
+                        this.claimed(split[1], this.currentMessage.split(" ", 3)[2]);
+                    break;
+                case LAG:
+                    if (split.length > 1)
+                        client.incomingMessage(split[1] + " messages skipped, the connection is too slow");
+                    break;
+                case SEQ:
+                    this.sequenced(this.currentMessage);
+                    break;
+                case FILE:
+                    this.file(this.currentMessage.substring(MessageProtocol.getMessage(FILE).length()).trim());
+                    break;
+                case SEARCH:
+                    // hits of a search are shown like messages, without the command
+                    client.incomingMessage(this.currentMessage.substring(MessageProtocol.getMessage(SEARCH).length()).trim());
+                    break;
                 default:
                     SimpleChat.clientLogger.log(WARNING, "Unhandled command: " + cmd);
             }
         } else {
+            Startup.mark(Startup.Milestone.FIRST_MESSAGE);
             SimpleChat.clientLogger.log(INFO, "Received msg from server: " + this.currentMessage);
             client.incomingMessage(this.currentMessage);
         }
@@ -132,23 +719,56 @@ public class SimpleChatClient extends Thread {
      * @param message Public message for server intercommunication
      */
     public void send(String message) {
+        if (this.messageIds && (!message.startsWith("!") || message.regionMatches(true, 0, PRIVATE_COMMAND, 0, PRIVATE_COMMAND.length())))
+            message = MessageProtocol.getMessage(ID) + " " + this.nextMessageId() + " " + message;
         SimpleChat.clientLogger.log(INFO, "Send message to server: " + message);
+        LineWriter out = this.out;
         try {
-            out.println(message);
+            synchronized (out) {
+                this.control.writeTo(out);
+                out.writeLine(message);
+            }
         } catch (Exception e) {
             SimpleChat.clientLogger.log(SEVERE, "Error while sending message: " + e);
         }
     }
 
+    /**
+     * Sends a chat line with an id of the caller. Sending it again with the same id, e.g. after a timeout or a
+     * reconnect, does not show it twice, the server drops the copy.
+     *
+     * @param id      id from {@link #nextMessageId()}, without spaces
+     * @param message text message or private message line
+     */
+    public void sendWithId(String id, String message) {
+        this.send(MessageProtocol.getMessage(ID) + " " + id + " " + message);
+    }
+
+    /**
+     * Sends a command ahead of chat lines and file chunks other Threads are sending. It waits for at most
+     * the line or chunk which is written at that moment.
+     *
+     * @param command command line, e.g. !EXIT
+     */
+    private void sendControl(String command) {
+        SimpleChat.clientLogger.log(INFO, "Send command to server: " + command);
+        this.control.add(command);
+        try {
+            this.control.writeTo(this.out);
+        } catch (Exception e) {
+            SimpleChat.clientLogger.log(SEVERE, "Error while sending command: " + e);
+        }
+    }
+
     /**
      * Sending message to the server through network for private Message
      *
      * @param message  Private message for client-to-client intercommunication
-     * @param chatName Name of receiver
+     * @param chatName Name of receiver, several receivers are separated by commas
      */
     public void send(String message, String chatName) {
         SimpleChat.clientLogger.log(INFO, "Send private message to " + chatName + ": " + message);
-        this.send(MessageProtocol.getMessage(PRIVATE) + " (" + chatName + ") " + message);
+        this.send(MessageProtocol.privateMessage(message, chatName.split(",")));
     }
 
     /**
@@ -161,14 +781,31 @@ public class SimpleChatClient extends Thread {
         SimpleChat.clientLogger.log(INFO, "Shutting down Client ... listening=" + listening);
         if (this.listening) {
             this.listening = false;
-            this.send(MessageProtocol.getMessage(EXIT));
+            this.sendControl(MessageProtocol.getMessage(EXIT));
         }
         this.currentMessage = "Server disconnected.";
         this.received();
+        this.stopped = true;
+        if (this.ackTimer != null)
+            this.ackTimer.shutdownNow();
+        if (Thread.currentThread() != this)
+            this.interrupt();
+        this.close();
+    }
+
+    /**
+     * Closes all open resources without notifying the server
+     */
+    private void close() {
+        for (Download download : this.downloads.values()) {
+            download.abort();
+        }
+        this.downloads.clear();
+        this.control.clear();
         try {
             this.out.close();
             this.in.close();
-            this.socket.close();
+            this.connection.close();
         } catch (Exception e) {
             SimpleChat.clientLogger.log(WARNING, "Error while closing connection: " + e.getMessage());
         }
@@ -180,4 +817,65 @@ public class SimpleChatClient extends Thread {
     public boolean isListening() {
         return listening;
     }
+
+    /**
+     * File announced by the server, written into the download directory while its chunks arrive
+     */
+    private static class Download {
+        private final String sender;
+        private final Path path;
+        private final FileChannel channel;
+        private final long size;
+
+        /**
+         * @param from      "[sender] name" of the offer
+         * @param size      announced size in bytes
+         * @param directory download directory
+         * @throws IOException if the file cannot be created
+         */
+        Download(String from, long size, Path directory) throws IOException {
+            int close = from.indexOf("] ");
+            this.sender = close > 0 ? from.substring(0, close + 1) : "";
+            this.size = size;
+            // only the last part of the name, so a sender cannot write outside of the directory
+            String name = close > 0 ? from.substring(close + 2) : from;
+            name = name.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_");
+            if (name.isEmpty() || name.startsWith("."))
+                name = "_" + name;
+            Path path = directory.resolve(name);
+            for (int i = 1; Files.exists(path); i++) {
+                path = directory.resolve(i + "-" + name);
+            }
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * @return true if the file is complete
+         */
+        boolean close() {
+            try {
+                boolean complete = this.channel.size() == this.size;
+                this.channel.close();
+                if (!complete)
+                    Files.deleteIfExists(this.path);
+                return complete;
+            } catch (IOException e) {
+                SimpleChat.clientLogger.log(WARNING, "Could not close " + this.path + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * Deletes the incomplete file
+         */
+        void abort() {
+            try {
+                this.channel.close();
+                Files.deleteIfExists(this.path);
+            } catch (IOException e) {
+                SimpleChat.clientLogger.log(WARNING, "Could not delete " + this.path + ": " + e.getMessage());
+            }
+        }
+    }
 }
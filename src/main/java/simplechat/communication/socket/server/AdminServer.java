@@ -0,0 +1,341 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.server.SimpleChat;
+import simplechat.server.search.SearchIndex;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Line based admin port for a running server, independent of the JavaFX UI.
+ * <br>
+ * The port is bound to the loopback address only. Every request is one line, the answer are zero or more
+ * data lines followed by "OK" or "ERROR reason", e.g. {@code nc localhost 5052} and then {@code CLIENTS}.
+ * See {@link Command} for the requests.
+ * <br>
+ * The admin port has its own Threads with a fixed budget and a high priority, so it answers even when
+ * the chat port has no free Threads left. Idle admin connections are closed after a timeout, so a forgotten
+ * connection does not block the budget.
+ */
+public class AdminServer {
+
+    /**
+     * Requests of the admin port, case insensitive
+     */
+    enum Command {
+        /**
+         * List the requests
+         */
+        HELP,
+        /**
+         * All chatNames of the chat, like the user list of the UI
+         */
+        CLIENTS,
+        /**
+         * Disconnect a client like the Remove button of the UI, "KICK chatName" or "KICK sessionId" of a
+         * connection of this server
+         */
+        KICK,
+        /**
+         * Number of users, connections and messages, search index, buffer pool, lag, deduplication and heap
+         */
+        STATS,
+        /**
+         * One line per connection of this server: session id, chatName and queued frames, largest queue first
+         */
+        QUEUES,
+        /**
+         * One line per connection: session id, chatName, milliseconds of the oldest undelivered message,
+         * queued bytes and "degraded" for a client getting only the latest messages, largest lag first
+         */
+        LAG,
+        /**
+         * Stack traces of all Threads of the server
+         */
+        THREADS,
+        /**
+         * Close the admin connection
+         */
+        QUIT
+    }
+
+    /**
+     * Number of Threads serving admin connections if nothing else is configured
+     */
+    public static final int DEFAULT_THREADS = 2;
+
+    private static final int IDLE_TIMEOUT = 60_000;
+
+    private final Integer port;
+    private final int threads;
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private volatile boolean running = false;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private SimpleChatServer server;
+    private SimpleChat simpleChat;
+
+    /**
+     * @param port    port on the loopback address, 0 for any free port
+     * @param threads number of admin connections served at the same time
+     */
+    public AdminServer(Integer port, int threads) {
+        this.port = port;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return port of the admin ServerSocket or -1 if not started
+     */
+    public int getLocalPort() {
+        return this.serverSocket != null ? this.serverSocket.getLocalPort() : -1;
+    }
+
+    /**
+     * Opens the admin port and starts its acceptor Thread
+     *
+     * @param server     SimpleChatServer which is administrated
+     * @param simpleChat user list and message store of the server
+     * @throws IOException if the admin port can not be opened
+     */
+    void start(SimpleChatServer server, SimpleChat simpleChat) throws IOException {
+        this.server = server;
+        this.simpleChat = simpleChat;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port), this.threads);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread thread = new Thread(r, "SimpleChat-admin-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            return thread;
+        });
+        this.running = true;
+        Thread acceptor = new Thread(this::accept, "SimpleChat-admin-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.setPriority(Thread.MAX_PRIORITY);
+        acceptor.start();
+        SimpleChat.serverLogger.log(INFO, "Admin port " + this.getLocalPort() + " with " + this.threads + " Thread(s)");
+    }
+
+    private void accept() {
+        while (this.running) {
+            Socket socket = null;
+            try {
+                socket = this.serverSocket.accept();
+                socket.setSoTimeout(IDLE_TIMEOUT);
+                Socket connection = socket;
+                this.executor.execute(() -> this.serve(connection));
+            } catch (RejectedExecutionException | IOException e) {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                        // nothing left to clean up
+                    }
+                }
+                if (this.running)
+                    SimpleChat.serverLogger.log(WARNING, "Error on accept admin connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        this.connections.add(socket);
+        try (Socket s = socket) {
+            LineReader in = new LineReader(s.getInputStream());
+            LineWriter out = new LineWriter(s.getOutputStream());
+            String line;
+            while (this.running && (line = in.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                List<String> answer = new ArrayList<>();
+                boolean quit = false;
+                try {
+                    quit = this.execute(line.trim(), answer);
+                    answer.add("OK");
+                } catch (IllegalArgumentException e) {
+                    answer.add("ERROR " + e.getMessage());
+                }
+                for (String a : answer) {
+                    out.write(LineWriter.encode(a));
+                }
+                out.flush();
+                if (quit)
+                    return;
+            }
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(FINE, "Admin connection closed: " + e.getMessage());
+        } finally {
+            this.connections.remove(socket);
+        }
+    }
+
+    /**
+     * Executes one request
+     *
+     * @param line   request line
+     * @param answer data lines of the answer are added here
+     * @return true if the connection should be closed
+     * @throws IllegalArgumentException if the request is unknown or invalid
+     */
+    boolean execute(String line, List<String> answer) {
+        String[] split = line.split(" ", 2);
+        String param = split.length > 1 ? split[1].trim() : "";
+        Command command;
+        try {
+            command = Command.valueOf(split[0].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown command " + split[0] + ", try HELP");
+        }
+        switch (command) {
+            case HELP:
+                for (Command c : Command.values()) {
+                    answer.add(c.name());
+                }
+                break;
+            case CLIENTS:
+                answer.addAll(this.simpleChat.getRegistry().snapshot());
+                break;
+            case KICK:
+                if (this.simpleChat.getRegistry().contains(param))
+                    this.server.removeClient(param);
+                else if (!param.matches("\\d{1,9}") || !this.server.removeSession(Integer.parseInt(param)))
+                    throw new IllegalArgumentException("no client " + param);
+                break;
+            case STATS:
+                this.stats(answer);
+                break;
+            case QUEUES:
+                this.queues(answer);
+                break;
+            case LAG:
+                this.lag(answer);
+                break;
+            case THREADS:
+                this.threads(answer);
+                break;
+            case QUIT:
+                return true;
+        }
+        return false;
+    }
+
+    private void stats(List<String> answer) {
+        answer.add("users " + this.simpleChat.getRegistry().size());
+        answer.add("connections " + this.server.getSessions().size());
+        answer.add("messages.received " + this.simpleChat.getReceivedCount());
+        answer.add("messages.sent " + this.simpleChat.getSentCount());
+        SearchIndex index = this.simpleChat.getSearchIndex();
+        answer.add("search.messages " + index.getMessageCount());
+        answer.add("search.segments " + index.getSegmentCount());
+        answer.add("search.bytes " + index.getBytes());
+        BufferPool pool = this.server.getBufferPool();
+        answer.add("buffers.allocated " + pool.allocated());
+        answer.add("buffers.outstanding " + pool.outstanding());
+        answer.add("buffers.leaks " + pool.leaks());
+        ReliableDelivery reliable = this.server.getReliable();
+        answer.add("reliable.windows " + reliable.getWindows());
+        answer.add("reliable.sent " + reliable.getSent());
+        answer.add("reliable.retransmitted " + reliable.getRetransmitted());
+        answer.add("reliable.retransmitRate " + String.format(Locale.ROOT, "%.4f", reliable.getRetransmitRate()));
+        answer.add("reliable.overflowed " + reliable.getOverflowed());
+        answer.add("reliable.ackLatencyMicros " + reliable.getAckLatency());
+        SlowConsumers slow = this.server.getSlowConsumers();
+        answer.add("lag.degraded " + slow.getDegraded());
+        answer.add("lag.dropped " + slow.getDropped());
+        answer.add("lag.disconnected " + slow.getDisconnected());
+        answer.add("lag.millis " + slow.getLagMillis());
+        answer.add("lag.bytes " + slow.getLagBytes());
+        Deduplication deduplication = this.server.getDeduplication();
+        answer.add("dedup.checked " + deduplication.getChecked());
+        answer.add("dedup.duplicates " + deduplication.getDuplicates());
+        answer.add("dedup.hitRate " + String.format(Locale.ROOT, "%.4f", deduplication.getHitRate()));
+        answer.add("dedup.ids " + deduplication.getIds());
+        answer.add("dedup.bytes " + deduplication.getBytes());
+        answer.add("dedup.parked " + deduplication.getParked());
+        answer.add("events.subscribers " + this.simpleChat.getEvents().getSubscriberCount());
+        answer.add("events.dropped " + this.simpleChat.getEvents().getDropped());
+        if (this.server.getCluster() != null)
+            answer.add("cluster.nodes " + String.join(",", this.server.getCluster().getLinkedNodes()));
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        answer.add("heap.used " + heap.getUsed());
+        answer.add("heap.max " + heap.getMax());
+        answer.add("threads " + ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    private void queues(List<String> answer) {
+        List<Map.Entry<ClientWorker, Session>> workers = new ArrayList<>(this.server.getWorkers().entrySet());
+        workers.sort((a, b) -> Integer.compare(b.getKey().getQueueDepth(), a.getKey().getQueueDepth()));
+        for (Map.Entry<ClientWorker, Session> e : workers) {
+            answer.add(e.getValue().getId() + " " + e.getValue().getName() + " " + e.getKey().getQueueDepth());
+        }
+    }
+
+    private void lag(List<String> answer) {
+        List<Map.Entry<ClientWorker, Session>> workers = new ArrayList<>(this.server.getWorkers().entrySet());
+        Map<ClientWorker, Long> lag = new HashMap<>();
+        for (Map.Entry<ClientWorker, Session> e : workers) {
+            lag.put(e.getKey(), e.getKey().getLagMillis());
+        }
+        workers.sort((a, b) -> Long.compare(lag.get(b.getKey()), lag.get(a.getKey())));
+        for (Map.Entry<ClientWorker, Session> e : workers) {
+            answer.add(e.getValue().getId() + " " + e.getValue().getName() + " " + lag.get(e.getKey()) + " "
+                    + e.getKey().getQueuedBytes() + (e.getKey().isDegraded() ? " degraded" : ""));
+        }
+    }
+
+    private void threads(List<String> answer) {
+        for (ThreadInfo info : ManagementFactory.getThreadMXBean().dumpAllThreads(true, true)) {
+            answer.add("\"" + info.getThreadName() + "\" id=" + info.getThreadId() + " " + info.getThreadState()
+                    + (info.getLockName() != null ? " on " + info.getLockName() : "")
+                    + (info.getLockOwnerName() != null ? " owned by \"" + info.getLockOwnerName() + "\"" : ""));
+            for (StackTraceElement element : info.getStackTrace()) {
+                answer.add("    at " + element);
+            }
+        }
+    }
+
+    /**
+     * Closes the admin port and all admin connections
+     */
+    void shutdown() {
+        this.running = false;
+        try {
+            if (this.serverSocket != null)
+                this.serverSocket.close();
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(WARNING, "Error while closing admin port: " + e.getMessage());
+        }
+        for (Socket socket : this.connections) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // the connection is gone anyway
+            }
+        }
+        if (this.executor != null)
+            this.executor.shutdownNow();
+    }
+}
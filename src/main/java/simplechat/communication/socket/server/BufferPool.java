@@ -0,0 +1,158 @@
+package simplechat.communication.socket.server;
+
+import simplechat.server.SimpleChat;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Pool of direct ByteBuffers for the frames of the server.
+ * <br>
+ * Buffers are kept in a few size classes, a frame gets the smallest class it fits in.
+ * Frames larger than the biggest class get an unpooled heap buffer, so a single huge line
+ * does not pin off-heap memory until the next GC.
+ * <br>
+ * Every allocation and every recycle is counted, {@link #outstanding()} is zero when all frames were released.
+ * With leak detection every frame is also watched by a Cleaner: if it becomes unreachable without being
+ * released, the leak is logged and counted and its buffer goes back to the pool.
+ */
+public class BufferPool {
+
+    private static final int[] SIZES = {256, 1024, 4096, 16384, 65536};
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+    private final int maxPooled;
+    private volatile boolean leakDetection = Boolean.getBoolean("simplechat.leakDetection");
+
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong recycled = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * @param maxPooled number of free buffers kept per size class
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+        this.free = new Queue[SIZES.length];
+        this.freeCount = new AtomicInteger[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            this.free[i] = new ConcurrentLinkedQueue<>();
+            this.freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param leakDetection true watches every frame for being garbage collected without release
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * @param capacity number of bytes the frame needs
+     * @return frame with a reference count of one, position 0 and limit capacity
+     */
+    public FrameBuffer allocate(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            buffer = this.free[sizeClass].poll();
+            if (buffer != null)
+                this.freeCount[sizeClass].decrementAndGet();
+            else
+                buffer = ByteBuffer.allocateDirect(SIZES[sizeClass]);
+        } else {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+        buffer.clear().limit(capacity);
+        this.allocated.incrementAndGet();
+        return new FrameBuffer(this, buffer, this.leakDetection);
+    }
+
+    private static int sizeClass(int capacity) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (capacity <= SIZES[i])
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Takes back the buffer of a released frame
+     *
+     * @param buffer buffer which is not used any more
+     */
+    void recycle(ByteBuffer buffer) {
+        this.recycled.incrementAndGet();
+        if (!buffer.isDirect())
+            return;
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || SIZES[sizeClass] != buffer.capacity())
+            return;
+        if (this.freeCount[sizeClass].incrementAndGet() <= this.maxPooled)
+            this.free[sizeClass].add(buffer);
+        else
+            this.freeCount[sizeClass].decrementAndGet();
+    }
+
+    /**
+     * Registers a frame for leak detection
+     *
+     * @param frame   frame to watch
+     * @param buffer  buffer of the frame, must not reference the frame
+     * @param state   released flag of the frame, must not reference the frame
+     * @return handle to unregister the frame on release
+     */
+    Cleaner.Cleanable watch(FrameBuffer frame, ByteBuffer buffer, AtomicInteger state) {
+        return CLEANER.register(frame, () -> {
+            if (state.get() > 0) {
+                // recycled before the leak is counted, so outstanding() is right once leaks() shows it
+                this.recycle(buffer);
+                this.leaks.incrementAndGet();
+                SimpleChat.serverLogger.log(SEVERE, "LEAK: FrameBuffer of " + buffer.capacity()
+                        + " bytes was garbage collected without release()");
+            }
+        });
+    }
+
+    /**
+     * @return number of frames allocated but not released yet
+     */
+    public long outstanding() {
+        return this.allocated.get() - this.recycled.get();
+    }
+
+    /**
+     * @return number of frames which were garbage collected without release, only counted with leak detection
+     */
+    public long leaks() {
+        return this.leaks.get();
+    }
+
+    /**
+     * @return number of free buffers kept in all size classes
+     */
+    int pooled() {
+        int pooled = 0;
+        for (AtomicInteger count : this.freeCount) {
+            pooled += count.get();
+        }
+        return pooled;
+    }
+
+    /**
+     * @return number of frames allocated since the start
+     */
+    public long allocated() {
+        return this.allocated.get();
+    }
+}
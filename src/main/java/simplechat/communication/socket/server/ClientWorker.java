@@ -0,0 +1,782 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+import simplechat.communication.jfr.DispatchEvent;
+import simplechat.communication.socket.ControlLane;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.communication.socket.TlsConnection;
+import simplechat.communication.transport.Connection;
+import simplechat.server.SimpleChat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.logging.Level.*;
+import static simplechat.communication.MessageProtocol.Commands.CLAIM;
+import static simplechat.communication.MessageProtocol.Commands.COMPRESS;
+import static simplechat.communication.MessageProtocol.Commands.CHUNK;
+import static simplechat.communication.MessageProtocol.Commands.EXIT;
+import static simplechat.communication.MessageProtocol.Commands.FILE;
+import static simplechat.communication.MessageProtocol.Commands.ID;
+import static simplechat.communication.MessageProtocol.Commands.LAG;
+import static simplechat.communication.MessageProtocol.Commands.PRIVATE;
+import static simplechat.communication.MessageProtocol.Commands.RELIABLE;
+import static simplechat.communication.MessageProtocol.Commands.SEARCH;
+
+/**
+ * Thread for client socket connection.<br>
+ * Every client has to be handled by an own Thread.
+ */
+class ClientWorker implements Runnable {
+    private static final byte[] PRIVATE_COMMAND = MessageProtocol.getMessage(PRIVATE).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID_COMMAND = MessageProtocol.getMessage(ID).getBytes(StandardCharsets.US_ASCII);
+    // how long a shutdown waits for its !EXIT, e.g. behind a frame stuck in a full socket
+    private static final long CONTROL_TIMEOUT = 250;
+
+    private Connection client;
+    private TlsConnection tls = null;
+    private LineWriter out;
+    private LineReader in;
+
+    private SimpleChatServer callback;
+    private volatile boolean listening = true;
+    private final AtomicBoolean shutDown = new AtomicBoolean(false);
+    private volatile String claim = null;
+    private volatile Deduplication.Window messageIds = null;
+
+    private final ControlLane control = new ControlLane();
+    private final Queue<FrameBuffer> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // System.nanoTime() of the frame the writer is busy with, 0 between frames
+    private volatile long writingSince = 0;
+    private volatile boolean degraded = false;
+    private final AtomicBoolean evicted = new AtomicBoolean(false);
+    private volatile ReliableWindow reliable = null;
+    private final Queue<ReliableWindow.Entry> resend = new ConcurrentLinkedQueue<>();
+    private final Queue<FileTransfer.Cursor> files = new ConcurrentLinkedQueue<>();
+    // only used by the reader Thread
+    private final Map<String, FileTransfer> uploads = new HashMap<>();
+
+    /**
+     * Init of ClientWorker-Thread for socket intercommunication.
+     * With TLS the streams are wrapped, the handshake runs later in the ClientWorker Thread.
+     *
+     * @param client   Connection got from Listener.accept()
+     * @param callback {@link simplechat.communication.socket.server.SimpleChatServer} reference
+     * @param secure   false for connections which must not be wrapped with TLS, e.g. WebSocket
+     * @throws IOException will be throwed if the init of Input- or OutputStream fails
+     */
+    ClientWorker(Connection client, SimpleChatServer callback, boolean secure) throws IOException {
+        this.client = client;
+        if (secure && callback.getTlsContext() != null) {
+            this.tls = callback.getTlsContext().server(client);
+            this.out = new LineWriter(this.tls.getOutputStream());
+            this.in = new LineReader(this.tls.getInputStream());
+        } else {
+            this.out = new LineWriter(client.getOutputStream());
+            this.in = new LineReader(client.getInputStream());
+        }
+        this.callback = callback;
+    }
+
+    /**
+     * MessageHandler for incoming Messages on Client Socket
+     * <br>
+     * A TLS handshake is done first, only then the client is registered.
+     * The InputSocket will be read synchronous through readLine()
+     * Incoming messages first will be checked if they start with any Commands, which will be executed properly.
+     * Direct messages are delegated as bytes to {@link SimpleChatServer#direct(ByteBuffer, ClientWorker)}.
+     * Otherwise text messages will be delegated as bytes to the {@link SimpleChatServer#received(ByteBuffer, ClientWorker)} method.
+     */
+    @Override
+    public void run() {
+        try {
+            if (this.tls != null) {
+                this.tls.handshake();
+                SimpleChat.serverLogger.log(INFO, "TLS handshake done: " + this.tls.getSession().getProtocol()
+                        + " " + this.tls.getSession().getCipherSuite());
+            }
+            this.callback.register(this);
+            ByteBuffer line;
+            while ((line = this.in.readLineBuffer()) != null && this.listening) {
+                DispatchEvent event = new DispatchEvent();
+                event.begin();
+                int size = line.remaining();
+                String kind;
+                if (isCommand(line, ID_COMMAND) && !this.firstTime(line)) {
+                    kind = "Duplicate";
+                } else if (isCommand(line, PRIVATE_COMMAND)) {
+                    kind = "Private";
+                    line.position(line.position() + PRIVATE_COMMAND.length);
+                    this.callback.direct(line, this);
+                } else if (line.hasRemaining() && line.get(line.position()) == '!') {
+                    kind = "Command";
+                    this.command(StandardCharsets.UTF_8.decode(line).toString());
+                } else {
+                    kind = "Message";
+                    this.callback.received(line, this);
+                }
+                if (event.shouldCommit()) {
+                    event.kind = kind;
+                    event.size = size;
+                    event.commit();
+                }
+            }
+            this.out.close();
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(INFO, "Exception in reading line.");
+        } finally {
+            for (FileTransfer upload : this.uploads.values()) {
+                upload.release();
+            }
+            this.uploads.clear();
+            this.callback.removeClient(this);
+        }
+    }
+
+    /**
+     * Reads the id of a {@link MessageProtocol.Commands#ID} line, afterwards the line starts behind it
+     *
+     * @param line chat line starting with "!ID "
+     * @return true if the line goes on, false for a duplicate or a malformed id
+     */
+    private boolean firstTime(ByteBuffer line) {
+        int start = line.position() + ID_COMMAND.length + 1;
+        int end = start;
+        while (end < line.limit() && line.get(end) != ' ' && end - start <= Deduplication.MAX_ID) {
+            end++;
+        }
+        if (end == start || end >= line.limit() || end - start > Deduplication.MAX_ID) {
+            SimpleChat.serverLogger.log(WARNING, "Malformed message id, line dropped");
+            return false;
+        }
+        byte[] id = new byte[end - start];
+        line.position(start);
+        line.get(id);
+        line.get();
+        return this.callback.accept(this, new String(id, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param line    chat line
+     * @param command upper case command, e.g. "!PRIVATE"
+     * @return true if the line is the command, in any case, followed by a space or the end of the line
+     */
+    private static boolean isCommand(ByteBuffer line, byte[] command) {
+        if (line.remaining() < command.length)
+            return false;
+        for (int i = 0; i < command.length; i++) {
+            byte b = line.get(line.position() + i);
+            if (b != command[i] && !(b >= 'a' && b <= 'z' && b - ('a' - 'A') == command[i]))
+                return false;
+        }
+        return line.remaining() == command.length || line.get(line.position() + command.length) == ' ';
+    }
+
+    /**
+     * Executes a command line of the client
+     *
+     * @param message line starting with "!"
+     * @throws IOException if an answer could not be sent
+     */
+    private void command(String message) throws IOException {
+        String[] split = message.split(" ", 2);
+        String cmd = split[0];
+        String param = split.length > 1 ? split[1] : "";
+        MessageProtocol.Commands command;
+        try {
+            command = MessageProtocol.getCommand(cmd);
+            SimpleChat.serverLogger.log(WARNING, "Command: " + command);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        switch (command) {
+            case EXIT:
+                this.shutdown();
+                break;
+            case CHATNAME:
+                if(!param.trim().isEmpty()) {
+                    this.callback.setName(split[1], this);
+                }
+                break;
+            case COMPRESS:
+                this.negotiateCompression(param.trim());
+                break;
+            case SEARCH:
+                this.callback.search(param, this);
+                break;
+            case PRESENCE:
+                this.callback.subscribePresence(this, !MessageProtocol.OFF.equals(param.trim()));
+                break;
+            case RELIABLE:
+                this.callback.reliable(this, param);
+                break;
+            case CLAIM:
+                this.callback.claim(this, param);
+                break;
+            case ACK:
+                ReliableWindow window = this.reliable;
+                try {
+                    if (window != null)
+                        window.ack(Long.parseLong(param.trim()));
+                } catch (NumberFormatException e) {
+                    SimpleChat.serverLogger.log(WARNING, "Malformed acknowledgement: " + param);
+                }
+                break;
+            case FILE:
+                this.upload(param);
+                break;
+            case CHUNK:
+                this.chunk(param);
+                break;
+            default:
+                SimpleChat.serverLogger.log(WARNING, "Unhandled command: " + command);
+        }
+    }
+
+    /**
+     * Starts an upload, see {@link MessageProtocol.Commands#FILE}. A refused upload is answered at once,
+     * its chunks are skipped.
+     *
+     * @param param "SEND id size {chatName,chatName} name"
+     */
+    private void upload(String param) {
+        String[] split = param.split(" ", 4);
+        if (split.length < 4 || !MessageProtocol.SEND.equals(split[0])) {
+            SimpleChat.serverLogger.log(WARNING, "Malformed file command: " + param);
+            return;
+        }
+        String id = split[1];
+        String error = MessageProtocol.getMessage(FILE) + " " + MessageProtocol.ERROR + " " + id + " ";
+        long size;
+        try {
+            size = Long.parseLong(split[2]);
+        } catch (NumberFormatException e) {
+            this.send(error + "malformed size");
+            return;
+        }
+        String name = split[3].trim();
+        String targets = null;
+        if (name.startsWith("{")) {
+            int close = name.indexOf('}');
+            if (close < 0) {
+                this.send(error + "malformed receivers");
+                return;
+            }
+            targets = name.substring(1, close);
+            name = name.substring(close + 1).trim();
+        }
+        if (!this.client.isBinary()) {
+            this.send(error + "files need a native client");
+        } else if (size < 0 || size > this.callback.getFileLimit()) {
+            this.send(error + "larger than " + this.callback.getFileLimit() + " bytes");
+        } else if (name.isEmpty() || this.uploads.containsKey(id)) {
+            this.send(error + "name missing or id in use");
+        } else {
+            try {
+                FileTransfer upload = new FileTransfer(id, size, targets, name);
+                if (size == 0) {
+                    this.callback.fileUploaded(upload, this);
+                } else {
+                    this.uploads.put(id, upload);
+                }
+            } catch (IOException e) {
+                SimpleChat.serverLogger.log(SEVERE, "Could not create temp file: " + e.getMessage());
+                this.send(error + "not stored");
+            }
+        }
+    }
+
+    /**
+     * Reads a chunk into its upload. The length has to be valid, otherwise the rest of the stream cannot be read.
+     *
+     * @param param "id length"
+     * @throws IOException if the connection fails or the chunk header is malformed
+     */
+    private void chunk(String param) throws IOException {
+        String[] split = param.trim().split(" ");
+        int length;
+        try {
+            length = Integer.parseInt(split[1]);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed chunk: " + param);
+        }
+        if (length < 0 || length > MessageProtocol.MAX_CHUNK)
+            throw new IOException("Chunk of " + length + " bytes");
+        FileTransfer upload = this.uploads.get(split[0]);
+        if (upload == null || length > upload.getRemaining()) {
+            this.in.readBytes(null, length);
+            if (upload != null) {
+                this.uploads.remove(split[0]);
+                upload.release();
+                this.send(MessageProtocol.getMessage(FILE) + " " + MessageProtocol.ERROR + " " + split[0] + " more bytes than announced");
+            }
+            return;
+        }
+        upload.receive(this.in, length);
+        if (upload.getFailure() != null) {
+            SimpleChat.serverLogger.log(SEVERE, "Could not store upload: " + upload.getFailure().getMessage());
+            this.uploads.remove(split[0]);
+            upload.release();
+            this.send(MessageProtocol.getMessage(FILE) + " " + MessageProtocol.ERROR + " " + split[0] + " not stored");
+        } else if (upload.getRemaining() == 0) {
+            this.uploads.remove(split[0]);
+            this.callback.fileUploaded(upload, this);
+        }
+    }
+
+    /**
+     * @return false if the connection only carries text lines, e.g. WebSocket
+     */
+    boolean isBinary() {
+        return this.client.isBinary();
+    }
+
+    /**
+     * Answers a {@link MessageProtocol.Commands#COMPRESS} request of the client.
+     * The answer is the last plain line, afterwards both directions are deflated.
+     * The client does not send anything between its request and our answer,
+     * so no plain line can be caught in the Inflater.
+     *
+     * @param algorithm requested algorithm, only {@link MessageProtocol#DEFLATE} is supported
+     * @throws IOException if the answer could not be sent
+     */
+    private void negotiateCompression(String algorithm) throws IOException {
+        String command = MessageProtocol.getMessage(COMPRESS) + " ";
+        if (!this.callback.isCompression() || !MessageProtocol.DEFLATE.equals(algorithm) || this.out.isDeflating()) {
+            this.out.writeLine(command + MessageProtocol.NONE);
+            return;
+        }
+        synchronized (this.out) {
+            this.out.writeLine(command + MessageProtocol.DEFLATE);
+            this.out.deflate(this.callback.getCompressionThreshold());
+        }
+        this.in.inflate();
+        SimpleChat.serverLogger.log(INFO, "Compression enabled");
+    }
+
+    /**
+     * Clean shutdown of ClientWorker
+     * <br>
+     * If listening was still true, we are sending a {@link MessageProtocol.Commands#EXIT} to the client.
+     * It goes through the control lane, so it does not wait behind the queued messages, which are dropped.
+     * Finally we are closing all open resources. The reader Thread and a kick may both call this, only the
+     * first one does the work.
+     */
+    void shutdown() {
+        if (!this.shutDown.compareAndSet(false, true))
+            return;
+        SimpleChat.serverLogger.log(INFO, "Shutting down ClientWorker ... listening=" + listening);
+        if(listening) {
+            this.listening = false;
+            if (!this.sendControl(MessageProtocol.getMessage(EXIT), System.currentTimeMillis() + CONTROL_TIMEOUT))
+                SimpleChat.serverLogger.log(WARNING, "Could not send exit");
+        }
+        this.close();
+    }
+
+    /**
+     * Sends a command ahead of all queued messages. The command is always written by a writer Thread, a busy one
+     * sends it before its next frame, so the calling Thread, e.g. a kick or a drain, blocks at most until the
+     * deadline, even if the socket buffer of the client is full.
+     *
+     * @param message  command line
+     * @param deadline System.currentTimeMillis() until which we wait for the command to be written
+     * @return true if the command was written
+     */
+    boolean sendControl(String message, long deadline) {
+        this.control.add(message);
+        this.schedule();
+        return this.control.awaitSent(deadline);
+    }
+
+    /**
+     * Closes all open resources without notifying the client
+     */
+    void close() {
+        this.listening = false;
+        try {
+            // the connection first, it releases a writer Thread blocked on a full socket buffer
+            this.client.close();
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(WARNING, "Error while closing client connection: " + e.getMessage());
+        }
+        try {
+            this.out.close();
+            this.in.close();
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(FINE, "Streams already closed: " + e.getMessage());
+        }
+        this.control.clear();
+        this.releasePending();
+    }
+
+    /**
+     * Releases the queue, text messages of a reliable client are kept in its window instead
+     */
+    private void releasePending() {
+        ReliableWindow window = this.reliable;
+        FrameBuffer frame;
+        while ((frame = this.poll()) != null) {
+            if (window != null && !frame.isCommand())
+                window.unsent(frame);
+            else
+                frame.release();
+        }
+        ReliableWindow.Entry entry;
+        while ((entry = this.resend.poll()) != null) {
+            entry.frame.release();
+        }
+        FileTransfer.Cursor file;
+        while ((file = this.files.poll()) != null) {
+            file.release();
+        }
+    }
+
+    private FrameBuffer poll() {
+        FrameBuffer frame = this.pending.poll();
+        if (frame != null) {
+            this.queued.decrementAndGet();
+            this.queuedBytes.addAndGet(-frame.length());
+        }
+        return frame;
+    }
+
+    /**
+     * @return window of a reliable client, null if the client did not ask for it
+     */
+    ReliableWindow getReliable() {
+        return this.reliable;
+    }
+
+    /**
+     * @return claim token of the client, null if it did not ask for one, see {@link NameReservations}
+     */
+    String getClaim() {
+        return this.claim;
+    }
+
+    /**
+     * @param claim claim token the client got or claimed
+     */
+    void setClaim(String claim) {
+        this.claim = claim;
+    }
+
+    /**
+     * @return ids of the lines the client sent lately, null if it never sent one
+     */
+    Deduplication.Window getMessageIds() {
+        return this.messageIds;
+    }
+
+    /**
+     * @param messageIds window of the client, e.g. the one of its last connection
+     */
+    void setMessageIds(Deduplication.Window messageIds) {
+        this.messageIds = messageIds;
+    }
+
+    /**
+     * Switches to reliable mode. The answer is written at once, the messages of the window which the client
+     * did not receive yet are written by the writer Thread before anything queued later.
+     *
+     * @param window       window of the client
+     * @param lastSequence highest sequence number the client received on an earlier connection
+     * @param answer       {@link MessageProtocol.Commands#RELIABLE} answer with the token
+     * @throws IOException if the answer could not be sent
+     */
+    void resume(ReliableWindow window, long lastSequence, String answer) throws IOException {
+        this.out.writeLine(answer);
+        this.reliable = window;
+        this.resend.addAll(window.resume(lastSequence));
+        if (!this.listening) {
+            this.releasePending();
+            return;
+        }
+        this.schedule();
+    }
+
+    /**
+     * @return number of frames waiting for the writer Thread
+     */
+    int getQueueDepth() {
+        return this.queued.get();
+    }
+
+    /**
+     * @return bytes of the frames waiting for the writer Thread
+     */
+    long getQueuedBytes() {
+        return this.queuedBytes.get();
+    }
+
+    /**
+     * @return milliseconds the oldest message the client did not get yet is waiting, 0 if nothing waits
+     */
+    long getLagMillis() {
+        long since = this.writingSince;
+        if (since == 0) {
+            FrameBuffer oldest = this.pending.peek();
+            if (oldest == null)
+                return 0;
+            since = oldest.created();
+        }
+        return Math.max(0, (System.nanoTime() - since) / 1_000_000);
+    }
+
+    /**
+     * @return true while the client only gets the latest messages, see {@link SlowConsumers}
+     */
+    boolean isDegraded() {
+        return this.degraded;
+    }
+
+    /**
+     * Applies the {@link SlowConsumers} policy to a growing queue. Degrading only sets a flag for the writer.
+     * A disconnect runs on a writer Thread, because its {@link MessageProtocol.Commands#EXIT} may wait
+     * for a stuck socket and the broadcaster must not.
+     */
+    private void lagging() {
+        SlowConsumers policy = this.callback.getSlowConsumers();
+        long millis = this.getLagMillis();
+        long bytes = this.queuedBytes.get();
+        switch (policy.check(millis, bytes)) {
+            case DISCONNECT:
+                if (this.evicted.compareAndSet(false, true)) {
+                    policy.disconnected(millis, bytes);
+                    SimpleChat.serverLogger.log(WARNING, "Disconnecting slow client, lag " + millis + " ms, "
+                            + bytes + " bytes");
+                    try {
+                        this.callback.getWriterService().execute(this::shutdown);
+                    } catch (RejectedExecutionException e) {
+                        this.close();
+                    }
+                }
+                break;
+            case DEGRADED:
+                if (!this.degraded && this.reliable == null) {
+                    this.degraded = true;
+                    policy.degraded();
+                    SimpleChat.serverLogger.log(INFO, "Degrading slow client, lag " + millis + " ms, " + bytes + " bytes");
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Sending message through Socket OutputStream {@link #out}
+     *
+     * @param message MessageText for Client
+     */
+    void send(String message) {
+        this.send(FrameBuffer.wrap(LineWriter.encode(message)));
+    }
+
+    /**
+     * Queues an already encoded message for Socket OutputStream {@link #out}.
+     * The caller does not wait for the socket, a writer Thread of the server sends the queue.
+     * The queue holds its own reference to the frame until it was written.
+     *
+     * @param frame MessageText including the line terminator
+     */
+    void send(FrameBuffer frame) {
+        if (!this.listening)
+            return;
+        this.pending.add(frame.retain());
+        this.queuedBytes.addAndGet(frame.length());
+        if (this.queued.incrementAndGet() > 1)
+            this.lagging();
+        if (!this.listening) {
+            // closed in the meantime, nobody else empties the queue any more
+            this.releasePending();
+            return;
+        }
+        this.schedule();
+    }
+
+    /**
+     * Queues a file for this client, the writer Thread sends one chunk per flush
+     *
+     * @param file cursor of this client, released when it is sent or the client is gone
+     */
+    void send(FileTransfer.Cursor file) {
+        if (!this.listening) {
+            file.release();
+            return;
+        }
+        this.files.add(file);
+        if (!this.listening) {
+            this.releasePending();
+            return;
+        }
+        this.schedule();
+    }
+
+    private void schedule() {
+        if (this.flushing.compareAndSet(false, true)) {
+            try {
+                this.callback.getWriterService().execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                this.flushing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes all queued messages and flushes them together.
+     * Commands of the control lane are written first and again before every frame, as soon as one is queued.
+     * Text messages of a reliable client are numbered, messages to send again go first.
+     * Behind them one chunk of the first queued file is written, the file goes to the end of the queue,
+     * so files share the connection in turns and a message waits for at most one chunk.
+     * A degraded client skips older text messages down to the latest ones and gets a
+     * {@link MessageProtocol.Commands#LAG} line instead, it is back to normal once its lag is below the limits.
+     * If a message or a file is left, the next flush is scheduled.
+     */
+    private void flush() {
+        SlowConsumers policy = this.callback.getSlowConsumers();
+        long bytes = this.queuedBytes.get();
+        if (this.degraded && policy.check(this.getLagMillis(), bytes) == SlowConsumers.State.NORMAL)
+            this.degraded = false;
+        long skipped = 0;
+        // System.nanoTime() of the oldest frame written in this flush
+        long oldest = 0;
+        try {
+            this.control.writeTo(this.out);
+            ReliableWindow.Entry entry;
+            while (this.listening && (entry = this.resend.poll()) != null) {
+                try {
+                    this.control.writeTo(this.out);
+                    this.out.write(this.reliable.resent(entry), entry.frame.view());
+                } finally {
+                    entry.frame.release();
+                }
+            }
+            FrameBuffer frame;
+            while (this.listening && (frame = this.poll()) != null) {
+                try {
+                    ReliableWindow window = this.reliable;
+                    if (this.degraded && window == null && !frame.isCommand()
+                            && this.queued.get() >= policy.getKeep()) {
+                        skipped++;
+                        continue;
+                    }
+                    skipped = this.skipped(skipped, policy);
+                    this.control.writeTo(this.out);
+                    this.writingSince = frame.created();
+                    if (window != null && !frame.isCommand())
+                        this.out.write(window.sent(frame), frame.view());
+                    else
+                        this.out.write(frame.view());
+                    if (oldest == 0)
+                        oldest = frame.created();
+                } finally {
+                    this.writingSince = 0;
+                    frame.release();
+                }
+            }
+            skipped = this.skipped(skipped, policy);
+            FileTransfer.Cursor file = this.listening ? this.files.poll() : null;
+            if (file != null) {
+                try {
+                    if (!file.send(this.out, this.zeroCopyChannel()))
+                        this.files.add(file);
+                } catch (IOException e) {
+                    file.release();
+                    throw e;
+                }
+            }
+            this.control.writeTo(this.out);
+            this.out.flush();
+            if (oldest != 0)
+                policy.sample((System.nanoTime() - oldest) / 1_000_000, bytes);
+        } catch (Exception e) {
+            SimpleChat.serverLogger.log(SEVERE, "Exception while sending: " + e.getMessage());
+            this.flushing.set(false);
+            this.shutdown();
+            return;
+        }
+        synchronized (this) {
+            this.flushing.set(false);
+            this.notifyAll();
+        }
+        if (this.control.hasPending() || this.listening
+                && (!this.pending.isEmpty() || !this.resend.isEmpty() || !this.files.isEmpty()))
+            this.schedule();
+    }
+
+    /**
+     * Tells a degraded client how many messages it missed
+     *
+     * @param skipped messages skipped since the last {@link MessageProtocol.Commands#LAG} line
+     * @return 0, the count to go on with
+     */
+    private long skipped(long skipped, SlowConsumers policy) throws IOException {
+        if (skipped > 0) {
+            policy.dropped(skipped);
+            this.out.writeLine(MessageProtocol.getMessage(LAG) + " " + skipped);
+        }
+        return 0;
+    }
+
+    /**
+     * @return channel of the socket if the chunks can go there without TLS or deflate in between, otherwise null
+     */
+    private WritableByteChannel zeroCopyChannel() {
+        return this.tls == null && !this.out.isDeflating() ? this.client.getChannel() : null;
+    }
+
+    /**
+     * @param deadline System.currentTimeMillis() until which we wait
+     * @return true if all queued messages were sent
+     */
+    boolean awaitFlushed(long deadline) {
+        synchronized (this) {
+            long remaining;
+            while ((!this.pending.isEmpty() || !this.resend.isEmpty() || this.control.hasPending() || this.flushing.get())
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return this.pending.isEmpty() && this.resend.isEmpty() && !this.control.hasPending() && !this.flushing.get();
+        }
+    }
+
+    /**
+     * Removes all queued messages, except commands
+     *
+     * @return MessageTexts which were not sent yet
+     */
+    List<String> takePending() {
+        List<String> messages = new ArrayList<>();
+        FrameBuffer frame;
+        while ((frame = this.poll()) != null) {
+            String message = frame.text();
+            frame.release();
+            if (!message.startsWith("!"))
+                messages.add(message);
+        }
+        return messages;
+    }
+}
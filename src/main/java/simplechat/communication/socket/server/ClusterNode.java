@@ -0,0 +1,610 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.server.SimpleChat;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Connects several SimpleChatServer processes to one chat space.
+ * <br>
+ * Every node listens on a cluster port and dials the configured peers, so the nodes form a full mesh.
+ * Nodes exchange a line based protocol, see {@link Command}. A node announces the chatNames of its own
+ * clients, so the user list of every node contains all users of the cluster and names stay unique.
+ * Broadcasts are sent to every peer once, private messages only to the node owning the receiver.
+ * <br>
+ * If two nodes hand out the same name at the same time, the node with the smaller id keeps it
+ * and the other one renames its client.
+ * <br>
+ * The cluster port is bound to the loopback address unless another address is configured. A link is only used
+ * after both nodes proved they know the shared secret, see {@link Command#AUTH}. Lines to another node are queued
+ * per link and written by a writer Thread, so neither a client nor the reader of another link waits for a node
+ * which does not read. A link whose queue gets too long is closed, it is dialed again later.
+ */
+public class ClusterNode {
+
+    /**
+     * Commands between cluster nodes, one per line followed by its parameter
+     */
+    enum Command {
+        /**
+         * First line on every link, "HELLO nodeId nonce"
+         */
+        HELLO,
+        /**
+         * Proof of the shared secret, "AUTH hmac" with the HMAC-SHA256 of "nonce nodeId", where nonce is the one
+         * of the receiving node and nodeId the one of the sender. The dialing node proves first, the accepting node
+         * only answers a valid proof, so nobody learns a proof by connecting.
+         */
+        AUTH,
+        /**
+         * The sending node owns this chatName, "JOIN chatName"
+         */
+        JOIN,
+        /**
+         * The sending node does not own this chatName any more, "LEAVE chatName"
+         */
+        LEAVE,
+        /**
+         * Message for all clients of the receiving node, "BROADCAST [chatName] text"
+         */
+        BROADCAST,
+        /**
+         * Message for one client of the receiving node, "PRIVATE chatName\tmessage"
+         */
+        PRIVATE,
+        /**
+         * Disconnect a client of the receiving node, "KICK chatName"
+         */
+        KICK
+    }
+
+    private static final long RECONNECT_INTERVAL = 1000;
+    // until the link is authenticated, so silent connections do not keep a Thread
+    private static final int HANDSHAKE_TIMEOUT = 10_000;
+    // lines queued for one node before its link is given up
+    private static final int MAX_QUEUED = 100_000;
+    private static final String MAC = "HmacSHA256";
+
+    private final String nodeId;
+    private Integer port;
+    private InetAddress bindAddress = InetAddress.getLoopbackAddress();
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<InetSocketAddress> peers = new CopyOnWriteArrayList<>();
+    private ExecutorService writers;
+
+    private SimpleChatServer server;
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+
+    private final Map<String, ClusterLink> links = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, String> peerIds = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, ClusterLink> dialing = new ConcurrentHashMap<>();
+    private final Map<String, String> owners = new ConcurrentHashMap<>();
+
+    /**
+     * @param nodeId unique id of this node, decides which node keeps a name on conflicts
+     * @param port   port for the links of the other nodes, 0 for any free port
+     * @param peers  addresses of the cluster ports of the other nodes
+     * @param secret shared secret of all nodes of the cluster
+     */
+    public ClusterNode(String nodeId, Integer port, List<InetSocketAddress> peers, String secret) {
+        if (secret == null || secret.isEmpty())
+            throw new IllegalArgumentException("cluster secret missing");
+        this.nodeId = nodeId;
+        this.port = port;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        if (peers != null)
+            this.peers.addAll(peers);
+    }
+
+    /**
+     * @param bindAddress address of the interface the cluster port listens on, null for the loopback address
+     */
+    public void setBindAddress(InetAddress bindAddress) {
+        this.bindAddress = bindAddress != null ? bindAddress : InetAddress.getLoopbackAddress();
+    }
+
+    /**
+     * @param peers comma separated list like "host1:5051,host2:5051"
+     * @return parsed addresses
+     */
+    public static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new CopyOnWriteArrayList<>();
+        if (peers == null)
+            return addresses;
+        for (String peer : peers.split(",")) {
+            String[] hostPort = peer.trim().split(":");
+            addresses.add(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+        }
+        return addresses;
+    }
+
+    /**
+     * @return id of this node
+     */
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * @return port of the cluster ServerSocket or -1 if not started
+     */
+    public int getLocalPort() {
+        return this.serverSocket != null ? this.serverSocket.getLocalPort() : -1;
+    }
+
+    /**
+     * @return ids of the nodes currently linked to this node
+     */
+    public String[] getLinkedNodes() {
+        return this.links.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Opens the cluster port and starts the Threads for accepting and dialing links.
+     *
+     * @param server SimpleChatServer of this node
+     * @throws IOException if the cluster port can not be opened
+     */
+    void start(SimpleChatServer server) throws IOException {
+        this.server = server;
+        this.serverSocket = new ServerSocket(this.port, 50, this.bindAddress);
+        this.writers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "ClusterNode-" + this.nodeId + "-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.running = true;
+        Thread acceptor = new Thread(this::accept, "ClusterNode-" + this.nodeId + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread dialer = new Thread(this::dial, "ClusterNode-" + this.nodeId + "-dialer");
+        dialer.setDaemon(true);
+        dialer.start();
+        SimpleChat.serverLogger.log(INFO, "Cluster node " + this.nodeId + " on " + this.bindAddress.getHostAddress()
+                + ":" + this.getLocalPort());
+    }
+
+    /**
+     * Adds a peer at runtime, it will be dialed with the next attempt.
+     *
+     * @param peer address of the cluster port of another node
+     */
+    public void addPeer(InetSocketAddress peer) {
+        this.peers.add(peer);
+    }
+
+    private void accept() {
+        while (this.running) {
+            try {
+                Socket socket = this.serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                this.startLink(new ClusterLink(socket, false));
+            } catch (IOException e) {
+                if (this.running)
+                    SimpleChat.serverLogger.log(WARNING, "Error on accept cluster link: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Dials every peer which is not linked, until the node is shut down.
+     */
+    private void dial() {
+        while (this.running) {
+            for (InetSocketAddress peer : this.peers) {
+                String id = this.peerIds.get(peer);
+                if ((id != null && this.links.containsKey(id)) || this.dialing.containsKey(peer))
+                    continue;
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(peer, (int) RECONNECT_INTERVAL);
+                    socket.setTcpNoDelay(true);
+                    ClusterLink link = new ClusterLink(socket, true);
+                    link.peer = peer;
+                    this.dialing.put(peer, link);
+                    this.startLink(link);
+                } catch (IOException e) {
+                    SimpleChat.serverLogger.log(FINE, "Cluster peer " + peer + " not reachable: " + e.getMessage());
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void startLink(ClusterLink link) throws IOException {
+        link.send(Command.HELLO, this.nodeId + " " + link.nonce);
+        Thread reader = new Thread(link, "ClusterNode-" + this.nodeId + "-link");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Called after the authentication of a link. If there is already a link to that node (both nodes dialed each
+     * other), both sides keep the link dialed by the node with the smaller id.
+     *
+     * @param link link which was authenticated
+     * @return true if the link is used, false if it was closed as duplicate
+     */
+    private boolean established(ClusterLink link) {
+        ClusterLink existing;
+        boolean used;
+        synchronized (this) {
+            existing = this.links.get(link.remoteId);
+            String preferredDialer = this.nodeId.compareTo(link.remoteId) < 0 ? this.nodeId : link.remoteId;
+            String dialer = link.outbound ? this.nodeId : link.remoteId;
+            used = existing == null || dialer.equals(preferredDialer);
+            if (used) {
+                this.links.put(link.remoteId, link);
+                // only queued, the JOINs of new clients are queued behind them
+                for (String chatName : this.server.getLocalClients()) {
+                    link.send(Command.JOIN, chatName);
+                }
+            }
+        }
+        if (!used) {
+            link.close();
+            return false;
+        }
+        if (existing != null)
+            existing.close();
+        SimpleChat.serverLogger.log(INFO, "Cluster link to " + link.remoteId + " established");
+        return true;
+    }
+
+    /**
+     * @param nonce nonce of the receiving node
+     * @param id    id of the proving node
+     * @return HMAC of nonce and id with the shared secret
+     */
+    private String proof(String nonce, String id) {
+        try {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(new SecretKeySpec(this.secret, MAC));
+            return Base64.getEncoder().encodeToString(mac.doFinal((nonce + " " + id).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC + " not available", e);
+        }
+    }
+
+    /**
+     * Called when a link ends. If it was the active link of its node, all names of that node are removed.
+     *
+     * @param link closed link
+     */
+    private synchronized void closed(ClusterLink link) {
+        if (link.peer != null)
+            this.dialing.remove(link.peer, link);
+        if (link.remoteId == null || !this.links.remove(link.remoteId, link))
+            return;
+        SimpleChat.serverLogger.log(INFO, "Cluster link to " + link.remoteId + " lost");
+        for (Map.Entry<String, String> owner : this.owners.entrySet()) {
+            if (owner.getValue().equals(link.remoteId) && this.owners.remove(owner.getKey(), link.remoteId)) {
+                this.server.remoteLeft(owner.getKey());
+            }
+        }
+    }
+
+    /**
+     * A node announced a name. If one of our clients has the same name and the other node has the smaller id,
+     * our client is renamed. If we have the smaller id the other node will rename its client after our JOIN.
+     */
+    private synchronized void join(String chatName, String remoteId) {
+        if (this.server.isLocalClient(chatName)) {
+            if (remoteId.compareTo(this.nodeId) < 0) {
+                this.owners.put(chatName, remoteId);
+                this.server.yieldName(chatName);
+            }
+            return;
+        }
+        String owner = this.owners.get(chatName);
+        if (owner == null) {
+            this.owners.put(chatName, remoteId);
+            this.server.remoteJoined(chatName);
+        } else if (remoteId.compareTo(owner) < 0) {
+            this.owners.put(chatName, remoteId);
+        }
+    }
+
+    private synchronized void leave(String chatName, String remoteId) {
+        if (this.owners.remove(chatName, remoteId)) {
+            this.server.remoteLeft(chatName);
+        }
+    }
+
+    /**
+     * @param chatName name of a client
+     * @return id of the node owning the name, null if it is not a remote client
+     */
+    String ownerOf(String chatName) {
+        return this.owners.get(chatName);
+    }
+
+    /**
+     * Announces a new local name to all nodes. If a node with a smaller id announced the same name
+     * while our client was registering, our client gets another name instead.
+     *
+     * @param chatName name of a local client
+     */
+    synchronized void joined(String chatName) {
+        String owner = this.owners.get(chatName);
+        if (owner != null) {
+            if (owner.compareTo(this.nodeId) < 0) {
+                this.server.yieldName(chatName);
+                return;
+            }
+            this.owners.remove(chatName);
+        }
+        this.sendAll(Command.JOIN, chatName);
+    }
+
+    /**
+     * Announces the removal of a local name to all nodes
+     *
+     * @param chatName former name of a local client
+     */
+    void left(String chatName) {
+        this.sendAll(Command.LEAVE, chatName);
+    }
+
+    /**
+     * @param message message with sender for the clients of all other nodes
+     */
+    void broadcast(String message) {
+        this.sendAll(Command.BROADCAST, message);
+    }
+
+    /**
+     * @param message  message for one client
+     * @param receiver chatName of a client on another node
+     * @return false if no node owns the name
+     */
+    boolean sendPrivate(String message, String receiver) {
+        ClusterLink link = this.linkOf(receiver);
+        if (link == null)
+            return false;
+        link.send(Command.PRIVATE, receiver + "\t" + message);
+        return true;
+    }
+
+    /**
+     * @param chatName client on another node which should be disconnected
+     * @return false if no node owns the name
+     */
+    boolean kick(String chatName) {
+        ClusterLink link = this.linkOf(chatName);
+        if (link == null)
+            return false;
+        link.send(Command.KICK, chatName);
+        return true;
+    }
+
+    private ClusterLink linkOf(String chatName) {
+        String owner = this.owners.get(chatName);
+        return owner != null ? this.links.get(owner) : null;
+    }
+
+    private void sendAll(Command command, String parameter) {
+        for (ClusterLink link : this.links.values()) {
+            link.send(command, parameter);
+        }
+    }
+
+    /**
+     * Closes the cluster port and all links
+     */
+    void shutdown() {
+        this.running = false;
+        try {
+            if (this.serverSocket != null)
+                this.serverSocket.close();
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(WARNING, "Error while closing cluster port: " + e.getMessage());
+        }
+        for (ClusterLink link : this.links.values()) {
+            link.close();
+        }
+        for (ClusterLink link : this.dialing.values()) {
+            link.close();
+        }
+        if (this.writers != null)
+            this.writers.shutdownNow();
+    }
+
+    /**
+     * Connection to one other node, reading in its own Thread, writing its queue on a writer Thread
+     */
+    private class ClusterLink implements Runnable {
+        private final Socket socket;
+        private final boolean outbound;
+        private final LineWriter out;
+        private final LineReader in;
+        private final String nonce;
+        private InetSocketAddress peer = null;
+        private String remoteId = null;
+        private String remoteNonce = null;
+        private boolean authenticated = false;
+
+        private volatile boolean open = true;
+        private final Queue<String> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+        ClusterLink(Socket socket, boolean outbound) throws IOException {
+            this.socket = socket;
+            this.outbound = outbound;
+            this.out = new LineWriter(socket.getOutputStream());
+            this.in = new LineReader(socket.getInputStream());
+            byte[] bytes = new byte[16];
+            random.nextBytes(bytes);
+            this.nonce = Base64.getEncoder().encodeToString(bytes);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = this.in.readLine()) != null) {
+                    String[] split = line.split(" ", 2);
+                    Command command;
+                    try {
+                        command = Command.valueOf(split[0]);
+                    } catch (IllegalArgumentException e) {
+                        SimpleChat.serverLogger.log(WARNING, "Unknown cluster command: " + line);
+                        continue;
+                    }
+                    String parameter = split.length > 1 ? split[1] : "";
+                    if (!this.authenticated && command != Command.HELLO && command != Command.AUTH) {
+                        SimpleChat.serverLogger.log(WARNING, "Cluster link sent " + command + " before AUTH");
+                        break;
+                    }
+                    if (!this.handle(command, parameter))
+                        break;
+                }
+            } catch (IOException e) {
+                SimpleChat.serverLogger.log(INFO, "Cluster link closed: " + e.getMessage());
+            } finally {
+                this.close();
+                ClusterNode.this.closed(this);
+            }
+        }
+
+        private boolean handle(Command command, String parameter) {
+            switch (command) {
+                case HELLO:
+                    String[] idNonce = parameter.split(" ");
+                    if (this.remoteId != null || idNonce.length != 2 || idNonce[0].equals(nodeId)) {
+                        SimpleChat.serverLogger.log(WARNING, "Malformed cluster HELLO: " + parameter);
+                        return false;
+                    }
+                    this.remoteId = idNonce[0];
+                    this.remoteNonce = idNonce[1];
+                    if (this.outbound)
+                        this.send(Command.AUTH, proof(this.remoteNonce, nodeId));
+                    break;
+                case AUTH:
+                    byte[] expected = this.remoteId != null ? proof(this.nonce, this.remoteId).getBytes(StandardCharsets.UTF_8) : null;
+                    if (expected == null || this.authenticated
+                            || !MessageDigest.isEqual(expected, parameter.getBytes(StandardCharsets.UTF_8))) {
+                        SimpleChat.serverLogger.log(WARNING, "Cluster node " + this.remoteId + " failed authentication");
+                        return false;
+                    }
+                    this.authenticated = true;
+                    try {
+                        this.socket.setSoTimeout(0);
+                    } catch (IOException e) {
+                        return false;
+                    }
+                    if (!this.outbound)
+                        this.send(Command.AUTH, proof(this.remoteNonce, nodeId));
+                    if (this.peer != null)
+                        peerIds.put(this.peer, this.remoteId);
+                    return established(this);
+                case JOIN:
+                    join(parameter, this.remoteId);
+                    break;
+                case LEAVE:
+                    leave(parameter, this.remoteId);
+                    break;
+                case BROADCAST:
+                    server.deliver(parameter);
+                    break;
+                case PRIVATE:
+                    String[] receiverMessage = parameter.split("\t", 2);
+                    if (receiverMessage.length == 2)
+                        server.deliver(receiverMessage[1], receiverMessage[0]);
+                    break;
+                case KICK:
+                    server.removeClient(parameter);
+                    break;
+            }
+            return true;
+        }
+
+        /**
+         * Queues a line for the node, the caller never waits for the socket
+         */
+        void send(Command command, String parameter) {
+            if (!this.open)
+                return;
+            if (this.queued.incrementAndGet() > MAX_QUEUED) {
+                SimpleChat.serverLogger.log(WARNING, "Cluster node " + this.remoteId + " does not read, link closed");
+                this.close();
+                return;
+            }
+            this.outbox.add(command + " " + parameter);
+            this.schedule();
+        }
+
+        private void schedule() {
+            if (this.flushing.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this::flush);
+                } catch (RejectedExecutionException e) {
+                    this.flushing.set(false);
+                }
+            }
+        }
+
+        private void flush() {
+            try {
+                String line;
+                while (this.open && (line = this.outbox.poll()) != null) {
+                    this.queued.decrementAndGet();
+                    this.out.write(LineWriter.encode(line));
+                }
+                this.out.flush();
+            } catch (IOException e) {
+                SimpleChat.serverLogger.log(WARNING, "Error while sending to cluster node " + this.remoteId
+                        + ": " + e.getMessage());
+                this.close();
+            } finally {
+                this.flushing.set(false);
+            }
+            if (this.open && !this.outbox.isEmpty())
+                this.schedule();
+        }
+
+        void close() {
+            this.open = false;
+            this.outbox.clear();
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                SimpleChat.serverLogger.log(WARNING, "Error while closing cluster link: " + e.getMessage());
+            }
+        }
+    }
+}
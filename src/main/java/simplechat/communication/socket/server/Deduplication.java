@@ -0,0 +1,251 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops chat lines a client sent twice, see {@link MessageProtocol.Commands#ID}.
+ * <br>
+ * Every client sending ids has a {@link Window} of the ids it sent lately, in two generations: new ids go into
+ * the current one, when it is half the capacity or half the time to live old, it becomes the previous one and
+ * the old previous one is forgotten. So a window holds at most capacity ids, an id is remembered for at least
+ * half the time to live or half the capacity of later ids and never longer than the time to live, and a lookup
+ * is exact, without false positives.
+ * <br>
+ * A client with a claim token gets its window back after a reconnect, so a line it sends again because the
+ * connection broke before the answer is dropped as well. Parked windows expire after the time to live.
+ */
+public class Deduplication {
+
+    /**
+     * Milliseconds an id is remembered at most, if nothing else is configured
+     */
+    public static final long DEFAULT_TTL = 2 * 60 * 1000;
+
+    /**
+     * Ids remembered per client at most, if nothing else is configured
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Longest id accepted, in bytes
+     */
+    public static final int MAX_ID = 64;
+
+    // estimated heap bytes of one HashSet entry with its String, without the characters
+    private static final int ENTRY_BYTES = 96;
+
+    private final long ttl;
+    private final int capacity;
+    private final Map<String, Window> parked = new HashMap<>();
+    // parked windows in the order they expire, the time to live is the same for all
+    private final ArrayDeque<Parking> expiry = new ArrayDeque<>();
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Ids of one client, used by its reader Thread
+     */
+    final class Window {
+        private Set<String> current = new HashSet<>();
+        private Set<String> previous = new HashSet<>();
+        private long currentBytes = 0;
+        private long previousBytes = 0;
+        private long rotated = System.currentTimeMillis();
+        private long parkedSince = 0;
+
+        /**
+         * Rotates by the time first, so an id older than the time to live is never found
+         *
+         * @param id  id of a chat line
+         * @param now System.currentTimeMillis()
+         * @return true if the id was not seen lately
+         */
+        synchronized boolean add(String id, long now) {
+            if (now - this.rotated >= ttl) {
+                this.rotate(now);
+                this.rotate(now);
+            } else if (now - this.rotated >= ttl / 2) {
+                this.rotate(now);
+            }
+            if (this.current.contains(id) || this.previous.contains(id))
+                return false;
+            if (this.current.size() >= Math.max(1, capacity / 2))
+                this.rotate(now);
+            this.current.add(id);
+            long size = ENTRY_BYTES + 2L * id.length();
+            this.currentBytes += size;
+            ids.incrementAndGet();
+            bytes.addAndGet(size);
+            return true;
+        }
+
+        private void rotate(long now) {
+            ids.addAndGet(-this.previous.size());
+            bytes.addAndGet(-this.previousBytes);
+            this.previous = this.current;
+            this.previousBytes = this.currentBytes;
+            this.current = new HashSet<>();
+            this.currentBytes = 0;
+            this.rotated = now;
+        }
+
+        synchronized void clear() {
+            this.rotate(System.currentTimeMillis());
+            this.rotate(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * A window with the time it was parked, a window taken or parked again meanwhile has another one
+     */
+    private static final class Parking {
+        final String token;
+        final Window window;
+        final long parkedSince;
+
+        Parking(String token, Window window) {
+            this.token = token;
+            this.window = window;
+            this.parkedSince = window.parkedSince;
+        }
+    }
+
+    /**
+     * Deduplication with the default limits
+     */
+    public Deduplication() {
+        this(DEFAULT_TTL, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param ttl      milliseconds an id is remembered at most
+     * @param capacity ids remembered per client at most
+     */
+    public Deduplication(long ttl, int capacity) {
+        this.ttl = ttl;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param token claim token of the client or null
+     * @return window parked for the token, or a new one
+     */
+    synchronized Window take(String token) {
+        this.expire(System.currentTimeMillis());
+        Window window = token != null ? this.parked.remove(token) : null;
+        if (window == null)
+            return new Window();
+        window.parkedSince = 0;
+        return window;
+    }
+
+    /**
+     * Keeps the window of a closed connection for a reconnect with the claim token
+     *
+     * @param token  claim token of the client, null forgets the window
+     * @param window window of the client, may be null
+     */
+    synchronized void park(String token, Window window) {
+        if (window == null)
+            return;
+        long now = System.currentTimeMillis();
+        if (token == null) {
+            window.clear();
+        } else {
+            window.parkedSince = now;
+            Window previous = this.parked.put(token, window);
+            if (previous != null && previous != window)
+                previous.clear();
+            this.expiry.add(new Parking(token, window));
+        }
+        this.expire(now);
+    }
+
+    private void expire(long now) {
+        Parking head;
+        while ((head = this.expiry.peek()) != null && head.parkedSince <= now - this.ttl) {
+            this.expiry.poll();
+            if (this.parked.get(head.token) == head.window && head.window.parkedSince == head.parkedSince) {
+                this.parked.remove(head.token);
+                head.window.clear();
+            }
+        }
+    }
+
+    /**
+     * @param window window of the sending client
+     * @param id     id of the chat line
+     * @return true if the line is sent the first time and goes to the chat
+     */
+    boolean accept(Window window, String id) {
+        this.checked.incrementAndGet();
+        if (window.add(id, System.currentTimeMillis()))
+            return true;
+        this.duplicates.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return number of lines with an id
+     */
+    public long getChecked() {
+        return this.checked.get();
+    }
+
+    /**
+     * @return number of lines dropped as duplicates
+     */
+    public long getDuplicates() {
+        return this.duplicates.get();
+    }
+
+    /**
+     * @return dropped duplicates per line with an id
+     */
+    public double getHitRate() {
+        long checked = this.checked.get();
+        return checked == 0 ? 0 : (double) this.duplicates.get() / checked;
+    }
+
+    /**
+     * @return ids remembered in all windows
+     */
+    public long getIds() {
+        return this.ids.get();
+    }
+
+    /**
+     * @return estimated heap bytes of the remembered ids
+     */
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * @return windows waiting for their client to come back
+     */
+    public synchronized int getParked() {
+        return this.parked.size();
+    }
+
+    /**
+     * Forgets all parked windows
+     */
+    public synchronized void shutdown() {
+        for (Window window : this.parked.values()) {
+            window.clear();
+        }
+        this.parked.clear();
+        this.expiry.clear();
+    }
+}
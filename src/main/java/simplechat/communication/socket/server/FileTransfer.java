@@ -0,0 +1,270 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.server.SimpleChat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.logging.Level.WARNING;
+import static simplechat.communication.MessageProtocol.Commands.CHUNK;
+import static simplechat.communication.MessageProtocol.Commands.FILE;
+
+/**
+ * One file sent by a client, see {@link MessageProtocol.Commands#FILE}.
+ * <br>
+ * The upload is streamed into a temp file chunk by chunk, only the read buffer of the connection is in memory.
+ * Every receiver gets a {@link Cursor}, the writer Thread of the receiver sends one chunk per flush, so its
+ * chat messages are not stuck behind the whole file. On a plain channel the chunks go with
+ * {@link FileChannel#transferTo} from the page cache to the socket without being copied into the JVM.
+ * <br>
+ * Reference counted like a {@link FrameBuffer}: the upload holds the first reference, every cursor one more.
+ * The temp file is deleted with the last one.
+ */
+final class FileTransfer {
+
+    /**
+     * Largest file accepted if nothing else is configured
+     */
+    static final long DEFAULT_LIMIT = 64L * 1024 * 1024;
+
+    private static final AtomicLong ids = new AtomicLong();
+    // writer Threads copy through it if there is no channel, so memory does not grow with the receivers
+    private static final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8192));
+
+    private final String uploadId;
+    private final String id = Long.toString(ids.incrementAndGet());
+    private final long size;
+    private final String targets;
+    private final String name;
+    private final Path file;
+    private final FileChannel channel;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private long received = 0;
+    private IOException failure = null;
+    private byte[] offer;
+    private byte[] end;
+
+    // discards the rest of a chunk if the disk failed, so the connection stays in sync
+    private final WritableByteChannel sink = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            if (FileTransfer.this.failure == null) {
+                try {
+                    while (src.hasRemaining()) {
+                        FileTransfer.this.channel.write(src);
+                    }
+                } catch (IOException e) {
+                    FileTransfer.this.failure = e;
+                }
+            }
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * @param uploadId id the sender chose
+     * @param size     announced size in bytes
+     * @param targets  comma separated chatNames, null for everybody
+     * @param name     file name for the receivers
+     * @throws IOException if the temp file could not be created
+     */
+    FileTransfer(String uploadId, long size, String targets, String name) throws IOException {
+        this.uploadId = uploadId;
+        this.size = size;
+        this.targets = targets;
+        this.name = name;
+        this.file = Files.createTempFile("simplechat-", ".upload");
+        try {
+            this.channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            Files.deleteIfExists(this.file);
+            throw e;
+        }
+    }
+
+    /**
+     * @return id the sender chose
+     */
+    String getUploadId() {
+        return this.uploadId;
+    }
+
+    /**
+     * @return comma separated chatNames, null for everybody
+     */
+    String getTargets() {
+        return this.targets;
+    }
+
+    /**
+     * @return file name for the receivers
+     */
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return size in bytes
+     */
+    long getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return bytes the upload is still missing
+     */
+    long getRemaining() {
+        return this.size - this.received;
+    }
+
+    /**
+     * @return error of the temp file, null if the upload could be stored
+     */
+    IOException getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * Stores a chunk of the upload, called by the reader Thread of the sender
+     *
+     * @param in     reader positioned behind the {@link MessageProtocol.Commands#CHUNK} line
+     * @param length number of bytes, at most {@link #getRemaining()}
+     * @throws IOException if the connection fails, errors of the temp file are kept in {@link #getFailure()}
+     */
+    void receive(LineReader in, int length) throws IOException {
+        in.readBytes(this.sink, length);
+        this.received += length;
+    }
+
+    /**
+     * Ends the upload, afterwards cursors can be created
+     *
+     * @param sender chatName of the sender
+     */
+    void complete(String sender) {
+        this.offer = LineWriter.encode(MessageProtocol.getMessage(FILE) + " " + MessageProtocol.OFFER + " " + this.id
+                + " " + this.size + " " + MessageProtocol.textMessage(this.name, sender));
+        this.end = LineWriter.encode(MessageProtocol.getMessage(FILE) + " " + MessageProtocol.END + " " + this.id);
+    }
+
+    /**
+     * @return new cursor for one receiver, it holds a reference until it is done or released
+     */
+    Cursor cursor() {
+        this.references.incrementAndGet();
+        return new Cursor();
+    }
+
+    /**
+     * Gives up one reference, the last one deletes the temp file
+     */
+    void release() {
+        if (this.references.decrementAndGet() != 0)
+            return;
+        try {
+            this.channel.close();
+            Files.deleteIfExists(this.file);
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(WARNING, "Could not delete " + this.file + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " (" + this.size + " bytes)";
+    }
+
+    /**
+     * Position of one receiver in the file
+     */
+    final class Cursor {
+        private long position = -1;
+        private boolean released = false;
+
+        /**
+         * Writes the next step without flushing: the offer and the first chunk, a chunk, or the last chunk and the end
+         *
+         * @param out     writer of the receiver
+         * @param channel channel of the receiver for zero-copy, null if the chunks have to go through the writer
+         * @return true if the receiver has the whole file, the cursor is released then
+         * @throws IOException if writing fails
+         */
+        boolean send(LineWriter out, WritableByteChannel channel) throws IOException {
+            if (this.position < 0) {
+                out.write(FileTransfer.this.offer);
+                this.position = 0;
+            }
+            if (this.position < FileTransfer.this.size) {
+                int length = (int) Math.min(MessageProtocol.MAX_CHUNK, FileTransfer.this.size - this.position);
+                out.write(LineWriter.encode(MessageProtocol.getMessage(CHUNK) + " " + FileTransfer.this.id + " " + length));
+                if (channel != null) {
+                    out.flush();
+                    long done = 0;
+                    while (done < length) {
+                        done += FileTransfer.this.channel.transferTo(this.position + done, length - done, channel);
+                    }
+                } else {
+                    this.copy(out, length);
+                }
+                this.position += length;
+            }
+            if (this.position < FileTransfer.this.size)
+                return false;
+            out.write(FileTransfer.this.end);
+            this.release();
+            return true;
+        }
+
+        private void copy(LineWriter out, int length) throws IOException {
+            ByteBuffer buffer = scratch.get();
+            long done = 0;
+            while (done < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - done));
+                int n = FileTransfer.this.channel.read(buffer, this.position + done);
+                if (n < 0)
+                    throw new EOFException("Temp file is shorter than the upload");
+                buffer.flip();
+                out.write(buffer);
+                done += n;
+            }
+        }
+
+        /**
+         * Gives up the reference of this receiver, e.g. if it disconnected
+         */
+        void release() {
+            if (this.released)
+                return;
+            this.released = true;
+            FileTransfer.this.release();
+        }
+
+        @Override
+        public String toString() {
+            return FileTransfer.this.toString();
+        }
+    }
+}
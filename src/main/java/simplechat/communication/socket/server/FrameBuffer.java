@@ -0,0 +1,148 @@
+package simplechat.communication.socket.server;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted frame (one line including its terminator) in a buffer of a {@link BufferPool}.
+ * <br>
+ * The creator holds the first reference. Everybody who keeps the frame beyond the current call, e.g. the
+ * send queue of a ClientWorker, calls {@link #retain()} and later {@link #release()}. When the last reference
+ * is released the buffer goes back to the pool. After filling, the content must not be changed any more,
+ * because several writer Threads read it at the same time through their own views.
+ */
+public final class FrameBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final Cleaner.Cleanable cleanable;
+    private final long created = System.nanoTime();
+
+    FrameBuffer(BufferPool pool, ByteBuffer buffer, boolean watch) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.cleanable = watch && pool != null ? pool.watch(this, buffer, this.references) : null;
+    }
+
+    /**
+     * Frame on a heap array which is not part of any pool, release does nothing
+     *
+     * @param frame encoded line including its terminator
+     * @return frame wrapping the array
+     */
+    public static FrameBuffer wrap(byte[] frame) {
+        return new FrameBuffer(null, ByteBuffer.wrap(frame), false);
+    }
+
+    /**
+     * @param bytes bytes to append while filling the frame
+     * @return this frame
+     */
+    public FrameBuffer put(byte[] bytes) {
+        this.buffer.put(bytes);
+        return this;
+    }
+
+    /**
+     * @param bytes bytes to append while filling the frame, the position of the source is not changed
+     * @return this frame
+     */
+    public FrameBuffer put(ByteBuffer bytes) {
+        this.buffer.put(bytes.duplicate());
+        return this;
+    }
+
+    /**
+     * @param b byte to append while filling the frame
+     * @return this frame
+     */
+    public FrameBuffer put(byte b) {
+        this.buffer.put(b);
+        return this;
+    }
+
+    /**
+     * Ends filling, afterwards the frame can be read
+     *
+     * @return this frame
+     */
+    public FrameBuffer flip() {
+        this.buffer.flip();
+        return this;
+    }
+
+    /**
+     * @return number of bytes in the frame
+     */
+    public int length() {
+        return this.buffer.limit();
+    }
+
+    /**
+     * @return System.nanoTime() when the frame was created, shared by all receivers of a broadcast
+     */
+    public long created() {
+        return this.created;
+    }
+
+    /**
+     * @return independent view on the content, the content must not be changed through it
+     */
+    public ByteBuffer view() {
+        return this.buffer.duplicate();
+    }
+
+    /**
+     * @return true if the line is a command of the {@link simplechat.communication.MessageProtocol}
+     */
+    public boolean isCommand() {
+        return this.buffer.limit() > 0 && this.buffer.get(0) == '!';
+    }
+
+    /**
+     * Decodes the frame, only for the UI, the message store and logs
+     *
+     * @return content without line terminator
+     */
+    public String text() {
+        ByteBuffer view = this.buffer.duplicate();
+        if (view.limit() > 0 && view.get(view.limit() - 1) == '\n')
+            view.limit(view.limit() - 1);
+        return StandardCharsets.UTF_8.decode(view).toString();
+    }
+
+    /**
+     * @return this frame with one more reference
+     * @throws IllegalStateException if the frame was already released
+     */
+    public FrameBuffer retain() {
+        int before;
+        do {
+            before = this.references.get();
+            if (before <= 0)
+                throw new IllegalStateException("FrameBuffer was already released");
+        } while (!this.references.compareAndSet(before, before + 1));
+        return this;
+    }
+
+    /**
+     * Gives up one reference, the last one returns the buffer to the pool
+     *
+     * @throws IllegalStateException if the frame was released more often than retained
+     */
+    public void release() {
+        int after = this.references.decrementAndGet();
+        if (after == 0) {
+            if (this.pool != null)
+                this.pool.recycle(this.buffer);
+            if (this.cleanable != null)
+                this.cleanable.clean();
+        } else if (after < 0) {
+            throw new IllegalStateException("FrameBuffer was released too often");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package simplechat.communication.socket.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non-negative values with power of two buckets.
+ * <br>
+ * Percentiles are only exact up to a factor of two, which is enough to see whether
+ * latencies are in the micro- or millisecond range, and recording costs two atomic increments.
+ */
+public class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        long max;
+        while (value > (max = this.max.get()) && !this.max.compareAndSet(max, value)) {
+            // another Thread raised the maximum in the meantime, try again
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return largest recorded value
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @return average of the recorded values, 0 if nothing was recorded
+     */
+    public long getMean() {
+        long count = this.count.get();
+        return count == 0 ? 0 : this.sum.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket containing the percentile, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = this.count.get();
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < 64; i++) {
+            seen += this.buckets.get(i);
+            if (seen >= rank)
+                return i == 0 ? 0 : Math.min((1L << i) - 1, this.getMax());
+        }
+        return this.getMax();
+    }
+
+    /**
+     * @return summary like "count=10 mean=3 p50=3 p99=7 max=6"
+     */
+    @Override
+    public String toString() {
+        return "count=" + this.getCount() + " mean=" + this.getMean() + " p50=" + this.getPercentile(50)
+                + " p99=" + this.getPercentile(99) + " max=" + this.getMax();
+    }
+}
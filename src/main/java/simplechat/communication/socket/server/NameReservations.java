@@ -0,0 +1,539 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+import simplechat.server.SimpleChat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Claim tokens of the chatNames, so a client gets its name back after a lost connection or a restart of the
+ * server, see {@link MessageProtocol.Commands#CLAIM}.
+ * <br>
+ * A client asks for a token for its current name. The token follows the client through renames, when the client
+ * leaves its name is reserved for the time to live: nobody else gets it, a connection with the token takes it
+ * back. The state is kept in a directory as a compact binary snapshot plus a journal of the changes since, both
+ * written only on connect, rename and leave of a client with a token. A restart reads the snapshot, replays the
+ * journal and reserves the names of the clients which were connected, then goes on with the journal, the next
+ * snapshot compacts it. A snapshot is written and forced to disk without holding the lock of the reservations,
+ * so connects, renames and the name checks of the registry do not wait for the disk.
+ */
+public class NameReservations {
+
+    /**
+     * Milliseconds the name of a disconnected client is reserved, if nothing else is configured
+     */
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    /**
+     * Milliseconds between two snapshots, if nothing else is configured
+     */
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 60 * 1000;
+
+    static final String SNAPSHOT = "names.snapshot";
+    static final String JOURNAL = "names.journal";
+    // records of the journal while a snapshot with them is written
+    static final String OLD_JOURNAL = "names.journal.old";
+    private static final int MAGIC = 0x53434e31;
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'R';
+    // a snapshot is written earlier if the journal grows beyond this
+    private static final int JOURNAL_LIMIT = 10000;
+
+    private final long ttl;
+    private final Path directory;
+    private final long snapshotInterval;
+    private final Map<String, Entry> byToken = new HashMap<>();
+    // read without the lock by isReserved, changed only with it
+    private final Map<String, Entry> byName = new ConcurrentHashMap<>();
+    // reserved entries in the order they expire, the time to live is the same for all
+    private final ArrayDeque<Reservation> expiry = new ArrayDeque<>();
+    private final SecureRandom random = new SecureRandom();
+    private DataOutputStream journal = null;
+    private int journalRecords = 0;
+    private ScheduledExecutorService snapshots = null;
+    // one snapshot at a time, taken before the lock of the reservations
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Token of one client with its name. While the client is connected the entry has an owner and no expiry.
+     */
+    private static final class Entry {
+        final String token;
+        String name;
+        volatile long expires;
+        Object owner;
+
+        Entry(String token, String name, long expires) {
+            this.token = token;
+            this.name = name;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * An entry with the expiry it had when it was queued, an entry claimed or reserved again meanwhile has another one
+     */
+    private static final class Reservation {
+        final Entry entry;
+        final long expires;
+
+        Reservation(Entry entry) {
+            this.entry = entry;
+            this.expires = entry.expires;
+        }
+    }
+
+    /**
+     * Reservations only in memory
+     *
+     * @param ttl milliseconds the name of a disconnected client is reserved
+     */
+    public NameReservations(long ttl) {
+        this(ttl, null, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * @param ttl              milliseconds the name of a disconnected client is reserved
+     * @param directory        directory for the snapshot and the journal, null keeps everything in memory
+     * @param snapshotInterval milliseconds between two snapshots
+     */
+    public NameReservations(long ttl, Path directory, long snapshotInterval) {
+        this.ttl = ttl;
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Restores the state of the directory and starts journaling. If the state can not be read the server starts
+     * without it, the clients get new names then.
+     *
+     * @throws IOException if the directory can not be written
+     */
+    void open() throws IOException {
+        boolean clean = true;
+        synchronized (this) {
+            if (this.directory == null || this.journal != null || this.snapshots != null)
+                return;
+            long start = System.nanoTime();
+            Files.createDirectories(this.directory);
+            Path snapshot = this.directory.resolve(SNAPSHOT);
+            if (Files.exists(snapshot)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                    this.readSnapshot(in);
+                } catch (IOException e) {
+                    SimpleChat.serverLogger.log(SEVERE, "Snapshot of the names is not readable, starting without: " + e);
+                    this.byToken.clear();
+                    this.byName.clear();
+                    clean = false;
+                }
+            }
+            // the old journal is left by a snapshot which did not finish, its records come first
+            for (String name : new String[]{OLD_JOURNAL, JOURNAL}) {
+                Path journal = this.directory.resolve(name);
+                if (Files.exists(journal)) {
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+                        clean &= this.replay(in);
+                    }
+                }
+            }
+            int replayed = this.journalRecords;
+            // the clients connected before the restart are gone, their names wait for them
+            long now = System.currentTimeMillis();
+            List<Entry> restored = new ArrayList<>(this.byToken.values());
+            for (Entry entry : restored) {
+                if (entry.expires == 0) {
+                    entry.expires = now + this.ttl;
+                    // not journaled, but the next snapshot keeps it
+                    this.journalRecords++;
+                }
+            }
+            restored.sort(Comparator.comparingLong(entry -> entry.expires));
+            for (Entry entry : restored) {
+                this.expiry.add(new Reservation(entry));
+            }
+            if (clean) {
+                // the journal goes on, the next snapshot compacts it
+                this.journal = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                        this.directory.resolve(JOURNAL),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+            }
+            this.expire(now);
+            SimpleChat.serverLogger.log(INFO, "Restored " + this.byToken.size() + " name reservations (" + replayed
+                    + " journal records) in " + (System.nanoTime() - start) / 1000000 + " ms");
+            this.snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "SimpleChat-names");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (!clean) {
+            // records behind a broken one would not be read
+            this.writeSnapshot();
+        }
+        this.snapshots.scheduleWithFixedDelay(this::snapshot, this.snapshotInterval, this.snapshotInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a last snapshot and stops journaling
+     */
+    void close() {
+        ScheduledExecutorService snapshots;
+        synchronized (this) {
+            snapshots = this.snapshots;
+            this.snapshots = null;
+        }
+        if (snapshots == null)
+            return;
+        snapshots.shutdownNow();
+        try {
+            // a snapshot which is being written finishes first
+            snapshots.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.writeSnapshot();
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(SEVERE, "Could not write the snapshot of the names: " + e.getMessage());
+        }
+        synchronized (this) {
+            if (this.journal != null) {
+                try {
+                    this.journal.close();
+                } catch (IOException e) {
+                    SimpleChat.serverLogger.log(SEVERE, "Could not close the journal of the names: " + e.getMessage());
+                }
+            }
+            this.journal = null;
+        }
+    }
+
+    /**
+     * @param chatName current name of the client
+     * @param owner    connection of the client
+     * @return new token for the name
+     */
+    synchronized String issue(String chatName, Object owner) {
+        byte[] bytes = new byte[12];
+        this.random.nextBytes(bytes);
+        String token = Long.toHexString(System.currentTimeMillis()) + "-" + toHex(bytes);
+        Entry entry = new Entry(token, chatName, 0);
+        entry.owner = owner;
+        this.put(entry);
+        return token;
+    }
+
+    /**
+     * Takes a reserved name back. If the entry still belongs to an older connection, e.g. one the server did not
+     * notice to be broken yet, it belongs to the new one afterwards.
+     *
+     * @param token token the client got earlier
+     * @param owner new connection of the client
+     * @return the name of the token, null if it is unknown or expired
+     */
+    synchronized String claim(String token, Object owner) {
+        Entry entry = this.byToken.get(token);
+        if (entry == null || (entry.expires != 0 && entry.expires < System.currentTimeMillis()))
+            return null;
+        entry.owner = owner;
+        entry.expires = 0;
+        this.journal(entry);
+        return entry.name;
+    }
+
+    /**
+     * @param token    token of the client
+     * @param chatName new name of the client
+     */
+    synchronized void renamed(String token, String chatName) {
+        Entry entry = this.byToken.get(token);
+        if (entry == null || entry.name.equals(chatName))
+            return;
+        this.byName.remove(entry.name, entry);
+        entry.name = chatName;
+        this.put(entry);
+    }
+
+    /**
+     * Reserves the name of a client which left, unless another connection claimed it meanwhile
+     *
+     * @param token token of the client
+     * @param owner connection which ended
+     */
+    synchronized void left(String token, Object owner) {
+        Entry entry = this.byToken.get(token);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.owner == owner) {
+            entry.owner = null;
+            entry.expires = now + this.ttl;
+            this.expiry.add(new Reservation(entry));
+            this.journal(entry);
+        }
+        this.expire(now);
+    }
+
+    /**
+     * Forgets a token, its name is not reserved
+     *
+     * @param token token the client does not use any more
+     */
+    synchronized void release(String token) {
+        Entry entry = this.byToken.remove(token);
+        if (entry == null)
+            return;
+        this.byName.remove(entry.name, entry);
+        this.journalRemove(token);
+    }
+
+    /**
+     * Called by the registry on every add and rename, so it does not take the lock
+     *
+     * @param chatName name wished by a client
+     * @return true if the name waits for the client which left with it
+     */
+    public boolean isReserved(String chatName) {
+        Entry entry = this.byName.get(chatName);
+        if (entry == null)
+            return false;
+        long expires = entry.expires;
+        return expires != 0 && expires >= System.currentTimeMillis();
+    }
+
+    /**
+     * @return number of tokens, of connected clients and of reserved names
+     */
+    public synchronized int size() {
+        return this.byToken.size();
+    }
+
+    private void put(Entry entry) {
+        Entry old = this.byName.put(entry.name, entry);
+        if (old != null && old != entry) {
+            // the name of an expired token was given to somebody else
+            this.byToken.remove(old.token);
+            this.journalRemove(old.token);
+        }
+        this.byToken.put(entry.token, entry);
+        this.journal(entry);
+    }
+
+    private void expire(long now) {
+        Reservation head;
+        while ((head = this.expiry.peek()) != null && head.expires < now) {
+            this.expiry.poll();
+            Entry entry = head.entry;
+            if (entry.expires == head.expires && this.byToken.get(entry.token) == entry) {
+                this.byToken.remove(entry.token);
+                this.byName.remove(entry.name, entry);
+                this.journalRemove(entry.token);
+            }
+        }
+    }
+
+    private void journal(Entry entry) {
+        if (this.journal == null)
+            return;
+        try {
+            this.journal.writeByte(PUT);
+            write(this.journal, entry);
+            this.journaled();
+        } catch (IOException e) {
+            this.journalFailed(e);
+        }
+    }
+
+    private void journalRemove(String token) {
+        if (this.journal == null)
+            return;
+        try {
+            this.journal.writeByte(REMOVE);
+            this.journal.writeUTF(token);
+            this.journaled();
+        } catch (IOException e) {
+            this.journalFailed(e);
+        }
+    }
+
+    private void journaled() throws IOException {
+        this.journal.flush();
+        if (++this.journalRecords == JOURNAL_LIMIT && this.snapshots != null) {
+            try {
+                this.snapshots.execute(this::snapshot);
+            } catch (RejectedExecutionException e) {
+                // closing, the last snapshot is written anyway
+            }
+        }
+    }
+
+    private void journalFailed(IOException e) {
+        SimpleChat.serverLogger.log(SEVERE, "Could not journal the names, only kept in memory: " + e.getMessage());
+        try {
+            this.journal.close();
+        } catch (IOException ignored) {
+            // already broken
+        }
+        this.journal = null;
+    }
+
+    /**
+     * Periodic snapshot, and one as soon as the journal grows beyond its limit, the journal starts empty afterwards
+     */
+    private void snapshot() {
+        synchronized (this) {
+            if (this.journal == null || this.journalRecords == 0)
+                return;
+            this.expire(System.currentTimeMillis());
+        }
+        try {
+            this.writeSnapshot();
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(SEVERE, "Could not write the snapshot of the names: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copies the entries and starts a new journal under the lock, then writes the copy into a temporary file which
+     * replaces the old snapshot. Until then the records of the old journal are kept in {@link #OLD_JOURNAL}, a crash
+     * in between replays the old and the new journal onto the old snapshot. A crash after the replacement replays
+     * them onto the new snapshot, which gives the same state.
+     */
+    private void writeSnapshot() throws IOException {
+        synchronized (this.snapshotLock) {
+            List<Entry> entries = new ArrayList<>();
+            synchronized (this) {
+                for (Entry entry : this.byToken.values()) {
+                    entries.add(new Entry(entry.token, entry.name, entry.expires));
+                }
+                this.rotateJournal();
+            }
+            Path tmp = this.directory.resolve(SNAPSHOT + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.writeInt(MAGIC);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    write(out, entry);
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, this.directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(this.directory.resolve(OLD_JOURNAL));
+        }
+    }
+
+    /**
+     * Moves the records of the journal behind those of the old journal and opens an empty journal
+     */
+    private void rotateJournal() throws IOException {
+        if (this.journal != null)
+            this.journal.close();
+        this.journal = null;
+        Path journal = this.directory.resolve(JOURNAL);
+        Path old = this.directory.resolve(OLD_JOURNAL);
+        if (Files.exists(old) && Files.exists(journal)) {
+            // an earlier snapshot failed, its records are not in any snapshot yet
+            Files.write(old, Files.readAllBytes(journal), StandardOpenOption.APPEND);
+        } else if (Files.exists(journal)) {
+            Files.move(journal, old);
+        }
+        OutputStream file = Files.newOutputStream(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.journal = new DataOutputStream(new BufferedOutputStream(file));
+        this.journalRecords = 0;
+    }
+
+    private void readSnapshot(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a snapshot of names");
+        in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            this.restore(read(in));
+        }
+    }
+
+    /**
+     * Counts the records in {@link #journalRecords}, a record cut off by a crash ends the journal
+     *
+     * @return false if the journal ended with a broken record
+     */
+    private boolean replay(DataInputStream in) throws IOException {
+        try {
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    return true;
+                if (type == PUT) {
+                    this.restore(read(in));
+                } else if (type == REMOVE) {
+                    Entry entry = this.byToken.remove(in.readUTF());
+                    if (entry != null)
+                        this.byName.remove(entry.name, entry);
+                } else {
+                    SimpleChat.serverLogger.log(WARNING, "Journal of the names is corrupt after " + this.journalRecords + " records");
+                    return false;
+                }
+                this.journalRecords++;
+            }
+        } catch (EOFException e) {
+            SimpleChat.serverLogger.log(WARNING, "Last record of the journal of the names is incomplete");
+            return false;
+        }
+    }
+
+    private void restore(Entry entry) {
+        Entry old = this.byToken.put(entry.token, entry);
+        if (old != null)
+            this.byName.remove(old.name, old);
+        this.byName.put(entry.name, entry);
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.token);
+        out.writeUTF(entry.name);
+        out.writeLong(entry.expires);
+    }
+
+    private static Entry read(DataInputStream in) throws IOException {
+        return new Entry(in.readUTF(), in.readUTF(), in.readLong());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
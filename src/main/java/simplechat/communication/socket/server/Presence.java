@@ -0,0 +1,173 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+import simplechat.communication.socket.LineWriter;
+import simplechat.server.SimpleChat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.logging.Level.*;
+import static simplechat.communication.MessageProtocol.Commands.PRESENCE;
+
+/**
+ * Pushes the user list to subscribed clients, see {@link MessageProtocol.Commands#PRESENCE}.
+ * <br>
+ * A new subscriber gets a snapshot of the list as it was last published. Changes are not sent one by one,
+ * they are collected for one time window and then sent as one coalesced delta line to every subscriber:
+ * a client joining and leaving within the window does not appear at all, several renames become one, and so on.
+ * When many clients connect at once every subscriber gets one line per window instead of one line per join,
+ * and the line is encoded only once for all subscribers.
+ */
+public class Presence {
+
+    /**
+     * Milliseconds changes are collected before they are sent, if nothing else is configured
+     */
+    public static final long DEFAULT_WINDOW = 200;
+
+    private final long window;
+    private final Set<ClientWorker> subscribers = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SimpleChat-presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // user list as the subscribers know it
+    private final Set<String> published = new TreeSet<>();
+    // changes of the current window: current name -> name at the start of the window, null if it joined
+    private final Map<String, String> origins = new HashMap<>();
+    // names at the start of the window which are gone
+    private final Set<String> left = new LinkedHashSet<>();
+    private boolean scheduled = false;
+
+    /**
+     * @param window milliseconds changes are collected before they are sent
+     */
+    public Presence(long window) {
+        this.window = window;
+    }
+
+    /**
+     * @param chatName name which is new in the user list
+     */
+    synchronized void joined(String chatName) {
+        if (this.left.remove(chatName))
+            this.origins.put(chatName, chatName);
+        else
+            this.origins.put(chatName, null);
+        this.schedule();
+    }
+
+    /**
+     * @param chatName name which was removed from the user list
+     */
+    synchronized void left(String chatName) {
+        if (this.origins.containsKey(chatName)) {
+            String origin = this.origins.remove(chatName);
+            if (origin != null)
+                this.left.add(origin);
+        } else {
+            this.left.add(chatName);
+        }
+        this.schedule();
+    }
+
+    /**
+     * @param oldName name before
+     * @param newName name afterwards
+     */
+    synchronized void renamed(String oldName, String newName) {
+        String origin = this.origins.containsKey(oldName) ? this.origins.remove(oldName) : oldName;
+        this.origins.put(newName, origin);
+        this.schedule();
+    }
+
+    private void schedule() {
+        if (this.scheduled)
+            return;
+        try {
+            this.timer.schedule(this::publish, this.window, TimeUnit.MILLISECONDS);
+            this.scheduled = true;
+        } catch (RejectedExecutionException e) {
+            SimpleChat.serverLogger.log(FINE, "Presence is shut down");
+        }
+    }
+
+    /**
+     * Subscribes a client, it gets the snapshot at once and afterwards every delta
+     *
+     * @param worker ClientWorker of the subscribing client
+     */
+    synchronized void subscribe(ClientWorker worker) {
+        // under the lock, so no delta can be queued between snapshot and subscription
+        worker.send(MessageProtocol.getMessage(PRESENCE) + " " + MessageProtocol.SNAPSHOT
+                + (this.published.isEmpty() ? "" : " " + String.join("\t", this.published)));
+        this.subscribers.add(worker);
+    }
+
+    /**
+     * @param worker ClientWorker which does not get deltas any more
+     */
+    void unsubscribe(ClientWorker worker) {
+        this.subscribers.remove(worker);
+    }
+
+    /**
+     * Sends the changes of the window: first the names which left, then the renames, then the new names
+     */
+    synchronized void publish() {
+        this.scheduled = false;
+        List<String> changes = new ArrayList<>();
+        for (String name : this.left) {
+            this.published.remove(name);
+            changes.add("-" + name);
+        }
+        for (Map.Entry<String, String> e : this.origins.entrySet()) {
+            String origin = e.getValue();
+            if (origin != null && !origin.equals(e.getKey())) {
+                this.published.remove(origin);
+                changes.add("~" + origin + "\t" + e.getKey());
+            }
+        }
+        for (Map.Entry<String, String> e : this.origins.entrySet()) {
+            if (this.published.add(e.getKey()) && e.getValue() == null)
+                changes.add("+" + e.getKey());
+        }
+        this.left.clear();
+        this.origins.clear();
+        if (changes.isEmpty() || this.subscribers.isEmpty())
+            return;
+        FrameBuffer frame = FrameBuffer.wrap(LineWriter.encode(MessageProtocol.getMessage(PRESENCE) + " "
+                + MessageProtocol.DELTA + " " + String.join("\t", changes)));
+        for (ClientWorker worker : this.subscribers) {
+            worker.send(frame);
+        }
+    }
+
+    /**
+     * @return names as the subscribers know them
+     */
+    synchronized String[] getPublished() {
+        return this.published.toArray(new String[0]);
+    }
+
+    /**
+     * Stops sending deltas
+     */
+    void shutdown() {
+        this.timer.shutdownNow();
+        this.subscribers.clear();
+    }
+}
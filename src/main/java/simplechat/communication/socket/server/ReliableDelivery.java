@@ -0,0 +1,190 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+import simplechat.server.SimpleChat;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.logging.Level.*;
+
+/**
+ * At-least-once delivery for clients asking for it with {@link MessageProtocol.Commands#RELIABLE}.
+ * <br>
+ * The text messages of such a client are numbered per client and kept in a bounded {@link ReliableWindow}
+ * until the client acknowledges them. Acknowledgements are cumulative, so the client sends one for a batch of
+ * messages. When the connection breaks the window is parked under a random token for some time, a client coming
+ * back with that token gets every message after the last one it received, in the original order and with the
+ * original numbers, so it can drop duplicates. Broadcasts while it was away are kept in the parked window as well.
+ */
+public class ReliableDelivery {
+
+    /**
+     * Unacknowledged messages kept per client, if nothing else is configured
+     */
+    public static final int DEFAULT_WINDOW = 1024;
+
+    /**
+     * Milliseconds the window of a disconnected client is kept, if nothing else is configured
+     */
+    public static final long DEFAULT_RETENTION = 5 * 60 * 1000;
+
+    private final int window;
+    private final long retention;
+    private final Map<String, ReliableWindow> windows = new ConcurrentHashMap<>();
+    private final Set<ReliableWindow> parked = ConcurrentHashMap.newKeySet();
+    private final SecureRandom random = new SecureRandom();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retransmitted = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final Histogram ackLatency = new Histogram();
+
+    /**
+     * @param window    unacknowledged messages kept per client
+     * @param retention milliseconds the window of a disconnected client is kept
+     */
+    public ReliableDelivery(int window, long retention) {
+        this.window = window;
+        this.retention = retention;
+    }
+
+    /**
+     * Attaches a connection to its window. An unknown or missing token gets a new, empty window.
+     * If the window still belongs to another connection, e.g. one the server did not notice to be broken yet,
+     * that connection is closed and its queued messages are moved into the window.
+     *
+     * @param token  token of an earlier connection or null
+     * @param worker connection of the client
+     * @return window of the client
+     */
+    ReliableWindow attach(String token, ClientWorker worker) {
+        this.expire();
+        ReliableWindow window = token != null ? this.windows.get(token) : null;
+        if (window == null) {
+            window = new ReliableWindow(this.newToken(), this.window, this);
+            this.windows.put(window.getToken(), window);
+        }
+        this.parked.remove(window);
+        ClientWorker previous = window.attach(worker);
+        if (previous != null && previous != worker) {
+            SimpleChat.serverLogger.log(INFO, "Reliable window " + window.getToken() + " taken over by a new connection");
+            previous.close();
+        }
+        return window;
+    }
+
+    /**
+     * Keeps the window of a closed connection for a reconnect
+     *
+     * @param worker closed connection
+     */
+    void park(ClientWorker worker) {
+        ReliableWindow window = worker.getReliable();
+        if (window != null && window.detach(worker))
+            this.parked.add(window);
+        this.expire();
+    }
+
+    /**
+     * Keeps a broadcast for the clients which are away
+     *
+     * @param frame text message for all clients
+     */
+    void offer(FrameBuffer frame) {
+        for (ReliableWindow window : this.parked) {
+            window.unsent(frame.retain());
+        }
+    }
+
+    private void expire() {
+        long deadline = System.currentTimeMillis() - this.retention;
+        this.windows.values().removeIf(window -> {
+            if (!window.isExpired(deadline))
+                return false;
+            SimpleChat.serverLogger.log(INFO, "Reliable window " + window.getToken() + " expired");
+            this.parked.remove(window);
+            window.close();
+            return true;
+        });
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        this.random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+
+    void countSent() {
+        this.sent.incrementAndGet();
+    }
+
+    void countRetransmit() {
+        this.retransmitted.incrementAndGet();
+    }
+
+    long countOverflow() {
+        return this.overflowed.incrementAndGet();
+    }
+
+    /**
+     * @return number of windows, connected and parked
+     */
+    public int getWindows() {
+        return this.windows.size();
+    }
+
+    /**
+     * @return number of numbered messages written the first time
+     */
+    public long getSent() {
+        return this.sent.get();
+    }
+
+    /**
+     * @return number of numbered messages written again after a reconnect
+     */
+    public long getRetransmitted() {
+        return this.retransmitted.get();
+    }
+
+    /**
+     * @return retransmitted messages per sent message
+     */
+    public double getRetransmitRate() {
+        long sent = this.sent.get();
+        return sent == 0 ? 0 : (double) this.retransmitted.get() / sent;
+    }
+
+    /**
+     * @return number of messages given up because a window was full
+     */
+    public long getOverflowed() {
+        return this.overflowed.get();
+    }
+
+    /**
+     * @return microseconds between writing a message and its acknowledgement
+     */
+    public Histogram getAckLatency() {
+        return this.ackLatency;
+    }
+
+    /**
+     * Releases all kept messages
+     */
+    public void shutdown() {
+        for (ReliableWindow window : this.windows.values()) {
+            window.close();
+        }
+        this.windows.clear();
+        this.parked.clear();
+    }
+}
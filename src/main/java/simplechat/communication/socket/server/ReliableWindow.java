@@ -0,0 +1,197 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+import simplechat.server.SimpleChat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.logging.Level.*;
+import static simplechat.communication.MessageProtocol.Commands.SEQ;
+
+/**
+ * Text messages of one reliable client which were not acknowledged yet, see {@link ReliableDelivery}.
+ * <br>
+ * The window keeps its own reference to every frame, so a shared frame stays in the pool until every reliable
+ * receiver acknowledged it. When the window is full the oldest message is given up.
+ */
+final class ReliableWindow {
+
+    /**
+     * Unacknowledged message, sentNanos is 0 until the message was written to a connection
+     */
+    static final class Entry {
+        final long sequence;
+        final FrameBuffer frame;
+        long sentNanos;
+
+        Entry(long sequence, FrameBuffer frame, long sentNanos) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    private final String token;
+    private final int capacity;
+    private final ReliableDelivery delivery;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long nextSequence = 1;
+    private ClientWorker owner = null;
+    private long parkedAt = 0;
+    private boolean closed = false;
+
+    ReliableWindow(String token, int capacity, ReliableDelivery delivery) {
+        this.token = token;
+        this.capacity = capacity;
+        this.delivery = delivery;
+    }
+
+    String getToken() {
+        return this.token;
+    }
+
+    /**
+     * @return number of messages waiting for an acknowledgement
+     */
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Numbers a frame which is written right now
+     *
+     * @param frame text message, the window takes a reference of its own
+     * @return header to write in front of the frame
+     */
+    synchronized byte[] sent(FrameBuffer frame) {
+        long sequence = this.nextSequence++;
+        this.add(new Entry(sequence, frame.retain(), System.nanoTime()));
+        this.delivery.countSent();
+        return header(sequence);
+    }
+
+    /**
+     * Numbers a frame which could not be written any more, it is sent when the client resumes
+     *
+     * @param frame text message, the window takes over the reference of the caller
+     */
+    synchronized void unsent(FrameBuffer frame) {
+        this.add(new Entry(this.nextSequence++, frame, 0));
+    }
+
+    private void add(Entry entry) {
+        if (this.closed) {
+            entry.frame.release();
+            return;
+        }
+        if (this.entries.size() >= this.capacity) {
+            Entry oldest = this.entries.poll();
+            oldest.frame.release();
+            if (this.delivery.countOverflow() == 1 || SimpleChat.serverLogger.isLoggable(FINE))
+                SimpleChat.serverLogger.log(WARNING, "Reliable window " + this.token + " is full, message "
+                        + oldest.sequence + " was given up");
+        }
+        this.entries.add(entry);
+    }
+
+    /**
+     * Header of a message which is written again, e.g. after a reconnect
+     *
+     * @param entry message returned by {@link #resume(long)}
+     * @return header to write in front of the frame
+     */
+    synchronized byte[] resent(Entry entry) {
+        if (entry.sentNanos != 0)
+            this.delivery.countRetransmit();
+        else
+            this.delivery.countSent();
+        entry.sentNanos = System.nanoTime();
+        return header(entry.sequence);
+    }
+
+    /**
+     * Cumulative acknowledgement of the client
+     *
+     * @param sequence highest sequence number the client received
+     */
+    synchronized void ack(long sequence) {
+        this.acknowledge(sequence, true);
+    }
+
+    private void acknowledge(long sequence, boolean measure) {
+        long now = System.nanoTime();
+        Entry entry;
+        while ((entry = this.entries.peek()) != null && entry.sequence <= sequence) {
+            this.entries.poll();
+            if (measure && entry.sentNanos != 0)
+                this.delivery.getAckLatency().record((now - entry.sentNanos) / 1000);
+            entry.frame.release();
+        }
+    }
+
+    /**
+     * Client connected again: everything up to lastSequence arrived, the rest has to be sent again
+     *
+     * @param lastSequence highest sequence number the client received
+     * @return messages to send again, each with a reference the caller has to release
+     */
+    synchronized List<Entry> resume(long lastSequence) {
+        this.acknowledge(lastSequence, false);
+        List<Entry> resend = new ArrayList<>(this.entries.size());
+        for (Entry entry : this.entries) {
+            entry.frame.retain();
+            resend.add(entry);
+        }
+        return resend;
+    }
+
+    /**
+     * @param worker new connection of the client
+     * @return previous connection, null if the window was parked
+     */
+    synchronized ClientWorker attach(ClientWorker worker) {
+        ClientWorker previous = this.owner;
+        this.owner = worker;
+        return previous;
+    }
+
+    /**
+     * Keeps the window for a reconnect if the worker still owns it
+     *
+     * @param worker closed connection
+     * @return true if the window is parked now
+     */
+    synchronized boolean detach(ClientWorker worker) {
+        if (this.owner != worker)
+            return false;
+        this.owner = null;
+        this.parkedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * @param deadline System.currentTimeMillis() before which parked windows are given up
+     * @return true if the window was parked before the deadline
+     */
+    synchronized boolean isExpired(long deadline) {
+        return this.owner == null && this.parkedAt < deadline;
+    }
+
+    /**
+     * Releases all messages, frames added later are released at once
+     */
+    synchronized void close() {
+        this.closed = true;
+        Entry entry;
+        while ((entry = this.entries.poll()) != null) {
+            entry.frame.release();
+        }
+    }
+
+    private static byte[] header(long sequence) {
+        return (MessageProtocol.getMessage(SEQ) + " " + sequence + " ").getBytes(StandardCharsets.US_ASCII);
+    }
+}
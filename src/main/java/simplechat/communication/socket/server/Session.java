@@ -0,0 +1,59 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Identity of one client connection: a compact session id and the current chatName
+ * together with the pre-encoded message prefix of that name.
+ * <br>
+ * A Session is immutable, a rename creates a new Session with the same id. So a message is always
+ * built with a prefix matching the name, even while the client is renamed.
+ */
+public final class Session {
+
+    private final int id;
+    private final String name;
+    private final byte[] prefix;
+
+    Session(int id, String name, byte[] prefix) {
+        this.id = id;
+        this.name = name;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param name chatName
+     * @return "[name] " as UTF-8 bytes, see {@link MessageProtocol#textMessage(String, String)}
+     */
+    static byte[] encodePrefix(String name) {
+        return MessageProtocol.textMessage("", name).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return small number, unique among the open sessions and reused after a session was closed
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * @return current chatName
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return shared "[name] " bytes, must not be changed
+     */
+    byte[] getPrefix() {
+        return this.prefix;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " (session " + this.id + ")";
+    }
+}
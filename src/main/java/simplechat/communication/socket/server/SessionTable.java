@@ -0,0 +1,91 @@
+package simplechat.communication.socket.server;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of the open sessions indexed by their session id.
+ * <br>
+ * Session ids are handed out densely (the smallest free one), so the table is a plain array which can be read
+ * without locking. The "[name] " prefixes are interned by name: every name is encoded only once, no matter how
+ * many messages its client sends, and the entry is dropped when no session uses the name any more.
+ */
+public class SessionTable {
+
+    private final BitSet used = new BitSet();
+    private final Map<String, byte[]> prefixes = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<Session> sessions = new AtomicReferenceArray<>(64);
+
+    /**
+     * @param name chatName of the new connection
+     * @return session with the smallest free id
+     */
+    public synchronized Session open(String name) {
+        int id = this.used.nextClearBit(0);
+        this.used.set(id);
+        if (id >= this.sessions.length()) {
+            AtomicReferenceArray<Session> grown = new AtomicReferenceArray<>(this.sessions.length() * 2);
+            for (int i = 0; i < this.sessions.length(); i++) {
+                grown.set(i, this.sessions.get(i));
+            }
+            this.sessions = grown;
+        }
+        Session session = new Session(id, name, this.intern(name));
+        this.sessions.set(id, session);
+        return session;
+    }
+
+    /**
+     * @param session current session of the client
+     * @param name    new chatName
+     * @return session with the same id and the new name, the given session if it was already closed
+     */
+    public synchronized Session rename(Session session, String name) {
+        if (this.sessions.get(session.getId()) != session || session.getName().equals(name))
+            return session;
+        Session renamed = new Session(session.getId(), name, this.intern(name));
+        this.sessions.set(session.getId(), renamed);
+        this.prefixes.remove(session.getName());
+        return renamed;
+    }
+
+    /**
+     * @param session session which ends, its id can be handed out again
+     */
+    public synchronized void close(Session session) {
+        if (this.sessions.get(session.getId()) != session)
+            return;
+        this.sessions.set(session.getId(), null);
+        this.used.clear(session.getId());
+        this.prefixes.remove(session.getName());
+    }
+
+    /**
+     * @param id session id
+     * @return open session or null
+     */
+    public Session get(int id) {
+        AtomicReferenceArray<Session> sessions = this.sessions;
+        return id >= 0 && id < sessions.length() ? sessions.get(id) : null;
+    }
+
+    /**
+     * @return number of open sessions
+     */
+    public synchronized int size() {
+        return this.used.cardinality();
+    }
+
+    /**
+     * @return number of interned name prefixes
+     */
+    int prefixes() {
+        return this.prefixes.size();
+    }
+
+    private byte[] intern(String name) {
+        return this.prefixes.computeIfAbsent(name, Session::encodePrefix);
+    }
+}
@@ -1,44 +1,116 @@
 package simplechat.communication.socket.server;
 
 import simplechat.communication.MessageProtocol;
+import simplechat.communication.Startup;
+import simplechat.communication.jfr.FanOutEvent;
+import simplechat.communication.jfr.RegistryEvent;
+import simplechat.communication.socket.LineWriter;
+import simplechat.communication.socket.TlsContext;
+import simplechat.communication.transport.Connection;
+import simplechat.communication.transport.Listener;
+import simplechat.communication.transport.SocketTransport;
+import simplechat.communication.transport.Transport;
+import simplechat.communication.transport.TransportOptions;
+import simplechat.communication.transport.WebSocketTransport;
 import simplechat.server.SimpleChat;
+import simplechat.server.search.SearchHit;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.logging.Level.*;
+import static simplechat.communication.MessageProtocol.Commands.CLAIM;
+import static simplechat.communication.MessageProtocol.Commands.COMPRESS;
 import static simplechat.communication.MessageProtocol.Commands.EXIT;
+import static simplechat.communication.MessageProtocol.Commands.FILE;
+import static simplechat.communication.MessageProtocol.Commands.ID;
+import static simplechat.communication.MessageProtocol.Commands.PRIVATE;
+import static simplechat.communication.MessageProtocol.Commands.RECONNECT;
+import static simplechat.communication.MessageProtocol.Commands.RELIABLE;
+import static simplechat.communication.MessageProtocol.Commands.SEARCH;
 
 
 /**
  * SimpleChatServer listens to incoming SimpleChatClients with the choosen communication protocol and initiates a UI.
  * <br>
- * Default settings for the main attributes will be: host="localhost" port=5050 and backlog=5
+ * Default settings for the main attributes will be: host="localhost" port=5050 and backlog=50
+ * <br>
+ * Listening, accepting and the Threads of the connections are done by a {@link Transport}, blocking sockets
+ * if nothing else is chosen.
+ * <br>
+ * Accepting can be spread over several acceptor Threads. If the platform supports SO_REUSEPORT every acceptor
+ * gets its own Listener bound to the same port, so the kernel balances the connections between them.
+ * Otherwise all acceptors share one Listener.
+ * <br>
+ * Text messages are not turned into Strings on their way from the sender to the receivers. The line is copied
+ * once from the read buffer into a pooled off-heap {@link FrameBuffer} behind the sender's name, and every
+ * receiver's writer Thread writes that same frame. Only the message store and the logs decode it.
+ * <br>
+ * Every connection has a {@link Session} with a compact id. The "[name] " prefix of the messages is encoded once
+ * per name in the {@link SessionTable} and copied into the frames.
+ * <br>
+ * Direct messages take the same way: the targets are looked up in an index by name and all of them,
+ * and the sender, get one shared frame.
+ * <br>
+ * Clients can ask for at-least-once delivery, their text messages are numbered and kept until they are
+ * acknowledged, see {@link ReliableDelivery}.
+ * <br>
+ * Browsers can join through a WebSocket port next to the main transport, see {@link #setWebSocketPort(Integer)}.
+ * <br>
+ * Files are uploaded in chunks into a temp file and then streamed to the receivers, one chunk at a time
+ * between their chat messages, see {@link FileTransfer}.
  */
 public class SimpleChatServer extends Thread {
 
     private Integer port = 5050;
     private String host = "localhost";
-    private final Integer backlog = 5;
-    private ServerSocket serverSocket = null;
+    private Integer acceptors = 1;
+    private Transport transport = new SocketTransport();
+    private final TransportOptions options = new TransportOptions();
+    private boolean compression = true;
+    private int compressionThreshold = LineWriter.DEFAULT_THRESHOLD;
+    private TlsContext tlsContext = null;
+    private ClusterNode cluster = null;
+    private AdminServer admin = null;
+    private Presence presence = new Presence(Presence.DEFAULT_WINDOW);
+    private ReliableDelivery reliable = new ReliableDelivery(ReliableDelivery.DEFAULT_WINDOW, ReliableDelivery.DEFAULT_RETENTION);
+    private NameReservations reservations = new NameReservations(NameReservations.DEFAULT_TTL);
+    private SlowConsumers slowConsumers = new SlowConsumers();
+    private Deduplication deduplication = new Deduplication();
+    private long fileLimit = FileTransfer.DEFAULT_LIMIT;
+    private List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // released once the ports are open or could not be opened
+    private final CountDownLatch started = new CountDownLatch(1);
+    private Integer webSocketPort = null;
+    private final WebSocketTransport webSocket = new WebSocketTransport();
+    private Listener webSocketListener = null;
+    private final ExecutorService webSocketService = this.webSocket.newExecutor();
 
     private boolean listening = false;
     private SimpleChat server;
 
-    private ConcurrentHashMap<ClientWorker, String> workerList = new ConcurrentHashMap<>();
-    private ExecutorService executorService = Executors.newCachedThreadPool();
+    private ConcurrentHashMap<ClientWorker, Session> workerList = new ConcurrentHashMap<>();
+    private final Map<String, ClientWorker> workersByName = new ConcurrentHashMap<>();
+    private final SessionTable sessions = new SessionTable();
+    private ExecutorService executorService = this.transport.newExecutor();
+    private ExecutorService writerService = this.transport.newExecutor();
+    private Map<String, List<String>> pendingByName = new ConcurrentHashMap<>();
+    private final BufferPool bufferPool = new BufferPool(256);
 
     /**
      * Initializes host, port and callback for UserInterface interactions.
@@ -58,34 +130,445 @@ public class SimpleChatServer extends Thread {
     }
 
     /**
-     * Initiating the ServerSocket with already defined Parameters and starts accepting incoming
-     * requests. If client connects to the ServerSocket a new ClientWorker will be created and passed
+     * @param reservations claim tokens of the chatNames, e.g. with a directory to keep them over restarts
+     */
+    public void setReservations(NameReservations reservations) {
+        this.reservations = reservations;
+    }
+
+    /**
+     * @param slowConsumers limits for clients which read too slowly
+     */
+    public void setSlowConsumers(SlowConsumers slowConsumers) {
+        this.slowConsumers = slowConsumers;
+    }
+
+    /**
+     * @return limits and lag metrics of the slow clients
+     */
+    public SlowConsumers getSlowConsumers() {
+        return this.slowConsumers;
+    }
+
+    /**
+     * @param deduplication limits for the message ids the clients sent lately
+     */
+    public void setDeduplication(Deduplication deduplication) {
+        this.deduplication = deduplication;
+    }
+
+    /**
+     * @return message ids of the clients and their metrics
+     */
+    public Deduplication getDeduplication() {
+        return this.deduplication;
+    }
+
+    /**
+     * @param backlog maximum length of the kernel queue for pending connections, null keeps the default
+     */
+    public void setBacklog(Integer backlog) {
+        this.options.setBacklog(backlog);
+    }
+
+    /**
+     * @param acceptors number of Threads calling accept(), null keeps the default of one
+     */
+    public void setAcceptors(Integer acceptors) {
+        if (acceptors != null && acceptors > 0)
+            this.acceptors = acceptors;
+    }
+
+    /**
+     * @param tcpNoDelay true disables Nagle's algorithm on accepted client sockets
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.options.setTcpNoDelay(tcpNoDelay);
+    }
+
+    /**
+     * @param sendBufferSize SO_SNDBUF for accepted client sockets, null keeps the OS default
+     */
+    public void setSendBufferSize(Integer sendBufferSize) {
+        this.options.setSendBufferSize(sendBufferSize);
+    }
+
+    /**
+     * @param receiveBufferSize SO_RCVBUF for accepted client sockets, null keeps the OS default
+     */
+    public void setReceiveBufferSize(Integer receiveBufferSize) {
+        this.options.setReceiveBufferSize(receiveBufferSize);
+    }
+
+    /**
+     * Has to be called before the server is started, the Threads of the connections are taken from the transport.
+     *
+     * @param transport transport the clients connect with, null keeps blocking sockets
+     */
+    public void setTransport(Transport transport) {
+        if (transport == null)
+            return;
+        this.executorService.shutdown();
+        this.writerService.shutdown();
+        this.transport = transport;
+        this.executorService = transport.newExecutor();
+        this.writerService = transport.newExecutor();
+    }
+
+    /**
+     * @return transport the clients connect with
+     */
+    public Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Browsers connect with WebSocket to this port and share the chat with the clients of the main transport.
+     * TLS of the server is not used for it.
+     *
+     * @param webSocketPort port of the WebSocket listener, 0 for any free one, null for none
+     */
+    public void setWebSocketPort(Integer webSocketPort) {
+        this.webSocketPort = webSocketPort;
+    }
+
+    /**
+     * @return port the WebSocket listener is bound to, or -1 if there is none
+     */
+    public int getWebSocketPort() {
+        Listener listener = this.webSocketListener;
+        return listener == null ? -1 : listener.getLocalPort();
+    }
+
+    /**
+     * @param compression false declines every {@link MessageProtocol.Commands#COMPRESS} request
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @param compressionThreshold lines with less bytes are not compressed, null keeps the default
+     */
+    public void setCompressionThreshold(Integer compressionThreshold) {
+        if (compressionThreshold != null)
+            this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @param tlsContext context for TLS connections, null for plain sockets
+     */
+    public void setTlsContext(TlsContext tlsContext) {
+        this.tlsContext = tlsContext;
+    }
+
+    /**
+     * @param cluster node connecting this server to the other servers of the cluster, null for a single server
+     */
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * @return cluster node of this server or null
+     */
+    public ClusterNode getCluster() {
+        return this.cluster;
+    }
+
+    /**
+     * @return pool of the frames sent to the clients
+     */
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * @return sessions of the clients connected to this server
+     */
+    public SessionTable getSessions() {
+        return this.sessions;
+    }
+
+    /**
+     * @param presenceWindow milliseconds user list changes are collected before they are pushed, null keeps the default
+     */
+    public void setPresenceWindow(Long presenceWindow) {
+        if (presenceWindow != null)
+            this.presence = new Presence(presenceWindow);
+    }
+
+    /**
+     * @param reliable windows of the reliable clients, null keeps the default
+     */
+    public void setReliable(ReliableDelivery reliable) {
+        if (reliable != null)
+            this.reliable = reliable;
+    }
+
+    /**
+     * @return windows and metrics of the reliable clients
+     */
+    public ReliableDelivery getReliable() {
+        return this.reliable;
+    }
+
+    /**
+     * @param fileLimit largest file in bytes clients may send, 0 refuses all files, null keeps the default
+     */
+    public void setFileLimit(Long fileLimit) {
+        if (fileLimit != null && fileLimit >= 0)
+            this.fileLimit = fileLimit;
+    }
+
+    long getFileLimit() {
+        return this.fileLimit;
+    }
+
+    /**
+     * @param admin admin port of this server, null for none
+     */
+    public void setAdmin(AdminServer admin) {
+        this.admin = admin;
+    }
+
+    /**
+     * @return admin port of this server or null
+     */
+    public AdminServer getAdmin() {
+        return this.admin;
+    }
+
+    /**
+     * @return user list pushed to the presence subscribers
+     */
+    Presence getPresence() {
+        return this.presence;
+    }
+
+    /**
+     * @return live view of the connected ClientWorkers and their sessions
+     */
+    Map<ClientWorker, Session> getWorkers() {
+        return Collections.unmodifiableMap(this.workerList);
+    }
+
+    ExecutorService getWriterService() {
+        return this.writerService;
+    }
+
+    TlsContext getTlsContext() {
+        return this.tlsContext;
+    }
+
+    boolean isCompression() {
+        return this.compression;
+    }
+
+    int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    /**
+     * @return port the server is bound to, or -1 if no Listener is open yet
+     */
+    public int getLocalPort() {
+        return this.listeners.isEmpty() ? -1 : this.listeners.get(0).getLocalPort();
+    }
+
+    /**
+     * Waits until the Listeners, the cluster and the admin port are open, or opening them failed.
+     *
+     * @param timeoutMillis maximum time to wait
+     * @return true if the server got that far in time, {@link #getLocalPort()} tells whether it listens
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitStarted(long timeoutMillis) throws InterruptedException {
+        return this.started.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Initiating the Listeners of the transport with already defined Parameters and starts accepting incoming
+     * requests. This Thread is the first acceptor, additional acceptors are started as own Threads.
+     * If client connects to a Listener a new ClientWorker will be created and passed
      * to the ExecutorService for immediate concurrent action.
      */
     public void run() {
         SimpleChat.serverLogger.log(INFO, "... starting Thread ...");
+        this.server.getRegistry().setReserved(this.reservations::isReserved);
+        try {
+            this.reservations.open();
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(SEVERE, "Names are not kept over restarts: " + e.getMessage());
+        }
         try {
-            this.serverSocket = new ServerSocket(this.port, this.backlog);
+            this.openListeners();
+            if (this.cluster != null)
+                this.cluster.start(this);
+            if (this.admin != null)
+                this.admin.start(this, this.server);
         } catch (IOException e) {
-            SimpleChat.serverLogger.log(SEVERE, "Could not initialize ServerSocket: " + e.getMessage());
+            SimpleChat.serverLogger.log(SEVERE, "Could not initialize Listener: " + e.getMessage());
+            this.closeListeners();
             return;
+        } finally {
+            this.started.countDown();
+        }
+        List<Thread> acceptorThreads = new ArrayList<>();
+        for (int i = 1; i < this.acceptors; i++) {
+            Listener listener = this.listeners.get(i % this.listeners.size());
+            Thread acceptor = new Thread(() -> this.accept(listener, this.executorService, true), "SimpleChatServer-acceptor-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+            acceptorThreads.add(acceptor);
+        }
+        if (this.webSocketListener != null) {
+            Listener listener = this.webSocketListener;
+            Thread acceptor = new Thread(() -> this.accept(listener, this.webSocketService, false), "SimpleChatServer-websocket");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            acceptorThreads.add(acceptor);
+        }
+        this.accept(this.listeners.get(0), this.executorService, true);
+        for (Thread acceptor : acceptorThreads) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        SimpleChat.serverLogger.log(INFO, "... exited Thread ...");
+    }
+
+    /**
+     * Opens one Listener per acceptor if the transport can share the port (SO_REUSEPORT), otherwise a single
+     * shared one. The receive buffer is set before binding so that accepted sockets inherit windows larger than 64K.
+     *
+     * @throws IOException if a Listener could not be bound
+     */
+    private void openListeners() throws IOException {
+        this.options.setReusePort(this.acceptors > 1);
+        Listener first = this.transport.listen(this.port, this.options);
+        this.listeners.add(first);
+        boolean reusePort = first.isPortShared();
+        if (reusePort) {
+            // port 0 would give every listener another port, so the others use the one the first got
+            for (int i = 1; i < this.acceptors; i++) {
+                this.listeners.add(this.transport.listen(first.getLocalPort(), this.options));
+            }
+        }
+        if (this.webSocketPort != null) {
+            this.webSocketListener = this.webSocket.listen(this.webSocketPort, this.options);
+            SimpleChat.serverLogger.log(INFO, "WebSocket on port " + this.webSocketListener.getLocalPort());
+        }
+        Startup.mark(Startup.Milestone.NETWORK);
+        SimpleChat.serverLogger.log(INFO, "Listening on port " + first.getLocalPort() + " with "
+                + this.acceptors + " acceptor(s), transport=" + this.transport + ", backlog="
+                + this.options.getBacklog() + " SO_REUSEPORT=" + reusePort);
+    }
+
+    private void closeListeners() {
+        List<Listener> all = new ArrayList<>(this.listeners);
+        if (this.webSocketListener != null)
+            all.add(this.webSocketListener);
+        for (Listener listener : all) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                SimpleChat.serverLogger.log(SEVERE, "Exception while closing listener: " + e);
+            }
         }
+    }
+
+    /**
+     * Accept loop of one acceptor. The accepted connection is handed to the ExecutorService right away,
+     * the ClientWorker registers its name itself so accepting is not slowed down by that.
+     *
+     * @param listener Listener this acceptor is waiting on
+     * @param executor ExecutorService the ClientWorkers of this Listener run in
+     * @param secure   false if the TLS context of the server does not apply to this Listener
+     */
+    private void accept(Listener listener, ExecutorService executor, boolean secure) {
         while (this.listening) {
+            Connection connection = null;
             try {
-                ClientWorker cw = new ClientWorker(this.serverSocket.accept(), this);
-                String name = server.addClient("");
-                SimpleChat.serverLogger.log(INFO, "New client: " + name);
-                workerList.put(cw, name);
-                executorService.execute(cw);
+                connection = listener.accept();
+                Startup.mark(Startup.Milestone.FIRST_ACCEPT);
+                executor.execute(new ClientWorker(connection, this, secure));
+            } catch (RejectedExecutionException e) {
+                SimpleChat.serverLogger.log(INFO, "Rejected client, server is shutting down");
+                this.closeQuietly(connection);
             } catch (IOException e) {
+                this.closeQuietly(connection);
                 // Only print if we are still listening, else we wanted to close the connection anyway.
                 if(this.listening) {
                     SimpleChat.serverLogger.log(SEVERE, "Error on accept client: " + e.getMessage());
-                    e.printStackTrace();
                 }
             }
         }
-        SimpleChat.serverLogger.log(INFO, "... exited Thread ...");
+    }
+
+    private void closeQuietly(Connection connection) {
+        if (connection == null)
+            return;
+        try {
+            connection.close();
+        } catch (IOException e) {
+            SimpleChat.serverLogger.log(WARNING, "Error while closing connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called by the ClientWorker Thread before it starts reading, so the name allocation runs
+     * outside of the accept loop. The UI learns the name only when the worker can be reached by it.
+     *
+     * @param worker ClientWorker which got a new connection
+     */
+    void register(ClientWorker worker) {
+        RegistryEvent event = new RegistryEvent();
+        event.begin();
+        String name = this.server.getRegistry().add("");
+        Session session = this.sessions.open(name);
+        SimpleChat.serverLogger.log(INFO, "New client: " + session);
+        this.workerList.put(worker, session);
+        this.workersByName.put(name, worker);
+        this.server.clientAdded(name);
+        this.presence.joined(name);
+        if (this.cluster != null)
+            this.cluster.joined(name);
+        this.sendPending(name, worker);
+        this.registered(event, "Add", name);
+    }
+
+    /**
+     * Commits the event of a name change if a recording wants it
+     */
+    private void registered(RegistryEvent event, String operation, String name) {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.chatName = name;
+            event.clients = this.server.getRegistry().size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Messages which could not be delivered before the last drain are kept by the chatName of their receiver.
+     *
+     * @param pendingByName undelivered messages by chatName, e.g. from {@link #drain(long, long, String)}
+     */
+    public void setPending(Map<String, List<String>> pendingByName) {
+        this.pendingByName.putAll(pendingByName);
+    }
+
+    private void sendPending(String chatName, ClientWorker worker) {
+        List<String> pending = this.pendingByName.remove(chatName);
+        if (pending == null)
+            return;
+        SimpleChat.serverLogger.log(INFO, "Sending " + pending.size() + " kept messages to " + chatName);
+        for (String message : pending) {
+            worker.send(message);
+        }
     }
 
     /**
@@ -95,26 +578,91 @@ public class SimpleChatServer extends Thread {
      * @param sender       {@link ClientWorker} which received the message
      */
     public void received(String plainMessage, ClientWorker sender) {
-        SimpleChat.serverLogger.log(INFO, "Received message: " + plainMessage);
-        String message = MessageProtocol.textMessage(plainMessage, this.workerList.get(sender));
-        this.send(message);
-        this.server.incomingMessage(message);
+        this.received(ByteBuffer.wrap(plainMessage.getBytes(StandardCharsets.UTF_8)), sender);
+    }
+
+    /**
+     * Callback method for client worker to inform server of new message arrival.
+     * The frame for the clients is built directly from the bytes, the text is decoded once for the UI and the cluster.
+     *
+     * @param line   UTF-8 MessageText without line terminator, only valid during this call
+     * @param sender {@link ClientWorker} which received the message
+     */
+    void received(ByteBuffer line, ClientWorker sender) {
+        Session session = this.workerList.get(sender);
+        if (session == null)
+            return;
+        Startup.mark(Startup.Milestone.FIRST_MESSAGE);
+        byte[] prefix = session.getPrefix();
+        FrameBuffer frame = this.bufferPool.allocate(prefix.length + line.remaining() + 1)
+                .put(prefix).put(line).put((byte) '\n').flip();
+        try {
+            this.sendLocal(frame);
+            String message = frame.text();
+            if (SimpleChat.serverLogger.isLoggable(INFO))
+                SimpleChat.serverLogger.log(INFO, "Received message: " + message);
+            if (this.cluster != null)
+                this.cluster.broadcast(message);
+            this.server.incomingMessage(message);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Checks the id of a chat line, see {@link MessageProtocol.Commands#ID}
+     *
+     * @param sender ClientWorker which received the line
+     * @param id     message id of the client
+     * @return true if the client did not send the id lately
+     */
+    boolean accept(ClientWorker sender, String id) {
+        Deduplication.Window window = sender.getMessageIds();
+        if (window == null) {
+            window = this.deduplication.take(sender.getClaim());
+            sender.setMessageIds(window);
+        }
+        return this.deduplication.accept(window, id);
     }
 
     /**
-     * Sending messages to clients through communication framework
+     * Sending messages to clients through communication framework.
+     * The message is encoded only once for all clients, only clients with compression
+     * have to deflate it again with their own context.
+     * In a cluster the message is also forwarded to every other node.
      *
      * @param message MessageText with sender ChatName
      */
     public void send(String message) {
         SimpleChat.serverLogger.log(INFO, "Send message to all: " + message);
+        this.sendLocal(message);
+        if (this.cluster != null)
+            this.cluster.broadcast(message);
+    }
+
+    private void sendLocal(String message) {
+        this.sendLocal(FrameBuffer.wrap(LineWriter.encode(message)));
+    }
+
+    private void sendLocal(FrameBuffer frame) {
+        FanOutEvent event = new FanOutEvent();
+        event.begin();
+        int recipients = 0;
         for (ClientWorker cw : this.workerList.keySet()) {
-            cw.send(message);
+            cw.send(frame);
+            recipients++;
+        }
+        this.reliable.offer(frame);
+        if (event.shouldCommit()) {
+            event.size = frame.length();
+            event.recipients = recipients;
+            event.commit();
         }
     }
 
     /**
-     * Sending message to one client through communication framework
+     * Sending message to one client through communication framework.
+     * In a cluster a receiver on another node gets the message through the node owning it.
      *
      * @param message  MessageText with sender ChatName
      * @param receiver ChatName of receiving Client
@@ -122,7 +670,273 @@ public class SimpleChatServer extends Thread {
     public void send(String message, String receiver) {
         ClientWorker cw = this.getWorker(receiver);
         if(cw != null) cw.send(message);
-        else SimpleChat.serverLogger.log(WARNING, "Could not send message to '" + receiver + "'. Client was not found");
+        else if(this.cluster == null || !this.cluster.sendPrivate(message, receiver))
+            SimpleChat.serverLogger.log(WARNING, "Could not send message to '" + receiver + "'. Client was not found");
+    }
+
+    /**
+     * Direct message of a client, see {@link MessageProtocol.Commands#PRIVATE}.
+     * <br>
+     * The line is not decoded, only the target list is. The frame "[sender] {targets} text" is built once and
+     * queued for every local target and the sender, in one pass over the targets with a lookup in the name index.
+     * Targets of other cluster nodes get it through their node, unknown targets are reported back to the sender.
+     *
+     * @param line   "{chatName,chatName} text" as UTF-8, only valid during this call
+     * @param sender ClientWorker which received the message
+     */
+    void direct(ByteBuffer line, ClientWorker sender) {
+        Session session = this.workerList.get(sender);
+        if (session == null)
+            return;
+        while (line.hasRemaining() && line.get(line.position()) == ' ')
+            line.get();
+        int close = -1;
+        if (line.hasRemaining() && line.get(line.position()) == '{') {
+            for (int i = line.position() + 1; i < line.limit() && close < 0; i++) {
+                if (line.get(i) == '}')
+                    close = i;
+            }
+        }
+        String command = MessageProtocol.getMessage(PRIVATE) + " " + MessageProtocol.ERROR + " ";
+        if (close < 0) {
+            SimpleChat.serverLogger.log(WARNING, "Malformed private command from " + session);
+            sender.send(command + "{chatName,chatName} text");
+            return;
+        }
+        ByteBuffer targets = line.duplicate();
+        targets.position(line.position() + 1).limit(close);
+        byte[] prefix = session.getPrefix();
+        FrameBuffer frame = this.bufferPool.allocate(prefix.length + line.remaining() + 1)
+                .put(prefix).put(line).put((byte) '\n').flip();
+        try {
+            Set<ClientWorker> receivers = new HashSet<>();
+            List<String> unknown = new ArrayList<>();
+            String message = null;
+            for (String target : StandardCharsets.UTF_8.decode(targets).toString().split(",")) {
+                String chatName = target.trim();
+                if (chatName.isEmpty())
+                    continue;
+                ClientWorker cw = this.workersByName.get(chatName);
+                if (cw != null) {
+                    if (receivers.add(cw))
+                        cw.send(frame);
+                    continue;
+                }
+                if (message == null)
+                    message = frame.text();
+                if (this.cluster == null || !this.cluster.sendPrivate(message, chatName))
+                    unknown.add(chatName);
+            }
+            if (receivers.add(sender))
+                sender.send(frame);
+            if (!unknown.isEmpty())
+                sender.send(command + String.join(",", unknown));
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * A client finished an upload: every receiver gets a cursor on the temp file and the sender the number
+     * of receivers. Files stay on this node, receivers on other cluster nodes and WebSocket clients do not get them.
+     *
+     * @param transfer complete upload, its first reference is given up here
+     * @param sender   ClientWorker which received the upload
+     */
+    void fileUploaded(FileTransfer transfer, ClientWorker sender) {
+        try {
+            Session session = this.workerList.get(sender);
+            if (session == null)
+                return;
+            transfer.complete(session.getName());
+            List<ClientWorker> receivers = new ArrayList<>();
+            List<String> unknown = new ArrayList<>();
+            if (transfer.getTargets() == null) {
+                receivers.addAll(this.workerList.keySet());
+            } else {
+                for (String target : transfer.getTargets().split(",")) {
+                    String chatName = target.trim();
+                    ClientWorker cw = this.workersByName.get(chatName);
+                    if (cw != null && !receivers.contains(cw))
+                        receivers.add(cw);
+                    else if (cw == null && !chatName.isEmpty())
+                        unknown.add(chatName);
+                }
+            }
+            int count = 0;
+            for (ClientWorker cw : receivers) {
+                if (cw != sender && cw.isBinary()) {
+                    cw.send(transfer.cursor());
+                    count++;
+                }
+            }
+            String command = MessageProtocol.getMessage(FILE) + " ";
+            if (!unknown.isEmpty())
+                sender.send(command + MessageProtocol.ERROR + " " + transfer.getUploadId() + " unknown " + String.join(",", unknown));
+            sender.send(command + MessageProtocol.DONE + " " + transfer.getUploadId() + " " + count);
+            String message = MessageProtocol.textMessage("sent " + transfer, session.getName());
+            SimpleChat.serverLogger.log(INFO, "File to " + count + " receivers: " + message);
+            this.server.incomingMessage(message);
+        } finally {
+            transfer.release();
+        }
+    }
+
+    /**
+     * Broadcast of another cluster node for the clients of this node
+     *
+     * @param message MessageText with sender ChatName
+     */
+    void deliver(String message) {
+        this.sendLocal(message);
+        this.server.incomingMessage(message);
+    }
+
+    /**
+     * Private message of another cluster node for a client of this node
+     *
+     * @param message  MessageText
+     * @param receiver ChatName of a local Client
+     */
+    void deliver(String message, String receiver) {
+        ClientWorker cw = this.getWorker(receiver);
+        if(cw != null) cw.send(message);
+    }
+
+    /**
+     * Answers a {@link MessageProtocol.Commands#SEARCH} of a client with one line per hit and a closing line
+     *
+     * @param query  search query of the client
+     * @param worker ClientWorker of the client
+     */
+    void search(String query, ClientWorker worker) {
+        String command = MessageProtocol.getMessage(SEARCH) + " ";
+        try {
+            List<SearchHit> hits = this.server.search(query);
+            for (SearchHit hit : hits) {
+                worker.send(command + hit);
+            }
+            worker.send(command + MessageProtocol.END + " " + hits.size());
+        } catch (IllegalArgumentException e) {
+            worker.send(command + MessageProtocol.ERROR + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers a {@link MessageProtocol.Commands#PRESENCE} of a client
+     *
+     * @param worker    ClientWorker of the client
+     * @param subscribe false ends the subscription
+     */
+    void subscribePresence(ClientWorker worker, boolean subscribe) {
+        if (subscribe)
+            this.presence.subscribe(worker);
+        else
+            this.presence.unsubscribe(worker);
+    }
+
+    /**
+     * Answers a {@link MessageProtocol.Commands#RELIABLE} of a client. A known token resumes the old window,
+     * the messages after lastSequence are sent again before any new message.
+     *
+     * @param worker ClientWorker of the client
+     * @param param  empty, or token and last received sequence number of an earlier connection
+     * @throws IOException if the answer could not be sent
+     */
+    void reliable(ClientWorker worker, String param) throws IOException {
+        String[] split = param.trim().split(" ");
+        String token = null;
+        long lastSequence = 0;
+        if (split.length == 2) {
+            try {
+                lastSequence = Long.parseLong(split[1]);
+                token = split[0];
+            } catch (NumberFormatException e) {
+                SimpleChat.serverLogger.log(WARNING, "Malformed reliable command: " + param);
+            }
+        }
+        ReliableWindow window = this.reliable.attach(token, worker);
+        worker.resume(window, lastSequence, MessageProtocol.getMessage(RELIABLE) + " " + window.getToken());
+    }
+
+    /**
+     * Answers a {@link MessageProtocol.Commands#CLAIM} of a client. A valid token gives the client the name of the
+     * token back, an older connection still holding it is closed. Otherwise the client gets a token for its
+     * current name, or keeps the one it has.
+     *
+     * @param worker ClientWorker of the client
+     * @param param  empty or the token of an earlier connection
+     */
+    void claim(ClientWorker worker, String param) {
+        String token = param.trim();
+        String name = token.isEmpty() ? null : this.reservations.claim(token, worker);
+        if (name != null) {
+            ClientWorker old = this.getWorker(name);
+            if (old != null && old != worker) {
+                SimpleChat.serverLogger.log(INFO, "Name " + name + " is claimed by a new connection");
+                this.removeClient(old);
+            }
+            if (worker.getClaim() != null && !worker.getClaim().equals(token))
+                this.reservations.release(worker.getClaim());
+            worker.setClaim(token);
+            this.setName(name, worker);
+        }
+        Session session = this.workerList.get(worker);
+        if (session == null)
+            return;
+        if (worker.getClaim() == null)
+            worker.setClaim(this.reservations.issue(session.getName(), worker));
+        // the claimed name may have been taken by a client of another cluster node
+        this.reservations.renamed(worker.getClaim(), session.getName());
+        worker.send(MessageProtocol.getMessage(CLAIM) + " " + worker.getClaim() + " " + session.getName());
+    }
+
+    /**
+     * @return chatNames of the clients connected to this server, without clients of other cluster nodes
+     */
+    String[] getLocalClients() {
+        return this.workerList.values().stream().map(Session::getName).toArray(String[]::new);
+    }
+
+    /**
+     * @param chatName name to check
+     * @return true if a client of this server has the name
+     */
+    boolean isLocalClient(String chatName) {
+        return this.getWorker(chatName) != null;
+    }
+
+    /**
+     * Another cluster node keeps the name, so our client gets a new unique one
+     *
+     * @param chatName name which now belongs to a client of another node
+     */
+    void yieldName(String chatName) {
+        ClientWorker worker = this.getWorker(chatName);
+        if (worker == null)
+            return;
+        String name = this.server.getRegistry().add(chatName);
+        SimpleChat.serverLogger.log(INFO, "Name " + chatName + " is taken in the cluster, renamed to " + name);
+        this.rename(worker, name);
+        this.server.clientAdded(name);
+        this.presence.joined(name);
+        this.cluster.joined(name);
+    }
+
+    /**
+     * @param chatName client of another cluster node which joined
+     */
+    void remoteJoined(String chatName) {
+        if (this.server.addRemoteClient(chatName))
+            this.presence.joined(chatName);
+    }
+
+    /**
+     * @param chatName client of another cluster node which left
+     */
+    void remoteLeft(String chatName) {
+        this.server.removeClient(chatName);
+        this.presence.left(chatName);
     }
 
     /**
@@ -131,12 +945,7 @@ public class SimpleChatServer extends Thread {
      * @return The ClientWorker if found else null
      */
     private ClientWorker getWorker(String chatName) {
-        for (Map.Entry<ClientWorker, String> e : this.workerList.entrySet()) {
-            if (e.getValue().equals(chatName)) {
-                return e.getKey();
-            }
-        }
-        return null;
+        return chatName != null ? this.workersByName.get(chatName) : null;
     }
 
     /**
@@ -147,8 +956,35 @@ public class SimpleChatServer extends Thread {
      * @param worker   ClientWorker Thread which was initiating the renaming
      */
     void setName(String chatName, ClientWorker worker) {
-        String name = this.server.renameClient(this.workerList.get(worker), chatName);
-        this.workerList.replace(worker, name);
+        Session session = this.workerList.get(worker);
+        if (session == null)
+            return;
+        RegistryEvent event = new RegistryEvent();
+        event.begin();
+        String oldName = session.getName();
+        String name = this.server.getRegistry().rename(oldName, chatName);
+        if (name == null || name.equals(oldName))
+            return;
+        this.rename(worker, name);
+        this.server.clientRenamed(oldName, name);
+        this.presence.renamed(oldName, name);
+        if (this.cluster != null) {
+            this.cluster.left(oldName);
+            this.cluster.joined(name);
+        }
+        this.sendPending(name, worker);
+        this.registered(event, "Rename", name);
+    }
+
+    private void rename(ClientWorker worker, String name) {
+        Session session = this.workerList.get(worker);
+        if (session == null)
+            return;
+        this.workerList.computeIfPresent(worker, (w, s) -> this.sessions.rename(s, name));
+        this.workersByName.remove(session.getName(), worker);
+        this.workersByName.put(name, worker);
+        if (worker.getClaim() != null)
+            this.reservations.renamed(worker.getClaim(), name);
     }
 
     /**
@@ -161,28 +997,59 @@ public class SimpleChatServer extends Thread {
         if(worker == null) {
             return;
         }
-        String chatName = workerList.get(worker);
-        if(chatName != null) {
+        Session session = this.workerList.remove(worker);
+        if(session != null) {
+            String chatName = session.getName();
+            this.sessions.close(session);
+            this.workersByName.remove(chatName, worker);
             this.server.removeClient(chatName);
+            this.presence.unsubscribe(worker);
+            this.presence.left(chatName);
+            if (this.cluster != null)
+                this.cluster.left(chatName);
+            if (worker.getClaim() != null)
+                this.reservations.left(worker.getClaim(), worker);
+            this.deduplication.park(worker.getClaim(), worker.getMessageIds());
         }
         worker.shutdown();
-        this.workerList.remove(worker);
+        this.reliable.park(worker);
     }
 
     /**
      * Gets the ClientWorker of the given chatName and calls the private Method {@link #removeClient(String)}
      * This method will remove the worker from the list shutdown the ClientWorker and also inform GUI about removal.
+     * A client of another cluster node is kicked by that node.
      *
      * @param chatName Client name which should be removed
      */
     public void removeClient(String chatName) {
-        this.removeClient(this.getWorker(chatName));
+        ClientWorker worker = this.getWorker(chatName);
+        if (worker == null && this.cluster != null)
+            this.cluster.kick(chatName);
+        this.removeClient(worker);
+    }
+
+    /**
+     * Disconnects the local client with the given session id like {@link #removeClient(String)}
+     *
+     * @param sessionId id of an open session of this server
+     * @return false if no open session has the id
+     */
+    public boolean removeSession(int sessionId) {
+        Session session = this.sessions.get(sessionId);
+        if (session == null)
+            return false;
+        ClientWorker worker = this.workersByName.get(session.getName());
+        if (worker == null || this.workerList.get(worker) != session)
+            return false;
+        this.removeClient(worker);
+        return true;
     }
 
     /**
      * Clean shutdown of all connected Clients.<br>
      * ExecutorService will stop accepting new Thread inits.
-     * After notifying all clients, ServerSocket will be closed and ExecutorService will try to shutdown all
+     * After notifying all clients, the Listeners will be closed and ExecutorService will try to shutdown all
      * active ClientWorker Threads.
      */
     public void shutdown() {
@@ -191,135 +1058,66 @@ public class SimpleChatServer extends Thread {
         for(ClientWorker cw : this.workerList.keySet()) {
             cw.shutdown();
         }
-        try {
-            this.serverSocket.close();
-        } catch (IOException e) {
-            SimpleChat.serverLogger.log(SEVERE, "Exception while closing serverSocket: " + e);
-        }
+        this.closeListeners();
+        if (this.cluster != null)
+            this.cluster.shutdown();
+        if (this.admin != null)
+            this.admin.shutdown();
+        this.presence.shutdown();
+        this.reliable.shutdown();
+        this.reservations.close();
+        this.deduplication.shutdown();
         this.executorService.shutdownNow();
+        this.webSocketService.shutdownNow();
+        this.writerService.shutdownNow();
     }
-}
-
-/**
- * Thread for client socket connection.<br>
- * Every client has to be handled by an own Thread.
- */
-class ClientWorker implements Runnable {
-    private Socket client;
-    private PrintWriter out;
-    private BufferedReader in;
-
-    private SimpleChatServer callback;
-    private boolean listening = true;
 
     /**
-     * Init of ClientWorker-Thread for socket intercommunication
-     *
-     * @param client   Socket got from ServerSocket.accept()
-     * @param callback {@link simplechat.communication.socket.server.SimpleChatServer} reference
-     * @throws IOException will be throwed if the init of Input- or OutputStream fails
-     */
-    ClientWorker(Socket client, SimpleChatServer callback) throws IOException {
-        this.client = client;
-        this.out = new PrintWriter(client.getOutputStream(), true);
-        this.in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-        this.callback = callback;
-    }
-
-    /**
-     * MessageHandler for incoming Messages on Client Socket
+     * Graceful shutdown for restarts.
      * <br>
-     * The InputSocket will be read synchronous through readLine()
-     * Incoming messages first will be checked if they start with any Commands, which will be executed properly.
-     * Otherwise text messages will be delegated to the {@link SimpleChatServer#received(String, ClientWorker)} method.
-     */
-    @Override
-    public void run() {
-        try {
-            String message;
-            while ((message = this.in.readLine()) != null && this.listening) {
-                if (message.startsWith("!")) {
-                    String[] split = message.split(" ", 2);
-                    String cmd = split[0];
-                    String param = split.length > 1 ? split[1] : "";
-                    MessageProtocol.Commands command;
-                    try {
-                        command = MessageProtocol.getCommand(cmd);
-                        SimpleChat.serverLogger.log(WARNING, "Command: " + command);
-                    } catch (IllegalArgumentException e) {
-                        continue;
-                    }
-                    switch (command) {
-                        case EXIT:
-                            this.shutdown();
-                            break;
-                        case CHATNAME:
-                            if(!param.trim().isEmpty()) {
-                                this.callback.setName(split[1], this);
-                            }
-                            break;
-                        case PRIVATE:
-                            final String regex = "^\\{(?<clients>(?:\\S+,? ?)+)\\} ?(?<text>.*)$";
-                            SimpleChat.serverLogger.log(INFO, "Param is: '" + param + "'");
-                            final Matcher matcher = Pattern.compile(regex).matcher(param);
-                            if(matcher.find()) {
-                                String text = matcher.group("text");
-                                String clientsString = matcher.group("clients");
-                                String[] clients = clientsString.split(",");
-                                for (String client : clients) {
-                                    this.callback.send(text, client.trim());
-                                }
-                            } else {
-                                SimpleChat.serverLogger.log(WARNING, "Malformed private command: " + param);
-                            }
-                            break;
-                        default:
-                            SimpleChat.serverLogger.log(WARNING, "Unhandled command: " + command);
-                    }
-                } else {
-                    this.callback.received(message, this);
-                }
-            }
-            this.out.close();
-        } catch (IOException e) {
-            SimpleChat.serverLogger.log(INFO, "Exception in reading line.");
-        } finally {
-            this.callback.removeClient(this);
-        }
-    }
-
-    /**
-     * Clean shutdown of ClientWorker
-     * <br>
-     * If listening was still true, we are sending a {@link MessageProtocol.Commands#EXIT} to the client.
-     * Finally we are closing all open resources.
-     */
-    void shutdown() {
-        SimpleChat.serverLogger.log(INFO, "Shutting down ClientWorker ... listening=" + listening);
-        if(listening) {
-            this.send(MessageProtocol.getMessage(EXIT));
-            this.listening = false;
-        }
-        try {
-            this.out.close();
-            this.in.close();
-            this.client.close();
-        } catch (IOException e) {
-            SimpleChat.serverLogger.log(WARNING, "Error while closing client connection: " + e.getMessage());
-        }
-    }
-
-    /**
-     * Sending message through Socket OutputStream {@link #out}
+     * New connections are refused at once. Every client gets a {@link MessageProtocol.Commands#RECONNECT}
+     * behind its pending messages. The retry hints are spread between retryMillis and twice that value,
+     * so the clients do not all come back at the same moment. Until the deadline the pending messages
+     * are flushed, afterwards the connections are closed without {@link MessageProtocol.Commands#EXIT}.
      *
-     * @param message MessageText for Client
+     * @param timeoutMillis time for flushing all clients
+     * @param retryMillis   minimum time the clients should wait before reconnecting
+     * @param redirect      host:port the clients should connect to instead, null for this server
+     * @return messages which could not be sent until the deadline, by chatName of the receiver
      */
-    void send(String message) {
-        try {
-            this.out.println(message);
-        } catch (Exception e) {
-            SimpleChat.serverLogger.log(SEVERE, "Exception while sending: " + e.getMessage());
-            this.shutdown();
+    public Map<String, List<String>> drain(long timeoutMillis, long retryMillis, String redirect) {
+        SimpleChat.serverLogger.log(INFO, "Draining " + this.workerList.size() + " clients ...");
+        this.listening = false;
+        this.closeListeners();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Random random = new Random();
+        String command = MessageProtocol.getMessage(RECONNECT) + " ";
+        for (ClientWorker cw : this.workerList.keySet()) {
+            long hint = retryMillis + (retryMillis > 0 ? (long) (random.nextDouble() * retryMillis) : 0);
+            cw.send(command + hint + (redirect != null ? " " + redirect : ""));
         }
+        Map<String, List<String>> undelivered = new HashMap<>();
+        for (Map.Entry<ClientWorker, Session> e : this.workerList.entrySet()) {
+            ClientWorker cw = e.getKey();
+            if (!cw.awaitFlushed(deadline)) {
+                List<String> pending = cw.takePending();
+                if (!pending.isEmpty())
+                    undelivered.put(e.getValue().getName(), pending);
+            }
+            cw.close();
+        }
+        SimpleChat.serverLogger.log(INFO, "Drained, " + undelivered.size() + " clients had undelivered messages");
+        this.executorService.shutdown();
+        this.webSocketService.shutdown();
+        this.writerService.shutdown();
+        if (this.cluster != null)
+            this.cluster.shutdown();
+        if (this.admin != null)
+            this.admin.shutdown();
+        this.presence.shutdown();
+        this.reliable.shutdown();
+        this.reservations.close();
+        this.deduplication.shutdown();
+        return undelivered;
     }
 }
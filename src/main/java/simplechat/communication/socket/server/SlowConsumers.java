@@ -0,0 +1,170 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policy for clients which read slower than the chat writes.
+ * <br>
+ * The lag of a connection is the number of bytes in its send queue and the age of the oldest message it did not
+ * get yet. Above the degrade limits the client only gets the latest {@link #getKeep()} text messages of its queue,
+ * the skipped ones are summed up in a {@link MessageProtocol.Commands#LAG} line. Reliable clients are not degraded,
+ * their window already keeps what they missed. Above the disconnect limits the connection is closed.
+ * <br>
+ * The lag of every flush is recorded, so the distributions on the admin port show where the limits should be.
+ */
+public class SlowConsumers {
+
+    /**
+     * Decision for the current lag of a connection
+     */
+    enum State {
+        NORMAL,
+        DEGRADED,
+        DISCONNECT
+    }
+
+    /**
+     * Milliseconds a message may wait before the client is degraded, if nothing else is configured
+     */
+    public static final long DEFAULT_DEGRADE_MILLIS = 2000;
+
+    /**
+     * Queued bytes before the client is degraded, if nothing else is configured
+     */
+    public static final long DEFAULT_DEGRADE_BYTES = 1024 * 1024;
+
+    /**
+     * Milliseconds a message may wait before the client is disconnected, if nothing else is configured
+     */
+    public static final long DEFAULT_DISCONNECT_MILLIS = 30_000;
+
+    /**
+     * Queued bytes before the client is disconnected, if nothing else is configured
+     */
+    public static final long DEFAULT_DISCONNECT_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Latest text messages a degraded client still gets, if nothing else is configured
+     */
+    public static final int DEFAULT_KEEP = 50;
+
+    private final long degradeMillis;
+    private final long degradeBytes;
+    private final long disconnectMillis;
+    private final long disconnectBytes;
+    private final int keep;
+
+    private final AtomicLong degraded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+    private final Histogram lagMillis = new Histogram();
+    private final Histogram lagBytes = new Histogram();
+
+    /**
+     * Policy with the default limits
+     */
+    public SlowConsumers() {
+        this(DEFAULT_DEGRADE_MILLIS, DEFAULT_DEGRADE_BYTES, DEFAULT_DISCONNECT_MILLIS, DEFAULT_DISCONNECT_BYTES,
+                DEFAULT_KEEP);
+    }
+
+    /**
+     * @param degradeMillis    age of the oldest queued message which degrades the client
+     * @param degradeBytes     queued bytes which degrade the client
+     * @param disconnectMillis age of the oldest queued message which disconnects the client
+     * @param disconnectBytes  queued bytes which disconnect the client
+     * @param keep             latest text messages a degraded client still gets
+     */
+    public SlowConsumers(long degradeMillis, long degradeBytes, long disconnectMillis, long disconnectBytes, int keep) {
+        this.degradeMillis = degradeMillis;
+        this.degradeBytes = degradeBytes;
+        this.disconnectMillis = disconnectMillis;
+        this.disconnectBytes = disconnectBytes;
+        this.keep = Math.max(1, keep);
+    }
+
+    /**
+     * @param millis age of the oldest message the client did not get yet
+     * @param bytes  bytes in the send queue of the client
+     * @return what to do with the client
+     */
+    State check(long millis, long bytes) {
+        if (millis >= this.disconnectMillis || bytes >= this.disconnectBytes)
+            return State.DISCONNECT;
+        if (millis >= this.degradeMillis || bytes >= this.degradeBytes)
+            return State.DEGRADED;
+        return State.NORMAL;
+    }
+
+    /**
+     * Records the lag of a connection after a flush of its writer
+     *
+     * @param millis milliseconds the oldest message of the flush waited until it was sent
+     * @param bytes  bytes in the send queue of the client when the flush started
+     */
+    void sample(long millis, long bytes) {
+        this.lagMillis.record(millis);
+        this.lagBytes.record(bytes);
+    }
+
+    /**
+     * @return latest text messages a degraded client still gets
+     */
+    public int getKeep() {
+        return this.keep;
+    }
+
+    void degraded() {
+        this.degraded.incrementAndGet();
+    }
+
+    void dropped(long messages) {
+        this.dropped.addAndGet(messages);
+    }
+
+    /**
+     * @param millis age of the oldest message the client did not get
+     * @param bytes  bytes left in the send queue of the client
+     */
+    void disconnected(long millis, long bytes) {
+        this.disconnected.incrementAndGet();
+        this.sample(millis, bytes);
+    }
+
+    /**
+     * @return number of times a client was degraded
+     */
+    public long getDegraded() {
+        return this.degraded.get();
+    }
+
+    /**
+     * @return text messages skipped for degraded clients
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return clients disconnected for their lag
+     */
+    public long getDisconnected() {
+        return this.disconnected.get();
+    }
+
+    /**
+     * @return milliseconds the oldest message of a flush waited until it was sent, recorded per flush
+     */
+    public Histogram getLagMillis() {
+        return this.lagMillis;
+    }
+
+    /**
+     * @return queued bytes when a flush started, recorded per flush
+     */
+    public Histogram getLagBytes() {
+        return this.lagBytes;
+    }
+}
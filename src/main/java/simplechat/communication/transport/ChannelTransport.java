@@ -0,0 +1,103 @@
+package simplechat.communication.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * NIO {@link ServerSocketChannel} and {@link SocketChannel} in blocking mode.
+ * <br>
+ * The streams are the ones of the socket adaptor: {@link java.nio.channels.Channels#newInputStream} would lock
+ * the channel for reading and writing together, which blocks the writer while the reader waits.
+ */
+public class ChannelTransport implements Transport {
+
+    /**
+     * Name of this transport
+     */
+    public static final String NAME = "nio";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Listener listen(int port, TransportOptions options) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            boolean shared = options.isReusePort()
+                    && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (shared)
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            if (options.getReceiveBufferSize() != null)
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, options.getReceiveBufferSize());
+            channel.bind(new InetSocketAddress(port), options.getBacklog());
+            return new ChannelListener(channel, options, shared);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection connect(String host, int port, int timeoutMillis, TransportOptions options) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            if (options != null)
+                options.configure(channel.socket());
+            // the adaptor honours the timeout, SocketChannel.connect has none
+            channel.socket().connect(new InetSocketAddress(host, port), timeoutMillis);
+            return new SocketConnection(channel.socket());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.getName();
+    }
+
+    private static class ChannelListener implements Listener {
+        private final ServerSocketChannel channel;
+        private final TransportOptions options;
+        private final boolean shared;
+
+        ChannelListener(ServerSocketChannel channel, TransportOptions options, boolean shared) {
+            this.channel = channel;
+            this.options = options;
+            this.shared = shared;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            SocketChannel client = this.channel.accept();
+            try {
+                this.options.configure(client.socket());
+            } catch (IOException e) {
+                client.close();
+                throw e;
+            }
+            return new SocketConnection(client.socket());
+        }
+
+        @Override
+        public int getLocalPort() {
+            return this.channel.socket().getLocalPort();
+        }
+
+        @Override
+        public boolean isPortShared() {
+            return this.shared;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package simplechat.communication.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * One connection between client and server, accepted or connected by a {@link Transport}.
+ * <br>
+ * Reading and writing happen in different Threads at the same time. Closing the connection makes
+ * a blocked read of the other side return the end of the stream.
+ */
+public interface Connection extends Closeable {
+
+    /**
+     * @return stream of the bytes sent by the other side
+     * @throws IOException if the connection is closed
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return stream to the other side, not buffered
+     * @throws IOException if the connection is closed
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return address of the other side for logging
+     */
+    String getRemoteAddress();
+
+    /**
+     * Channel of the socket for zero-copy writes, e.g. {@link java.nio.channels.FileChannel#transferTo}.
+     * The output stream has to be flushed before, both end up in the same socket.
+     *
+     * @return blocking channel to the other side, null if the connection has none
+     */
+    default WritableByteChannel getChannel() {
+        return null;
+    }
+
+    /**
+     * @return false if the connection only carries text lines, so raw bytes like file chunks cannot be sent
+     */
+    default boolean isBinary() {
+        return true;
+    }
+}
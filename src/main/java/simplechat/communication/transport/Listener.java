@@ -0,0 +1,30 @@
+package simplechat.communication.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Server side of a {@link Transport}, bound to a port
+ */
+public interface Listener extends Closeable {
+
+    /**
+     * Waits for the next client
+     *
+     * @return connection of the client, configured with the options of the listener
+     * @throws IOException if the listener was closed or accepting failed
+     */
+    Connection accept() throws IOException;
+
+    /**
+     * @return port the listener is bound to
+     */
+    int getLocalPort();
+
+    /**
+     * @return true if another listener can be bound to the same port, so the kernel spreads the clients
+     */
+    default boolean isPortShared() {
+        return false;
+    }
+}
@@ -0,0 +1,131 @@
+package simplechat.communication.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded byte ring buffer between a writing and a reading Thread, one direction of a {@link MemoryTransport}
+ * connection.
+ * <br>
+ * Unlike {@link java.io.PipedInputStream} it does not care which Threads read and write, and it does not poll.
+ * After {@link #close()} the reader gets the remaining bytes and then the end of the stream, the writer an IOException.
+ */
+final class MemoryPipe {
+
+    private final byte[] buffer;
+    private int head = 0;
+    private int size = 0;
+    private boolean closed = false;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return MemoryPipe.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MemoryPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return MemoryPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            MemoryPipe.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MemoryPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    /**
+     * @param capacity bytes the writer can be ahead of the reader
+     */
+    MemoryPipe(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return this.in;
+    }
+
+    OutputStream getOutputStream() {
+        return this.out;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (this.size == 0) {
+            if (this.closed)
+                return -1;
+            this.await();
+        }
+        int n = Math.min(len, this.size);
+        int first = Math.min(n, this.buffer.length - this.head);
+        System.arraycopy(this.buffer, this.head, b, off, first);
+        System.arraycopy(this.buffer, 0, b, off + first, n - first);
+        this.head = (this.head + n) % this.buffer.length;
+        this.size -= n;
+        this.notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (!this.closed && this.size == this.buffer.length) {
+                this.await();
+            }
+            if (this.closed)
+                throw new IOException("Connection closed");
+            int n = Math.min(len, this.buffer.length - this.size);
+            int tail = (this.head + this.size) % this.buffer.length;
+            int first = Math.min(n, this.buffer.length - tail);
+            System.arraycopy(b, off, this.buffer, tail, first);
+            System.arraycopy(b, off + first, this.buffer, 0, n - first);
+            this.size += n;
+            off += n;
+            len -= n;
+            this.notifyAll();
+        }
+    }
+
+    private synchronized int available() {
+        return this.size;
+    }
+
+    synchronized void close() {
+        this.closed = true;
+        this.notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            this.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
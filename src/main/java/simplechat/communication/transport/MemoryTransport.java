@@ -0,0 +1,166 @@
+package simplechat.communication.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connections inside the process, without the network: every direction is a {@link MemoryPipe}.
+ * <br>
+ * Ports are only known in this process and the host is ignored. Client and server have to run in the same JVM,
+ * so this transport is meant for tests and for benchmarking the server without the kernel.
+ */
+public class MemoryTransport implements Transport {
+
+    /**
+     * Name of this transport
+     */
+    public static final String NAME = "memory";
+
+    /**
+     * Bytes a writer can be ahead of its reader
+     */
+    public static final int PIPE_CAPACITY = 64 * 1024;
+
+    private static final Map<Integer, MemoryListener> listeners = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextPort = new AtomicInteger(1);
+    private static final AtomicInteger nextClient = new AtomicInteger(1);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Listener listen(int port, TransportOptions options) throws IOException {
+        if (port != 0) {
+            MemoryListener listener = new MemoryListener(port, options.getBacklog());
+            if (listeners.putIfAbsent(port, listener) != null)
+                throw new BindException("Memory port " + port + " already in use");
+            return listener;
+        }
+        while (true) {
+            int free = nextPort.getAndIncrement();
+            MemoryListener listener = new MemoryListener(free, options.getBacklog());
+            if (listeners.putIfAbsent(free, listener) == null)
+                return listener;
+        }
+    }
+
+    @Override
+    public Connection connect(String host, int port, int timeoutMillis, TransportOptions options) throws IOException {
+        MemoryListener listener = listeners.get(port);
+        if (listener == null)
+            throw new ConnectException("Connection refused: memory port " + port);
+        MemoryPipe up = new MemoryPipe(PIPE_CAPACITY);
+        MemoryPipe down = new MemoryPipe(PIPE_CAPACITY);
+        MemoryConnection client = new MemoryConnection(down, up, NAME + ":" + port);
+        MemoryConnection server = new MemoryConnection(up, down, NAME + "-client:" + nextClient.getAndIncrement());
+        if (!listener.pending.offer(server))
+            throw new ConnectException("Connection refused: backlog of memory port " + port + " is full");
+        if (listener.closed) {
+            // closed while we were connecting, nobody will accept
+            server.close();
+            throw new ConnectException("Connection refused: memory port " + port);
+        }
+        return client;
+    }
+
+    @Override
+    public String toString() {
+        return this.getName();
+    }
+
+    private static class MemoryConnection implements Connection {
+        private final MemoryPipe in;
+        private final MemoryPipe out;
+        private final String remote;
+
+        MemoryConnection(MemoryPipe in, MemoryPipe out, String remote) {
+            this.in = in;
+            this.out = out;
+            this.remote = remote;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return this.in.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return this.out.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return this.remote;
+        }
+
+        @Override
+        public void close() {
+            this.in.close();
+            this.out.close();
+        }
+
+        @Override
+        public String toString() {
+            return this.remote;
+        }
+    }
+
+    private static class MemoryListener implements Listener {
+        // put into the queue on close, so every waiting acceptor wakes up
+        private static final MemoryConnection CLOSED = new MemoryConnection(null, null, "closed");
+
+        private final int port;
+        private final BlockingQueue<MemoryConnection> pending;
+        private volatile boolean closed = false;
+
+        MemoryListener(int port, int backlog) {
+            this.port = port;
+            this.pending = new ArrayBlockingQueue<>(Math.max(backlog, 1));
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            MemoryConnection connection;
+            try {
+                connection = this.pending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Accept interrupted");
+            }
+            if (connection == CLOSED) {
+                this.pending.offer(CLOSED);
+                throw new SocketException("Listener closed");
+            }
+            return connection;
+        }
+
+        @Override
+        public int getLocalPort() {
+            return this.port;
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+            listeners.remove(this.port, this);
+            MemoryConnection connection;
+            while ((connection = this.pending.poll()) != null) {
+                if (connection != CLOSED)
+                    connection.close();
+            }
+            this.pending.offer(CLOSED);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package simplechat.communication.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Connection over a TCP socket, also used for the socket adaptor of a channel
+ */
+class SocketConnection implements Connection {
+
+    private final Socket socket;
+
+    SocketConnection(Socket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.socket.getOutputStream();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(this.socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public WritableByteChannel getChannel() {
+        // only sockets of a channel have one
+        return this.socket.getChannel();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    @Override
+    public String toString() {
+        return this.getRemoteAddress();
+    }
+}
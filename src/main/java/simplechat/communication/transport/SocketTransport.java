@@ -0,0 +1,93 @@
+package simplechat.communication.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Blocking {@link ServerSocket} and {@link Socket}, one Thread per connection. The default transport.
+ */
+public class SocketTransport implements Transport {
+
+    /**
+     * Name of this transport
+     */
+    public static final String NAME = "socket";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Listener listen(int port, TransportOptions options) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            boolean shared = options.configure(serverSocket);
+            serverSocket.bind(new InetSocketAddress(port), options.getBacklog());
+            return new SocketListener(serverSocket, options, shared);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection connect(String host, int port, int timeoutMillis, TransportOptions options) throws IOException {
+        Socket socket = new Socket();
+        try {
+            if (options != null)
+                options.configure(socket);
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            return new SocketConnection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.getName();
+    }
+
+    private static class SocketListener implements Listener {
+        private final ServerSocket serverSocket;
+        private final TransportOptions options;
+        private final boolean shared;
+
+        SocketListener(ServerSocket serverSocket, TransportOptions options, boolean shared) {
+            this.serverSocket = serverSocket;
+            this.options = options;
+            this.shared = shared;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            Socket socket = this.serverSocket.accept();
+            try {
+                this.options.configure(socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return new SocketConnection(socket);
+        }
+
+        @Override
+        public int getLocalPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        @Override
+        public boolean isPortShared() {
+            return this.shared;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package simplechat.communication.transport;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Service provider interface for the way client and server are connected.
+ * <br>
+ * A transport only moves bytes: it listens, accepts and connects, and hands out {@link Connection}s with
+ * plain streams. The codec on top (line framing with {@link simplechat.communication.socket.LineReader} and
+ * {@link simplechat.communication.socket.LineWriter}, TLS, deflate) is the same for every transport.
+ * <br>
+ * Implementations are found with {@link java.util.ServiceLoader}, see {@link Transports}.
+ */
+public interface Transport {
+
+    /**
+     * @return name used to choose the transport, e.g. on the command line with --transport
+     */
+    String getName();
+
+    /**
+     * @param port    port to listen on, 0 for any free one
+     * @param options socket options, ignored where they do not apply
+     * @return listener bound to the port
+     * @throws IOException if the port could not be bound
+     */
+    Listener listen(int port, TransportOptions options) throws IOException;
+
+    /**
+     * @param host          host of the server
+     * @param port          port of the server
+     * @param timeoutMillis connect timeout
+     * @param options       socket options, ignored where they do not apply, null for the defaults of the OS
+     * @return connected connection
+     * @throws IOException if the server is not reachable
+     */
+    Connection connect(String host, int port, int timeoutMillis, TransportOptions options) throws IOException;
+
+    /**
+     * @return executor running one blocking task per connection, the server reads and writes with it
+     */
+    default ExecutorService newExecutor() {
+        return Executors.newCachedThreadPool();
+    }
+}
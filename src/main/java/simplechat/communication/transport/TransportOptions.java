@@ -0,0 +1,117 @@
+package simplechat.communication.transport;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+
+/**
+ * Socket options for listeners and connections of a {@link Transport}, null keeps the default of the OS
+ */
+public class TransportOptions {
+
+    private int backlog = 50;
+    private boolean tcpNoDelay = true;
+    private boolean reusePort = false;
+    private Integer sendBufferSize = null;
+    private Integer receiveBufferSize = null;
+
+    /**
+     * @param backlog maximum length of the kernel queue for pending connections, null keeps the default
+     */
+    public void setBacklog(Integer backlog) {
+        if (backlog != null)
+            this.backlog = backlog;
+    }
+
+    /**
+     * @return maximum length of the kernel queue for pending connections
+     */
+    public int getBacklog() {
+        return this.backlog;
+    }
+
+    /**
+     * @param tcpNoDelay true disables Nagle's algorithm
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @return true if Nagle's algorithm is disabled
+     */
+    public boolean isTcpNoDelay() {
+        return this.tcpNoDelay;
+    }
+
+    /**
+     * @param reusePort true binds listeners with SO_REUSEPORT where it is supported
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * @return true if listeners are bound with SO_REUSEPORT where it is supported
+     */
+    public boolean isReusePort() {
+        return this.reusePort;
+    }
+
+    /**
+     * @param sendBufferSize SO_SNDBUF, null keeps the OS default
+     */
+    public void setSendBufferSize(Integer sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * @return SO_SNDBUF, null for the OS default
+     */
+    public Integer getSendBufferSize() {
+        return this.sendBufferSize;
+    }
+
+    /**
+     * @param receiveBufferSize SO_RCVBUF, null keeps the OS default
+     */
+    public void setReceiveBufferSize(Integer receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * @return SO_RCVBUF, null for the OS default
+     */
+    public Integer getReceiveBufferSize() {
+        return this.receiveBufferSize;
+    }
+
+    /**
+     * Sets the options which must be set before binding, so that accepted sockets inherit windows larger than 64K
+     *
+     * @param serverSocket unbound server socket
+     * @return true if SO_REUSEPORT was set
+     * @throws IOException if an option could not be set
+     */
+    boolean configure(ServerSocket serverSocket) throws IOException {
+        boolean shared = this.reusePort && serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (shared)
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        if (this.receiveBufferSize != null)
+            serverSocket.setReceiveBufferSize(this.receiveBufferSize);
+        return shared;
+    }
+
+    /**
+     * @param socket accepted or unconnected socket
+     * @throws IOException if an option could not be set
+     */
+    void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(this.tcpNoDelay);
+        if (this.sendBufferSize != null)
+            socket.setSendBufferSize(this.sendBufferSize);
+        if (this.receiveBufferSize != null)
+            socket.setReceiveBufferSize(this.receiveBufferSize);
+    }
+}
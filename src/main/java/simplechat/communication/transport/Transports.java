@@ -0,0 +1,44 @@
+package simplechat.communication.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Finds the {@link Transport}s registered in META-INF/services with {@link ServiceLoader}
+ */
+public final class Transports {
+
+    /**
+     * Name of the transport used if none is chosen
+     */
+    public static final String DEFAULT = SocketTransport.NAME;
+
+    private Transports() {
+    }
+
+    /**
+     * @param name name of the transport, null for {@link #DEFAULT}
+     * @return a new instance of the transport
+     * @throws IllegalArgumentException if no transport has this name
+     */
+    public static Transport get(String name) {
+        String wanted = name != null ? name : DEFAULT;
+        for (Transport transport : ServiceLoader.load(Transport.class)) {
+            if (transport.getName().equals(wanted))
+                return transport;
+        }
+        throw new IllegalArgumentException("Unknown transport " + wanted + ", available: " + names());
+    }
+
+    /**
+     * @return names of all registered transports
+     */
+    public static List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (Transport transport : ServiceLoader.load(Transport.class)) {
+            names.add(transport.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,59 @@
+package simplechat.communication.transport;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Blocking sockets like {@link SocketTransport}, but every connection gets a virtual Thread instead of a
+ * platform Thread, so tens of thousands of idle clients do not cost a stack each.
+ * <br>
+ * Virtual Threads need JDK 21. They are looked up at runtime, on older JDKs this transport
+ * falls back to the platform Threads of {@link SocketTransport}.
+ */
+public class VirtualThreadTransport extends SocketTransport {
+
+    /**
+     * Name of this transport
+     */
+    public static final String NAME = "virtual";
+
+    private static final Method NEW_EXECUTOR = lookup();
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * @return true if the JDK has virtual Threads
+     */
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    @Override
+    public ExecutorService newExecutor() {
+        if (NEW_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // preview feature not enabled, use platform Threads
+            }
+        }
+        return super.newExecutor();
+    }
+
+    @Override
+    public String toString() {
+        return isSupported() ? NAME : NAME + " (platform Threads, the JDK has no virtual Threads)";
+    }
+}
@@ -0,0 +1,263 @@
+package simplechat.communication.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Client side of a WebSocket connection on a blocking socket, e.g. for a {@link simplechat.communication.socket.client.SimpleChatClient}
+ * behind a proxy which only lets HTTP through. Every line is sent as one masked text frame.
+ */
+class WebSocketClientConnection implements Connection {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Socket socket;
+    private final InputStream rawIn;
+    private final OutputStream rawOut;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(WebSocketFrames.MAX_PAYLOAD + 14);
+    private byte[] message = null;
+    private int messagePosition = 0;
+    private boolean ended = false;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return WebSocketClientConnection.this.read(b, off, len);
+        }
+    };
+
+    private final OutputStream out = new WebSocketFrames.TextFrameOutputStream() {
+        @Override
+        protected void writeLines(byte[] b, int off, int end) throws IOException {
+            WebSocketClientConnection.this.writeLines(b, off, end);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            WebSocketClientConnection.this.rawOut.flush();
+        }
+    };
+
+    /**
+     * Sends the upgrade request and checks the answer
+     *
+     * @param socket connected socket
+     * @param host   host for the Host header
+     * @param port   port for the Host header
+     * @throws IOException if the server did not upgrade the connection
+     */
+    WebSocketClientConnection(Socket socket, String host, int port) throws IOException {
+        this.socket = socket;
+        this.rawIn = socket.getInputStream();
+        this.rawOut = socket.getOutputStream();
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String key = Base64.getEncoder().encodeToString(nonce);
+        this.rawOut.write(("GET / HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n"
+                + "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        this.rawOut.flush();
+        String[] lines = this.readHead().split("\r\n");
+        if (!lines[0].startsWith("HTTP/1.1 101"))
+            throw new ProtocolException("Server did not upgrade: " + lines[0]);
+        String accept = null;
+        for (String line : lines) {
+            if (line.toLowerCase(Locale.ROOT).startsWith("sec-websocket-accept:"))
+                accept = line.substring(line.indexOf(':') + 1).trim();
+        }
+        if (!WebSocketFrames.acceptKey(key).equals(accept))
+            throw new ProtocolException("Wrong Sec-WebSocket-Accept");
+        this.readBuffer.flip();
+    }
+
+    /**
+     * Reads the answer byte by byte, so nothing behind it is consumed
+     */
+    private String readHead() throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = this.rawIn.read();
+            if (b < 0)
+                throw new EOFException("Connection closed during upgrade");
+            head.write(b);
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+            if (head.size() > 8192)
+                throw new ProtocolException("Upgrade answer too long");
+        }
+        return new String(head.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Copies as many messages as fit, but only waits for the socket if nothing was copied yet
+     */
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            if (this.message == null || this.messagePosition == this.message.length) {
+                if (this.ended || !this.nextMessage(n == 0))
+                    return n > 0 ? n : -1;
+            }
+            int count = Math.min(len - n, this.message.length - this.messagePosition);
+            System.arraycopy(this.message, this.messagePosition, b, off + n, count);
+            this.messagePosition += count;
+            n += count;
+        }
+        return n;
+    }
+
+    /**
+     * @param block true if the socket may be read, false to take only frames which were already read
+     * @return false if the server closed the connection or no message was ready without blocking
+     */
+    private boolean nextMessage(boolean block) throws IOException {
+        int start = this.readBuffer.position();
+        ByteArrayOutputStream fragments = null;
+        while (true) {
+            WebSocketFrames.Frame frame = WebSocketFrames.decode(this.readBuffer, false);
+            if (frame == null) {
+                if (!block) {
+                    // pings are answered again then, nothing is lost
+                    this.readBuffer.position(start);
+                    return false;
+                }
+                this.readBuffer.compact();
+                int n = this.rawIn.read(this.readBuffer.array(), this.readBuffer.position(), this.readBuffer.remaining());
+                if (n < 0) {
+                    this.ended = true;
+                    return false;
+                }
+                this.readBuffer.position(this.readBuffer.position() + n);
+                this.readBuffer.flip();
+                start = 0;
+                continue;
+            }
+            switch (frame.opcode) {
+                case WebSocketFrames.TEXT:
+                case WebSocketFrames.CONTINUATION:
+                    if (frame.fin && fragments == null) {
+                        this.setMessage(frame.payload, frame.payload.length);
+                        return true;
+                    }
+                    if (fragments == null)
+                        fragments = new ByteArrayOutputStream();
+                    fragments.write(frame.payload);
+                    if (frame.fin) {
+                        this.setMessage(fragments.toByteArray(), fragments.size());
+                        return true;
+                    }
+                    break;
+                case WebSocketFrames.PING:
+                    this.writeFrame(WebSocketFrames.PONG, frame.payload, 0, frame.payload.length);
+                    this.rawOut.flush();
+                    break;
+                case WebSocketFrames.CLOSE:
+                    this.ended = true;
+                    return false;
+                default:
+                    // pongs and binary frames are not used by the chat
+            }
+        }
+    }
+
+    private void setMessage(byte[] payload, int length) {
+        this.message = new byte[length + 1];
+        System.arraycopy(payload, 0, this.message, 0, length);
+        this.message[length] = '\n';
+        this.messagePosition = 0;
+    }
+
+    /**
+     * All frames of one flush are masked into one buffer and written at once
+     */
+    private void writeLines(byte[] b, int off, int end) throws IOException {
+        int size = 0;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                size += WebSocketFrames.headerLength(i - start, true) + i - start;
+                start = i + 1;
+            }
+        }
+        ByteBuffer frames = ByteBuffer.allocate(size);
+        start = off;
+        for (int i = off; i < end; i++) {
+            if (b[i] == '\n') {
+                putFrame(frames, WebSocketFrames.TEXT, b, start, i - start);
+                start = i + 1;
+            }
+        }
+        synchronized (this.rawOut) {
+            this.rawOut.write(frames.array(), 0, frames.position());
+        }
+    }
+
+    private void writeFrame(int opcode, byte[] b, int off, int length) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(WebSocketFrames.headerLength(length, true) + length);
+        putFrame(frame, opcode, b, off, length);
+        synchronized (this.rawOut) {
+            this.rawOut.write(frame.array(), 0, frame.position());
+        }
+    }
+
+    private static void putFrame(ByteBuffer target, int opcode, byte[] b, int off, int length) {
+        WebSocketFrames.putHeader(target, opcode, length, true);
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        target.put(mask);
+        for (int i = 0; i < length; i++) {
+            target.put((byte) (b[off + i] ^ mask[i & 3]));
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return this.out;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "ws:" + this.socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * Text frames only, a file chunk would be cut at its line breaks
+     */
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            byte[] payload = WebSocketFrames.closePayload(WebSocketFrames.CLOSE_NORMAL, "");
+            this.writeFrame(WebSocketFrames.CLOSE, payload, 0, payload.length);
+        } catch (IOException e) {
+            // already gone
+        } finally {
+            this.socket.close();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package simplechat.communication.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server side of a WebSocket connection accepted by a {@link WebSocketGateway}.
+ * <br>
+ * The selector Thread of the gateway decodes the frames and hands every text message to {@link #offer(byte[])}
+ * as one line. If the reader falls behind by {@link #INPUT_LIMIT} bytes the gateway stops reading from the
+ * socket until half of it was read, so a slow worker does not make the server buffer without limit.
+ * <br>
+ * Every line of the {@link simplechat.communication.socket.LineWriter} is sent as a text frame. The frames
+ * of one flush are collected in one buffer and written together, a gathering write of many small heap
+ * buffers makes the JDK copy every one of them into a temporary direct buffer.
+ */
+class WebSocketConnection implements Connection {
+
+    /**
+     * Bytes of received messages the reader can be behind before the socket is not read anymore
+     */
+    static final int INPUT_LIMIT = 64 * 1024;
+
+    /**
+     * Frames of one flush are collected up to this size and sent with one write
+     */
+    private static final int WRITE_BUFFER = 8192;
+
+    private final SocketChannel channel;
+    private final WebSocketGateway gateway;
+    private final String remote;
+
+    // only used by the selector Thread
+    ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    ByteArrayOutputStream fragments = null;
+    boolean upgraded = false;
+    SelectionKey key;
+
+    private final ArrayDeque<byte[]> lines = new ArrayDeque<>();
+    private int linePosition = 0;
+    private int buffered = 0;
+    private boolean ended = false;
+    private boolean paused = false;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER);
+    private Selector writeSelector = null;
+    private volatile boolean closed = false;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return WebSocketConnection.this.read(b, off, len);
+        }
+    };
+
+    private final OutputStream out = new WebSocketFrames.TextFrameOutputStream() {
+        @Override
+        protected void writeLines(byte[] b, int off, int end) throws IOException {
+            WebSocketConnection.this.writeLines(b, off, end);
+        }
+    };
+
+    WebSocketConnection(SocketChannel channel, WebSocketGateway gateway) {
+        this.channel = channel;
+        this.gateway = gateway;
+        this.remote = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    SocketChannel getSocketChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Called by the selector Thread with a received message
+     *
+     * @param line message including the line terminator
+     * @return false if the reader is too far behind and the socket should not be read for now
+     */
+    synchronized boolean offer(byte[] line) {
+        this.lines.add(line);
+        this.buffered += line.length;
+        this.notifyAll();
+        if (this.buffered >= INPUT_LIMIT)
+            this.paused = true;
+        return !this.paused;
+    }
+
+    /**
+     * Called by the selector Thread when the other side closed, the reader gets the end of the stream
+     * after the remaining messages
+     */
+    synchronized void end() {
+        this.ended = true;
+        this.notifyAll();
+    }
+
+    /**
+     * @return true if the gateway stopped reading for this connection
+     */
+    synchronized boolean isPaused() {
+        return this.paused;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (this.lines.isEmpty()) {
+            if (this.ended || this.closed)
+                return -1;
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        byte[] line = this.lines.peek();
+        int n = Math.min(len, line.length - this.linePosition);
+        System.arraycopy(line, this.linePosition, b, off, n);
+        this.linePosition += n;
+        if (this.linePosition == line.length) {
+            this.lines.poll();
+            this.linePosition = 0;
+        }
+        this.buffered -= n;
+        if (this.paused && this.buffered < INPUT_LIMIT / 2) {
+            this.paused = false;
+            this.gateway.resume(this);
+        }
+        return n;
+    }
+
+    private void writeLines(byte[] b, int off, int end) throws IOException {
+        this.writeLock.lock();
+        try {
+            ByteBuffer frames = this.writeBuffer;
+            int start = off;
+            for (int i = off; i < end; i++) {
+                if (b[i] != '\n')
+                    continue;
+                int length = i - start;
+                if (frames.remaining() < WebSocketFrames.headerLength(length, false) + length) {
+                    this.flushFrames();
+                    if (frames.remaining() < WebSocketFrames.headerLength(length, false) + length) {
+                        // larger than the buffer, the line is sent from where it is
+                        WebSocketFrames.putHeader(frames, WebSocketFrames.TEXT, length, false);
+                        frames.flip();
+                        this.writeFully(new ByteBuffer[]{frames, ByteBuffer.wrap(b, start, length)});
+                        frames.clear();
+                        start = i + 1;
+                        continue;
+                    }
+                }
+                WebSocketFrames.putHeader(frames, WebSocketFrames.TEXT, length, false);
+                frames.put(b, start, length);
+                start = i + 1;
+            }
+            this.flushFrames();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private void flushFrames() throws IOException {
+        this.writeBuffer.flip();
+        try {
+            this.writeFully(new ByteBuffer[]{this.writeBuffer});
+        } finally {
+            this.writeBuffer.clear();
+        }
+    }
+
+    /**
+     * Sends a control frame, called by the control Thread of the gateway
+     *
+     * @param frame complete frame
+     * @throws IOException if the frame could not be sent
+     */
+    void writeControl(ByteBuffer frame) throws IOException {
+        this.writeLock.lock();
+        try {
+            this.writeFully(new ByteBuffer[]{frame});
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * The channel is non-blocking because of the selector, so a full socket buffer is waited for
+     * with a Selector of this connection, which is only opened for connections that fall behind.
+     */
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        int first = 0;
+        while (true) {
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+            if (first == buffers.length)
+                return;
+            if (this.channel.write(buffers, first, buffers.length - first) == 0) {
+                if (this.closed)
+                    throw new ClosedChannelException();
+                try {
+                    if (this.writeSelector == null) {
+                        this.writeSelector = Selector.open();
+                        this.channel.register(this.writeSelector, SelectionKey.OP_WRITE);
+                    }
+                    this.writeSelector.select(1000);
+                    this.writeSelector.selectedKeys().clear();
+                } catch (ClosedSelectorException e) {
+                    throw new ClosedChannelException();
+                }
+            }
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return this.out;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return this.remote;
+    }
+
+    /**
+     * Text frames only, a file chunk would be cut at its line breaks
+     */
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+
+    /**
+     * Sends a close frame if the writer is not stuck and closes the channel
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        synchronized (this) {
+            this.notifyAll();
+        }
+        try {
+            if (this.writeLock.tryLock(100, TimeUnit.MILLISECONDS)) {
+                try {
+                    this.channel.write(WebSocketFrames.frame(WebSocketFrames.CLOSE,
+                            WebSocketFrames.closePayload(WebSocketFrames.CLOSE_NORMAL, "")));
+                } catch (IOException e) {
+                    // already gone
+                } finally {
+                    this.writeLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.channel.close();
+            if (this.writeSelector != null)
+                this.writeSelector.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ws:" + this.remote;
+    }
+}
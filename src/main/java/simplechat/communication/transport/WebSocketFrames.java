@@ -0,0 +1,225 @@
+package simplechat.communication.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Frame format of RFC 6455, shared by the server and the client side of the {@link WebSocketTransport}
+ */
+final class WebSocketFrames {
+
+    static final int CONTINUATION = 0x0;
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+
+    /**
+     * Largest payload of one frame and of one message, like a chat line it has to fit into memory at once
+     */
+    static final int MAX_PAYLOAD = 64 * 1024;
+
+    static final int CLOSE_NORMAL = 1000;
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    static final int CLOSE_UNSUPPORTED = 1003;
+    static final int CLOSE_TOO_BIG = 1009;
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * One decoded frame, the payload is already unmasked
+     */
+    static final class Frame {
+        final boolean fin;
+        final int opcode;
+        final byte[] payload;
+
+        Frame(boolean fin, int opcode, byte[] payload) {
+            this.fin = fin;
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Turns the lines written by a {@link simplechat.communication.socket.LineWriter} into one text frame per line.
+     * A line cut by the buffer of the writer is kept until its end arrives.
+     */
+    abstract static class TextFrameOutputStream extends OutputStream {
+        private byte[] partial = new byte[256];
+        private int partialLength = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            int last = end - 1;
+            while (last >= off && b[last] != '\n') {
+                last--;
+            }
+            if (last < off) {
+                this.keep(b, off, len);
+                return;
+            }
+            if (this.partialLength > 0) {
+                int first = off;
+                while (b[first] != '\n') {
+                    first++;
+                }
+                this.keep(b, off, first + 1 - off);
+                this.writeLines(this.partial, 0, this.partialLength);
+                this.partialLength = 0;
+                off = first + 1;
+            }
+            if (off <= last)
+                this.writeLines(b, off, last + 1);
+            this.keep(b, last + 1, end - last - 1);
+        }
+
+        private void keep(byte[] b, int off, int len) {
+            if (this.partialLength + len > this.partial.length)
+                this.partial = Arrays.copyOf(this.partial, Math.max(this.partial.length * 2, this.partialLength + len));
+            System.arraycopy(b, off, this.partial, this.partialLength, len);
+            this.partialLength += len;
+        }
+
+        /**
+         * @param b   bytes of complete lines
+         * @param off start of the first line
+         * @param end end of the last line, behind its line terminator
+         * @throws IOException if the frames could not be sent
+         */
+        protected abstract void writeLines(byte[] b, int off, int end) throws IOException;
+    }
+
+    private WebSocketFrames() {
+    }
+
+    /**
+     * @param key Sec-WebSocket-Key of the client
+     * @return Sec-WebSocket-Accept of the answer
+     */
+    static String acceptKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is required by every JRE", e);
+        }
+    }
+
+    /**
+     * @param length payload length
+     * @param masked true for frames of the client
+     * @return number of header bytes
+     */
+    static int headerLength(int length, boolean masked) {
+        return (length < 126 ? 2 : length < 65536 ? 4 : 10) + (masked ? 4 : 0);
+    }
+
+    /**
+     * Writes a frame header, the mask key (if any) has to follow
+     *
+     * @param target buffer with enough space, see {@link #headerLength(int, boolean)}
+     * @param opcode opcode of a final frame
+     * @param length payload length
+     * @param masked true for frames of the client
+     */
+    static void putHeader(ByteBuffer target, int opcode, int length, boolean masked) {
+        target.put((byte) (0x80 | opcode));
+        int mask = masked ? 0x80 : 0;
+        if (length < 126) {
+            target.put((byte) (mask | length));
+        } else if (length < 65536) {
+            target.put((byte) (mask | 126));
+            target.putShort((short) length);
+        } else {
+            target.put((byte) (mask | 127));
+            target.putLong(length);
+        }
+    }
+
+    /**
+     * @param opcode  opcode of a final frame
+     * @param payload payload, not masked
+     * @return complete unmasked frame as sent by the server
+     */
+    static ByteBuffer frame(int opcode, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(headerLength(payload.length, false) + payload.length);
+        putHeader(frame, opcode, payload.length, false);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param code   status code
+     * @param reason short reason
+     * @return payload of a close frame
+     */
+    static byte[] closePayload(int code, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + text.length);
+        payload.putShort((short) code).put(text);
+        return payload.array();
+    }
+
+    /**
+     * Decodes the next frame if it is complete, otherwise the position of the buffer is not changed
+     *
+     * @param buffer bytes read so far, in read mode
+     * @param masked true if the frame must be masked (frames of the client), false if it must not be
+     * @return next frame or null if more bytes are needed
+     * @throws ProtocolException if the frame breaks the protocol or is larger than {@link #MAX_PAYLOAD}
+     */
+    static Frame decode(ByteBuffer buffer, boolean masked) throws ProtocolException {
+        int start = buffer.position();
+        if (buffer.remaining() < 2)
+            return null;
+        int first = buffer.get(start) & 0xff;
+        int second = buffer.get(start + 1) & 0xff;
+        if ((first & 0x70) != 0)
+            throw new ProtocolException("Extensions are not supported");
+        if (((second & 0x80) != 0) != masked)
+            throw new ProtocolException(masked ? "Frames of the client must be masked" : "Frames of the server must not be masked");
+        long length = second & 0x7f;
+        int offset = 2;
+        if (length == 126) {
+            if (buffer.remaining() < 4)
+                return null;
+            length = buffer.getShort(start + 2) & 0xffff;
+            offset = 4;
+        } else if (length == 127) {
+            if (buffer.remaining() < 10)
+                return null;
+            length = buffer.getLong(start + 2);
+            offset = 10;
+        }
+        if (length < 0 || length > MAX_PAYLOAD)
+            throw new ProtocolException("Frame larger than " + MAX_PAYLOAD + " bytes");
+        int keyOffset = offset;
+        if (masked)
+            offset += 4;
+        if (buffer.remaining() < offset + length)
+            return null;
+        byte[] payload = new byte[(int) length];
+        for (int i = 0; i < payload.length; i++) {
+            byte b = buffer.get(start + offset + i);
+            payload[i] = masked ? (byte) (b ^ buffer.get(start + keyOffset + (i & 3))) : b;
+        }
+        buffer.position(start + offset + payload.length);
+        return new Frame((first & 0x80) != 0, first & 0x0f, payload);
+    }
+}
@@ -0,0 +1,392 @@
+package simplechat.communication.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Listener of the {@link WebSocketTransport}: one selector Thread accepts, answers the HTTP upgrade and
+ * decodes the frames of all connections, so idle browsers do not cost a Thread for reading.
+ * <br>
+ * Only upgraded connections are handed out by {@link #accept()}. A plain GET is answered with the
+ * browser client (webchat.html) and closed. Pongs and close answers are sent by a control Thread,
+ * so the selector never waits for a full socket.
+ */
+class WebSocketGateway implements Listener, Runnable {
+
+    private static final int MAX_HEADER = 8192;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final TransportOptions options;
+    private final BlockingQueue<Object> upgraded = new LinkedBlockingQueue<>();
+    private final Queue<WebSocketConnection> resumed = new ConcurrentLinkedQueue<>();
+    private final ExecutorService control = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "WebSocketGateway-control");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed = false;
+
+    WebSocketGateway(int port, TransportOptions options) throws IOException {
+        this.options = options;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        try {
+            if (options.getReceiveBufferSize() != null)
+                this.server.socket().setReceiveBufferSize(options.getReceiveBufferSize());
+            this.server.bind(new InetSocketAddress(port), options.getBacklog());
+            this.server.configureBlocking(false);
+            this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            this.server.close();
+            this.selector.close();
+            throw e;
+        }
+        Thread thread = new Thread(this, "WebSocketGateway-selector-" + this.getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+        Object connection;
+        try {
+            connection = this.upgraded.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Accept interrupted");
+        }
+        if (connection == this) {
+            this.upgraded.offer(this);
+            throw new SocketException("Listener closed");
+        }
+        return (Connection) connection;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return this.server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.selector.wakeup();
+        this.server.close();
+        this.control.shutdown();
+        // the gateway itself marks the end of the queue, so every waiting acceptor wakes up
+        this.upgraded.offer(this);
+    }
+
+    /**
+     * Called by a reader which caught up, the selector reads from its socket again
+     *
+     * @param connection connection which was paused
+     */
+    void resume(WebSocketConnection connection) {
+        this.resumed.add(connection);
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.closed) {
+                this.selector.select();
+                WebSocketConnection connection;
+                while ((connection = this.resumed.poll()) != null) {
+                    if (connection.key != null && connection.key.isValid() && !connection.isPaused())
+                        connection.key.interestOps(SelectionKey.OP_READ);
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        this.acceptChannel();
+                    } else if (key.isReadable()) {
+                        this.read(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // selector closed
+        } finally {
+            for (SelectionKey key : this.selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof WebSocketConnection && !((WebSocketConnection) attachment).upgraded)
+                    closeQuietly(((WebSocketConnection) attachment).getSocketChannel());
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private void acceptChannel() {
+        SocketChannel channel = null;
+        try {
+            channel = this.server.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+            this.options.configure(channel.socket());
+            WebSocketConnection connection = new WebSocketConnection(channel, this);
+            connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            closeQuietly(channel);
+        }
+    }
+
+    private void read(SelectionKey key) {
+        WebSocketConnection connection = (WebSocketConnection) key.attachment();
+        try {
+            int n = connection.getSocketChannel().read(connection.readBuffer);
+            if (n < 0) {
+                this.ended(key, connection);
+                return;
+            }
+            connection.readBuffer.flip();
+            try {
+                if (!connection.upgraded && !this.handshake(connection))
+                    return;
+                if (connection.upgraded)
+                    this.frames(key, connection);
+            } finally {
+                if (connection.readBuffer != null)
+                    this.compact(connection);
+            }
+        } catch (ProtocolException e) {
+            this.fail(key, connection, WebSocketFrames.CLOSE_PROTOCOL_ERROR, e.getMessage());
+        } catch (IOException e) {
+            this.ended(key, connection);
+        }
+    }
+
+    private void compact(WebSocketConnection connection) {
+        ByteBuffer buffer = connection.readBuffer;
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            // a frame larger than the buffer, the decoder refuses anything above MAX_PAYLOAD
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, WebSocketFrames.MAX_PAYLOAD + 14));
+            buffer.flip();
+            larger.put(buffer);
+            connection.readBuffer = larger;
+        }
+    }
+
+    /**
+     * @return false if the connection was answered without upgrade or more header bytes are needed
+     */
+    private boolean handshake(WebSocketConnection connection) throws IOException {
+        ByteBuffer buffer = connection.readBuffer;
+        int end = -1;
+        for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                end = i + 4;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (buffer.remaining() >= MAX_HEADER)
+                this.answer(connection, "431 Request Header Fields Too Large", null);
+            return false;
+        }
+        byte[] head = new byte[end - buffer.position()];
+        buffer.get(head);
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0)
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+        }
+        if (!lines[0].startsWith("GET ")) {
+            this.answer(connection, "405 Method Not Allowed", null);
+            return false;
+        }
+        String key = headers.get("sec-websocket-key");
+        if (!"websocket".equalsIgnoreCase(headers.get("upgrade")) || key == null) {
+            this.answer(connection, "200 OK", page());
+            return false;
+        }
+        if (!"13".equals(headers.get("sec-websocket-version"))) {
+            this.answer(connection, "426 Upgrade Required\r\nSec-WebSocket-Version: 13", null);
+            return false;
+        }
+        ByteBuffer response = ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + WebSocketFrames.acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        // a fresh socket has an empty send buffer, the answer fits
+        connection.getSocketChannel().write(response);
+        if (response.hasRemaining())
+            throw new IOException("Could not send the upgrade answer");
+        connection.upgraded = true;
+        this.upgraded.offer(connection);
+        return true;
+    }
+
+    private void answer(WebSocketConnection connection, String status, byte[] body) {
+        byte[] content = body != null ? body : new byte[0];
+        String head = "HTTP/1.1 " + status + "\r\nContent-Type: text/html; charset=utf-8\r\nContent-Length: "
+                + content.length + "\r\nConnection: close\r\n\r\n";
+        ByteBuffer response = ByteBuffer.allocate(head.length() + content.length);
+        response.put(head.getBytes(StandardCharsets.US_ASCII)).put(content).flip();
+        SocketChannel channel = connection.getSocketChannel();
+        try {
+            // short answers on a fresh socket, a client which does not read gets a cut page
+            for (int i = 0; i < 100 && response.hasRemaining(); i++) {
+                if (channel.write(response) == 0)
+                    Thread.sleep(1);
+            }
+        } catch (IOException e) {
+            // closed below anyway
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connection.readBuffer = null;
+        closeQuietly(channel);
+    }
+
+    private void frames(SelectionKey key, WebSocketConnection connection) throws IOException {
+        WebSocketFrames.Frame frame;
+        while (key.isValid() && (frame = WebSocketFrames.decode(connection.readBuffer, true)) != null) {
+            ByteArrayOutputStream message = connection.fragments;
+            switch (frame.opcode) {
+                case WebSocketFrames.TEXT:
+                    if (message != null)
+                        throw new ProtocolException("New message before the last one was finished");
+                    if (frame.fin) {
+                        this.deliver(key, connection, frame.payload, frame.payload.length);
+                    } else {
+                        connection.fragments = new ByteArrayOutputStream();
+                        connection.fragments.write(frame.payload);
+                    }
+                    break;
+                case WebSocketFrames.CONTINUATION:
+                    if (message == null)
+                        throw new ProtocolException("Continuation without a message");
+                    if (message.size() + frame.payload.length > WebSocketFrames.MAX_PAYLOAD) {
+                        this.fail(key, connection, WebSocketFrames.CLOSE_TOO_BIG, "Message too big");
+                        return;
+                    }
+                    message.write(frame.payload);
+                    if (frame.fin) {
+                        connection.fragments = null;
+                        this.deliver(key, connection, message.toByteArray(), message.size());
+                    }
+                    break;
+                case WebSocketFrames.PING:
+                    this.send(connection, WebSocketFrames.frame(WebSocketFrames.PONG, frame.payload), false);
+                    break;
+                case WebSocketFrames.PONG:
+                    break;
+                case WebSocketFrames.CLOSE:
+                    this.send(connection, WebSocketFrames.frame(WebSocketFrames.CLOSE, frame.payload), true);
+                    this.ended(key, connection);
+                    return;
+                case WebSocketFrames.BINARY:
+                    this.fail(key, connection, WebSocketFrames.CLOSE_UNSUPPORTED, "Only text messages");
+                    return;
+                default:
+                    throw new ProtocolException("Unknown opcode " + frame.opcode);
+            }
+        }
+    }
+
+    /**
+     * Hands a text message to the reader as one line. Line breaks inside the message would split
+     * it into several chat lines, so they become spaces.
+     */
+    private void deliver(SelectionKey key, WebSocketConnection connection, byte[] payload, int length) {
+        byte[] line = new byte[length + 1];
+        for (int i = 0; i < length; i++) {
+            byte b = payload[i];
+            line[i] = b == '\n' || b == '\r' ? (byte) ' ' : b;
+        }
+        line[length] = '\n';
+        if (!connection.offer(line))
+            key.interestOps(0);
+    }
+
+    private void fail(SelectionKey key, WebSocketConnection connection, int code, String reason) {
+        this.send(connection, WebSocketFrames.frame(WebSocketFrames.CLOSE,
+                WebSocketFrames.closePayload(code, reason != null ? reason : "")), true);
+        this.ended(key, connection);
+    }
+
+    private void ended(SelectionKey key, WebSocketConnection connection) {
+        key.cancel();
+        connection.fragments = null;
+        connection.end();
+        if (!connection.upgraded)
+            closeQuietly(connection.getSocketChannel());
+    }
+
+    private void send(WebSocketConnection connection, ByteBuffer frame, boolean thenClose) {
+        try {
+            this.control.execute(() -> {
+                try {
+                    connection.writeControl(frame);
+                } catch (IOException e) {
+                    // the worker notices the closed connection itself
+                }
+                if (thenClose)
+                    closeQuietly(connection.getSocketChannel());
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(connection.getSocketChannel());
+        }
+    }
+
+    private static byte[] page() {
+        try (InputStream in = WebSocketGateway.class.getResourceAsStream("/webchat.html")) {
+            if (in == null)
+                return "<p>SimpleChat WebSocket gateway</p>".getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                page.write(buffer, 0, n);
+            }
+            return page.toByteArray();
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
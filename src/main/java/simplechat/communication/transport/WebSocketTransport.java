@@ -0,0 +1,64 @@
+package simplechat.communication.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * WebSocket (RFC 6455) for browsers, on plain NIO without a servlet container.
+ * <br>
+ * Every chat line is one text frame in both directions, so commands like !CHATNAME or !PRIVATE work as on
+ * the line protocol and browsers share the chat with the other clients. A plain GET of the port
+ * returns a small browser client. Usually the server listens with it next to its main transport,
+ * see --websocket-port.
+ * <br>
+ * TLS (wss) is not done here, it has to be terminated in front of the server.
+ */
+public class WebSocketTransport implements Transport {
+
+    /**
+     * Name of this transport
+     */
+    public static final String NAME = "websocket";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Listener listen(int port, TransportOptions options) throws IOException {
+        return new WebSocketGateway(port, options);
+    }
+
+    @Override
+    public Connection connect(String host, int port, int timeoutMillis, TransportOptions options) throws IOException {
+        Socket socket = new Socket();
+        try {
+            if (options != null)
+                options.configure(socket);
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            WebSocketClientConnection connection = new WebSocketClientConnection(socket, host, port);
+            socket.setSoTimeout(0);
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The selector does not need a Thread per connection, the workers behind it use virtual Threads if the JDK has them
+     */
+    @Override
+    public ExecutorService newExecutor() {
+        return new VirtualThreadTransport().newExecutor();
+    }
+
+    @Override
+    public String toString() {
+        return this.getName();
+    }
+}
@@ -0,0 +1,123 @@
+package simplechat.server;
+
+/**
+ * Something that happened in the chat, published by {@link ChatEventPublisher}
+ */
+public final class ChatEvent {
+
+    /**
+     * Kind of event
+     */
+    public enum Type {
+        /**
+         * A client sent a text message, see {@link #getMessage()}
+         */
+        MESSAGE,
+        /**
+         * A client got its chatName, local or on another cluster node
+         */
+        JOIN,
+        /**
+         * A client left
+         */
+        LEAVE,
+        /**
+         * A client changed its chatName, see {@link #getOldChatName()}
+         */
+        RENAME
+    }
+
+    private final Type type;
+    private final String chatName;
+    private final String oldChatName;
+    private final String message;
+    private final long time;
+
+    private ChatEvent(Type type, String chatName, String oldChatName, String message) {
+        this.type = type;
+        this.chatName = chatName;
+        this.oldChatName = oldChatName;
+        this.message = message;
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * @param message message as stored by the server, e.g. "[Franz] hallo"
+     * @return new event
+     */
+    static ChatEvent message(String message) {
+        return new ChatEvent(Type.MESSAGE, null, null, message);
+    }
+
+    /**
+     * @param chatName name of the new client
+     * @return new event
+     */
+    static ChatEvent join(String chatName) {
+        return new ChatEvent(Type.JOIN, chatName, null, null);
+    }
+
+    /**
+     * @param chatName name of the client which left
+     * @return new event
+     */
+    static ChatEvent leave(String chatName) {
+        return new ChatEvent(Type.LEAVE, chatName, null, null);
+    }
+
+    /**
+     * @param oldChatName name before
+     * @param chatName    name afterwards
+     * @return new event
+     */
+    static ChatEvent rename(String oldChatName, String chatName) {
+        return new ChatEvent(Type.RENAME, chatName, oldChatName, null);
+    }
+
+    /**
+     * @return kind of event
+     */
+    public Type getType() {
+        return this.type;
+    }
+
+    /**
+     * @return chatName of the client, null for {@link Type#MESSAGE}
+     */
+    public String getChatName() {
+        return this.chatName;
+    }
+
+    /**
+     * @return name before a {@link Type#RENAME}, otherwise null
+     */
+    public String getOldChatName() {
+        return this.oldChatName;
+    }
+
+    /**
+     * @return text of a {@link Type#MESSAGE} including the sender prefix, otherwise null
+     */
+    public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * @return System.currentTimeMillis() of the event
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    @Override
+    public String toString() {
+        switch (this.type) {
+            case MESSAGE:
+                return "MESSAGE " + this.message;
+            case RENAME:
+                return "RENAME " + this.oldChatName + " " + this.chatName;
+            default:
+                return this.type + " " + this.chatName;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package simplechat.server;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Publishes the {@link ChatEvent}s of the server to in-process consumers like archivers, bots or bridges.
+ * <br>
+ * {@link #publish(ChatEvent)} is called by the network Threads and never waits for a subscriber: every
+ * subscription has a bounded buffer, an {@link Overflow} strategy decides what happens when it is full.
+ * The subscribers are called by a Thread of the executor, one at a time per subscription and only as far as
+ * they requested. Without subscribers publishing costs nothing.
+ */
+public class ChatEventPublisher implements Flow.Publisher<ChatEvent>, AutoCloseable {
+
+    /**
+     * Events buffered per subscription if nothing else is given
+     */
+    public static final int DEFAULT_BUFFER = 1024;
+
+    /**
+     * What happens with an event if the buffer of a subscription is full
+     */
+    public enum Overflow {
+        /**
+         * The oldest buffered event is dropped, the subscriber sees the latest events
+         */
+        DROP_OLDEST,
+        /**
+         * The new event is dropped, the subscriber sees a complete beginning
+         */
+        DROP_NEWEST,
+        /**
+         * The subscription is cancelled and the subscriber gets onError, it must not miss events
+         */
+        CANCEL
+    }
+
+    private final List<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * Subscribers are called by own daemon Threads
+     */
+    public ChatEventPublisher() {
+        this.ownExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "SimpleChat-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor = this.ownExecutor;
+    }
+
+    /**
+     * @param executor executor calling the subscribers, it must not run the tasks in the publishing Thread
+     */
+    public ChatEventPublisher(Executor executor) {
+        this.executor = Objects.requireNonNull(executor);
+        this.ownExecutor = null;
+    }
+
+    /**
+     * Subscribes with {@link #DEFAULT_BUFFER} events and {@link Overflow#DROP_OLDEST}
+     *
+     * @param subscriber gets the events published from now on
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super ChatEvent> subscriber) {
+        this.subscribe(subscriber, DEFAULT_BUFFER, Overflow.DROP_OLDEST);
+    }
+
+    /**
+     * @param subscriber gets the events published from now on
+     * @param bufferSize events kept for the subscriber until it requests them
+     * @param overflow   what happens if the subscriber is more than bufferSize events behind
+     */
+    public void subscribe(Flow.Subscriber<? super ChatEvent> subscriber, int bufferSize, Overflow overflow) {
+        Objects.requireNonNull(subscriber);
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Buffer size " + bufferSize);
+        EventSubscription subscription = new EventSubscription(subscriber, bufferSize, Objects.requireNonNull(overflow));
+        if (this.closed) {
+            subscription.complete();
+            return;
+        }
+        this.subscriptions.add(subscription);
+        subscription.schedule();
+    }
+
+    /**
+     * @return true if somebody subscribed, so events are worth creating
+     */
+    public boolean hasSubscribers() {
+        return !this.subscriptions.isEmpty();
+    }
+
+    /**
+     * @return number of current subscriptions
+     */
+    public int getSubscriberCount() {
+        return this.subscriptions.size();
+    }
+
+    /**
+     * @return events dropped because of full buffers, over all subscriptions so far
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Hands the event to every subscription without waiting for a subscriber
+     *
+     * @param event new event
+     */
+    void publish(ChatEvent event) {
+        for (EventSubscription subscription : this.subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * Completes all subscriptions after their buffered events, later subscribers are completed at once
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        for (EventSubscription subscription : this.subscriptions) {
+            subscription.complete();
+        }
+        if (this.ownExecutor != null)
+            this.ownExecutor.shutdown();
+    }
+
+    /**
+     * Buffer and demand of one subscriber. The fields are guarded by the subscription, the subscriber is called
+     * outside of the lock by at most one Thread at a time.
+     */
+    private final class EventSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super ChatEvent> subscriber;
+        private final ArrayDeque<ChatEvent> buffer = new ArrayDeque<>();
+        private final int capacity;
+        private final Overflow overflow;
+        private final AtomicInteger wip = new AtomicInteger();
+        private boolean subscribed = false;
+        private long demand = 0;
+        private boolean cancelled = false;
+        private boolean completed = false;
+        private Throwable error = null;
+
+        EventSubscription(Flow.Subscriber<? super ChatEvent> subscriber, int capacity, Overflow overflow) {
+            this.subscriber = subscriber;
+            this.capacity = capacity;
+            this.overflow = overflow;
+        }
+
+        void offer(ChatEvent event) {
+            synchronized (this) {
+                if (this.cancelled || this.completed || this.error != null)
+                    return;
+                if (this.buffer.size() == this.capacity) {
+                    switch (this.overflow) {
+                        case DROP_OLDEST:
+                            this.buffer.poll();
+                            ChatEventPublisher.this.dropped.incrementAndGet();
+                            break;
+                        case DROP_NEWEST:
+                            ChatEventPublisher.this.dropped.incrementAndGet();
+                            return;
+                        default:
+                            this.buffer.clear();
+                            this.error = new IllegalStateException("Subscriber is more than " + this.capacity + " events behind");
+                            event = null;
+                    }
+                }
+                if (event != null) {
+                    this.buffer.add(event);
+                    if (this.demand == 0)
+                        return;
+                }
+            }
+            this.schedule();
+        }
+
+        void complete() {
+            synchronized (this) {
+                this.completed = true;
+            }
+            this.schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    this.buffer.clear();
+                    this.error = new IllegalArgumentException("Requested " + n + " events");
+                } else {
+                    this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+                }
+            }
+            this.schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                this.cancelled = true;
+                this.buffer.clear();
+            }
+            ChatEventPublisher.this.subscriptions.remove(this);
+        }
+
+        void schedule() {
+            if (this.wip.getAndIncrement() != 0)
+                return;
+            try {
+                ChatEventPublisher.this.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                this.wip.set(0);
+                SimpleChat.serverLogger.log(WARNING, "Events not delivered, publisher is closed");
+            }
+        }
+
+        /**
+         * Delivers until there is no demand or no event, loops again if something happened meanwhile
+         */
+        @Override
+        public void run() {
+            do {
+                this.deliver();
+            } while (this.wip.decrementAndGet() != 0);
+        }
+
+        private void deliver() {
+            if (!this.subscribed) {
+                this.subscribed = true;
+                if (!this.signal(() -> this.subscriber.onSubscribe(this)))
+                    return;
+            }
+            while (true) {
+                ChatEvent event = null;
+                Throwable failure = null;
+                boolean done = false;
+                synchronized (this) {
+                    if (this.cancelled)
+                        return;
+                    if (this.error != null) {
+                        failure = this.error;
+                    } else if (this.demand > 0 && !this.buffer.isEmpty()) {
+                        event = this.buffer.poll();
+                        this.demand--;
+                    } else if (this.completed && this.buffer.isEmpty()) {
+                        done = true;
+                    } else {
+                        return;
+                    }
+                    if (event == null)
+                        this.cancelled = true;
+                }
+                if (event == null) {
+                    ChatEventPublisher.this.subscriptions.remove(this);
+                    Throwable cause = failure;
+                    this.signal(done ? this.subscriber::onComplete : () -> this.subscriber.onError(cause));
+                    return;
+                }
+                ChatEvent next = event;
+                if (!this.signal(() -> this.subscriber.onNext(next)))
+                    return;
+            }
+        }
+
+        /**
+         * @return false if the subscriber failed, it is cancelled then
+         */
+        private boolean signal(Runnable signal) {
+            try {
+                signal.run();
+                return true;
+            } catch (RuntimeException e) {
+                SimpleChat.serverLogger.log(WARNING, "Subscriber failed and was cancelled: " + e);
+                this.cancel();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package simplechat.server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Unique chatNames of all clients, of this server and of the other cluster nodes.
+ * <br>
+ * Reads do not lock: the names are kept in a sorted array which is never changed after it was published.
+ * Every change builds a new array and publishes it with compare-and-set, a rename replaces the old name by the
+ * new one in a single step. Concurrent changes retry instead of waiting for each other, so a connect is never
+ * held up by another connect or rename.
+ */
+public class ClientRegistry {
+
+    /**
+     * Name of a client which did not send one
+     */
+    public static final String DEFAULT_NAME = "Client";
+
+    private final AtomicReference<String[]> names = new AtomicReference<>(new String[0]);
+    // smallest suffix which might be free per base name, so "Client#n" is not searched from 1 every time
+    private final Map<String, Integer> suffixes = new ConcurrentHashMap<>();
+    private volatile Predicate<String> reserved = name -> false;
+
+    /**
+     * @param reserved names which are not given to new clients although nobody has them, e.g. of a client
+     *                 which will come back
+     */
+    public void setReserved(Predicate<String> reserved) {
+        this.reserved = reserved;
+    }
+
+    /**
+     * @return current names, sorted, without copying
+     */
+    public List<String> snapshot() {
+        return Collections.unmodifiableList(Arrays.asList(this.names.get()));
+    }
+
+    /**
+     * @return copy of the current names, sorted
+     */
+    public String[] toArray() {
+        return this.names.get().clone();
+    }
+
+    /**
+     * @return number of names
+     */
+    public int size() {
+        return this.names.get().length;
+    }
+
+    /**
+     * @param chatName name to look up
+     * @return true if a client has the name
+     */
+    public boolean contains(String chatName) {
+        return Arrays.binarySearch(this.names.get(), chatName) >= 0;
+    }
+
+    /**
+     * @param chatName wished name, empty for {@link #DEFAULT_NAME}
+     * @return the wished name or, if it is taken, the name with a free suffix, e.g. Franz#1.
+     * Freed suffixes are used again, under concurrent changes it is not always the smallest one.
+     */
+    public String add(String chatName) {
+        String base = chatName.isEmpty() ? DEFAULT_NAME : chatName;
+        while (true) {
+            String[] current = this.names.get();
+            String name = this.unique(current, base);
+            if (this.names.compareAndSet(current, insert(current, name)))
+                return name;
+        }
+    }
+
+    /**
+     * @param chatName name given by another cluster node
+     * @return false if the name was already taken
+     */
+    public boolean addExact(String chatName) {
+        while (true) {
+            String[] current = this.names.get();
+            if (Arrays.binarySearch(current, chatName) >= 0)
+                return false;
+            if (this.names.compareAndSet(current, insert(current, chatName)))
+                return true;
+        }
+    }
+
+    /**
+     * Replaces a name in one step, no reader sees both names or none of them
+     *
+     * @param oldChatName current name
+     * @param newChatName wished name
+     * @return the wished name or an adapted one like {@link #add(String)}, null if oldChatName is unknown
+     */
+    public String rename(String oldChatName, String newChatName) {
+        if (oldChatName.equals(newChatName))
+            return newChatName;
+        String base = newChatName.isEmpty() ? DEFAULT_NAME : newChatName;
+        while (true) {
+            String[] current = this.names.get();
+            String[] without = delete(current, oldChatName);
+            if (without == current)
+                return null;
+            String name = this.unique(without, base);
+            if (this.names.compareAndSet(current, insert(without, name))) {
+                this.freed(oldChatName);
+                return name;
+            }
+        }
+    }
+
+    /**
+     * @param chatName name to remove
+     * @return false if the name was unknown
+     */
+    public boolean remove(String chatName) {
+        while (true) {
+            String[] current = this.names.get();
+            String[] without = delete(current, chatName);
+            if (without == current)
+                return false;
+            if (this.names.compareAndSet(current, without)) {
+                this.freed(chatName);
+                return true;
+            }
+        }
+    }
+
+    private String unique(String[] current, String base) {
+        Predicate<String> reserved = this.reserved;
+        if (Arrays.binarySearch(current, base) < 0 && !reserved.test(base))
+            return base;
+        int suffix = this.suffixes.getOrDefault(base, 1);
+        while (Arrays.binarySearch(current, base + "#" + suffix) >= 0 || reserved.test(base + "#" + suffix)) {
+            suffix++;
+        }
+        this.suffixes.put(base, suffix + 1);
+        return base + "#" + suffix;
+    }
+
+    private void freed(String chatName) {
+        int hash = chatName.lastIndexOf('#');
+        if (hash <= 0)
+            return;
+        try {
+            int suffix = Integer.parseInt(chatName.substring(hash + 1));
+            this.suffixes.computeIfPresent(chatName.substring(0, hash), (base, next) -> Math.min(next, suffix));
+        } catch (NumberFormatException e) {
+            // a name with '#' which was not given by us
+        }
+    }
+
+    private static String[] insert(String[] names, String name) {
+        int index = -Arrays.binarySearch(names, name) - 1;
+        String[] result = new String[names.length + 1];
+        System.arraycopy(names, 0, result, 0, index);
+        result[index] = name;
+        System.arraycopy(names, index, result, index + 1, names.length - index);
+        return result;
+    }
+
+    private static String[] delete(String[] names, String name) {
+        int index = Arrays.binarySearch(names, name);
+        if (index < 0)
+            return names;
+        String[] result = new String[names.length - 1];
+        System.arraycopy(names, 0, result, 0, index);
+        System.arraycopy(names, index + 1, result, index, names.length - index - 1);
+        return result;
+    }
+}
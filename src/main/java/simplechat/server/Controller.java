@@ -9,7 +9,10 @@ import javafx.scene.control.ListView;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.text.Text;
+import simplechat.communication.jfr.UiUpdateEvent;
+import simplechat.server.search.SearchHit;
 
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -22,6 +25,9 @@ public class Controller {
     @FXML
     private TextField textField;
 
+    @FXML
+    private TextField searchField;
+
     @FXML
     private TextArea textArea;
 
@@ -47,10 +53,31 @@ public class Controller {
         }
     }
 
+    @FXML
+    protected void handleSearchButtonAction(ActionEvent event) {
+        event.consume();
+        String query = this.searchField.getText();
+        // the search runs beside the FX thread, the results are shown in the chat area
+        this.scheduledExecutorService.execute(() -> {
+            StringBuilder text = new StringBuilder("Search: " + query);
+            try {
+                List<SearchHit> hits = this.simpleChat.search(query);
+                for (SearchHit hit : hits) {
+                    text.append("\n  ").append(hit);
+                }
+                text.append("\n").append(hits.size()).append(" hit(s)");
+            } catch (IllegalArgumentException e) {
+                text.append("\n  ").append(e.getMessage());
+            }
+            this.updateTextAreaWithText(text.toString());
+        });
+    }
+
     public void initialize() {
     }
 
     public void stop() {
+        this.scheduledExecutorService.shutdown();
         this.simpleChat.stop();
     }
 
@@ -59,18 +86,18 @@ public class Controller {
     }
 
     public void updateTextAreaWithText(String text) {
-        Platform.runLater(() -> {
+        Platform.runLater(UiUpdateEvent.timed("Text", text.length(), () -> {
             this.textArea.setText(this.textArea.getText() + "\n" + text);
             this.textArea.setScrollTop(Double.MAX_VALUE);
-        });
+        }));
     }
 
     public void addUser(String user) {
-        Platform.runLater(() -> this.listView.getItems().add(user));
+        Platform.runLater(UiUpdateEvent.timed("AddUser", user.length(), () -> this.listView.getItems().add(user)));
     }
 
     public void removeUser(String user) {
-        Platform.runLater(() -> this.listView.getItems().remove(user));
+        Platform.runLater(UiUpdateEvent.timed("RemoveUser", user.length(), () -> this.listView.getItems().remove(user)));
     }
 
     Runnable clearText = () -> {
@@ -5,6 +5,7 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import simplechat.communication.Startup;
 
 public class FXApplication extends Application {
 
@@ -34,6 +35,7 @@ public class FXApplication extends Application {
 
         stage.setScene(scene);
         stage.show();
+        Startup.mark(Startup.Milestone.UI);
     }
 
     public void setSimpleChat(SimpleChat simpleChat) {
@@ -1,14 +1,37 @@
 package simplechat.server;
 
 import org.apache.commons.cli.*;
+import simplechat.communication.Startup;
+import simplechat.communication.transport.Transports;
+import simplechat.communication.socket.TlsContext;
+import simplechat.communication.socket.server.AdminServer;
+import simplechat.communication.socket.server.ClusterNode;
+import simplechat.communication.socket.server.Deduplication;
+import simplechat.communication.socket.server.NameReservations;
+import simplechat.communication.socket.server.ReliableDelivery;
 import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.communication.socket.server.SlowConsumers;
+import simplechat.server.search.SearchHit;
+import simplechat.server.search.SearchIndex;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Logger;
 
@@ -24,13 +47,38 @@ import static java.util.logging.Level.*;
 public class SimpleChat {
 
     private SimpleChatServer server;
-    private ConcurrentSkipListSet<String> users;
+    private final ClientRegistry users = new ClientRegistry();
 
-    private ConcurrentLinkedQueue<String> receivedMessages;
+    private ConcurrentLinkedQueue<Received> receivedMessages;
     private ConcurrentLinkedQueue<String> sentMessages;
+    private SearchIndex searchIndex;
+    private final ChatEventPublisher events = new ChatEventPublisher();
 
     private Controller controller;
 
+    private Long drainTimeout = null;
+    private long retryHint = 5000;
+    private String redirect = null;
+    private Path backlogFile = Paths.get("simplechat.backlog");
+    /**
+     * First line of a backlog file written by {@link #drain()}
+     */
+    static final String BACKLOG_HEADER = "# SimpleChat backlog 1";
+    private AtomicBoolean stopped = new AtomicBoolean(false);
+
+    /**
+     * Received message with the time it was indexed, kept for the backlog
+     */
+    private static final class Received {
+        private final long time;
+        private final String message;
+
+        private Received(long time, String message) {
+            this.time = time;
+            this.message = message;
+        }
+    }
+
     public static Logger serverLogger = Logger.getLogger("server");
 
     /**
@@ -43,9 +91,40 @@ public class SimpleChat {
      * @param args <br>
      *             Server hostname, e.g. --host 10.0.15.3 or -h 10.0.15.3 <br>
      *             TCP port to listen on, e.g. --port 1234 or -p 1234 <br>
+     *             length of the queue for pending connections, e.g. --backlog 200 or -b 200 <br>
+     *             number of accepting Threads, e.g. --acceptors 4 <br>
+     *             transport the clients connect with (socket, nio, virtual, memory, websocket), e.g. --transport nio <br>
+     *             additional WebSocket port for browsers, e.g. --websocket-port 8080 <br>
+     *             disable TCP_NODELAY on client sockets, e.g. --nagle <br>
+     *             socket buffer sizes in bytes, e.g. --sndbuf 65536 --rcvbuf 65536 <br>
+     *             decline compression requests of clients, e.g. --no-compression <br>
+     *             minimum line length in bytes for compression, e.g. --compress-threshold 64 <br>
+     *             keystore for TLS, e.g. --keystore server.p12 --keystore-password secret <br>
+     *             sessions kept for TLS resumption, e.g. --session-cache 10000 <br>
+     *             port for links of other cluster nodes, e.g. --cluster-port 5051 <br>
+     *             cluster ports of the other nodes, e.g. --peers host1:5051,host2:5051 <br>
+     *             unique id of this node, e.g. --node-id node1 <br>
+     *             interface of the cluster port, loopback if not given, e.g. --cluster-bind 10.0.0.1 <br>
+     *             secret shared by all cluster nodes, e.g. --cluster-secret geheim or SIMPLECHAT_CLUSTER_SECRET <br>
+     *             drain clients on shutdown instead of closing them, e.g. --drain 10000 <br>
+     *             minimum time the clients wait before reconnecting, e.g. --retry-hint 5000 <br>
+     *             server the clients should reconnect to, e.g. --redirect host2:5050 <br>
+     *             file for the message backlog, e.g. --backlog-file chat.backlog <br>
+     *             number of messages kept searchable, e.g. --search-limit 100000 <br>
+     *             local admin port, e.g. --admin-port 5052 --admin-threads 2 <br>
+     *             messages kept for reliable clients, e.g. --reliable-window 1024 --reliable-retention 300000 <br>
+     *             directory keeping the claimed chatNames over restarts, e.g. --state-dir state <br>
+     *             milliseconds the name of a disconnected client is reserved, e.g. --name-ttl 300000 <br>
+     *             lag in milliseconds and queued bytes which degrade or disconnect a slow client, e.g.
+     *             --degrade-lag 2000 --degrade-bytes 1048576 --disconnect-lag 30000 --disconnect-bytes 16777216 <br>
+     *             latest messages a degraded client still gets, e.g. --degrade-keep 50 <br>
+     *             milliseconds and number of message ids remembered per client, e.g. --dedup-ttl 120000 --dedup-capacity 4096 <br>
+     *             largest file clients may send in bytes, 0 for none, e.g. --file-limit 10485760 <br>
+     *             run without window, JavaFX is not even loaded, e.g. --headless <br>
      *             explaining what is being done, e.g. --verbose or -v <br>
      */
     public static void main(String[] args) {
+        Startup.begin(serverLogger);
         serverLogger.setLevel(FINE);
         serverLogger.setUseParentHandlers(false);
         ConsoleHandler ch = new ConsoleHandler();
@@ -56,15 +135,52 @@ public class SimpleChat {
         Options options = new Options();
         options.addOption("h", "host", true, "Server hostname.");
         options.addOption("p", "port", true, "TCP port to listen.");
+        options.addOption("b", "backlog", true, "Length of the queue for pending connections.");
+        options.addOption(null, "acceptors", true, "Number of Threads accepting connections.");
+        options.addOption(null, "transport", true, "Transport: socket (default), nio, virtual, memory or websocket.");
+        options.addOption(null, "websocket-port", true, "Port for browsers connecting with WebSocket.");
+        options.addOption(null, "nagle", false, "Do not set TCP_NODELAY on client sockets.");
+        options.addOption(null, "sndbuf", true, "SO_SNDBUF of client sockets in bytes.");
+        options.addOption(null, "rcvbuf", true, "SO_RCVBUF of client sockets in bytes.");
+        options.addOption(null, "no-compression", false, "Decline compression requests of clients.");
+        options.addOption(null, "compress-threshold", true, "Lines with less bytes are not compressed.");
+        options.addOption(null, "keystore", true, "Keystore with the server key, enables TLS.");
+        options.addOption(null, "keystore-password", true, "Password of the keystore.");
+        options.addOption(null, "session-cache", true, "Number of TLS sessions kept for resumption.");
+        options.addOption(null, "cluster-port", true, "Port for links of other cluster nodes, enables the cluster.");
+        options.addOption(null, "peers", true, "Comma separated host:port list of the other cluster nodes.");
+        options.addOption(null, "node-id", true, "Unique id of this cluster node.");
+        options.addOption(null, "cluster-bind", true, "Address the cluster port listens on, loopback if not given.");
+        options.addOption(null, "cluster-secret", true, "Secret shared by all cluster nodes, or SIMPLECHAT_CLUSTER_SECRET.");
+        options.addOption(null, "drain", true, "Milliseconds for flushing clients on shutdown, enables draining.");
+        options.addOption(null, "retry-hint", true, "Milliseconds the clients wait at least before reconnecting.");
+        options.addOption(null, "redirect", true, "host:port the clients should reconnect to.");
+        options.addOption(null, "backlog-file", true, "File the message backlog is kept in.");
+        options.addOption(null, "search-limit", true, "Number of newest messages kept in the search index.");
+        options.addOption(null, "admin-port", true, "Port on localhost for the admin connection.");
+        options.addOption(null, "admin-threads", true, "Number of admin connections served at the same time.");
+        options.addOption(null, "reliable-window", true, "Unacknowledged messages kept per reliable client.");
+        options.addOption(null, "reliable-retention", true, "Milliseconds the messages of a disconnected reliable client are kept.");
+        options.addOption(null, "state-dir", true, "Directory keeping the claimed chatNames over restarts.");
+        options.addOption(null, "name-ttl", true, "Milliseconds the name of a disconnected client is reserved.");
+        options.addOption(null, "degrade-lag", true, "Milliseconds of lag which degrade a slow client.");
+        options.addOption(null, "degrade-bytes", true, "Queued bytes which degrade a slow client.");
+        options.addOption(null, "degrade-keep", true, "Latest messages a degraded client still gets.");
+        options.addOption(null, "disconnect-lag", true, "Milliseconds of lag which disconnect a slow client.");
+        options.addOption(null, "disconnect-bytes", true, "Queued bytes which disconnect a slow client.");
+        options.addOption(null, "dedup-ttl", true, "Milliseconds the message ids of a client are remembered.");
+        options.addOption(null, "dedup-capacity", true, "Message ids remembered per client.");
+        options.addOption(null, "file-limit", true, "Largest file in bytes clients may send, 0 for none.");
+        options.addOption(null, "headless", false, "Run without the JavaFX window.");
         options.addOption("v", "verbose", false, "explain what is being done");
 
-        CommandLine line;
+        CommandLine line = null;
         String host = null;
         Integer port = null;
         try {
             line = parser.parse(options, args);
             host = line.getOptionValue("h");
-            port = line.getOptionValue("p") != null ? Integer.parseInt(line.getOptionValue("p")) : null;
+            port = integerOption(line, "p");
 
             boolean verbose = line.hasOption("v");
             if (verbose) ch.setLevel(ALL);
@@ -77,13 +193,128 @@ public class SimpleChat {
         }
 
         SimpleChat simpleChat = new SimpleChat(host, port);
+        if (line.hasOption("transport")) {
+            try {
+                simpleChat.server.setTransport(Transports.get(line.getOptionValue("transport")));
+            } catch (IllegalArgumentException e) {
+                serverLogger.log(SEVERE, e.getMessage());
+                System.exit(1);
+            }
+        }
+        simpleChat.server.setBacklog(integerOption(line, "b"));
+        simpleChat.server.setAcceptors(integerOption(line, "acceptors"));
+        simpleChat.server.setWebSocketPort(integerOption(line, "websocket-port"));
+        if (line.getOptionValue("file-limit") != null)
+            simpleChat.server.setFileLimit(Long.parseLong(line.getOptionValue("file-limit")));
+        simpleChat.server.setTcpNoDelay(!line.hasOption("nagle"));
+        simpleChat.server.setSendBufferSize(integerOption(line, "sndbuf"));
+        simpleChat.server.setReceiveBufferSize(integerOption(line, "rcvbuf"));
+        simpleChat.server.setCompression(!line.hasOption("no-compression"));
+        simpleChat.server.setCompressionThreshold(integerOption(line, "compress-threshold"));
+        if (line.hasOption("keystore")) {
+            try {
+                TlsContext tlsContext = TlsContext.load(line.getOptionValue("keystore"),
+                        line.getOptionValue("keystore-password"), null, null);
+                Integer sessionCache = integerOption(line, "session-cache");
+                if (sessionCache != null)
+                    tlsContext.setSessionCache(sessionCache, TlsContext.DEFAULT_SESSION_TIMEOUT);
+                simpleChat.server.setTlsContext(tlsContext);
+            } catch (Exception e) {
+                serverLogger.log(SEVERE, "Could not load keystore: " + e);
+                System.exit(1);
+            }
+        }
+        Integer clusterPort = integerOption(line, "cluster-port");
+        if (clusterPort != null) {
+            String nodeId = line.getOptionValue("node-id", (host != null ? host : "localhost") + ":" + clusterPort);
+            String secret = line.getOptionValue("cluster-secret", System.getenv("SIMPLECHAT_CLUSTER_SECRET"));
+            if (secret == null || secret.isEmpty()) {
+                serverLogger.log(SEVERE, "The cluster needs --cluster-secret or SIMPLECHAT_CLUSTER_SECRET");
+                System.exit(1);
+            }
+            ClusterNode cluster = new ClusterNode(nodeId, clusterPort,
+                    ClusterNode.parsePeers(line.getOptionValue("peers")), secret);
+            if (line.hasOption("cluster-bind")) {
+                try {
+                    cluster.setBindAddress(InetAddress.getByName(line.getOptionValue("cluster-bind")));
+                } catch (UnknownHostException e) {
+                    serverLogger.log(SEVERE, "Unknown cluster address: " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            simpleChat.server.setCluster(cluster);
+        }
+        Integer adminPort = integerOption(line, "admin-port");
+        if (adminPort != null) {
+            Integer adminThreads = integerOption(line, "admin-threads");
+            simpleChat.server.setAdmin(new AdminServer(adminPort,
+                    adminThreads != null ? adminThreads : AdminServer.DEFAULT_THREADS));
+        }
+        Integer reliableWindow = integerOption(line, "reliable-window");
+        Integer reliableRetention = integerOption(line, "reliable-retention");
+        if (reliableWindow != null || reliableRetention != null)
+            simpleChat.server.setReliable(new ReliableDelivery(
+                    reliableWindow != null ? reliableWindow : ReliableDelivery.DEFAULT_WINDOW,
+                    reliableRetention != null ? reliableRetention : ReliableDelivery.DEFAULT_RETENTION));
+        Integer nameTtl = integerOption(line, "name-ttl");
+        if (nameTtl != null || line.hasOption("state-dir"))
+            simpleChat.server.setReservations(new NameReservations(
+                    nameTtl != null ? nameTtl : NameReservations.DEFAULT_TTL,
+                    line.hasOption("state-dir") ? Paths.get(line.getOptionValue("state-dir")) : null,
+                    NameReservations.DEFAULT_SNAPSHOT_INTERVAL));
+        Integer degradeLag = integerOption(line, "degrade-lag");
+        Integer degradeBytes = integerOption(line, "degrade-bytes");
+        Integer degradeKeep = integerOption(line, "degrade-keep");
+        Integer disconnectLag = integerOption(line, "disconnect-lag");
+        Integer disconnectBytes = integerOption(line, "disconnect-bytes");
+        if (degradeLag != null || degradeBytes != null || degradeKeep != null || disconnectLag != null
+                || disconnectBytes != null)
+            simpleChat.server.setSlowConsumers(new SlowConsumers(
+                    degradeLag != null ? degradeLag : SlowConsumers.DEFAULT_DEGRADE_MILLIS,
+                    degradeBytes != null ? degradeBytes : SlowConsumers.DEFAULT_DEGRADE_BYTES,
+                    disconnectLag != null ? disconnectLag : SlowConsumers.DEFAULT_DISCONNECT_MILLIS,
+                    disconnectBytes != null ? disconnectBytes : SlowConsumers.DEFAULT_DISCONNECT_BYTES,
+                    degradeKeep != null ? degradeKeep : SlowConsumers.DEFAULT_KEEP));
+        Integer dedupTtl = integerOption(line, "dedup-ttl");
+        Integer dedupCapacity = integerOption(line, "dedup-capacity");
+        if (dedupTtl != null || dedupCapacity != null)
+            simpleChat.server.setDeduplication(new Deduplication(
+                    dedupTtl != null ? dedupTtl : Deduplication.DEFAULT_TTL,
+                    dedupCapacity != null ? dedupCapacity : Deduplication.DEFAULT_CAPACITY));
+        Integer searchLimit = integerOption(line, "search-limit");
+        if (searchLimit != null)
+            simpleChat.searchIndex = new SearchIndex(searchLimit);
+        if (line.hasOption("backlog-file"))
+            simpleChat.backlogFile = Paths.get(line.getOptionValue("backlog-file"));
+        if (line.hasOption("drain")) {
+            Integer retryHint = integerOption(line, "retry-hint");
+            simpleChat.setDrain(integerOption(line, "drain"), retryHint != null ? retryHint : simpleChat.retryHint,
+                    line.getOptionValue("redirect"));
+        }
+        Startup.mark(Startup.Milestone.CONFIGURED);
+        // only a server which drains or got a backlog file reads one, a stray file is never injected into the chat
+        if (line.hasOption("drain") || line.hasOption("backlog-file"))
+            simpleChat.loadBacklog();
+        Runtime.getRuntime().addShutdownHook(new Thread(simpleChat::stop, "SimpleChat-shutdown"));
+        // the server accepts while the JavaFX toolkit and the FXML are still loading
         simpleChat.listen();
+        if (line.hasOption("headless"))
+            return;
 
         FXApplication fxApplication = new FXApplication();
         fxApplication.setSimpleChat(simpleChat);
         fxApplication.main(args);
     }
 
+    /**
+     * @param line parsed command line
+     * @param option name of the option
+     * @return value of the option as Integer or null if it was not given
+     */
+    private static Integer integerOption(CommandLine line, String option) {
+        return line.getOptionValue(option) != null ? Integer.parseInt(line.getOptionValue(option)) : null;
+    }
+
     /**
      * Initiating server Thread and the user list {@link #users}.
      *
@@ -92,9 +323,9 @@ public class SimpleChat {
      */
     public SimpleChat(String host, Integer port) {
         server = new simplechat.communication.socket.server.SimpleChatServer(host, port, this);
-        users = new ConcurrentSkipListSet<>();
         receivedMessages = new ConcurrentLinkedQueue<>();
         sentMessages = new ConcurrentLinkedQueue<>();
+        searchIndex = new SearchIndex(SearchIndex.DEFAULT_MAX_MESSAGES);
     }
 
     /**
@@ -113,10 +344,124 @@ public class SimpleChat {
     }
 
     /**
-     * Gracefully shutdown of server Thread calling {@link SimpleChatServer#shutdown()}
+     * Clients will be drained on {@link #stop()} instead of being closed
+     *
+     * @param timeoutMillis time for flushing all clients
+     * @param retryMillis   minimum time the clients should wait before reconnecting
+     * @param redirect      host:port the clients should connect to instead, null for this server
+     */
+    public void setDrain(long timeoutMillis, long retryMillis, String redirect) {
+        this.drainTimeout = timeoutMillis;
+        this.retryHint = retryMillis;
+        this.redirect = redirect;
+    }
+
+    /**
+     * @param backlogFile file the message backlog is written to on drain and read from on start
+     */
+    public void setBacklogFile(Path backlogFile) {
+        this.backlogFile = backlogFile;
+    }
+
+    /**
+     * Gracefully shutdown of server Thread calling {@link SimpleChatServer#shutdown()},
+     * or {@link #drain()} if draining was configured. Only the first call has an effect.
      */
     public void stop() {
-        this.server.shutdown();
+        if (!this.stopped.compareAndSet(false, true)) {
+            return;
+        }
+        if (this.drainTimeout != null) {
+            this.drain();
+        } else {
+            this.server.shutdown();
+        }
+        this.searchIndex.shutdown();
+        this.events.close();
+    }
+
+    /**
+     * Drains all clients with {@link SimpleChatServer#drain(long, long, String)} and keeps the received messages
+     * and the messages which could not be delivered in the backlog file.
+     */
+    public void drain() {
+        Map<String, List<String>> undelivered = this.server.drain(
+                this.drainTimeout != null ? this.drainTimeout : 0, this.retryHint, this.redirect);
+        try {
+            this.writeBacklog(undelivered);
+        } catch (IOException e) {
+            serverLogger.log(SEVERE, "Could not write backlog: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the backlog file, first to a temporary file which then replaces the old one.
+     * The first line is {@link #BACKLOG_HEADER}, "H millis message" are received messages with the time they
+     * were received, "P chatName\tmessage" are undelivered messages.
+     *
+     * @param undelivered messages by chatName of the receiver
+     * @throws IOException if the file can not be written
+     */
+    private void writeBacklog(Map<String, List<String>> undelivered) throws IOException {
+        Path tmp = Paths.get(this.backlogFile + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(BACKLOG_HEADER);
+            writer.newLine();
+            for (Received received : this.receivedMessages) {
+                writer.write("H " + received.time + " " + received.message);
+                writer.newLine();
+            }
+            for (Map.Entry<String, List<String>> e : undelivered.entrySet()) {
+                for (String message : e.getValue()) {
+                    writer.write("P " + e.getKey() + "\t" + message);
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmp, this.backlogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        serverLogger.log(INFO, "Backlog written to " + this.backlogFile);
+    }
+
+    /**
+     * Reads the backlog file of the last drain if there is one. The received messages are restored,
+     * undelivered messages are sent when a client with that chatName connects.
+     * A file without the {@link #BACKLOG_HEADER} of {@link #drain()} is not read and not deleted.
+     */
+    public void loadBacklog() {
+        if (!Files.exists(this.backlogFile)) {
+            return;
+        }
+        Map<String, List<String>> undelivered = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(this.backlogFile, StandardCharsets.UTF_8)) {
+            if (!BACKLOG_HEADER.equals(reader.readLine())) {
+                serverLogger.log(WARNING, this.backlogFile + " is not a backlog of a drain, ignored");
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ', 2);
+                if (line.startsWith("H ") && space > 2) {
+                    long time;
+                    try {
+                        time = Long.parseLong(line.substring(2, space));
+                    } catch (NumberFormatException e) {
+                        serverLogger.log(WARNING, "Malformed message in backlog skipped: " + line);
+                        continue;
+                    }
+                    this.received(line.substring(space + 1), time);
+                } else if (line.startsWith("P ") && line.indexOf('\t') > 0) {
+                    int tab = line.indexOf('\t');
+                    undelivered.computeIfAbsent(line.substring(2, tab), k -> new ArrayList<>())
+                            .add(line.substring(tab + 1));
+                }
+            }
+            Files.delete(this.backlogFile);
+        } catch (IOException e) {
+            serverLogger.log(SEVERE, "Could not read backlog: " + e.getMessage());
+        }
+        this.server.setPending(undelivered);
+        serverLogger.log(INFO, "Backlog restored: " + this.receivedMessages.size() + " messages, "
+                + undelivered.size() + " clients with undelivered messages");
     }
 
     /**
@@ -136,7 +481,9 @@ public class SimpleChat {
         if(this.isConnected()) {
             this.server.send(message);
             this.sentMessages.add(message);
-            this.controller.updateTextAreaWithText(message);
+            if(this.controller != null) {
+                this.controller.updateTextAreaWithText(message);
+            }
         }
     }
 
@@ -161,8 +508,40 @@ public class SimpleChat {
      */
     public void incomingMessage(String message) {
         serverLogger.log(INFO, "Socket gave me this message: " + message);
-        this.receivedMessages.add(message);
-        this.controller.updateTextAreaWithText(message);
+        this.received(message, System.currentTimeMillis());
+        if(this.events.hasSubscribers()) {
+            this.events.publish(ChatEvent.message(message));
+        }
+        if(this.controller != null) {
+            this.controller.updateTextAreaWithText(message);
+        }
+    }
+
+    /**
+     * @return publisher of messages, joins, leaves and renames for in-process consumers
+     */
+    public ChatEventPublisher getEvents() {
+        return this.events;
+    }
+
+    /**
+     * Searches the received messages, used by the UI and by {@link simplechat.communication.MessageProtocol.Commands#SEARCH}.
+     * Messages which arrived a moment ago may not be indexed yet.
+     *
+     * @param query search query, e.g. from:Franz since:7d "some phrase"
+     * @return matching messages, newest first
+     * @throws IllegalArgumentException if the query is invalid
+     */
+    public List<SearchHit> search(String query) {
+        serverLogger.log(INFO, "Search: " + query);
+        return this.searchIndex.search(query);
+    }
+
+    /**
+     * @return index over the received messages
+     */
+    public SearchIndex getSearchIndex() {
+        return this.searchIndex;
     }
 
     /**
@@ -170,51 +549,96 @@ public class SimpleChat {
      *
      * @return Array of unique chatNames of connected Clients
      */
-    public synchronized String[] getClients() {
-        return users.toArray(new String[0]);
+    public String[] getClients() {
+        return this.users.toArray();
+    }
+
+    /**
+     * @return registry of the chatNames, for lock free lookups and for changes without UI update
+     */
+    public ClientRegistry getRegistry() {
+        return this.users;
     }
 
     /**
-     * Adds a Client to the userList. The check of the username must be synchronized!
+     * Adds a Client to the userList. The name is taken atomically by the {@link ClientRegistry},
+     * the UI is informed afterwards.
      *
      * @param chatName Client which will be added
      * @return New unique ChatName. If the given Name was unique the same as the {@code chatName}
      * or an adapted new name (e.g. Franz#1)
      */
-    public synchronized String addClient(String chatName) {
-        chatName = chatName.isEmpty() ? "Client" : chatName;
-        if(this.users.contains(chatName)) {
-            for(int i = 1;;i++) {
-                chatName = chatName + "#" + i;
-                if(!this.users.contains(chatName)) {
-                    break;
-                }
-            }
-        }
-        serverLogger.log(INFO, "Add Client: " + chatName);
-        users.add(chatName);
-        this.controller.addUser(chatName);
+    public String addClient(String chatName) {
+        chatName = this.users.add(chatName);
+        this.clientAdded(chatName);
         return chatName;
     }
 
     /**
-     * Renames Client in local userlist {@link #users} by removing the oldChatName and inserting the newChatName
+     * Informs the UI about a name which was already added to the {@link #getRegistry()}
+     *
+     * @param chatName new Client
+     */
+    public void clientAdded(String chatName) {
+        serverLogger.log(INFO, "Add Client: " + chatName);
+        if(this.events.hasSubscribers()) {
+            this.events.publish(ChatEvent.join(chatName));
+        }
+        if(this.controller != null) {
+            this.controller.addUser(chatName);
+        }
+    }
+
+    /**
+     * Adds a Client of another cluster node to the userList with exactly the given name.
+     *
+     * @param chatName name the other node gave its Client
+     * @return false if the name was already in the userList
+     */
+    public boolean addRemoteClient(String chatName) {
+        serverLogger.log(INFO, "Add remote Client: " + chatName);
+        if(!this.users.addExact(chatName)) {
+            return false;
+        }
+        if(this.events.hasSubscribers()) {
+            this.events.publish(ChatEvent.join(chatName));
+        }
+        if(this.controller != null) {
+            this.controller.addUser(chatName);
+        }
+        return true;
+    }
+
+    /**
+     * Renames Client in local userlist {@link #users}, the old name is replaced by the new one in one step
      *
      * @param oldChatName Clientname which will be removed from list
-     * @param newChatName Clientname which should be added by {@link simplechat.server.SimpleChat#addClient(String)}
+     * @param newChatName Clientname which should be added like in {@link simplechat.server.SimpleChat#addClient(String)}
      * @return New unique ChatName. If the given Name was unique the same as the {@code newChatName}
      * or an adapted new name (e.g. Franz#1)
      */
-    public synchronized String renameClient(String oldChatName, String newChatName) {
+    public String renameClient(String oldChatName, String newChatName) {
+        String chatName = this.users.rename(oldChatName, newChatName);
+        if (chatName != null)
+            this.clientRenamed(oldChatName, chatName);
+        return chatName;
+    }
+
+    /**
+     * Informs the UI about a rename which was already done in the {@link #getRegistry()}
+     *
+     * @param oldChatName old name of the Client
+     * @param newChatName new name of the Client
+     */
+    public void clientRenamed(String oldChatName, String newChatName) {
         serverLogger.log(INFO, "Rename Client from " + oldChatName + " to " + newChatName);
-        if(oldChatName.equals(newChatName)) {
-            return newChatName;
+        if(this.events.hasSubscribers() && !oldChatName.equals(newChatName)) {
+            this.events.publish(ChatEvent.rename(oldChatName, newChatName));
         }
-        if(this.users.contains(oldChatName)) {
-            this.removeClient(oldChatName);
-            return this.addClient(newChatName);
+        if(this.controller != null && !oldChatName.equals(newChatName)) {
+            this.controller.removeUser(oldChatName);
+            this.controller.addUser(newChatName);
         }
-        return null;
     }
 
     /**
@@ -226,7 +650,13 @@ public class SimpleChat {
      */
     public void removeClient(String chatName) {
         serverLogger.log(INFO, "Remove Client: " + chatName);
-        if(this.users.remove(chatName)) {
+        if(!this.users.remove(chatName)) {
+            return;
+        }
+        if(this.events.hasSubscribers()) {
+            this.events.publish(ChatEvent.leave(chatName));
+        }
+        if(this.controller != null) {
             this.controller.removeUser(chatName);
         }
     }
@@ -242,11 +672,34 @@ public class SimpleChat {
         removeClient(chatName);
     }
 
+    private void received(String message, long time) {
+        this.receivedMessages.add(new Received(time, message));
+        this.searchIndex.add(message, time);
+    }
+
     /**
      * @return Queue of current received messages.
      */
     public Queue<String> getReceivedMessages() {
-        return new LinkedList<>(receivedMessages);
+        Queue<String> messages = new LinkedList<>();
+        for (Received received : this.receivedMessages) {
+            messages.add(received.message);
+        }
+        return messages;
+    }
+
+    /**
+     * @return number of messages in the message store
+     */
+    public int getReceivedCount() {
+        return this.receivedMessages.size();
+    }
+
+    /**
+     * @return number of messages sent by the UI
+     */
+    public int getSentCount() {
+        return this.sentMessages.size();
     }
 
     /**
@@ -0,0 +1,69 @@
+package simplechat.server;
+
+import simplechat.communication.MessageProtocol;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static simplechat.communication.MessageProtocol.Commands.*;
+
+/**
+ * Short training run of server and protocol for the class data sharing archive (gradle cdsArchive):
+ * every class loaded here is stored in the archive and is mapped instead of loaded on the next start.
+ * <br>
+ * Starts a headless server on a free port, connects one client and sends the commands of a usual session.
+ */
+public final class StartupTraining {
+
+    private StartupTraining() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        // the same path as a real start, command line included; the shutdown hook stops the server on exit
+        SimpleChat.main(new String[]{"--headless", "--port", String.valueOf(port)});
+
+        Socket socket = connect(port);
+        try {
+            LineWriter writer = new LineWriter(socket.getOutputStream());
+            LineReader reader = new LineReader(socket.getInputStream());
+            writer.writeLine(MessageProtocol.getMessage(CHATNAME) + " Training");
+            writer.writeLine(MessageProtocol.getMessage(COMPRESS) + " " + MessageProtocol.DEFLATE);
+            String line;
+            while ((line = reader.readLine()) != null && !line.startsWith(MessageProtocol.getMessage(COMPRESS))) {
+                // the server answers the name first
+            }
+            if (line != null && line.endsWith(" " + MessageProtocol.DEFLATE)) {
+                reader.inflate();
+                writer.deflate(0);
+            }
+            writer.writeLine(MessageProtocol.getMessage(PRESENCE));
+            writer.writeLine(MessageProtocol.privateMessage("hallo", "Training"));
+            writer.writeLine("hallo");
+            writer.writeLine(MessageProtocol.getMessage(SEARCH) + " hallo");
+            while ((line = reader.readLine()) != null && !line.startsWith(MessageProtocol.getMessage(SEARCH) + " END")) {
+                // every command was answered once the search is
+            }
+        } finally {
+            socket.close();
+        }
+        System.exit(0);
+    }
+
+    private static Socket connect(int port) throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (java.net.ConnectException e) {
+                if (i == 100)
+                    throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package simplechat.server.search;
+
+import java.util.Arrays;
+
+/**
+ * Postings of one term: the documents containing it and the positions of the term in every document.
+ * <br>
+ * Everything is stored as variable length ints (7 bits per byte) and document ids and positions are delta
+ * encoded, so most entries of a chat message take two or three bytes. A list is only appended to, documents
+ * must be added with ascending ids.
+ */
+final class PostingList {
+
+    private byte[] bytes = new byte[8];
+    private int length = 0;
+    private int lastDoc = -1;
+    private int docs = 0;
+
+    /**
+     * @param doc       document id, larger than the last added one
+     * @param positions positions of the term in the document, ascending
+     * @param count     number of valid entries in positions
+     */
+    void add(int doc, int[] positions, int count) {
+        this.writeInt(doc - this.lastDoc);
+        this.writeInt(count);
+        int last = 0;
+        for (int i = 0; i < count; i++) {
+            this.writeInt(positions[i] - last);
+            last = positions[i];
+        }
+        this.lastDoc = doc;
+        this.docs++;
+    }
+
+    private void writeInt(int value) {
+        if (this.length + 5 > this.bytes.length)
+            this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+        while ((value & ~0x7F) != 0) {
+            this.bytes[this.length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.bytes[this.length++] = (byte) value;
+    }
+
+    /**
+     * @return number of documents in the list
+     */
+    int docs() {
+        return this.docs;
+    }
+
+    /**
+     * @return number of bytes used by the encoded list
+     */
+    int bytes() {
+        return this.length;
+    }
+
+    /**
+     * Drops the unused capacity, called when a segment is sealed
+     */
+    void trim() {
+        if (this.bytes.length != this.length)
+            this.bytes = Arrays.copyOf(this.bytes, this.length);
+    }
+
+    /**
+     * @return cursor over the postings added so far
+     */
+    Cursor cursor() {
+        return new Cursor(this.bytes, this.length);
+    }
+
+    /**
+     * Forward only iterator over the documents of a PostingList
+     */
+    static final class Cursor {
+        private final byte[] bytes;
+        private final int length;
+        private int offset = 0;
+        private int doc = -1;
+        private int freq = 0;
+        private int[] positions = new int[4];
+
+        private Cursor(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        /**
+         * @return false if there is no further document
+         */
+        boolean next() {
+            if (this.offset >= this.length) {
+                this.doc = Integer.MAX_VALUE;
+                return false;
+            }
+            this.doc += this.readInt();
+            this.freq = this.readInt();
+            if (this.freq > this.positions.length)
+                this.positions = new int[Math.max(this.freq, this.positions.length * 2)];
+            int position = 0;
+            for (int i = 0; i < this.freq; i++) {
+                position += this.readInt();
+                this.positions[i] = position;
+            }
+            return true;
+        }
+
+        /**
+         * @param target document id
+         * @return false if there is no document with an id of at least target
+         */
+        boolean advance(int target) {
+            while (this.doc < target) {
+                if (!this.next())
+                    return false;
+            }
+            return true;
+        }
+
+        private int readInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.bytes[this.offset++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        /**
+         * @return current document id, Integer.MAX_VALUE after the end
+         */
+        int doc() {
+            return this.doc;
+        }
+
+        /**
+         * @return number of positions in the current document
+         */
+        int freq() {
+            return this.freq;
+        }
+
+        /**
+         * @return positions of the current document, only the first {@link #freq()} entries are valid
+         */
+        int[] positions() {
+            return this.positions;
+        }
+
+        /**
+         * @param position position to look for
+         * @return true if the term is at this position in the current document
+         */
+        boolean hasPosition(int position) {
+            return Arrays.binarySearch(this.positions, 0, this.freq, position) >= 0;
+        }
+    }
+}
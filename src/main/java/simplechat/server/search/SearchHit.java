@@ -0,0 +1,48 @@
+package simplechat.server.search;
+
+import java.time.Instant;
+
+/**
+ * One message found by the {@link SearchIndex}
+ */
+public final class SearchHit {
+
+    private final long time;
+    private final String sender;
+    private final String message;
+
+    SearchHit(long time, String sender, String message) {
+        this.time = time;
+        this.sender = sender;
+        this.message = message;
+    }
+
+    /**
+     * @return time the message was indexed in milliseconds since the epoch
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return chatName of the sender, null if the message had no "[chatName] " prefix
+     */
+    public String getSender() {
+        return this.sender;
+    }
+
+    /**
+     * @return whole message as it was stored, e.g. "[Franz] hallo!"
+     */
+    public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * @return ISO-8601 time and message, e.g. "2018-10-11T08:15:30Z [Franz] hallo!"
+     */
+    @Override
+    public String toString() {
+        return Instant.ofEpochMilli(this.time) + " " + this.message;
+    }
+}
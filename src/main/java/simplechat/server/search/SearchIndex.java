@@ -0,0 +1,252 @@
+package simplechat.server.search;
+
+import simplechat.server.SimpleChat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Inverted index over the chat history of the server.
+ * <br>
+ * Messages are handed over with {@link #add(String, long)} and indexed by one own Thread, so neither the
+ * ClientWorkers nor the UI wait for it. New messages go to an open segment; when it is full it is sealed and a new
+ * one is started. Whenever the newest {@value #MERGE_FACTOR} segments have the same size class they are merged
+ * into one, so there are only a few segments per size class. Merging also drops the messages beyond the
+ * configured maximum, so the memory of the index is bounded.
+ * <br>
+ * Searching reads the sealed segments without locking, only the open segment is read under the lock of the index.
+ */
+public class SearchIndex {
+
+    /**
+     * Number of messages kept in the index if nothing else is configured
+     */
+    public static final int DEFAULT_MAX_MESSAGES = 100_000;
+
+    static final int SEGMENT_SIZE = 256;
+    static final int MERGE_FACTOR = 8;
+
+    private final int maxMessages;
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SimpleChat-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // sealed segments, oldest first, replaced as a whole under the lock of the index
+    private volatile List<Segment> segments = Collections.emptyList();
+    private Segment open = new Segment(0, SEGMENT_SIZE);
+    private int nextDoc = 0;
+    private volatile long merges = 0;
+
+    /**
+     * @param maxMessages number of newest messages which can be found, older ones are dropped
+     */
+    public SearchIndex(int maxMessages) {
+        this.maxMessages = Math.max(maxMessages, SEGMENT_SIZE);
+    }
+
+    /**
+     * Splits a text into lower case terms of letters and digits
+     *
+     * @param text message or query
+     * @return terms in the order of the text
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @param message message of the store, e.g. "[Franz] hallo!"
+     * @return chatName in the prefix or null
+     */
+    static String senderOf(String message) {
+        int end = message.indexOf("] ");
+        return message.startsWith("[") && end > 0 ? message.substring(1, end) : null;
+    }
+
+    /**
+     * Queues a message for indexing and returns at once
+     *
+     * @param message message with "[chatName] " prefix
+     * @param time    time of the message in milliseconds, not older than the last added message
+     */
+    public void add(String message, long time) {
+        try {
+            this.indexer.execute(() -> this.index(message, time));
+        } catch (RejectedExecutionException e) {
+            SimpleChat.serverLogger.log(FINE, "Index is closed, message not indexed");
+        }
+    }
+
+    private void index(String message, long time) {
+        String sender = senderOf(message);
+        String text = sender != null ? message.substring(sender.length() + 3) : message;
+        List<String> tokens = tokenize(text);
+        Segment sealed = null;
+        synchronized (this) {
+            this.open.add(time, sender, message, tokens);
+            this.nextDoc++;
+            if (this.open.size() == SEGMENT_SIZE) {
+                sealed = this.open;
+                sealed.seal();
+                List<Segment> segments = new ArrayList<>(this.segments);
+                segments.add(sealed);
+                this.segments = Collections.unmodifiableList(segments);
+                this.open = new Segment(this.nextDoc, SEGMENT_SIZE);
+            }
+        }
+        if (sealed != null)
+            this.merge();
+    }
+
+    /**
+     * Merges the newest segments while they have the same size class and removes segments
+     * which only contain dropped messages. Only called by the indexer Thread.
+     */
+    private void merge() {
+        List<Segment> segments = new ArrayList<>(this.segments);
+        int cutoff = this.cutoff();
+        boolean changed = segments.removeIf(s -> s.getBase() + s.size() <= cutoff);
+        while (segments.size() >= MERGE_FACTOR) {
+            List<Segment> newest = segments.subList(segments.size() - MERGE_FACTOR, segments.size());
+            int sizeClass = sizeClass(newest.get(0));
+            boolean same = true;
+            for (Segment segment : newest) {
+                same &= sizeClass(segment) == sizeClass;
+            }
+            if (!same)
+                break;
+            Segment merged = Segment.merge(newest, cutoff);
+            newest.clear();
+            segments.add(merged);
+            this.merges++;
+            changed = true;
+            SimpleChat.serverLogger.log(FINE, "Merged " + MERGE_FACTOR + " segments into one of " + merged.size() + " messages");
+        }
+        if (changed) {
+            synchronized (this) {
+                // only the indexer Thread changes the list, so nothing was added in the meantime
+                this.segments = Collections.unmodifiableList(segments);
+            }
+        }
+    }
+
+    private static int sizeClass(Segment segment) {
+        int sizeClass = 0;
+        for (long capacity = SEGMENT_SIZE; segment.size() > capacity; capacity *= MERGE_FACTOR) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private int cutoff() {
+        return this.nextDoc - this.maxMessages;
+    }
+
+    /**
+     * @param query search query, see {@link SearchQuery}
+     * @return matching messages, newest first
+     * @throws IllegalArgumentException if the query is invalid
+     */
+    public List<SearchHit> search(String query) {
+        return this.search(SearchQuery.parse(query, System.currentTimeMillis()));
+    }
+
+    /**
+     * @param query parsed search query
+     * @return matching messages, newest first
+     */
+    public List<SearchHit> search(SearchQuery query) {
+        List<SearchHit> hits = new ArrayList<>();
+        List<Segment> segments;
+        int cutoff;
+        synchronized (this) {
+            segments = this.segments;
+            cutoff = this.cutoff();
+            this.open.search(query, cutoff, hits, query.getLimit());
+        }
+        for (int i = segments.size() - 1; i >= 0 && hits.size() < query.getLimit(); i--) {
+            segments.get(i).search(query, cutoff, hits, query.getLimit());
+        }
+        return hits;
+    }
+
+    /**
+     * Waits until all messages added so far are indexed
+     *
+     * @param timeoutMillis maximum time to wait
+     * @return false if the messages were not indexed in time
+     */
+    public boolean awaitIndexed(long timeoutMillis) {
+        try {
+            this.indexer.submit(() -> { }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return number of messages which can be found
+     */
+    public synchronized int getMessageCount() {
+        return Math.min(this.nextDoc, this.maxMessages);
+    }
+
+    /**
+     * @return number of sealed segments
+     */
+    public int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * @return number of merges since the start
+     */
+    public long getMerges() {
+        return this.merges;
+    }
+
+    /**
+     * @return approximate memory of postings and dictionaries in bytes
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Stops the indexer Thread, messages still queued are not indexed
+     */
+    public void shutdown() {
+        this.indexer.shutdownNow();
+    }
+}
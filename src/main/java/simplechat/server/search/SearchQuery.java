@@ -0,0 +1,143 @@
+package simplechat.server.search;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsed search request.
+ * <br>
+ * Words and "quoted phrases" must all occur in a message. Filters are written as key:value:
+ * <ul>
+ * <li>from:Franz - messages of one sender</li>
+ * <li>since:7d / since:2018-10-11 / since:2018-10-11T08:00:00Z - newer messages, relative values are
+ * s, m, h or d before now</li>
+ * <li>until:... - older messages, same values as since</li>
+ * <li>limit:50 - maximum number of hits, default {@value #DEFAULT_LIMIT}</li>
+ * </ul>
+ * e.g. {@code from:Franz since:7d "deploy failed"}
+ */
+public final class SearchQuery {
+
+    /**
+     * Number of hits if the query has no limit filter
+     */
+    public static final int DEFAULT_LIMIT = 20;
+
+    private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"?|(\\S+)");
+    private static final Pattern RELATIVE = Pattern.compile("(\\d+)([smhd])");
+
+    private final List<List<String>> phrases = new ArrayList<>();
+    private String sender = null;
+    private Long since = null;
+    private Long until = null;
+    private int limit = DEFAULT_LIMIT;
+
+    private SearchQuery() {
+    }
+
+    /**
+     * @param query text of the query, see {@link SearchQuery}
+     * @param now   current time in milliseconds, relative times are computed from it
+     * @return parsed query
+     * @throws IllegalArgumentException if a filter has an invalid value
+     */
+    public static SearchQuery parse(String query, long now) {
+        SearchQuery result = new SearchQuery();
+        Matcher matcher = TOKEN.matcher(query);
+        while (matcher.find()) {
+            String token = matcher.group(2);
+            if (matcher.group(1) != null) {
+                result.addPhrase(matcher.group(1));
+            } else if (token.startsWith("from:")) {
+                result.sender = token.substring(5);
+            } else if (token.startsWith("since:")) {
+                result.since = parseTime(token.substring(6), now);
+            } else if (token.startsWith("until:")) {
+                result.until = parseTime(token.substring(6), now);
+            } else if (token.startsWith("limit:")) {
+                try {
+                    result.limit = Integer.parseInt(token.substring(6));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid limit: " + token);
+                }
+            } else {
+                for (String term : SearchIndex.tokenize(token)) {
+                    result.phrases.add(Collections.singletonList(term));
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addPhrase(String phrase) {
+        List<String> terms = SearchIndex.tokenize(phrase);
+        if (!terms.isEmpty())
+            this.phrases.add(terms);
+    }
+
+    private static long parseTime(String value, long now) {
+        Matcher relative = RELATIVE.matcher(value);
+        if (relative.matches()) {
+            long amount = Long.parseLong(relative.group(1));
+            switch (relative.group(2)) {
+                case "s":
+                    return now - amount * 1000L;
+                case "m":
+                    return now - amount * 60_000L;
+                case "h":
+                    return now - amount * 3_600_000L;
+                default:
+                    return now - amount * 86_400_000L;
+            }
+        }
+        try {
+            if (value.contains("T"))
+                return Instant.parse(value).toEpochMilli();
+            return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + value);
+        }
+    }
+
+    /**
+     * @return terms and phrases which must all occur, a single term is a phrase of length one
+     */
+    public List<List<String>> getPhrases() {
+        return this.phrases;
+    }
+
+    /**
+     * @return chatName of the sender or null for all senders
+     */
+    public String getSender() {
+        return this.sender;
+    }
+
+    /**
+     * @return oldest time in milliseconds or null
+     */
+    public Long getSince() {
+        return this.since;
+    }
+
+    /**
+     * @return time in milliseconds all messages must be older than, or null
+     */
+    public Long getUntil() {
+        return this.until;
+    }
+
+    /**
+     * @return maximum number of hits
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+}
@@ -0,0 +1,257 @@
+package simplechat.server.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Part of the {@link SearchIndex} with consecutive document ids starting at {@link #getBase()}.
+ * <br>
+ * The open segment is appended to by the indexer Thread, afterwards it is sealed and never changed again.
+ * Times, senders and texts of the documents are kept in arrays by local document id; the texts are the same
+ * String instances as in the message store, so they take no extra memory.
+ */
+final class Segment {
+
+    private final int base;
+    private int size = 0;
+    private long[] times;
+    private String[] senders;
+    private String[] texts;
+    private final Map<String, PostingList> postings = new HashMap<>();
+    private boolean sealed = false;
+
+    /**
+     * @param base     global id of the first document
+     * @param capacity expected number of documents
+     */
+    Segment(int base, int capacity) {
+        this.base = base;
+        this.times = new long[capacity];
+        this.senders = new String[capacity];
+        this.texts = new String[capacity];
+    }
+
+    /**
+     * Adds the next document, only allowed before {@link #seal()}
+     *
+     * @param time    time of the message in milliseconds
+     * @param sender  chatName of the sender or null
+     * @param text    whole message
+     * @param tokens  terms of the message, see {@link SearchIndex#tokenize(String)}
+     */
+    void add(long time, String sender, String text, List<String> tokens) {
+        if (this.sealed)
+            throw new IllegalStateException("Segment is sealed");
+        if (this.size == this.times.length) {
+            int capacity = Math.max(16, this.size * 2);
+            this.times = Arrays.copyOf(this.times, capacity);
+            this.senders = Arrays.copyOf(this.senders, capacity);
+            this.texts = Arrays.copyOf(this.texts, capacity);
+        }
+        int doc = this.size;
+        this.times[doc] = time;
+        this.senders[doc] = sender;
+        this.texts[doc] = text;
+        Map<String, int[]> positions = new HashMap<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            int[] list = positions.computeIfAbsent(tokens.get(i), t -> new int[]{0, 0, 0, 0, 0});
+            if (list[0] + 1 == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+                positions.put(tokens.get(i), list);
+            }
+            list[++list[0]] = i;
+        }
+        for (Map.Entry<String, int[]> e : positions.entrySet()) {
+            int[] list = e.getValue();
+            this.postings.computeIfAbsent(e.getKey(), t -> new PostingList())
+                    .add(doc, Arrays.copyOfRange(list, 1, list[0] + 1), list[0]);
+        }
+        this.size++;
+    }
+
+    /**
+     * Drops unused capacity, afterwards the segment can not be changed any more
+     */
+    void seal() {
+        this.times = Arrays.copyOf(this.times, this.size);
+        this.senders = Arrays.copyOf(this.senders, this.size);
+        this.texts = Arrays.copyOf(this.texts, this.size);
+        for (PostingList list : this.postings.values()) {
+            list.trim();
+        }
+        this.sealed = true;
+    }
+
+    /**
+     * Merges consecutive segments into one sealed segment.
+     *
+     * @param parts  sealed segments in the order of their ids
+     * @param cutoff global id of the oldest document which is kept
+     * @return merged segment, empty if all documents are older than cutoff
+     */
+    static Segment merge(List<Segment> parts, int cutoff) {
+        int base = Math.max(parts.get(0).base, cutoff);
+        Segment last = parts.get(parts.size() - 1);
+        Segment merged = new Segment(base, Math.max(0, last.base + last.size - base));
+        for (Segment part : parts) {
+            for (int doc = Math.max(0, base - part.base); doc < part.size; doc++) {
+                merged.times[merged.size] = part.times[doc];
+                merged.senders[merged.size] = part.senders[doc];
+                merged.texts[merged.size] = part.texts[doc];
+                merged.size++;
+            }
+        }
+        TreeSet<String> terms = new TreeSet<>();
+        for (Segment part : parts) {
+            terms.addAll(part.postings.keySet());
+        }
+        for (String term : terms) {
+            PostingList list = new PostingList();
+            for (Segment part : parts) {
+                PostingList source = part.postings.get(term);
+                if (source == null)
+                    continue;
+                PostingList.Cursor cursor = source.cursor();
+                while (cursor.next()) {
+                    int global = part.base + cursor.doc();
+                    if (global >= base)
+                        list.add(global - base, cursor.positions(), cursor.freq());
+                }
+            }
+            if (list.docs() > 0)
+                merged.postings.put(term, list);
+        }
+        merged.seal();
+        return merged;
+    }
+
+    /**
+     * @return global id of the first document
+     */
+    int getBase() {
+        return this.base;
+    }
+
+    /**
+     * @return number of documents
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return approximate number of bytes of the postings and dictionary
+     */
+    long bytes() {
+        long bytes = this.size * 24L;
+        for (Map.Entry<String, PostingList> e : this.postings.entrySet()) {
+            bytes += e.getValue().bytes() + e.getKey().length() * 2 + 64;
+        }
+        return bytes;
+    }
+
+    /**
+     * Collects the matching documents of this segment, newest first
+     *
+     * @param query   parsed query
+     * @param cutoff  global id of the oldest document which may be returned
+     * @param hits    list the hits are added to
+     * @param limit   maximum size of hits
+     */
+    void search(SearchQuery query, int cutoff, List<SearchHit> hits, int limit) {
+        int from = Math.max(0, cutoff - this.base);
+        int to = this.size;
+        if (query.getSince() != null)
+            from = Math.max(from, this.firstAtOrAfter(query.getSince()));
+        if (query.getUntil() != null)
+            to = Math.min(to, this.firstAtOrAfter(query.getUntil()));
+        if (from >= to)
+            return;
+        BitSet matches = new BitSet(to);
+        matches.set(from, to);
+        for (List<String> phrase : query.getPhrases()) {
+            matches.and(this.match(phrase, from, to));
+            if (matches.isEmpty())
+                return;
+        }
+        for (int doc = matches.previousSetBit(to - 1); doc >= 0 && hits.size() < limit;
+             doc = matches.previousSetBit(doc - 1)) {
+            if (query.getSender() == null || query.getSender().equalsIgnoreCase(this.senders[doc]))
+                hits.add(new SearchHit(this.times[doc], this.senders[doc], this.texts[doc]));
+        }
+    }
+
+    /**
+     * @param time time in milliseconds
+     * @return local id of the first document not older than time, documents are added in time order
+     */
+    private int firstAtOrAfter(long time) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.times[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Finds the documents containing the terms of the phrase at consecutive positions.
+     * The cursors are advanced together, only documents containing all terms have their positions compared.
+     */
+    private BitSet match(List<String> phrase, int from, int to) {
+        BitSet docs = new BitSet(to);
+        List<PostingList.Cursor> cursors = new ArrayList<>(phrase.size());
+        for (String term : phrase) {
+            PostingList list = this.postings.get(term);
+            if (list == null)
+                return docs;
+            PostingList.Cursor cursor = list.cursor();
+            if (!cursor.advance(from))
+                return docs;
+            cursors.add(cursor);
+        }
+        while (true) {
+            int target = 0;
+            for (PostingList.Cursor cursor : cursors) {
+                target = Math.max(target, cursor.doc());
+            }
+            if (target >= to)
+                return docs;
+            boolean aligned = true;
+            for (PostingList.Cursor cursor : cursors) {
+                if (!cursor.advance(target))
+                    return docs;
+                aligned &= cursor.doc() == target;
+            }
+            if (!aligned)
+                continue;
+            if (isPhrase(cursors))
+                docs.set(target);
+            if (!cursors.get(0).next())
+                return docs;
+        }
+    }
+
+    private static boolean isPhrase(List<PostingList.Cursor> cursors) {
+        PostingList.Cursor first = cursors.get(0);
+        for (int p = 0; p < first.freq(); p++) {
+            int start = first.positions()[p];
+            boolean found = true;
+            for (int i = 1; i < cursors.size() && found; i++) {
+                found = cursors.get(i).hasPosition(start + i);
+            }
+            if (found)
+                return true;
+        }
+        return false;
+    }
+}
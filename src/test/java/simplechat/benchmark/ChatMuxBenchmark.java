@@ -0,0 +1,65 @@
+package simplechat.benchmark;
+
+import simplechat.communication.socket.client.ChatMux;
+import simplechat.communication.socket.client.ChatSession;
+import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.communication.transport.ChannelTransport;
+import simplechat.server.SimpleChat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Many bot sessions in one process on one {@link ChatMux} Thread: how long they need to connect and how long
+ * broadcasts need to reach every session.
+ * <br>
+ * Run with: gradle benchmark -Pbench=simplechat.benchmark.ChatMuxBenchmark
+ */
+public class ChatMuxBenchmark {
+
+    private static final int SESSIONS = 2000;
+    private static final int MESSAGES = 20;
+
+    public static void main(String[] args) throws Exception {
+        SimpleChat.serverLogger.setLevel(Level.OFF);
+        simplechat.client.SimpleChat.clientLogger.setLevel(Level.OFF);
+        SimpleChat chat = new SimpleChat(null, null);
+        SimpleChatServer server = new SimpleChatServer("localhost", 0, chat);
+        server.setTransport(new ChannelTransport());
+        server.setBacklog(SESSIONS);
+        server.start();
+        if (!server.awaitStarted(10000) || server.getLocalPort() < 0)
+            throw new IllegalStateException("server did not start");
+        AtomicLong received = new AtomicLong();
+        long start = System.nanoTime();
+        List<ChatSession> sessions = new ArrayList<>();
+        try (ChatMux mux = new ChatMux()) {
+            for (int i = 0; i < SESSIONS; i++) {
+                sessions.add(mux.open("localhost", server.getLocalPort(), "bot" + i, (session, message) -> received.incrementAndGet()));
+            }
+            while (chat.getClients().length < SESSIONS) {
+                Thread.sleep(10);
+            }
+            long connected = System.nanoTime() - start;
+            // the UI knows the names a moment before the server can route to them
+            Thread.sleep(500);
+            received.set(0);
+            start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                sessions.get(i).send("hallo " + i);
+            }
+            while (received.get() < (long) SESSIONS * MESSAGES) {
+                Thread.sleep(1);
+            }
+            long fanOut = System.nanoTime() - start;
+            System.out.printf("%d sessions, %d broadcasts%n", SESSIONS, MESSAGES);
+            System.out.printf("  connected in %7.1f ms%n", connected / 1e6);
+            System.out.printf("  %d lines delivered in %7.1f ms, %6.2f us per line%n", received.get(), fanOut / 1e6,
+                    fanOut / 1000.0 / received.get());
+        }
+        server.shutdown();
+        System.exit(0);
+    }
+}
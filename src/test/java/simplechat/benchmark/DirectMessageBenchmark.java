@@ -0,0 +1,115 @@
+package simplechat.benchmark;
+
+import simplechat.communication.MessageProtocol;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.server.SimpleChat;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Compares direct messages with broadcasts: one sender, many connected clients, and the time until
+ * every receiver (the sender included, it gets its own copy) has read all messages.
+ * <br>
+ * Run with: gradle benchmark -Pbench=simplechat.benchmark.DirectMessageBenchmark
+ */
+public class DirectMessageBenchmark {
+
+    private static final int CLIENTS = 50;
+    private static final int MESSAGES = 20000;
+
+    private static String host = "localhost";
+    private static AtomicLongArray received = new AtomicLongArray(CLIENTS + 1);
+
+    public static void main(String[] args) throws Exception {
+        SimpleChat.serverLogger.setLevel(Level.OFF);
+        SimpleChat chat = new SimpleChat(null, null);
+        SimpleChatServer server = new SimpleChatServer(host, 0, chat);
+        server.start();
+        if (!server.awaitStarted(10000) || server.getLocalPort() < 0)
+            throw new IllegalStateException("server did not start");
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i <= CLIENTS; i++) {
+            sockets.add(connect(server.getLocalPort(), i));
+        }
+        while (chat.getClients().length <= CLIENTS || !Arrays.asList(chat.getClients()).contains("c" + (CLIENTS - 1))) {
+            Thread.sleep(10);
+        }
+        // the UI knows the names a moment before the server can route to them
+        Thread.sleep(500);
+        LineWriter sender = new LineWriter(sockets.get(CLIENTS).getOutputStream());
+
+        String text = "chat chat chat chat chat chat chat chat chat chat chat chat chat chat chat chat chat chat chat";
+        run(sender, text, MESSAGES / 10, all());
+        long broadcast = run(sender, text, MESSAGES, all());
+        run(sender, MessageProtocol.privateMessage(text, "c0"), MESSAGES / 10, 0);
+        long direct = run(sender, MessageProtocol.privateMessage(text, "c0"), MESSAGES, 0);
+        long directFive = run(sender, MessageProtocol.privateMessage(text, "c0", "c1", "c2", "c3", "c4"),
+                MESSAGES, 0, 1, 2, 3, 4);
+
+        System.out.printf("%d messages, %d connected clients%n", MESSAGES, CLIENTS + 1);
+        System.out.printf("  broadcast       %8.2f us/message%n", broadcast / 1000.0 / MESSAGES);
+        System.out.printf("  direct to 1     %8.2f us/message%n", direct / 1000.0 / MESSAGES);
+        System.out.printf("  direct to 5     %8.2f us/message%n", directFive / 1000.0 / MESSAGES);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.shutdown();
+        System.exit(0);
+    }
+
+    private static int[] all() {
+        int[] all = new int[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            all[i] = i;
+        }
+        return all;
+    }
+
+    private static Socket connect(int port, int index) throws Exception {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        new LineWriter(socket.getOutputStream()).writeLine("!CHATNAME " + (index < CLIENTS ? "c" + index : "sender"));
+        LineReader reader = new LineReader(socket.getInputStream());
+        Thread thread = new Thread(() -> {
+            try {
+                while (reader.readLine() != null) {
+                    received.incrementAndGet(index);
+                }
+            } catch (Exception e) {
+                // closed at the end
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return socket;
+    }
+
+    private static long run(LineWriter sender, String line, int messages, int... receivers) throws Exception {
+        long[] before = new long[CLIENTS + 1];
+        for (int i = 0; i <= CLIENTS; i++) {
+            before[i] = received.get(i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            sender.write(LineWriter.encode(line));
+        }
+        sender.flush();
+        for (int i : receivers) {
+            while (received.get(i) - before[i] < messages) {
+                Thread.yield();
+            }
+        }
+        while (received.get(CLIENTS) - before[CLIENTS] < messages) {
+            Thread.yield();
+        }
+        return System.nanoTime() - start;
+    }
+}
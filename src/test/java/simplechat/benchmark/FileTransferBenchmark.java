@@ -0,0 +1,113 @@
+package simplechat.benchmark;
+
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.communication.transport.ChannelTransport;
+import simplechat.communication.transport.SocketTransport;
+import simplechat.communication.transport.Transport;
+import simplechat.server.SimpleChat;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+
+/**
+ * Sends one large file to several receivers and measures how long chat messages, sent while the file is
+ * streamed, take to reach a receiver. Plain sockets copy the chunks through the writer, channels use
+ * transferTo.
+ * <br>
+ * Run with: gradle benchmark -Pbench=simplechat.benchmark.FileTransferBenchmark
+ */
+public class FileTransferBenchmark {
+
+    private static final int RECEIVERS = 5;
+    private static final int SIZE = 32 * 1024 * 1024;
+    private static final int PINGS = 50;
+
+    public static void main(String[] args) throws Exception {
+        SimpleChat.serverLogger.setLevel(Level.OFF);
+        System.out.printf("%d MB file to %d receivers, %d chat messages meanwhile%n", SIZE >> 20, RECEIVERS, PINGS);
+        for (Transport transport : new Transport[]{new SocketTransport(), new ChannelTransport()}) {
+            run(transport);
+            run(transport);
+        }
+        System.exit(0);
+    }
+
+    private static void run(Transport transport) throws Exception {
+        SimpleChat chat = new SimpleChat(null, null);
+        SimpleChatServer server = new SimpleChatServer("localhost", 0, chat);
+        server.setTransport(transport);
+        server.setFileLimit((long) SIZE);
+        server.start();
+        if (!server.awaitStarted(10000) || server.getLocalPort() < 0)
+            throw new IllegalStateException("server did not start");
+        List<Socket> sockets = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(RECEIVERS);
+        long[] latencies = new long[PINGS];
+        for (int i = 0; i <= RECEIVERS; i++) {
+            Socket socket = new Socket("localhost", server.getLocalPort());
+            sockets.add(socket);
+            new LineWriter(socket.getOutputStream()).writeLine("!CHATNAME c" + i);
+            if (i == 0)
+                continue;
+            boolean measure = i == 1;
+            LineReader in = new LineReader(socket.getInputStream());
+            Thread reader = new Thread(() -> receive(in, measure ? latencies : null, done));
+            reader.setDaemon(true);
+            reader.start();
+        }
+        while (chat.getClients().length <= RECEIVERS) {
+            Thread.sleep(10);
+        }
+        LineWriter out = new LineWriter(sockets.get(0).getOutputStream());
+        byte[] chunk = new byte[64 * 1024];
+        long start = System.nanoTime();
+        out.writeLine("!FILE SEND 1 " + SIZE + " big.bin");
+        for (int position = 0; position < SIZE; position += chunk.length) {
+            out.write(LineWriter.encode("!CHUNK 1 " + chunk.length), ByteBuffer.wrap(chunk));
+            out.flush();
+        }
+        for (int i = 0; i < PINGS; i++) {
+            out.writeLine("ping " + i + " " + System.nanoTime());
+            Thread.sleep(2);
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.shutdown();
+        Arrays.sort(latencies);
+        System.out.printf("  %-8s %7.1f MB/s to all receivers, chat latency median %6.2f ms, max %6.2f ms%n", transport,
+                (double) SIZE * RECEIVERS / nanos * 1000, latencies[PINGS / 2] / 1e6, latencies[PINGS - 1] / 1e6);
+    }
+
+    private static void receive(LineReader in, long[] latencies, CountDownLatch done) {
+        try {
+            String line;
+            int pings = 0;
+            boolean file = false;
+            while ((!file || pings < PINGS) && (line = in.readLine()) != null) {
+                if (line.startsWith("!CHUNK ")) {
+                    in.readBytes(null, Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1)));
+                } else if (line.startsWith("!FILE END")) {
+                    file = true;
+                } else if (line.startsWith("[c0] ping ")) {
+                    String[] split = line.split(" ");
+                    if (latencies != null)
+                        latencies[Integer.parseInt(split[2])] = System.nanoTime() - Long.parseLong(split[3]);
+                    pings++;
+                }
+            }
+        } catch (Exception e) {
+            // closed at the end
+        }
+        done.countDown();
+    }
+}
@@ -0,0 +1,101 @@
+package simplechat.benchmark;
+
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+
+import java.io.File;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts headless servers in own processes and measures the time from starting the process until the first
+ * client is accepted and until the first message comes back, without and with the class data sharing archive.
+ * <br>
+ * Run with: gradle cdsArchive benchmark -Pbench=simplechat.benchmark.StartupBenchmark
+ */
+public class StartupBenchmark {
+
+    private static final int RUNS = 10;
+
+    private static String host = "localhost";
+
+    public static void main(String[] args) throws Exception {
+        String classpath = System.getProperty("simplechat.classpath", System.getProperty("java.class.path"));
+        File cds = new File(System.getProperty("simplechat.cds", "build/simplechat.jsa"));
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<String> plain = new ArrayList<>();
+        plain.add(java);
+        plain.add("-cp");
+        plain.add(classpath);
+        measure(plain);
+        report("default JDK archive", measure(plain));
+        if (cds.exists()) {
+            List<String> shared = new ArrayList<>(plain);
+            shared.add(1, "-XX:SharedArchiveFile=" + cds);
+            measure(shared);
+            report("simplechat.jsa", measure(shared));
+        } else {
+            System.out.println("  no " + cds + ", run gradle cdsArchive first");
+        }
+        System.exit(0);
+    }
+
+    private static void report(String name, long[] nanos) {
+        System.out.printf("  %-20s first accept %6.1f ms, first message %6.1f ms%n", name,
+                nanos[0] / 1e6 / RUNS, nanos[1] / 1e6 / RUNS);
+    }
+
+    /**
+     * @param command java command without main class
+     * @return summed nanoseconds until the first accept and until the first message
+     */
+    private static long[] measure(List<String> command) throws Exception {
+        long[] sum = new long[2];
+        for (int i = 0; i < RUNS; i++) {
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            List<String> server = new ArrayList<>(command);
+            server.add("simplechat.server.SimpleChat");
+            server.add("--headless");
+            server.add("--port");
+            server.add(String.valueOf(port));
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(server).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            try (Socket socket = connect(port)) {
+                sum[0] += System.nanoTime() - start;
+                LineWriter writer = new LineWriter(socket.getOutputStream());
+                LineReader reader = new LineReader(socket.getInputStream());
+                writer.writeLine("!CHATNAME bench");
+                writer.writeLine("hallo");
+                String line;
+                while ((line = reader.readLine()) != null && !line.endsWith("] hallo")) {
+                    // name answer and presence
+                }
+                sum[1] += System.nanoTime() - start;
+            } finally {
+                process.destroy();
+                process.waitFor();
+            }
+        }
+        return sum;
+    }
+
+    private static Socket connect(int port) throws Exception {
+        while (true) {
+            try {
+                Socket socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (ConnectException e) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
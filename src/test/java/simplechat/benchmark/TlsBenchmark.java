@@ -0,0 +1,135 @@
+package simplechat.benchmark;
+
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.communication.socket.SelfSignedCertificate;
+import simplechat.communication.socket.TlsConnection;
+import simplechat.communication.socket.TlsContext;
+import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.server.SimpleChat;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.logging.Level;
+
+/**
+ * Compares plain sockets with TLS: time to connect and get the first message back
+ * with a full handshake and with a resumed session, and the throughput of a single connection.
+ * <br>
+ * Run with: gradle benchmark -Pbench=simplechat.benchmark.TlsBenchmark
+ */
+public class TlsBenchmark {
+
+    private static final int CONNECTIONS = 300;
+    private static final int MESSAGES = 50000;
+
+    private static String host = "localhost";
+
+    public static void main(String[] args) throws Exception {
+        SimpleChat.serverLogger.setLevel(Level.OFF);
+        SelfSignedCertificate certificate = new SelfSignedCertificate();
+
+        SimpleChatServer plain = start(null);
+        SimpleChatServer tls = start(certificate.serverContext());
+
+        connect(plain.getLocalPort(), null, 50);
+        long plainConnect = connect(plain.getLocalPort(), null, CONNECTIONS);
+        connect(tls.getLocalPort(), certificate.clientContext(), 50);
+        long fullHandshake = 0;
+        for (int i = 0; i < CONNECTIONS; i++) {
+            // a new context has an empty session cache, so every handshake is a full one
+            fullHandshake += connect(tls.getLocalPort(), certificate.clientContext(), 1);
+        }
+        TlsContext shared = certificate.clientContext();
+        connect(tls.getLocalPort(), shared, 1);
+        long resumed = connect(tls.getLocalPort(), shared, CONNECTIONS);
+
+        System.out.printf("connect + first message, %d connections%n", CONNECTIONS);
+        System.out.printf("  plain           %8.1f us/connection%n", plainConnect / 1000.0 / CONNECTIONS);
+        System.out.printf("  tls full        %8.1f us/connection%n", fullHandshake / 1000.0 / CONNECTIONS);
+        System.out.printf("  tls resumed     %8.1f us/connection%n", resumed / 1000.0 / CONNECTIONS);
+
+        throughput(plain.getLocalPort(), null, MESSAGES / 10);
+        long plainMessages = throughput(plain.getLocalPort(), null, MESSAGES);
+        throughput(tls.getLocalPort(), shared, MESSAGES / 10);
+        long tlsMessages = throughput(tls.getLocalPort(), shared, MESSAGES);
+
+        System.out.printf("send + receive, %d messages of 100 bytes%n", MESSAGES);
+        System.out.printf("  plain           %8.2f us/message%n", plainMessages / 1000.0 / MESSAGES);
+        System.out.printf("  tls             %8.2f us/message%n", tlsMessages / 1000.0 / MESSAGES);
+
+        plain.shutdown();
+        tls.shutdown();
+        System.exit(0);
+    }
+
+    private static SimpleChatServer start(TlsContext context) throws InterruptedException {
+        SimpleChatServer server = new SimpleChatServer(host, 0, new SimpleChat(null, null));
+        server.setTlsContext(context);
+        server.setBacklog(CONNECTIONS);
+        server.start();
+        if (!server.awaitStarted(10000) || server.getLocalPort() < 0)
+            throw new IllegalStateException("server did not start");
+        return server;
+    }
+
+    private static long connect(int port, TlsContext context, int connections) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                if (context != null) {
+                    TlsConnection tls = context.client(socket, host, port);
+                    tls.handshake();
+                    in = tls.getInputStream();
+                    out = tls.getOutputStream();
+                }
+                new LineWriter(out).writeLine("ping");
+                new LineReader(in).readLine();
+                new LineWriter(out).writeLine("!EXIT");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long throughput(int port, TlsContext context, int messages) throws Exception {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            if (context != null) {
+                TlsConnection tls = context.client(socket, host, port);
+                tls.handshake();
+                in = tls.getInputStream();
+                out = tls.getOutputStream();
+            }
+            LineWriter writer = new LineWriter(out);
+            LineReader reader = new LineReader(in);
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 100) {
+                text.append("chat ");
+            }
+            String line = text.substring(0, 100);
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        writer.writeLine(line);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            long start = System.nanoTime();
+            sender.start();
+            for (int i = 0; i < messages; i++) {
+                reader.readLine();
+            }
+            long duration = System.nanoTime() - start;
+            writer.writeLine("!EXIT");
+            return duration;
+        }
+    }
+}
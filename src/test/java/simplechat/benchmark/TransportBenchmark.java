@@ -0,0 +1,97 @@
+package simplechat.benchmark;
+
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.communication.transport.Connection;
+import simplechat.communication.transport.Transport;
+import simplechat.communication.transport.Transports;
+import simplechat.server.SimpleChat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Broadcasts through the same server logic over every registered transport. The memory transport
+ * shows what the server costs without the kernel, the difference to the others is the network stack.
+ * <br>
+ * Run with: gradle benchmark -Pbench=simplechat.benchmark.TransportBenchmark
+ */
+public class TransportBenchmark {
+
+    private static final int CLIENTS = 20;
+    private static final int MESSAGES = 20000;
+
+    public static void main(String[] args) throws Exception {
+        SimpleChat.serverLogger.setLevel(Level.OFF);
+        System.out.printf("%d messages broadcast to %d clients%n", MESSAGES, CLIENTS);
+        for (String name : Transports.names()) {
+            run(Transports.get(name), MESSAGES / 2);
+        }
+        for (String name : Transports.names()) {
+            Transport transport = Transports.get(name);
+            long nanos = run(transport, MESSAGES);
+            System.out.printf("  %-60s %8.2f us/message%n", transport, nanos / 1000.0 / MESSAGES);
+        }
+        System.exit(0);
+    }
+
+    private static long run(Transport transport, int messages) throws Exception {
+        SimpleChat chat = new SimpleChat(null, null);
+        SimpleChatServer server = new SimpleChatServer("localhost", 0, chat);
+        server.setTransport(transport);
+        server.start();
+        if (!server.awaitStarted(10000) || server.getLocalPort() < 0)
+            throw new IllegalStateException("server did not start");
+        AtomicLong received = new AtomicLong();
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i <= CLIENTS; i++) {
+            Connection connection = transport.connect("localhost", server.getLocalPort(), 2000, null);
+            connections.add(connection);
+            LineReader reader = new LineReader(connection.getInputStream());
+            Thread thread = new Thread(() -> {
+                try {
+                    count(reader, received);
+                } catch (Exception e) {
+                    // closed at the end
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        while (chat.getClients().length <= CLIENTS) {
+            Thread.sleep(10);
+        }
+        // presence snapshots and deltas are not counted
+        Thread.sleep(500);
+        LineWriter sender = new LineWriter(connections.get(CLIENTS).getOutputStream());
+        byte[] line = LineWriter.encode("chat chat chat chat chat chat chat chat chat chat chat chat chat chat chat");
+        long before = received.get();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            sender.write(line);
+        }
+        sender.flush();
+        // every client gets the message, the sender included
+        while (received.get() - before < (long) messages * (CLIENTS + 1)) {
+            Thread.yield();
+        }
+        long nanos = System.nanoTime() - start;
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        server.shutdown();
+        return nanos;
+    }
+
+    private static void count(LineReader reader, AtomicLong received) throws Exception {
+        ByteBuffer line;
+        while ((line = reader.readLineBuffer()) != null) {
+            if (line.hasRemaining() && line.get(line.position()) != '!')
+                received.incrementAndGet();
+        }
+    }
+}
@@ -32,4 +32,9 @@ public class MessageProtocolTest {
     public void getSmallWrittenCommand() {
         MessageProtocol.getCommand("!exit");
     }
+
+    @Test
+    public void privateMessageListsAllReceivers() {
+        assertEquals("!PRIVATE {Franz,Sepp} hallo", MessageProtocol.privateMessage("hallo", "Franz", "Sepp"));
+    }
 }
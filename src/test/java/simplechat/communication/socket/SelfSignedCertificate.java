@@ -0,0 +1,46 @@
+package simplechat.communication.socket;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Generates a PKCS12 keystore with a self-signed certificate for localhost by calling the keytool of the running JRE.
+ * The same file can be used as keystore for the server and as truststore for the client.
+ */
+public class SelfSignedCertificate {
+
+    public static final String PASSWORD = "simplechat";
+
+    private final File file;
+
+    public SelfSignedCertificate() throws IOException, InterruptedException {
+        this.file = Files.createTempFile("simplechat", ".p12").toFile();
+        this.file.delete();
+        this.file.deleteOnExit();
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "simplechat",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", this.file.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + new String(process.getInputStream().readAllBytes()));
+        }
+    }
+
+    public String getPath() {
+        return this.file.getPath();
+    }
+
+    public TlsContext serverContext() throws Exception {
+        return TlsContext.load(this.getPath(), PASSWORD, null, null);
+    }
+
+    public TlsContext clientContext() throws Exception {
+        return TlsContext.load(null, null, this.getPath(), PASSWORD);
+    }
+}
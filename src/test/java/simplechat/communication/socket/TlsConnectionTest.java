@@ -0,0 +1,88 @@
+package simplechat.communication.socket;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import simplechat.communication.MessageProtocol;
+import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.communication.socket.server.TestServers;
+import simplechat.server.SimpleChat;
+
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+public class TlsConnectionTest {
+    private static SelfSignedCertificate certificate;
+
+    private final TestServers servers = new TestServers();
+    private SimpleChat simpleChat;
+    private SimpleChatServer server;
+
+    @BeforeClass
+    public static void generateCertificate() throws Exception {
+        certificate = new SelfSignedCertificate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    private void start() throws Exception {
+        simpleChat = new SimpleChat(null, null);
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setTlsContext(certificate.serverContext());
+        servers.start(server);
+    }
+
+    private TlsConnection connect(TlsContext context) throws Exception {
+        Socket socket = servers.connect(server);
+        TlsConnection tls = context.client(socket, "localhost", server.getLocalPort());
+        tls.handshake();
+        return tls;
+    }
+
+    @Test
+    public void broadcastOverTls() throws Exception {
+        start();
+        TlsContext context = certificate.clientContext();
+        TlsConnection sender = connect(context);
+        TlsConnection receiver = connect(context);
+        TestServers.awaitClients(simpleChat, 2);
+        new LineWriter(sender.getOutputStream()).writeLine("Hallo");
+        assertTrue(new LineReader(receiver.getInputStream()).readLine().endsWith("] Hallo"));
+    }
+
+    @Test
+    public void compressionOverTls() throws Exception {
+        start();
+        TlsConnection tls = connect(certificate.clientContext());
+        LineWriter out = new LineWriter(tls.getOutputStream());
+        LineReader in = new LineReader(tls.getInputStream());
+        out.writeLine("!COMPRESS " + MessageProtocol.DEFLATE);
+        assertEquals("!COMPRESS " + MessageProtocol.DEFLATE, in.readLine());
+        in.inflate();
+        out.deflate(0);
+        out.writeLine("Servus");
+        assertTrue(in.readLine().endsWith("] Servus"));
+    }
+
+    @Test
+    public void largeMessageOverTls() throws Exception {
+        start();
+        TlsConnection tls = connect(certificate.clientContext());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append(i).append(' ');
+        }
+        new LineWriter(tls.getOutputStream()).writeLine(text.toString());
+        assertTrue(new LineReader(tls.getInputStream()).readLine().endsWith("] " + text));
+    }
+
+    @Test(expected = javax.net.ssl.SSLException.class)
+    public void untrustedServer() throws Exception {
+        start();
+        connect(TlsContext.load(null, null, null, null));
+    }
+}
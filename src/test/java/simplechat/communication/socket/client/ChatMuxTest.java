@@ -0,0 +1,141 @@
+package simplechat.communication.socket.client;
+
+import org.junit.After;
+import org.junit.Test;
+import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.communication.socket.server.TestServers;
+import simplechat.communication.transport.ChannelTransport;
+import simplechat.server.SimpleChat;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ChatMuxTest {
+    private final TestServers servers = new TestServers();
+    private SimpleChat simpleChat = new SimpleChat(null, null);
+    private SimpleChatServer server;
+    private ChatMux mux;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mux != null) {
+            mux.close();
+        }
+        servers.close();
+    }
+
+    private void start() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setTransport(new ChannelTransport());
+        servers.start(server);
+        mux = new ChatMux();
+    }
+
+    @Test
+    public void manySessionsOnOneThread() throws Exception {
+        start();
+        int count = 200;
+        CountDownLatch received = new CountDownLatch(count);
+        List<ChatSession> sessions = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add("bot" + i);
+            sessions.add(mux.open("localhost", server.getLocalPort(), "bot" + i, (session, message) -> {
+                if (message.equals("[bot0] Servus"))
+                    received.countDown();
+            }));
+        }
+        // registered under their own names, not only under the default name before the !CHATNAME
+        TestServers.awaitClients(simpleChat, names.toArray(new String[0]));
+        sessions.get(0).send("Servus");
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(count, mux.getSessionCount());
+    }
+
+    @Test
+    public void privateMessagesAndCommands() throws Exception {
+        start();
+        Queue<String> franz = new ConcurrentLinkedQueue<>();
+        Queue<String> sepp = new ConcurrentLinkedQueue<>();
+        ChatSession sender = mux.open("localhost", server.getLocalPort(), "Franz", new ChatListener() {
+            @Override
+            public void message(ChatSession session, String message) {
+                franz.add(message);
+            }
+
+            @Override
+            public void command(ChatSession session, String command) {
+                franz.add(command);
+            }
+        });
+        mux.open("localhost", server.getLocalPort(), "Sepp", (session, message) -> sepp.add(message));
+        TestServers.awaitClients(simpleChat, "Franz", "Sepp");
+        sender.send("hallo", "Sepp");
+        sender.send("!PRIVATE {Niemand} hallo");
+        TestServers.await(() -> !sepp.isEmpty() && franz.contains("!PRIVATE ERROR Niemand"));
+        assertEquals("[Franz] {Sepp} hallo", sepp.peek());
+        assertTrue(franz.toString(), franz.contains("[Franz] {Sepp} hallo"));
+        assertTrue(franz.toString(), franz.contains("!PRIVATE ERROR Niemand"));
+    }
+
+    @Test
+    public void closeAndServerShutdownReachTheListener() throws Exception {
+        start();
+        CountDownLatch closed = new CountDownLatch(2);
+        List<IOException> causes = new ArrayList<>();
+        ChatListener listener = new ChatListener() {
+            @Override
+            public void message(ChatSession session, String message) {
+            }
+
+            @Override
+            public void closed(ChatSession session, IOException cause) {
+                causes.add(cause);
+                closed.countDown();
+            }
+        };
+        ChatSession leaving = mux.open("localhost", server.getLocalPort(), "Franz", listener);
+        mux.open("localhost", server.getLocalPort(), "Sepp", listener);
+        TestServers.awaitClients(simpleChat, 2);
+        leaving.close();
+        TestServers.awaitClients(simpleChat, 1);
+        server.shutdown();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, mux.getSessionCount());
+        assertNull(causes.get(0));
+        assertNull(causes.get(1));
+    }
+
+    @Test
+    public void unreachableServerClosesTheSession() throws Exception {
+        int port;
+        try (ServerSocket unused = new ServerSocket(0)) {
+            port = unused.getLocalPort();
+        }
+        mux = new ChatMux();
+        AtomicReference<IOException> cause = new AtomicReference<>();
+        CountDownLatch closed = new CountDownLatch(1);
+        mux.open("localhost", port, "Franz", new ChatListener() {
+            @Override
+            public void message(ChatSession session, String message) {
+            }
+
+            @Override
+            public void closed(ChatSession session, IOException e) {
+                cause.set(e);
+                closed.countDown();
+            }
+        });
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertNotNull(cause.get());
+    }
+}
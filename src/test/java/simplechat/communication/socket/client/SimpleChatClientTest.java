@@ -0,0 +1,134 @@
+package simplechat.communication.socket.client;
+
+import org.junit.After;
+import org.junit.Test;
+import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.communication.socket.server.TestServers;
+import simplechat.server.SimpleChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class SimpleChatClientTest {
+    private final TestServers servers = new TestServers();
+    private SimpleChatServer server;
+    private SimpleChatClient client;
+    private ServerSocket proxy;
+    // connections through the proxy, client side and server side
+    private final List<Socket> links = new CopyOnWriteArrayList<>();
+    // true drops what the server sends, like a link which broke on the way to the client
+    private volatile boolean holding = false;
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null)
+            client.shutdown();
+        if (proxy != null)
+            proxy.close();
+        for (Socket link : links) {
+            link.close();
+        }
+        servers.close();
+    }
+
+    /**
+     * Forwards every connection to the server, so the test can cut the client off without the server noticing first
+     */
+    private void startProxy() throws IOException {
+        proxy = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket downstream = proxy.accept();
+                    Socket upstream = new Socket("localhost", server.getLocalPort());
+                    links.add(downstream);
+                    links.add(upstream);
+                    pump(downstream, upstream, false);
+                    pump(upstream, downstream, true);
+                }
+            } catch (IOException e) {
+                // proxy closed
+            }
+        }, "proxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void pump(Socket from, Socket to, boolean toClient) {
+        Thread pump = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    if (toClient && this.holding)
+                        continue;
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // link cut
+            }
+        }, "proxy-pump");
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    /**
+     * Closes the links cleanly, the client reads the end of the stream and no !EXIT
+     */
+    private void cutLinks() throws IOException {
+        for (Socket link : links) {
+            try {
+                link.shutdownOutput();
+            } catch (IOException e) {
+                // already closed by the pump of the other direction
+            }
+            link.close();
+        }
+        links.clear();
+    }
+
+    private void awaitSequence(long sequence) throws InterruptedException {
+        TestServers.await(() -> client.getLastSequence() >= sequence);
+        assertEquals(sequence, client.getLastSequence());
+    }
+
+    @Test
+    public void reliableClientResumesAfterTheServerClosedTheConnection() throws Exception {
+        SimpleChat simpleChat = new SimpleChat(null, null);
+        server = servers.start(simpleChat);
+        startProxy();
+        client = new SimpleChatClient("Franz", "localhost", proxy.getLocalPort(),
+                new simplechat.client.SimpleChat(null, null, null));
+        client.setReliable(true);
+        client.start();
+        PrintWriter sender = new PrintWriter(servers.connect(server, "!CHATNAME Sepp").getOutputStream(), true);
+        TestServers.awaitClients(simpleChat, "Sepp");
+        // Franz got the answer to its !RELIABLE, the next messages are numbered
+        assertTrue(TestServers.await(() -> client.getReliableToken() != null));
+        sender.println("eins");
+        sender.println("zwei");
+        awaitSequence(2);
+
+        // sent by the server, but lost on the way, so the client does not acknowledge it
+        holding = true;
+        sender.println("drei");
+        TestServers.await(() -> server.getReliable().getSent() >= 3);
+        cutLinks();
+        holding = false;
+        awaitSequence(3);
+        assertTrue(client.isListening());
+        // resumed behind its last !ACK in the same window, nothing came twice
+        assertEquals(0, client.getDuplicates());
+        assertEquals(1, server.getReliable().getWindows());
+        assertEquals(1, server.getReliable().getRetransmitted());
+    }
+}
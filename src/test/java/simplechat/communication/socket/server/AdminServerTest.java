@@ -0,0 +1,96 @@
+package simplechat.communication.socket.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.server.SimpleChat;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AdminServerTest {
+    private final TestServers servers = new TestServers();
+    private SimpleChat simpleChat;
+    private SimpleChatServer server;
+    private Socket admin;
+    private LineReader in;
+    private LineWriter out;
+
+    @Before
+    public void setUp() throws Exception {
+        simpleChat = new SimpleChat(null, null);
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setAdmin(new AdminServer(0, 1));
+        servers.start(server);
+        admin = servers.connect(server.getAdmin().getLocalPort());
+        in = new LineReader(admin.getInputStream());
+        out = new LineWriter(admin.getOutputStream());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    private List<String> request(String line) throws IOException {
+        out.writeLine(line);
+        List<String> answer = new ArrayList<>();
+        String l;
+        while ((l = in.readLine()) != null) {
+            answer.add(l);
+            if (l.equals("OK") || l.startsWith("ERROR"))
+                break;
+        }
+        return answer;
+    }
+
+    @Test
+    public void clientsQueuesAndKick() throws Exception {
+        Socket client = servers.connect(server);
+        TestServers.awaitClients(simpleChat, 1);
+        assertEquals("[Client, OK]", request("clients").toString());
+        assertEquals("[0 Client 0, OK]", request("QUEUES").toString());
+        assertEquals("[0 Client 0 0, OK]", request("LAG").toString());
+        assertTrue(request("KICK Sepp").get(0).startsWith("ERROR"));
+        assertEquals("[OK]", request("KICK Client").toString());
+        assertEquals("!EXIT", new LineReader(client.getInputStream()).readLine());
+        assertEquals("[OK]", request("CLIENTS").toString());
+    }
+
+    @Test
+    public void kickBySessionId() throws Exception {
+        servers.connect(server, "!CHATNAME Franz");
+        Socket second = servers.connect(server, "!CHATNAME Sepp");
+        TestServers.awaitClients(simpleChat, "Franz", "Sepp");
+        String sepp = request("QUEUES").stream().filter(l -> l.contains(" Sepp ")).findFirst().orElseThrow();
+        assertTrue(request("KICK 42").get(0).startsWith("ERROR"));
+        assertEquals("[OK]", request("KICK " + sepp.split(" ")[0]).toString());
+        LineReader seppIn = new LineReader(second.getInputStream());
+        String line;
+        while ((line = seppIn.readLine()) != null && !line.equals("!EXIT")) {
+        }
+        assertEquals("!EXIT", line);
+        assertTrue(server.isLocalClient("Franz"));
+    }
+
+    @Test
+    public void statsAndThreads() throws Exception {
+        simpleChat.incomingMessage("[Franz] hallo");
+        List<String> stats = request("STATS");
+        assertTrue(stats.contains("messages.received 1"));
+        assertTrue(stats.contains("connections 0"));
+        assertEquals("OK", stats.get(stats.size() - 1));
+
+        List<String> threads = request("THREADS");
+        assertTrue(threads.stream().anyMatch(l -> l.startsWith("\"SimpleChat-admin-1\"")));
+        assertTrue(request("FOO").get(0).startsWith("ERROR unknown command"));
+        request("QUIT");
+        assertNull(in.readLine());
+    }
+}
@@ -0,0 +1,67 @@
+package simplechat.communication.socket.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedBuffersAreReused() {
+        BufferPool pool = new BufferPool(4);
+        FrameBuffer frame = pool.allocate(5).put("Hallo".getBytes(StandardCharsets.UTF_8)).flip();
+        assertTrue(frame.view().isDirect());
+        assertEquals("Hallo", frame.text());
+        frame.retain();
+        frame.release();
+        assertEquals(1, pool.outstanding());
+        frame.release();
+        assertEquals(0, pool.outstanding());
+
+        FrameBuffer large = pool.allocate(1 << 20);
+        assertFalse(large.view().isDirect());
+        large.release();
+        assertEquals(0, pool.outstanding());
+    }
+
+    @Test
+    public void foreignBuffersDoNotChangeTheLimit() {
+        BufferPool pool = new BufferPool(2);
+        for (int i = 0; i < 10; i++) {
+            pool.recycle(ByteBuffer.allocateDirect(300));
+        }
+        assertEquals(0, pool.pooled());
+        FrameBuffer[] frames = new FrameBuffer[4];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = pool.allocate(1000);
+        }
+        for (FrameBuffer frame : frames) {
+            frame.release();
+        }
+        assertEquals(2, pool.pooled());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retainAfterReleaseFails() {
+        FrameBuffer frame = new BufferPool(4).allocate(16);
+        frame.release();
+        frame.retain();
+    }
+
+    @Test
+    public void lostFramesAreReported() throws Exception {
+        BufferPool pool = new BufferPool(4);
+        pool.setLeakDetection(true);
+        pool.allocate(100).release();
+        pool.allocate(100);
+        for (int i = 0; i < 100 && pool.leaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.leaks());
+        assertEquals(0, pool.outstanding());
+    }
+}
@@ -0,0 +1,426 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.MessageProtocol;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.server.ChatEvent;
+import simplechat.server.ChatEventPublisher;
+import simplechat.server.SimpleChat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Chaos and soak harness: runs the server in-process against simulated clients which connect, rename,
+ * send broadcasts and direct messages, read slowly, disconnect abruptly or leave while the server kicks them.
+ * <br>
+ * The operations are drawn from one seeded {@link Random} in one driver Thread, so a seed always produces
+ * the same sequence; only the timing of the server Threads differs between runs. Afterwards the invariants
+ * are checked: no leaked workers, sessions, frames or Threads, unique names, every accepted broadcast and every
+ * direct message between steady clients delivered, no server call stuck.
+ * <br>
+ * Run with: gradle benchmark -Pbench=simplechat.communication.socket.server.ChaosSoak -Pargs="seed clients seconds"
+ */
+public class ChaosSoak {
+
+    private static final int NAMES = 50;
+    private static final long HANG_MILLIS = 10000;
+
+    private final long seed;
+    private final int clients;
+    private final long millis;
+    private final Random random;
+    private final List<String> violations = new ArrayList<>();
+    // the last operations, printed with a violation
+    private final Deque<String> trace = new ArrayDeque<>();
+
+    private SimpleChat chat;
+    private SimpleChatServer server;
+    private final List<SimClient> steady = new ArrayList<>();
+    private final List<SimClient> chaos = new ArrayList<>();
+    private final Set<String> accepted = ConcurrentHashMap.newKeySet();
+    private final Set<String> directs = new HashSet<>();
+    private final List<Future<?>> serverCalls = new ArrayList<>();
+    private final AtomicLong delivered = new AtomicLong();
+    private long operations = 0;
+    private long sequence = 0;
+
+    /**
+     * @param seed    seed of the operations
+     * @param clients number of simulated clients, a tenth of them (at least 4) stays connected the whole run
+     * @param millis  duration of the chaos
+     */
+    public ChaosSoak(long seed, int clients, long millis) {
+        this.seed = seed;
+        this.clients = clients;
+        this.millis = millis;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 60;
+        SimpleChat.serverLogger.setLevel(Level.OFF);
+        ChaosSoak soak = new ChaosSoak(seed, clients, seconds * 1000);
+        List<String> violations = soak.run(true);
+        violations.forEach(System.out::println);
+        System.out.println(violations.isEmpty() ? "OK" : violations.size() + " violations, seed " + seed);
+        System.exit(violations.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * @param report true to print throughput every 10 seconds
+     * @return violated invariants, empty if everything held
+     * @throws Exception if the harness itself fails
+     */
+    public List<String> run(boolean report) throws Exception {
+        Set<String> threadsBefore = threadNames();
+        this.chat = new SimpleChat(null, null);
+        this.chat.getEvents().subscribe(new Accepted(), 1 << 20, ChatEventPublisher.Overflow.CANCEL);
+        this.server = new SimpleChatServer("localhost", 0, this.chat);
+        this.server.getBufferPool().setLeakDetection(true);
+        this.server.setBacklog(this.clients);
+        this.server.start();
+        ExecutorService kicker = Executors.newFixedThreadPool(2);
+        try {
+            if (!this.server.awaitStarted(HANG_MILLIS) || this.server.getLocalPort() < 0)
+                throw new IllegalStateException("server did not start");
+            int steadyCount = Math.max(4, this.clients / 10);
+            for (int i = 0; i < steadyCount; i++) {
+                this.steady.add(new SimClient("steady" + i, true));
+            }
+            if (!this.await(() -> this.server.getWorkers().size() == steadyCount, HANG_MILLIS))
+                this.violation("steady clients not registered: " + this.server.getWorkers().size());
+            this.chaos(kicker, report);
+            this.quiesce(steadyCount);
+        } finally {
+            for (SimClient client : this.chaos) {
+                client.abort();
+            }
+            for (SimClient client : this.steady) {
+                client.abort();
+            }
+            kicker.shutdownNow();
+            this.server.shutdown();
+            this.chat.getSearchIndex().shutdown();
+            this.chat.getEvents().close();
+        }
+        if (!this.await(() -> threadsBefore.containsAll(threadNames()), HANG_MILLIS)) {
+            Set<String> leaked = threadNames();
+            leaked.removeAll(threadsBefore);
+            if (!leaked.isEmpty())
+                this.violation("leaked threads: " + leaked);
+        }
+        return this.violations;
+    }
+
+    private void chaos(ExecutorService kicker, boolean report) throws Exception {
+        long start = System.currentTimeMillis();
+        long end = start + this.millis;
+        long nextReport = start + 10000;
+        long lastOperations = 0;
+        long lastDelivered = 0;
+        while (System.currentTimeMillis() < end && this.violations.isEmpty()) {
+            this.operation(kicker);
+            if (++this.operations % 100 == 0) {
+                this.checkNames();
+                Thread.sleep(1);
+            }
+            if (report && System.currentTimeMillis() >= nextReport) {
+                System.out.printf("%5d s  %7.0f ops/s  %9.0f lines/s  %4d workers  %6d frames outstanding%n",
+                        (nextReport - start) / 1000, (this.operations - lastOperations) / 10.0,
+                        (this.delivered.get() - lastDelivered) / 10.0, this.server.getWorkers().size(),
+                        this.server.getBufferPool().outstanding());
+                lastOperations = this.operations;
+                lastDelivered = this.delivered.get();
+                nextReport += 10000;
+            }
+        }
+        for (Future<?> call : this.serverCalls) {
+            try {
+                call.get(HANG_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (java.util.concurrent.TimeoutException e) {
+                this.violation("server call hangs\n" + threadDump());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Draws and executes one operation
+     */
+    private void operation(ExecutorService kicker) throws IOException {
+        int dice = this.random.nextInt(100);
+        SimClient client = this.chaos.isEmpty() ? null : this.chaos.get(this.random.nextInt(this.chaos.size()));
+        String name = "c" + this.random.nextInt(NAMES);
+        // connects dominate until half of the clients are there, so many are connected at the same time
+        if (dice < 15 || this.chaos.size() < this.clients / 2) {
+            if (this.chaos.size() < this.clients) {
+                this.trace("connect " + name);
+                this.chaos.add(new SimClient(name, false));
+            }
+        } else if (dice < 25) {
+            this.trace(client + " renames to " + name);
+            client.send(MessageProtocol.getMessage(MessageProtocol.Commands.CHATNAME) + " " + name);
+        } else if (dice < 50) {
+            SimClient sender = this.random.nextInt(4) == 0 ? this.steady.get(this.random.nextInt(this.steady.size())) : client;
+            String token = "b" + this.sequence++;
+            this.trace(sender + " broadcasts " + token);
+            sender.send(token + " chaos");
+        } else if (dice < 65) {
+            SimClient sender = this.steady.get(this.random.nextInt(this.steady.size()));
+            SimClient receiver = this.steady.get(this.random.nextInt(this.steady.size()));
+            String token = "p" + this.sequence++;
+            this.trace(sender + " sends " + token + " to " + receiver);
+            this.directs.add(receiver.requested + " " + token);
+            sender.send(MessageProtocol.privateMessage(token, receiver.requested));
+            client.send(MessageProtocol.privateMessage("x" + this.sequence++, name, "c" + this.random.nextInt(NAMES)));
+        } else if (dice < 73) {
+            this.trace(client + " disconnects abruptly");
+            this.chaos.remove(client);
+            client.abort();
+        } else if (dice < 80) {
+            this.trace(client + " exits");
+            this.chaos.remove(client);
+            client.exit();
+        } else if (dice < 88) {
+            // the client leaves while the server kicks a client of the same name
+            this.trace(client + " exits while " + client.requested + " is kicked");
+            this.chaos.remove(client);
+            String kicked = client.requested;
+            this.serverCalls.add(kicker.submit(() -> this.server.removeClient(kicked)));
+            client.exit();
+        } else if (dice < 93) {
+            this.trace("kick " + name);
+            this.serverCalls.add(kicker.submit(() -> this.chat.shutdownClient(name)));
+        } else {
+            SimClient slow = this.random.nextBoolean() ? client : this.steady.get(this.random.nextInt(this.steady.size()));
+            long pause = this.random.nextInt(300);
+            this.trace(slow + " reads slowly for " + pause + " ms");
+            slow.pause(pause);
+        }
+        this.serverCalls.removeIf(Future::isDone);
+    }
+
+    /**
+     * Lets the remaining chaos clients leave and checks the state of the server
+     */
+    private void quiesce(int steadyCount) throws Exception {
+        if (!this.violations.isEmpty())
+            return;
+        for (SimClient client : this.chaos) {
+            if (this.random.nextBoolean())
+                client.exit();
+            else
+                client.abort();
+        }
+        this.chaos.clear();
+        if (!this.await(() -> this.server.getWorkers().size() == steadyCount, HANG_MILLIS))
+            this.violation("leaked workers: " + this.server.getWorkers().values());
+        this.checkNames();
+        Set<String> names = new TreeSet<>();
+        for (Session session : this.server.getWorkers().values()) {
+            names.add(session.getName());
+        }
+        if (!names.equals(new TreeSet<>(Arrays.asList(this.chat.getClients()))))
+            this.violation("registry " + Arrays.toString(this.chat.getClients()) + " does not match the workers " + names);
+
+        Set<String> broadcasts = new TreeSet<>();
+        for (String token : this.accepted) {
+            if (token.startsWith("b"))
+                broadcasts.add(token);
+        }
+        for (SimClient client : this.steady) {
+            if (!this.await(() -> client.received.containsAll(broadcasts), HANG_MILLIS)) {
+                Set<String> lost = new TreeSet<>(broadcasts);
+                lost.removeAll(client.received);
+                this.violation(client + " lost broadcasts " + lost);
+            }
+        }
+        for (String direct : this.directs) {
+            String[] split = direct.split(" ");
+            SimClient receiver = this.steady.get(Integer.parseInt(split[0].substring("steady".length())));
+            if (!this.await(() -> receiver.received.contains(split[1]), 1000))
+                this.violation(receiver + " did not get " + split[1]);
+        }
+
+        for (SimClient client : this.steady) {
+            client.exit();
+        }
+        if (!this.await(() -> this.server.getWorkers().isEmpty() && this.server.getSessions().size() == 0
+                && this.chat.getClients().length == 0, HANG_MILLIS))
+            this.violation("left over after all clients left: workers " + this.server.getWorkers().size()
+                    + ", sessions " + this.server.getSessions().size() + ", names " + Arrays.toString(this.chat.getClients()));
+        if (!this.await(() -> this.server.getBufferPool().outstanding() == 0, HANG_MILLIS))
+            this.violation(this.server.getBufferPool().outstanding() + " frames not released");
+        if (this.server.getBufferPool().leaks() > 0)
+            this.violation(this.server.getBufferPool().leaks() + " frames leaked");
+    }
+
+    private void checkNames() {
+        String[] names = this.chat.getClients();
+        if (new HashSet<>(Arrays.asList(names)).size() != names.length)
+            this.violation("names not unique: " + Arrays.toString(names));
+    }
+
+    private void trace(String operation) {
+        this.trace.addLast(this.operations + ": " + operation);
+        if (this.trace.size() > 50)
+            this.trace.removeFirst();
+    }
+
+    private void violation(String message) {
+        this.violations.add(message + "\n  seed " + this.seed + ", last operations:\n  " + String.join("\n  ", this.trace));
+    }
+
+    private boolean await(java.util.function.BooleanSupplier condition, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static Set<String> threadNames() {
+        Set<String> names = new TreeSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            // Threads the JDK starts lazily on first use, e.g. the Cleaner of sockets and Deflaters
+            if (thread.isAlive() && !thread.getName().startsWith("Cleaner-") && !thread.getName().equals("Common-Cleaner"))
+                names.add(thread.getName() + "#" + thread.getId());
+        }
+        return names;
+    }
+
+    private static String threadDump() {
+        StringBuilder dump = new StringBuilder();
+        for (ThreadInfo info : ManagementFactory.getThreadMXBean().dumpAllThreads(true, true)) {
+            dump.append(info);
+        }
+        return dump.toString();
+    }
+
+    /**
+     * Broadcasts the server accepted, taken from its event publisher
+     */
+    private final class Accepted implements Flow.Subscriber<ChatEvent> {
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(ChatEvent event) {
+            if (event.getType() == ChatEvent.Type.MESSAGE) {
+                String message = event.getMessage();
+                int token = message.indexOf("] ") + 2;
+                int end = message.indexOf(' ', token);
+                if (token > 1 && end > token)
+                    ChaosSoak.this.accepted.add(message.substring(token, end));
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            ChaosSoak.this.violations.add("event subscription failed: " + throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    /**
+     * One simulated client with a blocking socket and a reader Thread
+     */
+    private final class SimClient {
+        final String requested;
+        final Set<String> received = ConcurrentHashMap.newKeySet();
+        private final Socket socket;
+        private final LineWriter out;
+        private final Thread reader;
+        private volatile long pausedUntil = 0;
+
+        SimClient(String requested, boolean steady) throws IOException {
+            this.requested = requested;
+            this.socket = new Socket("localhost", ChaosSoak.this.server.getLocalPort());
+            this.out = new LineWriter(this.socket.getOutputStream());
+            this.out.writeLine(MessageProtocol.getMessage(MessageProtocol.Commands.CHATNAME) + " " + requested);
+            LineReader in = new LineReader(this.socket.getInputStream());
+            this.reader = new Thread(() -> this.read(in, steady), "soak-" + requested);
+            this.reader.setDaemon(true);
+            this.reader.start();
+        }
+
+        private void read(LineReader in, boolean steady) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    ChaosSoak.this.delivered.incrementAndGet();
+                    if (steady) {
+                        // "[sender] b42 chaos" or "[sender] {steady1} p43"
+                        String[] words = line.split(" ");
+                        if (words.length > 1)
+                            this.received.add(words[words.length - 1].equals("chaos") ? words[words.length - 2] : words[words.length - 1]);
+                    }
+                    long pause = this.pausedUntil - System.currentTimeMillis();
+                    if (pause > 0)
+                        Thread.sleep(pause);
+                }
+            } catch (IOException | InterruptedException e) {
+                // closed
+            }
+        }
+
+        void send(String line) {
+            try {
+                this.out.writeLine(line);
+            } catch (IOException e) {
+                // the server closed us, e.g. after a kick
+            }
+        }
+
+        void pause(long millis) {
+            this.pausedUntil = System.currentTimeMillis() + millis;
+        }
+
+        void exit() {
+            this.send(MessageProtocol.getMessage(MessageProtocol.Commands.EXIT));
+            this.abort();
+        }
+
+        void abort() {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+
+        @Override
+        public String toString() {
+            return this.requested;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package simplechat.communication.socket.server;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChaosSoakTest {
+
+    @Test
+    public void shortChaosRunKeepsTheInvariants() throws Exception {
+        List<String> violations = new ChaosSoak(20181011L, 80, 3000).run(false);
+        assertTrue(String.join("\n", violations), violations.isEmpty());
+    }
+}
@@ -0,0 +1,150 @@
+package simplechat.communication.socket.server;
+
+import org.junit.After;
+import org.junit.Test;
+import simplechat.server.SimpleChat;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class ClusterNodeTest {
+    private static final String SECRET = "geheim";
+    private final TestServers servers = new TestServers();
+    private List<SimpleChat> chats = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    private SimpleChatServer node(String id, ClusterNode... peers) throws InterruptedException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (ClusterNode peer : peers) {
+            addresses.add(new InetSocketAddress("localhost", peer.getLocalPort()));
+        }
+        SimpleChat chat = new SimpleChat(null, null);
+        SimpleChatServer server = new SimpleChatServer("localhost", 0, chat);
+        server.setCluster(new ClusterNode(id, 0, addresses, SECRET));
+        servers.start(server);
+        chats.add(chat);
+        return server;
+    }
+
+    private Socket connect(SimpleChatServer server) throws Exception {
+        return servers.connect(server);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        assertTrue(TestServers.await(condition));
+    }
+
+    private void awaitUsers(int count) throws InterruptedException {
+        for (SimpleChat chat : chats) {
+            await(() -> chat.getClients().length == count);
+        }
+    }
+
+    @Test
+    public void meshOfThreeNodes() throws Exception {
+        SimpleChatServer a = node("A");
+        SimpleChatServer b = node("B", a.getCluster());
+        SimpleChatServer c = node("C", a.getCluster(), b.getCluster());
+        await(() -> a.getCluster().getLinkedNodes().length == 2
+                && b.getCluster().getLinkedNodes().length == 2
+                && c.getCluster().getLinkedNodes().length == 2);
+
+        Socket onA = connect(a);
+        awaitUsers(1);
+        Socket onC = connect(c);
+        awaitUsers(2);
+        connect(b);
+        awaitUsers(3);
+        assertEquals(Arrays.asList(chats.get(0).getClients()), Arrays.asList(chats.get(2).getClients()));
+
+        PrintWriter outA = new PrintWriter(onA.getOutputStream(), true);
+        BufferedReader inA = new BufferedReader(new InputStreamReader(onA.getInputStream()));
+        BufferedReader inC = new BufferedReader(new InputStreamReader(onC.getInputStream()));
+        outA.println("!CHATNAME Franz");
+        awaitUsers(3);
+        await(() -> Arrays.asList(chats.get(2).getClients()).contains("Franz"));
+        outA.println("Servus");
+        assertEquals("[Franz] Servus", inC.readLine());
+        assertEquals("[Franz] Servus", inA.readLine());
+
+        new PrintWriter(onC.getOutputStream(), true).println("!PRIVATE {Franz} Hallo");
+        assertTrue(inA.readLine().matches("\\[\\S+\\] \\{Franz\\} Hallo"));
+    }
+
+    @Test
+    public void conflictingNamesAreResolved() throws Exception {
+        SimpleChatServer a = node("A");
+        SimpleChatServer b = node("B");
+        connect(a);
+        connect(b);
+        await(() -> chats.get(0).getClients().length == 1 && chats.get(1).getClients().length == 1);
+        assertEquals("Client", chats.get(1).getClients()[0]);
+
+        b.getCluster().addPeer(new InetSocketAddress("localhost", a.getCluster().getLocalPort()));
+        awaitUsers(2);
+        // A has the smaller id and keeps the name, the client on B is renamed
+        assertArrayEquals(new String[]{"Client", "Client#1"}, chats.get(0).getClients());
+        assertArrayEquals(new String[]{"Client", "Client#1"}, chats.get(1).getClients());
+        assertArrayEquals(new String[]{"Client"}, a.getLocalClients());
+        assertArrayEquals(new String[]{"Client#1"}, b.getLocalClients());
+    }
+
+    @Test
+    public void namesOfLostNodeAreRemoved() throws Exception {
+        SimpleChatServer a = node("A");
+        SimpleChatServer b = node("B", a.getCluster());
+        await(() -> a.getCluster().getLinkedNodes().length == 1);
+        connect(b);
+        awaitUsers(1);
+        b.shutdown();
+        await(() -> chats.get(0).getClients().length == 0);
+    }
+
+    @Test
+    public void nodesNeedTheSharedSecret() throws Exception {
+        SimpleChatServer a = node("A");
+        Socket onA = connect(a);
+        awaitUsers(1);
+        BufferedReader inA = new BufferedReader(new InputStreamReader(onA.getInputStream()));
+
+        // a node with another secret is not linked
+        SimpleChat chat = new SimpleChat(null, null);
+        SimpleChatServer intruder = new SimpleChatServer("localhost", 0, chat);
+        intruder.setCluster(new ClusterNode("0", 0,
+                Arrays.asList(new InetSocketAddress("localhost", a.getCluster().getLocalPort())), "falsch"));
+        servers.start(intruder);
+        // neither is a plain connection sending commands
+        Socket raw = servers.connect(a.getCluster().getLocalPort());
+        PrintWriter out = new PrintWriter(raw.getOutputStream(), true);
+        out.println("HELLO X bm9uY2U=");
+        out.println("BROADCAST [X] gefaelscht");
+        out.println("KICK Client");
+        // the node answers at most with its HELLO and closes the link
+        raw.setSoTimeout(5000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(raw.getInputStream()));
+        String line;
+        while ((line = in.readLine()) != null) {
+            assertTrue(line, line.startsWith("HELLO A "));
+        }
+        Thread.sleep(1500);
+        assertEquals(0, a.getCluster().getLinkedNodes().length);
+        assertEquals(0, intruder.getCluster().getLinkedNodes().length);
+        assertArrayEquals(new String[]{"Client"}, a.getLocalClients());
+
+        a.send("echt");
+        assertEquals("echt", inA.readLine());
+    }
+}
@@ -0,0 +1,181 @@
+package simplechat.communication.socket.server;
+
+import org.junit.After;
+import org.junit.Test;
+import simplechat.server.SimpleChat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeduplicationTest {
+    private final TestServers servers = new TestServers();
+    private final SimpleChat simpleChat = new SimpleChat(null, null);
+    private SimpleChatServer server;
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    private void start() throws InterruptedException {
+        server = servers.start(simpleChat);
+    }
+
+    private Socket connect(String... lines) throws IOException {
+        return servers.connect(server, lines);
+    }
+
+    private static PrintWriter out(Socket socket) throws IOException {
+        return new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    private static BufferedReader in(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    /**
+     * @return chat lines until the given one, without commands
+     */
+    private static List<String> readUntil(BufferedReader in, String last) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(last)) {
+            if (!line.startsWith("!"))
+                lines.add(line);
+        }
+        assertEquals(last, line);
+        return lines;
+    }
+
+    @Test
+    public void windowIsBounded() {
+        Deduplication deduplication = new Deduplication(60_000, 4);
+        Deduplication.Window window = deduplication.take(null);
+        assertTrue(deduplication.accept(window, "a"));
+        assertFalse(deduplication.accept(window, "a"));
+        for (String id : new String[]{"b", "c", "d", "e"}) {
+            assertTrue(deduplication.accept(window, id));
+            assertTrue(deduplication.getIds() <= 4);
+        }
+        // two generations of two ids: a and b are forgotten
+        assertTrue(deduplication.accept(window, "a"));
+        assertFalse(deduplication.accept(window, "e"));
+        assertEquals(2, deduplication.getDuplicates());
+        assertEquals(8, deduplication.getChecked());
+        assertEquals(0.25, deduplication.getHitRate(), 0.001);
+        deduplication.park(null, window);
+        assertEquals(0, deduplication.getIds());
+        assertEquals(0, deduplication.getBytes());
+    }
+
+    @Test
+    public void idsExpire() throws Exception {
+        Deduplication deduplication = new Deduplication(100, 1000);
+        Deduplication.Window window = deduplication.take(null);
+        assertTrue(deduplication.accept(window, "a"));
+        Thread.sleep(60);
+        assertTrue(deduplication.accept(window, "b"));
+        assertFalse(deduplication.accept(window, "a"));
+        Thread.sleep(60);
+        assertTrue(deduplication.accept(window, "c"));
+        assertTrue(deduplication.accept(window, "a"));
+    }
+
+    @Test
+    public void idsOlderThanTheTtlAreForgotten() throws Exception {
+        Deduplication deduplication = new Deduplication(100, 1000);
+        Deduplication.Window window = deduplication.take(null);
+        assertTrue(deduplication.accept(window, "a"));
+        Thread.sleep(110);
+        assertTrue(deduplication.accept(window, "a"));
+        assertEquals(1, deduplication.getIds());
+    }
+
+    @Test
+    public void parkedWindowsExpire() throws Exception {
+        Deduplication deduplication = new Deduplication(400, 1000);
+        Deduplication.Window first = deduplication.take(null);
+        deduplication.park("first", first);
+        Thread.sleep(50);
+        deduplication.park("second", deduplication.take(null));
+        Thread.sleep(200);
+        // taken and parked again, its first expiry does not count any more
+        deduplication.park("first", deduplication.take("first"));
+        assertEquals(2, deduplication.getParked());
+        Thread.sleep(250);
+        deduplication.park(null, deduplication.take(null));
+        assertEquals(1, deduplication.getParked());
+        assertSame(first, deduplication.take("first"));
+        assertEquals(0, deduplication.getParked());
+    }
+
+    @Test
+    public void duplicatesAreDroppedBeforeFanOut() throws Exception {
+        start();
+        BufferedReader receiver = in(connect("!CHATNAME Empf"));
+        PrintWriter sender = out(connect("!CHATNAME Franz"));
+        TestServers.awaitClients(simpleChat, "Empf", "Franz");
+        sender.println("!ID x1 hallo");
+        sender.println("!ID x1 hallo");
+        sender.println("!ID x2 !PRIVATE {Empf} psst");
+        sender.println("!ID x2 !PRIVATE {Empf} psst");
+        sender.println("!ID  malformed");
+        sender.println("ende");
+        List<String> lines = readUntil(receiver, "[Franz] ende");
+        assertEquals(1, lines.stream().filter(line -> line.equals("[Franz] hallo")).count());
+        assertEquals(1, lines.stream().filter(line -> line.endsWith("psst")).count());
+        assertFalse(lines.toString().contains("malformed"));
+        Deduplication deduplication = server.getDeduplication();
+        assertEquals(4, deduplication.getChecked());
+        assertEquals(2, deduplication.getDuplicates());
+        assertEquals(2, deduplication.getIds());
+    }
+
+    @Test
+    public void commandsNeedTheirSeparatorAndIgnoreCase() throws Exception {
+        start();
+        BufferedReader receiver = in(connect("!CHATNAME Empf"));
+        PrintWriter sender = out(connect("!CHATNAME Franz"));
+        TestServers.awaitClients(simpleChat, "Empf", "Franz");
+        sender.println("!PRIVATEFOO {Empf} kein Kommando");
+        sender.println("!IDx x1 auch nicht");
+        sender.println("!id x1 hallo");
+        sender.println("!Id x1 hallo");
+        sender.println("!private {Empf} psst");
+        sender.println("ende");
+        List<String> lines = readUntil(receiver, "[Franz] ende");
+        assertEquals("[[Franz] hallo, [Franz] {Empf} psst]", lines.toString());
+        assertEquals(1, server.getDeduplication().getDuplicates());
+    }
+
+    @Test
+    public void claimedClientKeepsItsIds() throws Exception {
+        start();
+        BufferedReader receiver = in(connect("!CHATNAME Empf"));
+        Socket first = connect("!CHATNAME Franz", "!CLAIM", "!ID x1 hallo");
+        String line;
+        BufferedReader franz = in(first);
+        while ((line = franz.readLine()) != null && !line.startsWith("!CLAIM ")) {
+        }
+        assertNotNull(line);
+        String token = line.split(" ")[1];
+        readUntil(receiver, "[Franz] hallo");
+        first.close();
+        TestServers.awaitClients(simpleChat, 1);
+        assertEquals(1, server.getDeduplication().getParked());
+
+        // the answer was lost, the client sends the line again on its new connection
+        connect("!CHATNAME Franz", "!CLAIM " + token, "!ID x1 hallo", "!ID x2 neu");
+        List<String> lines = readUntil(receiver, "[Franz] neu");
+        assertFalse(lines.contains("[Franz] hallo"));
+        assertEquals(1, server.getDeduplication().getDuplicates());
+        assertEquals(0, server.getDeduplication().getParked());
+    }
+}
@@ -0,0 +1,116 @@
+package simplechat.communication.socket.server;
+
+import org.junit.After;
+import org.junit.Test;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.communication.transport.ChannelTransport;
+import simplechat.communication.transport.SocketTransport;
+import simplechat.communication.transport.Transport;
+import simplechat.server.SimpleChat;
+
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FileTransferTest {
+    private final TestServers servers = new TestServers();
+    private SimpleChat simpleChat = new SimpleChat(null, null);
+    private SimpleChatServer server;
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    private void start(Transport transport) throws InterruptedException {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setTransport(transport);
+        servers.start(server);
+    }
+
+    private Socket connect(String name) throws Exception {
+        return servers.connect(server, "!CHATNAME " + name);
+    }
+
+    private static void upload(LineWriter out, String id, byte[] content, int chunk) throws Exception {
+        for (int position = 0; position < content.length; position += chunk) {
+            int length = Math.min(chunk, content.length - position);
+            out.write(LineWriter.encode("!CHUNK " + id + " " + length), ByteBuffer.wrap(content, position, length));
+            out.flush();
+        }
+    }
+
+    private static String nextLine(LineReader in, String prefix) throws Exception {
+        String line;
+        while ((line = in.readLine()) != null && !line.startsWith(prefix)) {
+            // presence and chat lines
+        }
+        return line;
+    }
+
+    private void fileReachesReceiver(Transport transport) throws Exception {
+        start(transport);
+        Socket sender = connect("Franz");
+        Socket receiver = connect("Sepp");
+        connect("Hans");
+        TestServers.awaitClients(simpleChat, "Franz", "Sepp", "Hans");
+        byte[] content = new byte[300000];
+        new Random(42).nextBytes(content);
+        LineWriter out = new LineWriter(sender.getOutputStream());
+        out.writeLine("!FILE SEND 1 " + content.length + " {Sepp} notes.bin");
+        upload(out, "1", content, 50000);
+        assertEquals("!FILE DONE 1 1", nextLine(new LineReader(sender.getInputStream()), "!FILE"));
+
+        LineReader in = new LineReader(receiver.getInputStream());
+        String offer = nextLine(in, "!FILE");
+        assertTrue(offer, offer.matches("!FILE OFFER \\d+ 300000 \\[Franz\\] notes.bin"));
+        String id = offer.split(" ")[2];
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        String line;
+        while (!(line = in.readLine()).equals("!FILE END " + id)) {
+            String[] chunk = line.split(" ");
+            assertEquals(line, "!CHUNK", chunk[0]);
+            assertTrue(Integer.parseInt(chunk[2]) <= 64 * 1024);
+            in.readBytes(Channels.newChannel(received), Integer.parseInt(chunk[2]));
+        }
+        assertArrayEquals(content, received.toByteArray());
+
+        // the chat goes on behind the file
+        out.writeLine("Servus");
+        assertEquals("[Franz] Servus", nextLine(in, "[Franz]"));
+    }
+
+    @Test
+    public void fileIsCopiedThroughTheWriter() throws Exception {
+        fileReachesReceiver(new SocketTransport());
+    }
+
+    @Test
+    public void fileIsTransferredToTheChannel() throws Exception {
+        fileReachesReceiver(new ChannelTransport());
+    }
+
+    @Test
+    public void tooLargeFileIsRefusedAndItsChunksSkipped() throws Exception {
+        start(new SocketTransport());
+        server.setFileLimit(1000L);
+        Socket sender = connect("Franz");
+        TestServers.awaitClients(simpleChat, "Franz");
+        LineWriter out = new LineWriter(sender.getOutputStream());
+        out.writeLine("!FILE SEND 7 5000 big.bin");
+        // line breaks inside the chunk must not be taken for lines
+        byte[] content = new byte[5000];
+        Arrays.fill(content, (byte) '\n');
+        upload(out, "7", content, 2000);
+        out.writeLine("Hallo");
+        LineReader in = new LineReader(sender.getInputStream());
+        assertEquals("!FILE ERROR 7 larger than 1000 bytes", nextLine(in, "!FILE"));
+        assertEquals("[Franz] Hallo", nextLine(in, "[Franz]"));
+    }
+}
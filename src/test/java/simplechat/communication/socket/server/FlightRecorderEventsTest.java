@@ -0,0 +1,132 @@
+package simplechat.communication.socket.server;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Test;
+import simplechat.communication.jfr.DispatchEvent;
+import simplechat.communication.jfr.FanOutEvent;
+import simplechat.communication.jfr.RegistryEvent;
+import simplechat.communication.jfr.UiUpdateEvent;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.server.SimpleChat;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class FlightRecorderEventsTest {
+    private final TestServers servers = new TestServers();
+    private SimpleChat simpleChat = new SimpleChat(null, null);
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    /**
+     * Franz renames himself and sends two messages to two other clients
+     */
+    private void chat() throws Exception {
+        SimpleChatServer server = servers.start(simpleChat);
+        List<LineReader> readers = new ArrayList<>();
+        LineWriter franz = null;
+        for (int i = 0; i < 3; i++) {
+            Socket socket = servers.connect(server);
+            readers.add(new LineReader(socket.getInputStream()));
+            if (franz == null)
+                franz = new LineWriter(socket.getOutputStream());
+        }
+        TestServers.awaitClients(simpleChat, 3);
+        franz.writeLine("!CHATNAME Franz");
+        franz.writeLine("hallo");
+        // the events of the first message are committed before the worker reads the second one
+        franz.writeLine("zwei");
+        for (LineReader reader : readers.subList(1, 3)) {
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals("[Franz] zwei")) {
+            }
+            assertEquals("[Franz] zwei", line);
+        }
+    }
+
+    private static List<RecordedEvent> read(Recording recording) throws IOException {
+        Path file = Files.createTempFile("simplechat", ".jfr");
+        try {
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> event.getEventType().getName().startsWith("simplechat."))
+                    .collect(Collectors.toList());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<RecordedEvent> of(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).collect(Collectors.toList());
+    }
+
+    @Test
+    public void eventsOfAChatWhenEnabled() throws Exception {
+        try (Recording recording = new Recording()) {
+            recording.enable(DispatchEvent.class);
+            recording.enable(FanOutEvent.class);
+            recording.enable(RegistryEvent.class);
+            recording.start();
+            chat();
+            recording.stop();
+            List<RecordedEvent> events = read(recording);
+
+            List<RecordedEvent> registry = of(events, "simplechat.Registry");
+            assertEquals(3, registry.stream().filter(e -> e.getString("operation").equals("Add")).count());
+            RecordedEvent rename = registry.stream().filter(e -> e.getString("operation").equals("Rename")).findFirst().get();
+            assertEquals("Franz", rename.getString("chatName"));
+            assertEquals(3, rename.getInt("clients"));
+
+            List<RecordedEvent> dispatch = of(events, "simplechat.Dispatch");
+            assertTrue(dispatch.stream().anyMatch(e -> e.getString("kind").equals("Command") && e.getInt("size") == 15));
+            assertTrue(dispatch.stream().anyMatch(e -> e.getString("kind").equals("Message") && e.getInt("size") == 5));
+            RecordedEvent fanOut = of(events, "simplechat.FanOut").get(0);
+            assertEquals("[Franz] hallo\n".length(), fanOut.getInt("size"));
+            assertEquals(3, fanOut.getInt("recipients"));
+            assertTrue(fanOut.getDuration().toNanos() >= 0);
+        }
+    }
+
+    @Test
+    public void uiUpdatesAreWrappedOnlyWhileRecorded() throws Exception {
+        Runnable update = () -> {
+        };
+        assertSame(update, UiUpdateEvent.timed("Text", 5, update));
+        try (Recording recording = new Recording()) {
+            recording.enable(UiUpdateEvent.class);
+            recording.start();
+            Runnable timed = UiUpdateEvent.timed("Text", 5, update);
+            assertNotSame(update, timed);
+            timed.run();
+            recording.stop();
+            RecordedEvent event = of(read(recording), "simplechat.UiUpdate").get(0);
+            assertEquals("Text", event.getString("kind"));
+            assertEquals(5, event.getInt("size"));
+        }
+        assertSame(update, UiUpdateEvent.timed("Text", 5, update));
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        try (Recording recording = new Recording()) {
+            recording.start();
+            chat();
+            recording.stop();
+            assertEquals(0, read(recording).size());
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package simplechat.communication.socket.server;
+
+import org.junit.After;
+import org.junit.Test;
+import simplechat.server.SimpleChat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class NameReservationsTest {
+    private final TestServers servers = new TestServers();
+    private final Path directory = Files.createTempDirectory("simplechat-names");
+    private SimpleChat simpleChat;
+    private SimpleChatServer server;
+
+    public NameReservationsTest() throws IOException {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void start(NameReservations reservations) throws InterruptedException {
+        simpleChat = new SimpleChat(null, null);
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setReservations(reservations);
+        servers.start(server);
+    }
+
+    /**
+     * Connects, sends the lines and returns the reader for the answers
+     */
+    private BufferedReader connect(String... lines) throws IOException {
+        return reader(servers.connect(server, lines));
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    private static String[] claimed(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null && !line.startsWith("!CLAIM ")) {
+        }
+        assertNotNull(line);
+        return line.split(" ");
+    }
+
+    @Test
+    public void snapshotAndJournalAreRestored() throws Exception {
+        NameReservations before = new NameReservations(60_000, directory, 60_000);
+        before.open();
+        Object franz = new Object();
+        Object sepp = new Object();
+        String franzToken = before.issue("Franz", franz);
+        String seppToken = before.issue("Sepp", sepp);
+        String gone = before.issue("Gone", new Object());
+        before.renamed(seppToken, "Josef");
+        before.left(franzToken, franz);
+        before.release(gone);
+        // no close, like a crash: everything after the snapshot of open() is only in the journal
+
+        NameReservations after = new NameReservations(60_000, directory, 60_000);
+        after.open();
+        assertEquals(2, after.size());
+        assertTrue(after.isReserved("Franz"));
+        // Josef was connected, after the restart his name waits for him as well
+        assertTrue(after.isReserved("Josef"));
+        assertFalse(after.isReserved("Sepp"));
+        assertFalse(after.isReserved("Gone"));
+        assertEquals("Josef", after.claim(seppToken, new Object()));
+        assertFalse(after.isReserved("Josef"));
+        assertNull(after.claim("unknown", new Object()));
+        after.close();
+    }
+
+    @Test
+    public void incompleteJournalRecordIsIgnored() throws Exception {
+        NameReservations before = new NameReservations(60_000, directory, 60_000);
+        before.open();
+        before.issue("Franz", new Object());
+        before.issue("Sepp", new Object());
+        Path journal = directory.resolve(NameReservations.JOURNAL);
+        byte[] bytes = Files.readAllBytes(journal);
+        Files.write(journal, Arrays.copyOf(bytes, bytes.length - 3), StandardOpenOption.TRUNCATE_EXISTING);
+
+        NameReservations after = new NameReservations(60_000, directory, 60_000);
+        after.open();
+        assertEquals(1, after.size());
+        assertTrue(after.isReserved("Franz"));
+        after.close();
+    }
+
+    @Test
+    public void restoredReservationsExpireInOrder() throws Exception {
+        NameReservations before = new NameReservations(200, directory, 60_000);
+        before.open();
+        before.issue("Franz", new Object());
+        Object sepp = new Object();
+        before.left(before.issue("Sepp", sepp), sepp);
+        Thread.sleep(100);
+
+        // Franz was connected, his reservation starts now and ends after the one of Sepp
+        NameReservations after = new NameReservations(200, directory, 60_000);
+        after.open();
+        assertEquals(2, after.size());
+        Thread.sleep(150);
+        after.left("unknown", null);
+        assertEquals(1, after.size());
+        assertTrue(after.isReserved("Franz"));
+        after.close();
+    }
+
+    @Test
+    public void snapshotInterruptedByACrashIsRepaired() throws Exception {
+        NameReservations first = new NameReservations(60_000, directory, 60_000);
+        first.open();
+        Object franz = new Object();
+        first.left(first.issue("Franz", franz), franz);
+        // a snapshot moved the journal aside, but did not replace the snapshot before the crash
+        Files.move(directory.resolve(NameReservations.JOURNAL), directory.resolve(NameReservations.OLD_JOURNAL));
+
+        NameReservations second = new NameReservations(60_000, directory, 60_000);
+        second.open();
+        Object sepp = new Object();
+        second.left(second.issue("Sepp", sepp), sepp);
+        // crash again, Franz is only in the old journal and Sepp only in the new one
+
+        NameReservations third = new NameReservations(60_000, directory, 60_000);
+        third.open();
+        assertEquals(2, third.size());
+        assertTrue(third.isReserved("Franz"));
+        assertTrue(third.isReserved("Sepp"));
+        third.close();
+        assertFalse(Files.exists(directory.resolve(NameReservations.OLD_JOURNAL)));
+        NameReservations compacted = new NameReservations(60_000, directory, 60_000);
+        compacted.open();
+        assertEquals(2, compacted.size());
+        compacted.close();
+    }
+
+    @Test
+    public void nameCheckDoesNotWaitForTheLock() throws Exception {
+        NameReservations reservations = new NameReservations(60_000);
+        Object owner = new Object();
+        reservations.left(reservations.issue("Franz", owner), owner);
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            // like a snapshot or a journal flush holding the lock
+            synchronized (reservations) {
+                held.countDown();
+                try {
+                    done.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        holder.start();
+        held.await();
+        assertTrue(reservations.isReserved("Franz"));
+        assertFalse(reservations.isReserved("Sepp"));
+        done.countDown();
+        holder.join();
+    }
+
+    @Test
+    public void reservationExpires() throws Exception {
+        NameReservations reservations = new NameReservations(50);
+        Object owner = new Object();
+        String token = reservations.issue("Franz", owner);
+        assertFalse(reservations.isReserved("Franz"));
+        reservations.left(token, owner);
+        assertTrue(reservations.isReserved("Franz"));
+        Thread.sleep(100);
+        assertFalse(reservations.isReserved("Franz"));
+        assertNull(reservations.claim(token, new Object()));
+    }
+
+    @Test
+    public void returningClientGetsItsNameBack() throws Exception {
+        start(new NameReservations(60_000));
+        Socket franz = servers.connect(server, "!CHATNAME Franz", "!CLAIM");
+        String[] claim = claimed(reader(franz));
+        assertEquals("Franz", claim[2]);
+        franz.close();
+        TestServers.awaitClients(simpleChat, 0);
+
+        BufferedReader other = connect("!CHATNAME Franz", "!CLAIM");
+        assertEquals("Franz#1", claimed(other)[2]);
+        BufferedReader back = connect("!CHATNAME Franz", "!CLAIM " + claim[1]);
+        assertArrayEquals(claim, claimed(back));
+        assertTrue(server.isLocalClient("Franz"));
+    }
+
+    @Test
+    public void claimTakesTheNameFromABrokenConnection() throws Exception {
+        start(new NameReservations(60_000));
+        BufferedReader ghost = connect("!CHATNAME Franz", "!CLAIM");
+        String[] claim = claimed(ghost);
+        BufferedReader back = connect("!CLAIM " + claim[1]);
+        assertArrayEquals(claim, claimed(back));
+        // the old connection is told to go
+        String line;
+        while ((line = ghost.readLine()) != null && !line.equals("!EXIT")) {
+        }
+        assertEquals("!EXIT", line);
+        TestServers.awaitClients(simpleChat, 1);
+    }
+
+    @Test
+    public void namesSurviveARestart() throws Exception {
+        start(new NameReservations(60_000, directory, 60_000));
+        String[] claim = claimed(connect("!CHATNAME Franz", "!CLAIM"));
+        connect("!CHATNAME Sepp");
+        TestServers.awaitClients(simpleChat, "Franz", "Sepp");
+        servers.close();
+
+        start(new NameReservations(60_000, directory, 60_000));
+        // Sepp had no token, his name is free again
+        assertEquals("Sepp", claimed(connect("!CHATNAME Sepp", "!CLAIM"))[2]);
+        assertEquals("Franz#1", claimed(connect("!CHATNAME Franz", "!CLAIM"))[2]);
+        assertArrayEquals(claim, claimed(connect("!CLAIM " + claim[1])));
+    }
+}
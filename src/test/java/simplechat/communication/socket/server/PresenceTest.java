@@ -0,0 +1,74 @@
+package simplechat.communication.socket.server;
+
+import org.junit.After;
+import org.junit.Test;
+import simplechat.server.SimpleChat;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PresenceTest {
+    private final TestServers servers = new TestServers();
+    private SimpleChatServer server;
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    @Test
+    public void changesWithinAWindowAreCoalesced() {
+        Presence presence = new Presence(60_000);
+        presence.joined("a");
+        presence.joined("b");
+        presence.publish();
+        assertEquals("[a, b]", Arrays.toString(presence.getPublished()));
+
+        presence.joined("c");
+        presence.left("c");
+        presence.renamed("a", "x");
+        presence.renamed("x", "y");
+        presence.left("b");
+        presence.joined("b");
+        presence.joined("d");
+        presence.renamed("d", "e");
+        presence.publish();
+        assertEquals("[b, e, y]", Arrays.toString(presence.getPublished()));
+        presence.shutdown();
+    }
+
+    @Test
+    public void snapshotThenOneDeltaPerWindow() throws Exception {
+        SimpleChat simpleChat = new SimpleChat(null, null);
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setPresenceWindow(300L);
+        servers.start(server);
+        Socket subscriber = servers.connect(server);
+        PrintWriter out = new PrintWriter(subscriber.getOutputStream(), true);
+        out.println("!CHATNAME Franz");
+        // the join is published after the window
+        assertTrue(TestServers.await(() -> Arrays.asList(server.getPresence().getPublished()).contains("Franz")));
+        out.println("!PRESENCE");
+        BufferedReader in = new BufferedReader(new InputStreamReader(subscriber.getInputStream()));
+        assertEquals("!PRESENCE SNAPSHOT Franz", in.readLine());
+
+        for (int i = 0; i < 20; i++) {
+            servers.connect(server);
+        }
+        String delta = in.readLine();
+        assertTrue(delta.startsWith("!PRESENCE DELTA +"));
+        int joins = delta.split("\t").length;
+        // the joins of a burst arrive in one or two lines, not in twenty
+        if (joins < 20)
+            joins += in.readLine().split("\t").length;
+        assertEquals(20, joins);
+
+        out.println("!CHATNAME Sepp");
+        assertEquals("!PRESENCE DELTA ~Franz\tSepp", in.readLine());
+    }
+}
@@ -0,0 +1,103 @@
+package simplechat.communication.socket.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simplechat.server.SimpleChat;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReliableDeliveryTest {
+    private final TestServers servers = new TestServers();
+    private final SimpleChat simpleChat = new SimpleChat(null, null);
+    private SimpleChatServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setPresenceWindow(60_000L);
+        servers.start(server);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    @Test
+    public void windowKeepsUnacknowledgedAndDropsOldest() {
+        ReliableDelivery delivery = new ReliableDelivery(2, 60_000);
+        ReliableWindow window = new ReliableWindow("t", 2, delivery);
+        for (int i = 0; i < 3; i++) {
+            FrameBuffer frame = FrameBuffer.wrap(("m" + i + "\n").getBytes());
+            assertEquals("!SEQ " + (i + 1) + " ", new String(window.sent(frame)));
+            frame.release();
+        }
+        assertEquals(2, window.size());
+        assertEquals(1, delivery.getOverflowed());
+
+        window.ack(2);
+        assertEquals(1, window.size());
+        assertEquals(1, delivery.getAckLatency().getCount());
+
+        List<ReliableWindow.Entry> resend = window.resume(2);
+        assertEquals(1, resend.size());
+        assertEquals(3, resend.get(0).sequence);
+        window.resent(resend.get(0));
+        assertEquals(1, delivery.getRetransmitted());
+    }
+
+    @Test
+    public void unacknowledgedMessagesAreSentAgainAfterReconnect() throws Exception {
+        Socket receiver = servers.connect(server);
+        PrintWriter out = new PrintWriter(receiver.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(receiver.getInputStream()));
+        out.println("!CHATNAME Franz");
+        out.println("!RELIABLE");
+        String token = in.readLine().split(" ")[1];
+
+        PrintWriter sender = new PrintWriter(servers.connect(server).getOutputStream(), true);
+        sender.println("!CHATNAME Sepp");
+        TestServers.awaitClients(simpleChat, 2);
+        sender.println("eins");
+        sender.println("zwei");
+        assertEquals("!SEQ 1 [Sepp] eins", in.readLine());
+        assertEquals("!SEQ 2 [Sepp] zwei", in.readLine());
+        receiver.close();
+        TestServers.awaitClients(simpleChat, 1);
+        sender.println("drei");
+        Thread.sleep(200);
+
+        receiver = servers.connect(server);
+        out = new PrintWriter(receiver.getOutputStream(), true);
+        in = new BufferedReader(new InputStreamReader(receiver.getInputStream()));
+        out.println("!CHATNAME Franz");
+        out.println("!RELIABLE " + token + " 1");
+        assertEquals("!RELIABLE " + token, in.readLine());
+        assertEquals("!SEQ 2 [Sepp] zwei", in.readLine());
+        assertEquals("!SEQ 3 [Sepp] drei", in.readLine());
+        assertEquals(1, server.getReliable().getRetransmitted());
+
+        out.println("!ACK 3");
+        TestServers.await(() -> server.getReliable().getAckLatency().getCount() >= 2);
+        assertEquals(2, server.getReliable().getAckLatency().getCount());
+    }
+
+    @Test
+    public void unknownTokenStartsANewWindow() throws Exception {
+        Socket receiver = servers.connect(server);
+        PrintWriter out = new PrintWriter(receiver.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(receiver.getInputStream()));
+        out.println("!RELIABLE deadbeef 7");
+        String answer = in.readLine();
+        assertTrue(answer.startsWith("!RELIABLE "));
+        assertNotEquals("!RELIABLE deadbeef", answer);
+        assertEquals(1, server.getReliable().getWindows());
+    }
+}
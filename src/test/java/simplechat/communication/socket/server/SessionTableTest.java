@@ -0,0 +1,47 @@
+package simplechat.communication.socket.server;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SessionTableTest {
+
+    @Test
+    public void idsAreDenseAndReused() {
+        SessionTable table = new SessionTable();
+        Session first = table.open("a");
+        Session second = table.open("b");
+        assertEquals(0, first.getId());
+        assertEquals(1, second.getId());
+        table.close(first);
+        assertNull(table.get(0));
+        assertEquals(0, table.open("c").getId());
+        for (int i = 0; i < 100; i++) {
+            table.open("n" + i);
+        }
+        assertEquals(102, table.size());
+        assertEquals("n99", table.get(101).getName());
+    }
+
+    @Test
+    public void renameKeepsIdAndChangesPrefix() {
+        SessionTable table = new SessionTable();
+        Session session = table.open("Client");
+        Session renamed = table.rename(session, "Franz");
+        assertEquals(session.getId(), renamed.getId());
+        assertSame(renamed, table.get(session.getId()));
+        assertEquals("[Franz] ", new String(renamed.getPrefix(), StandardCharsets.UTF_8));
+        assertEquals("[Client] ", new String(session.getPrefix(), StandardCharsets.UTF_8));
+        assertEquals(1, table.prefixes());
+
+        // a stale session must not overwrite the current one
+        assertSame(session, table.rename(session, "Sepp"));
+        table.close(session);
+        assertSame(renamed, table.get(session.getId()));
+        table.close(renamed);
+        assertEquals(0, table.size());
+        assertEquals(0, table.prefixes());
+    }
+}
@@ -0,0 +1,287 @@
+package simplechat.communication.socket.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simplechat.communication.MessageProtocol;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.server.SimpleChat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SimpleChatServerTest {
+    private final TestServers servers = new TestServers();
+    private SimpleChat simpleChat;
+    private SimpleChatServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        simpleChat = new SimpleChat(null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    @Test
+    public void acceptWithSeveralAcceptors() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setAcceptors(4);
+        server.setBacklog(200);
+        servers.start(server);
+        for (int i = 0; i < 20; i++) {
+            servers.connect(server);
+        }
+        TestServers.awaitClients(simpleChat, 20);
+    }
+
+    @Test
+    public void broadcastWithSocketOptions() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setSendBufferSize(32 * 1024);
+        server.setReceiveBufferSize(32 * 1024);
+        servers.start(server);
+        Socket sender = servers.connect(server);
+        Socket receiver = servers.connect(server);
+        TestServers.awaitClients(simpleChat, 2);
+        new PrintWriter(sender.getOutputStream(), true).println("Hallo");
+        BufferedReader in = new BufferedReader(new InputStreamReader(receiver.getInputStream()));
+        assertTrue(in.readLine().endsWith("] Hallo"));
+    }
+
+    @Test
+    public void framesAreReleasedAfterShutdown() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.getBufferPool().setLeakDetection(true);
+        servers.start(server);
+        Socket sender = servers.connect(server);
+        Socket receiver = servers.connect(server);
+        TestServers.awaitClients(simpleChat, 2);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(sender.getOutputStream(), StandardCharsets.UTF_8), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(receiver.getInputStream(), StandardCharsets.UTF_8));
+        for (int i = 0; i < 100; i++) {
+            out.println("Nachricht " + i + " \u00e4\u00f6\u00fc");
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(in.readLine().endsWith("] Nachricht " + i + " \u00e4\u00f6\u00fc"));
+        }
+        TestServers.await(() -> simpleChat.getReceivedMessages().size() >= 100);
+        assertEquals(100, simpleChat.getReceivedMessages().size());
+        server.shutdown();
+        TestServers.await(() -> server.getBufferPool().outstanding() == 0);
+        assertEquals(0, server.getBufferPool().outstanding());
+        assertEquals(0, server.getBufferPool().leaks());
+    }
+
+    @Test
+    public void exitOvertakesQueuedMessages() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        // small socket buffers, so the backlog is in the queue and not in the kernel
+        server.setSendBufferSize(8192);
+        servers.start(server);
+        Socket slow = new Socket();
+        slow.setReceiveBufferSize(8192);
+        slow.connect(new java.net.InetSocketAddress("localhost", server.getLocalPort()));
+        servers.add(slow, "!CHATNAME Slow");
+        TestServers.awaitClients(simpleChat, 1);
+        // the client does not read yet, so most of the messages stay in the queue of its worker
+        int count = 100000;
+        char[] text = new char[200];
+        Arrays.fill(text, 'x');
+        for (int i = 0; i < count; i++) {
+            server.send(new String(text), "Slow");
+        }
+        String exit = MessageProtocol.getMessage(MessageProtocol.Commands.EXIT);
+        int[] before = {0};
+        String[] last = {null};
+        Thread reader = new Thread(() -> {
+            try {
+                LineReader in = new LineReader(slow.getInputStream());
+                while ((last[0] = in.readLine()) != null && !last[0].equals(exit)) {
+                    before[0]++;
+                }
+            } catch (IOException e) {
+                // closed by the server
+            }
+        });
+        reader.start();
+        server.removeClient("Slow");
+        reader.join(5000);
+        assertEquals(exit, last[0]);
+        assertTrue(before[0] + " messages before !EXIT", before[0] < count / 2);
+    }
+
+    @Test
+    public void prefixFollowsRename() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        servers.start(server);
+        Socket sender = servers.connect(server);
+        Socket receiver = servers.connect(server);
+        TestServers.awaitClients(simpleChat, 2);
+        PrintWriter out = new PrintWriter(sender.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(receiver.getInputStream()));
+        out.println("vorher");
+        String before = in.readLine();
+        assertTrue(before.startsWith("[Client"));
+        out.println("!CHATNAME Franz");
+        out.println("nachher");
+        assertEquals("[Franz] nachher", in.readLine());
+        assertEquals(2, server.getSessions().size());
+    }
+
+    @Test
+    public void searchCommand() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        servers.start(server);
+        Socket socket = servers.connect(server);
+        TestServers.awaitClients(simpleChat, 1);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out.println("!CHATNAME Franz");
+        out.println("the build is broken");
+        assertEquals("[Franz] the build is broken", in.readLine());
+        TestServers.await(() -> !simpleChat.search("build").isEmpty());
+
+        out.println("!SEARCH from:Franz \"build is\"");
+        assertTrue(in.readLine().matches("!SEARCH \\S+Z \\[Franz\\] the build is broken"));
+        assertEquals("!SEARCH END 1", in.readLine());
+        out.println("!SEARCH since:never");
+        assertTrue(in.readLine().startsWith("!SEARCH ERROR "));
+    }
+
+    @Test
+    public void compressedAndPlainClients() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        servers.start(server);
+        Socket compressed = servers.connect(server);
+        Socket plain = servers.connect(server);
+        TestServers.awaitClients(simpleChat, 2);
+
+        LineWriter compressedOut = new LineWriter(compressed.getOutputStream());
+        LineReader compressedIn = new LineReader(compressed.getInputStream());
+        compressedOut.writeLine("!COMPRESS " + MessageProtocol.DEFLATE);
+        assertEquals("!COMPRESS " + MessageProtocol.DEFLATE, compressedIn.readLine());
+        compressedIn.inflate();
+        compressedOut.deflate(16);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("Servus ");
+        }
+        new PrintWriter(plain.getOutputStream(), true).println(text);
+        assertTrue(compressedIn.readLine().endsWith("] " + text));
+
+        compressedOut.writeLine("short");
+        compressedOut.writeLine(text.toString());
+        BufferedReader plainIn = new BufferedReader(new InputStreamReader(plain.getInputStream()));
+        assertTrue(plainIn.readLine().endsWith("] " + text));
+        assertTrue(plainIn.readLine().endsWith("] short"));
+        assertTrue(plainIn.readLine().endsWith("] " + text));
+    }
+
+    @Test
+    public void compressionDeclined() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setCompression(false);
+        servers.start(server);
+        Socket socket = servers.connect(server);
+        LineWriter out = new LineWriter(socket.getOutputStream());
+        out.writeLine("!COMPRESS " + MessageProtocol.DEFLATE);
+        assertEquals("!COMPRESS " + MessageProtocol.NONE, new LineReader(socket.getInputStream()).readLine());
+    }
+
+    @Test
+    public void drainSendsSpreadReconnectHints() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        servers.start(server);
+        BufferedReader first = new BufferedReader(new InputStreamReader(servers.connect(server).getInputStream()));
+        BufferedReader second = new BufferedReader(new InputStreamReader(servers.connect(server).getInputStream()));
+        TestServers.awaitClients(simpleChat, 2);
+
+        Map<String, List<String>> undelivered = server.drain(1000, 5000, "otherhost:5050");
+        assertTrue(undelivered.isEmpty());
+        for (BufferedReader in : new BufferedReader[]{first, second}) {
+            String[] command = in.readLine().split(" ");
+            assertEquals("!RECONNECT", command[0]);
+            long hint = Long.parseLong(command[1]);
+            assertTrue(hint >= 5000 && hint < 10000);
+            assertEquals("otherhost:5050", command[2]);
+            assertNull(in.readLine());
+        }
+        try {
+            servers.connect(server);
+            fail("drained server still accepts");
+        } catch (IOException e) {
+            // expected, the ServerSocket is closed
+        }
+    }
+
+    @Test
+    public void undeliveredMessagesAreKeptForTheName() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setSendBufferSize(4096);
+        servers.start(server);
+        Socket slow = servers.connect(server);
+        slow.setReceiveBufferSize(4096);
+        new PrintWriter(slow.getOutputStream(), true).println("!CHATNAME Franz");
+        TestServers.awaitClients(simpleChat, "Franz");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append('x');
+        }
+        for (int i = 0; i < 5000; i++) {
+            server.send("[Server] " + i + " " + text);
+        }
+        Map<String, List<String>> undelivered = server.drain(200, 1000, null);
+        assertTrue(undelivered.get("Franz").size() > 0);
+        assertTrue(undelivered.get("Franz").get(0).startsWith("[Server] "));
+
+        simpleChat = new SimpleChat(null, null);
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setPending(Collections.singletonMap("Franz", Collections.singletonList("[Server] kept")));
+        servers.start(server);
+        Socket socket = servers.connect(server);
+        new PrintWriter(socket.getOutputStream(), true).println("!CHATNAME Franz");
+        assertEquals("[Server] kept", new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine());
+    }
+
+    @Test
+    public void directMessageReachesTargetsAndSender() throws Exception {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        servers.start(server);
+        List<PrintWriter> out = new ArrayList<>();
+        List<BufferedReader> in = new ArrayList<>();
+        for (String name : new String[]{"Franz", "Sepp", "Hans"}) {
+            Socket socket = servers.connect(server);
+            out.add(new PrintWriter(socket.getOutputStream(), true));
+            in.add(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+            out.get(out.size() - 1).println("!CHATNAME " + name);
+        }
+        TestServers.awaitClients(simpleChat, "Franz", "Sepp", "Hans");
+
+        out.get(0).println(MessageProtocol.privateMessage("servus", "Sepp", " Hans", "Nobody"));
+        String expected = "[Franz] {Sepp, Hans,Nobody} servus";
+        assertEquals(expected, in.get(1).readLine());
+        assertEquals(expected, in.get(2).readLine());
+        assertEquals(expected, in.get(0).readLine());
+        assertEquals("!PRIVATE ERROR Nobody", in.get(0).readLine());
+
+        out.get(1).println("!PRIVATE servus");
+        assertTrue(in.get(1).readLine().startsWith("!PRIVATE ERROR "));
+    }
+}
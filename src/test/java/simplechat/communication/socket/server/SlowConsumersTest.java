@@ -0,0 +1,113 @@
+package simplechat.communication.socket.server;
+
+import org.junit.After;
+import org.junit.Test;
+import simplechat.communication.socket.LineReader;
+import simplechat.server.SimpleChat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SlowConsumersTest {
+    private final TestServers servers = new TestServers();
+    private final SimpleChat simpleChat = new SimpleChat(null, null);
+    private SimpleChatServer server;
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    private void start(SlowConsumers slowConsumers) throws InterruptedException {
+        server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setSlowConsumers(slowConsumers);
+        // small socket buffers, so the backlog is in the queue and not in the kernel
+        server.setSendBufferSize(8192);
+        servers.start(server);
+    }
+
+    private Socket connect(String chatName) throws IOException {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(8192);
+        socket.connect(new InetSocketAddress("localhost", server.getLocalPort()));
+        return servers.add(socket, "!CHATNAME " + chatName);
+    }
+
+    /**
+     * Sends more to the client than the socket buffers hold, waits and sends the last message
+     */
+    private void flood(String chatName, int count, long pause) throws InterruptedException {
+        char[] text = new char[200];
+        Arrays.fill(text, 'x');
+        for (int i = 0; i < count; i++) {
+            server.send(new String(text), chatName);
+        }
+        Thread.sleep(pause);
+        server.send("last", chatName);
+    }
+
+    @Test
+    public void limits() {
+        SlowConsumers policy = new SlowConsumers(100, 1000, 1000, 10000, 5);
+        assertEquals(SlowConsumers.State.NORMAL, policy.check(99, 999));
+        assertEquals(SlowConsumers.State.DEGRADED, policy.check(100, 0));
+        assertEquals(SlowConsumers.State.DEGRADED, policy.check(0, 1000));
+        assertEquals(SlowConsumers.State.DISCONNECT, policy.check(1000, 0));
+        assertEquals(SlowConsumers.State.DISCONNECT, policy.check(0, 10000));
+    }
+
+    @Test
+    public void degradedClientGetsTheLatestMessages() throws Exception {
+        start(new SlowConsumers(100, Long.MAX_VALUE, 60_000, Long.MAX_VALUE, 5));
+        Socket slow = connect("Slow");
+        TestServers.awaitClients(simpleChat, "Slow");
+        int count = 20000;
+        flood("Slow", count, 300);
+        assertTrue(server.getWorkers().keySet().iterator().next().isDegraded());
+
+        LineReader in = new LineReader(slow.getInputStream());
+        int received = 0;
+        String skipped = null;
+        String line;
+        while ((line = in.readLine()) != null && !line.equals("last")) {
+            if (line.startsWith("!LAG "))
+                skipped = line;
+            received++;
+        }
+        assertEquals("last", line);
+        assertNotNull(skipped);
+        assertTrue(received + " messages received", received < count / 2);
+        SlowConsumers policy = server.getSlowConsumers();
+        assertEquals(1, policy.getDegraded());
+        assertTrue(policy.getDropped() > count / 2);
+        // the writer records the flush after the last line
+        TestServers.await(() -> policy.getLagMillis().getMax() >= 100);
+        assertTrue(policy.getLagMillis().getMax() >= 100);
+        assertEquals(0, policy.getDisconnected());
+    }
+
+    @Test
+    public void laggardIsDisconnectedOthersKeepReceiving() throws Exception {
+        start(new SlowConsumers(100, Long.MAX_VALUE, 300, Long.MAX_VALUE, 5));
+        connect("Slow");
+        Socket fast = connect("Fast");
+        TestServers.awaitClients(simpleChat, "Slow", "Fast");
+        flood("Slow", 20000, 400);
+        TestServers.awaitClients(simpleChat, 1);
+        assertEquals(1, server.getSlowConsumers().getDisconnected());
+        assertTrue(server.isLocalClient("Fast"));
+
+        server.send("hallo", "Fast");
+        LineReader in = new LineReader(fast.getInputStream());
+        String line;
+        while ((line = in.readLine()) != null && !line.equals("hallo")) {
+        }
+        assertEquals("hallo", line);
+        TestServers.await(() -> server.getBufferPool().outstanding() == 0);
+        assertEquals(0, server.getBufferPool().outstanding());
+    }
+}
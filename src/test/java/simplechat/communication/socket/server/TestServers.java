@@ -0,0 +1,156 @@
+package simplechat.communication.socket.server;
+
+import simplechat.communication.socket.LineWriter;
+import simplechat.server.SimpleChat;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fixture of the tests which talk to a running server: starts servers, connects raw sockets and closes
+ * all of it again in the tearDown of the test.
+ */
+public class TestServers {
+    /**
+     * Longest time a test waits for the server to get somewhere
+     */
+    public static final long TIMEOUT = 5000;
+
+    private final List<SimpleChatServer> servers = new CopyOnWriteArrayList<>();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+    /**
+     * Starts the server and returns when it listens
+     *
+     * @param server configured server, shut down by {@link #close()}
+     * @return the server
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public SimpleChatServer start(SimpleChatServer server) throws InterruptedException {
+        this.servers.add(server);
+        server.start();
+        assertTrue("server did not start", server.awaitStarted(TIMEOUT));
+        assertTrue("server is not listening", server.getLocalPort() > 0);
+        return server;
+    }
+
+    /**
+     * Starts a server with the default settings on a free port
+     *
+     * @param simpleChat server UI
+     * @return the listening server
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public SimpleChatServer start(SimpleChat simpleChat) throws InterruptedException {
+        return this.start(new SimpleChatServer("localhost", 0, simpleChat));
+    }
+
+    /**
+     * Connects a raw socket to the server and sends the given lines, e.g. a !CHATNAME
+     *
+     * @param server listening server
+     * @param lines  lines sent right after connecting
+     * @return socket, closed by {@link #close()}
+     * @throws IOException if connecting or sending failed
+     */
+    public Socket connect(SimpleChatServer server, String... lines) throws IOException {
+        return this.connect(server.getLocalPort(), lines);
+    }
+
+    /**
+     * Connects a raw socket to a port of the server, e.g. the cluster or admin port
+     *
+     * @param port  local port
+     * @param lines lines sent right after connecting
+     * @return socket, closed by {@link #close()}
+     * @throws IOException if connecting or sending failed
+     */
+    public Socket connect(int port, String... lines) throws IOException {
+        return this.add(new Socket("localhost", port), lines);
+    }
+
+    /**
+     * Takes a socket the test connected itself, e.g. with special buffer sizes
+     *
+     * @param socket connected socket, closed by {@link #close()}
+     * @param lines  lines sent right away
+     * @return the socket
+     * @throws IOException if sending failed
+     */
+    public Socket add(Socket socket, String... lines) throws IOException {
+        this.sockets.add(socket);
+        if (lines.length > 0) {
+            LineWriter out = new LineWriter(socket.getOutputStream());
+            for (String line : lines) {
+                out.writeLine(line);
+            }
+        }
+        return socket;
+    }
+
+    /**
+     * Waits until the server UI shows the given number of clients, also after some left. The UI learns
+     * a name only after the worker can receive messages.
+     *
+     * @param simpleChat server UI
+     * @param count      number of clients
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void awaitClients(SimpleChat simpleChat, int count) throws InterruptedException {
+        await(() -> simpleChat.getClients().length == count);
+        assertEquals(count, simpleChat.getClients().length);
+    }
+
+    /**
+     * Waits until the server UI shows all of the given names
+     *
+     * @param simpleChat server UI
+     * @param names      chatNames of the clients
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void awaitClients(SimpleChat simpleChat, String... names) throws InterruptedException {
+        List<String> expected = Arrays.asList(names);
+        await(() -> Arrays.asList(simpleChat.getClients()).containsAll(expected));
+        assertTrue(Arrays.toString(simpleChat.getClients()),
+                Arrays.asList(simpleChat.getClients()).containsAll(expected));
+    }
+
+    /**
+     * Waits for a state of the server which has no callback, at most {@link #TIMEOUT}
+     *
+     * @param condition state the test waits for
+     * @return false if the condition did not become true in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * Closes the sockets and shuts the servers down, for the tearDown of the test
+     *
+     * @throws IOException if a socket could not be closed
+     */
+    public void close() throws IOException {
+        for (Socket socket : this.sockets) {
+            socket.close();
+        }
+        this.sockets.clear();
+        for (SimpleChatServer server : this.servers) {
+            server.shutdown();
+        }
+        this.servers.clear();
+    }
+}
@@ -0,0 +1,155 @@
+package simplechat.communication.transport;
+
+import org.junit.After;
+import org.junit.Test;
+import simplechat.communication.socket.LineReader;
+import simplechat.communication.socket.LineWriter;
+import simplechat.communication.socket.server.SimpleChatServer;
+import simplechat.communication.socket.server.TestServers;
+import simplechat.server.SimpleChat;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TransportTest {
+    private final TestServers servers = new TestServers();
+
+    @After
+    public void tearDown() throws Exception {
+        servers.close();
+    }
+
+    @Test
+    public void transportsAreFoundByName() {
+        assertEquals(Arrays.asList("socket", "nio", "virtual", "memory", "websocket"), Transports.names());
+        assertEquals("socket", Transports.get(null).getName());
+        try {
+            Transports.get("carrier-pigeon");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("memory"));
+        }
+    }
+
+    @Test
+    public void serverRunsOnEveryTransport() throws Exception {
+        for (String name : Transports.names()) {
+            Transport transport = Transports.get(name);
+            SimpleChat simpleChat = new SimpleChat(null, null);
+            SimpleChatServer server = new SimpleChatServer("localhost", 0, simpleChat);
+            server.setTransport(transport);
+            server.setAcceptors(2);
+            servers.start(server);
+            try (Connection sender = transport.connect("localhost", server.getLocalPort(), 2000, null);
+                 Connection receiver = transport.connect("localhost", server.getLocalPort(), 2000, null)) {
+                new LineWriter(sender.getOutputStream()).writeLine("!CHATNAME Franz");
+                TestServers.awaitClients(simpleChat, 2);
+                TestServers.awaitClients(simpleChat, "Franz");
+                new LineWriter(sender.getOutputStream()).writeLine("Hallo");
+                LineReader in = new LineReader(receiver.getInputStream());
+                String line;
+                while ((line = in.readLine()) != null && line.startsWith("!")) {
+                    // presence and name answers
+                }
+                assertEquals(name, "[Franz] Hallo", line);
+            } finally {
+                server.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void webSocketAcceptKeyOfTheRfc() {
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketFrames.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void browserAndSocketClientShareTheChat() throws Exception {
+        SimpleChat simpleChat = new SimpleChat(null, null);
+        SimpleChatServer server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setWebSocketPort(0);
+        servers.start(server);
+        try (Connection browser = new WebSocketTransport().connect("localhost", server.getWebSocketPort(), 2000, null);
+             Connection plain = new SocketTransport().connect("localhost", server.getLocalPort(), 2000, null)) {
+            LineWriter browserOut = new LineWriter(browser.getOutputStream());
+            browserOut.writeLine("!CHATNAME Browser");
+            new LineWriter(plain.getOutputStream()).writeLine("!CHATNAME Native");
+            TestServers.awaitClients(simpleChat, "Browser", "Native");
+            browserOut.writeLine("Hallo vom Browser");
+            assertEquals("[Browser] Hallo vom Browser", nextText(new LineReader(plain.getInputStream())));
+            new LineWriter(plain.getOutputStream()).writeLine("Servus");
+            LineReader browserIn = new LineReader(browser.getInputStream());
+            assertEquals("[Browser] Hallo vom Browser", nextText(browserIn));
+            assertEquals("[Native] Servus", nextText(browserIn));
+        }
+    }
+
+    @Test
+    public void webSocketPortServesTheBrowserClient() throws Exception {
+        SimpleChat simpleChat = new SimpleChat(null, null);
+        SimpleChatServer server = new SimpleChatServer("localhost", 0, simpleChat);
+        server.setWebSocketPort(0);
+        servers.start(server);
+        try (Socket socket = servers.connect(server.getWebSocketPort())) {
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            LineReader in = new LineReader(socket.getInputStream());
+            assertTrue(in.readLine().startsWith("HTTP/1.1 200"));
+            String line;
+            boolean page = false;
+            while ((line = in.readLine()) != null) {
+                page |= line.contains("WebSocket");
+            }
+            assertTrue(page);
+        }
+    }
+
+    private static String nextText(LineReader in) throws Exception {
+        String line;
+        while ((line = in.readLine()) != null && line.startsWith("!")) {
+            // presence and name answers
+        }
+        return line;
+    }
+
+    @Test
+    public void memoryPipeWrapsAroundAndEndsAfterClose() throws Exception {
+        MemoryPipe pipe = new MemoryPipe(1000);
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream out = pipe.getOutputStream();
+                out.write(data, 0, 3333);
+                out.write(data, 3333, data.length - 3333);
+                pipe.close();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        InputStream in = pipe.getInputStream();
+        byte[] read = new byte[data.length];
+        int total = 0;
+        int n;
+        while ((n = in.read(read, total, Math.min(777, read.length - total))) > 0) {
+            total += n;
+        }
+        writer.join();
+        assertEquals(data.length, total);
+        assertArrayEquals(data, read);
+        assertEquals(-1, in.read());
+        try {
+            pipe.getOutputStream().write(1);
+            fail();
+        } catch (java.io.IOException e) {
+            // closed
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package simplechat.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ChatEventPublisherTest {
+    private ChatEventPublisher publisher = new ChatEventPublisher();
+
+    @After
+    public void tearDown() {
+        publisher.close();
+    }
+
+    /**
+     * Records the events and requests them one by one, or not at all until {@link #request(long)}
+     */
+    private static class Recorder implements Flow.Subscriber<ChatEvent> {
+        final List<String> events = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final boolean eager;
+        volatile Flow.Subscription subscription;
+
+        Recorder(boolean eager) {
+            this.eager = eager;
+        }
+
+        void request(long n) {
+            this.subscription.request(n);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (this.eager)
+                subscription.request(1);
+        }
+
+        @Override
+        public void onNext(ChatEvent item) {
+            this.events.add(item.toString());
+            if (this.eager)
+                this.subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error.set(throwable);
+            this.done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            this.done.countDown();
+        }
+    }
+
+    private static void awaitSubscribed(Recorder recorder) throws InterruptedException {
+        for (int i = 0; i < 100 && recorder.subscription == null; i++) {
+            Thread.sleep(10);
+        }
+        assertNotNull(recorder.subscription);
+    }
+
+    @Test
+    public void eventsOfTheChatInOrder() throws Exception {
+        SimpleChat chat = new SimpleChat(null, null);
+        Recorder recorder = new Recorder(true);
+        chat.getEvents().subscribe(recorder);
+        String franz = chat.addClient("Franz");
+        chat.incomingMessage("[Franz] hallo");
+        chat.renameClient(franz, "Sepp");
+        chat.removeClient("Sepp");
+        chat.getEvents().close();
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals("[JOIN Franz, MESSAGE [Franz] hallo, RENAME Franz Sepp, LEAVE Sepp]", recorder.events.toString());
+        assertNull(recorder.error.get());
+    }
+
+    @Test
+    public void slowSubscriberDoesNotBlockAndSeesTheLatestEvents() throws Exception {
+        Recorder recorder = new Recorder(false);
+        publisher.subscribe(recorder, 4, ChatEventPublisher.Overflow.DROP_OLDEST);
+        awaitSubscribed(recorder);
+        for (int i = 0; i < 10000; i++) {
+            publisher.publish(ChatEvent.message("m" + i));
+        }
+        assertEquals(9996, publisher.getDropped());
+        recorder.request(Long.MAX_VALUE);
+        publisher.close();
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals("[MESSAGE m9996, MESSAGE m9997, MESSAGE m9998, MESSAGE m9999]", recorder.events.toString());
+    }
+
+    @Test
+    public void dropNewestKeepsTheBeginning() throws Exception {
+        Recorder recorder = new Recorder(false);
+        publisher.subscribe(recorder, 2, ChatEventPublisher.Overflow.DROP_NEWEST);
+        awaitSubscribed(recorder);
+        for (int i = 0; i < 5; i++) {
+            publisher.publish(ChatEvent.join("c" + i));
+        }
+        recorder.request(10);
+        publisher.close();
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals("[JOIN c0, JOIN c1]", recorder.events.toString());
+        assertEquals(3, publisher.getDropped());
+    }
+
+    @Test
+    public void overflowCancelsIfNothingMayBeLost() throws Exception {
+        Recorder recorder = new Recorder(false);
+        publisher.subscribe(recorder, 2, ChatEventPublisher.Overflow.CANCEL);
+        awaitSubscribed(recorder);
+        for (int i = 0; i < 3; i++) {
+            publisher.publish(ChatEvent.leave("c" + i));
+        }
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertTrue(recorder.error.get() instanceof IllegalStateException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void invalidRequestIsAnError() throws Exception {
+        Recorder recorder = new Recorder(false);
+        publisher.subscribe(recorder);
+        awaitSubscribed(recorder);
+        recorder.request(0);
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertTrue(recorder.error.get() instanceof IllegalArgumentException);
+        assertFalse(publisher.hasSubscribers());
+    }
+}
@@ -0,0 +1,69 @@
+package simplechat.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ClientRegistryTest {
+
+    @Test
+    public void freedSuffixesAreUsedAgain() {
+        ClientRegistry registry = new ClientRegistry();
+        assertEquals("Client", registry.add(""));
+        assertEquals("Client#1", registry.add(""));
+        assertEquals("Client#2", registry.add(""));
+        assertTrue(registry.remove("Client#1"));
+        assertEquals("Client#1", registry.add(""));
+        assertEquals("Client#3", registry.rename("Client#1", "Client"));
+        assertEquals("Client#1", registry.add("Client"));
+        assertNull(registry.rename("Nobody", "Franz"));
+        assertFalse(registry.addExact("Client"));
+        assertEquals("[Client, Client#1, Client#2, Client#3]", registry.snapshot().toString());
+    }
+
+    @Test
+    public void concurrentAddsGetUniqueNames() throws Exception {
+        ClientRegistry registry = new ClientRegistry();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    registry.add("");
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Set<String> names = new HashSet<>(registry.snapshot());
+        assertEquals(4000, names.size());
+        assertEquals(4000, registry.size());
+    }
+
+    @Test
+    public void renameIsSeenInOneStep() throws Exception {
+        ClientRegistry registry = new ClientRegistry();
+        registry.add("a");
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread renamer = new Thread(() -> {
+            for (int i = 0; i < 10000; i++) {
+                registry.rename(i % 2 == 0 ? "a" : "b", i % 2 == 0 ? "b" : "a");
+            }
+            done.set(true);
+        });
+        renamer.start();
+        while (!done.get()) {
+            List<String> snapshot = registry.snapshot();
+            assertEquals(1, snapshot.size());
+        }
+        renamer.join();
+    }
+}
@@ -3,6 +3,11 @@ package simplechat.server;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
 
 public class SimpleChatTest {
@@ -53,4 +58,36 @@ public class SimpleChatTest {
         simpleChat.removeClient("Client");
         assertEquals(simpleChat.getClients()[0], "Client#1");
     }
+
+    @Test
+    public void backlogSurvivesDrain() throws Exception {
+        Path backlog = Files.createTempFile("simplechat", ".backlog");
+        simpleChat.setBacklogFile(backlog);
+        simpleChat.setDrain(100, 1000, null);
+        simpleChat.incomingMessage("[Franz] Servus");
+        assertTrue(simpleChat.getSearchIndex().awaitIndexed(5000));
+        long time = simpleChat.getSearchIndex().search("Servus").get(0).getTime();
+        simpleChat.stop();
+        Thread.sleep(20);
+
+        SimpleChat restarted = new SimpleChat(null, null);
+        restarted.setBacklogFile(backlog);
+        restarted.loadBacklog();
+        assertEquals("[Franz] Servus", restarted.getReceivedMessages().peek());
+        assertFalse(Files.exists(backlog));
+        // the history keeps the time the message was received, not the time of the restart
+        assertTrue(restarted.getSearchIndex().awaitIndexed(5000));
+        assertEquals(time, restarted.getSearchIndex().search("Servus").get(0).getTime());
+    }
+
+    @Test
+    public void strayFileIsNoBacklog() throws Exception {
+        Path backlog = Files.createTempFile("simplechat", ".backlog");
+        Files.write(backlog, Arrays.asList("H [Mallory] injected", "P Franz\tinjected"));
+        simpleChat.setBacklogFile(backlog);
+        simpleChat.loadBacklog();
+        assertTrue(simpleChat.getReceivedMessages().isEmpty());
+        assertTrue(Files.exists(backlog));
+        Files.delete(backlog);
+    }
 }
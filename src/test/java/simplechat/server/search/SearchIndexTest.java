@@ -0,0 +1,78 @@
+package simplechat.server.search;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+    private static final long DAY = 86_400_000L;
+
+    private SearchIndex index = new SearchIndex(SearchIndex.DEFAULT_MAX_MESSAGES);
+
+    @After
+    public void tearDown() {
+        index.shutdown();
+    }
+
+    @Test
+    public void termsAndPhrases() {
+        index.add("[Franz] The deploy failed again", 1000);
+        index.add("[Sepp] deploy worked, nothing failed", 2000);
+        index.add("[Franz] Lunch?", 3000);
+        assertTrue(index.awaitIndexed(1000));
+
+        List<SearchHit> hits = index.search("deploy failed");
+        assertEquals(2, hits.size());
+        assertEquals("[Sepp] deploy worked, nothing failed", hits.get(0).getMessage());
+        assertEquals("Franz", hits.get(1).getSender());
+
+        hits = index.search("\"DEPLOY FAILED\"");
+        assertEquals(1, hits.size());
+        assertEquals(1000, hits.get(0).getTime());
+        assertTrue(index.search("franz").isEmpty());
+        assertTrue(index.search("unknown").isEmpty());
+    }
+
+    @Test
+    public void senderAndTimeFilters() {
+        long now = 30 * DAY;
+        for (int i = 0; i < 20; i++) {
+            index.add("[" + (i % 2 == 0 ? "Franz" : "Sepp") + "] status " + i, now - (20 - i) * DAY);
+        }
+        assertTrue(index.awaitIndexed(1000));
+        List<SearchHit> hits = index.search(SearchQuery.parse("status from:franz since:7d", now));
+        assertEquals(3, hits.size());
+        assertEquals("[Franz] status 18", hits.get(0).getMessage());
+        assertEquals(3, index.search(SearchQuery.parse("until:17d status", now)).size());
+        assertEquals(2, index.search(SearchQuery.parse("status limit:2", now)).size());
+        assertEquals(20, index.search(SearchQuery.parse("limit:100", now)).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidTime() {
+        SearchQuery.parse("since:yesterday", 0);
+    }
+
+    @Test
+    public void mergingBoundsTheIndex() {
+        index.shutdown();
+        index = new SearchIndex(2000);
+        int messages = SearchIndex.SEGMENT_SIZE * SearchIndex.MERGE_FACTOR * 3 + 10;
+        for (int i = 0; i < messages; i++) {
+            index.add("[Franz] message number " + i + (i % 100 == 0 ? " hundred" : ""), i);
+        }
+        assertTrue(index.awaitIndexed(10000));
+        assertEquals(2000, index.getMessageCount());
+        assertTrue(index.getMerges() > 0);
+        assertTrue(index.getSegmentCount() < SearchIndex.MERGE_FACTOR * 2);
+
+        List<SearchHit> hits = index.search("hundred limit:1000");
+        assertEquals(20, hits.size());
+        assertEquals("[Franz] message number 6100 hundred", hits.get(0).getMessage());
+        assertEquals(1, index.search("\"number " + (messages - 1) + "\"").size());
+        assertTrue(index.search("\"number " + (messages - 2001) + "\"").isEmpty());
+    }
+}